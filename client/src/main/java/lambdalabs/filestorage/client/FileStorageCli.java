@@ -0,0 +1,158 @@
+package lambdalabs.filestorage.client;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command line transfers through {@link FileStorageClient}:
+ * <pre>
+ * java -jar file-storage-client-cli.jar [options] upload &lt;file&gt; [--name &lt;filename&gt;] [--content-type &lt;type&gt;] [--visibility PRIVATE|PUBLIC]
+ * java -jar file-storage-client-cli.jar [options] resume &lt;uploadId&gt; &lt;file&gt;
+ * java -jar file-storage-client-cli.jar [options] download &lt;fileId&gt; [&lt;target&gt;]
+ * </pre>
+ * Options: {@code --url} (else FILE_STORAGE_URL, else http://localhost:8080), {@code --user} (else FILE_STORAGE_USER),
+ * {@code --connections} and {@code --segment-size} (bytes, K/M/G suffixes allowed).
+ */
+public class FileStorageCli {
+
+    private static final String USAGE = """
+            Usage: file-storage [options] upload <file> [--name <filename>] [--content-type <type>] [--visibility PRIVATE|PUBLIC]
+                   file-storage [options] resume <uploadId> <file>
+                   file-storage [options] download <fileId> [<target>]
+            Options: --url <base url>         default $FILE_STORAGE_URL or http://localhost:8080
+                     --user <user id>         default $FILE_STORAGE_USER
+                     --connections <n>        concurrent connections, default 2
+                     --segment-size <bytes>   download range / upload part size, K, M, G suffixes, default 16M""";
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        List<String> arguments = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                if (i + 1 == args.length) {
+                    return usage("Missing value of " + args[i]);
+                }
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+        if (arguments.isEmpty()) {
+            return usage(null);
+        }
+
+        String url = options.getOrDefault("url", System.getenv().getOrDefault("FILE_STORAGE_URL", "http://localhost:8080"));
+        String user = options.getOrDefault("user", System.getenv("FILE_STORAGE_USER"));
+        if (user == null) {
+            return usage("Missing --user (or FILE_STORAGE_USER)");
+        }
+        FileStorageClient client;
+        try {
+            client = new FileStorageClient(URI.create(url.endsWith("/") ? url : url + "/"), user,
+                    Integer.parseInt(options.getOrDefault("connections", Integer.toString(FileStorageClient.DEFAULT_CONNECTIONS))),
+                    parseSize(options.getOrDefault("segment-size", Long.toString(FileStorageClient.DEFAULT_SEGMENT_SIZE))));
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        }
+
+        String command = arguments.get(0);
+        try {
+            long start = System.nanoTime();
+            RemoteFile file;
+            switch (command) {
+                case "upload" -> {
+                    if (arguments.size() != 2) {
+                        return usage("upload takes one file");
+                    }
+                    Path source = Path.of(arguments.get(1));
+                    PartUpload upload = client.startUpload(source, options.getOrDefault("name", source.getFileName().toString()),
+                            options.get("content-type"), options.get("visibility"));
+                    file = transfer(upload, () -> client.continueUpload(upload, source), source);
+                }
+                case "resume" -> {
+                    if (arguments.size() != 3) {
+                        return usage("resume takes an upload id and a file");
+                    }
+                    Path source = Path.of(arguments.get(2));
+                    PartUpload upload = client.getUpload(arguments.get(1));
+                    file = transfer(upload, () -> client.continueUpload(upload, source), source);
+                }
+                case "download" -> {
+                    if (arguments.size() < 2 || arguments.size() > 3) {
+                        return usage("download takes a file id and optionally a target");
+                    }
+                    RemoteFile remote = client.getFile(arguments.get(1));
+                    Path target = arguments.size() == 3 ? Path.of(arguments.get(2)) : Path.of(remote.filename());
+                    if (Files.isDirectory(target)) {
+                        target = target.resolve(remote.filename());
+                    }
+                    file = client.download(remote, target);
+                    System.out.println("Downloaded " + file.id() + " to " + target);
+                }
+                default -> {
+                    return usage("Unknown command " + command);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ROOT, "%s (%s): %d bytes in %.2f s, %.1f MB/s, md5 %s%n", file.filename(), file.id(),
+                    file.size(), seconds, file.size() / 1e6 / Math.max(seconds, 1e-9), file.md5());
+            return 0;
+        } catch (IOException e) {
+            System.err.println("Transfer failed: " + (e.getMessage() != null ? e.getMessage() : e));
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted");
+            return 1;
+        }
+    }
+
+    /**
+     * Run the upload, telling how to resume it when it fails
+     */
+    private static RemoteFile transfer(PartUpload upload, Transfer transfer, Path source) throws IOException, InterruptedException {
+        try {
+            RemoteFile file = transfer.run();
+            System.out.println("Uploaded " + source + " as " + file.id());
+            return file;
+        } catch (IOException e) {
+            System.err.println("Resume with: resume " + upload.id() + " " + source);
+            throw e;
+        }
+    }
+
+    static long parseSize(String size) {
+        String value = size.trim().toUpperCase(Locale.ROOT);
+        long unit = switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 'K' -> 1024L;
+            case 'M' -> 1024L * 1024;
+            case 'G' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        return Long.parseLong(unit == 1 ? value : value.substring(0, value.length() - 1)) * unit;
+    }
+
+    private static int usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println(USAGE);
+        return 2;
+    }
+
+    @FunctionalInterface
+    private interface Transfer {
+        RemoteFile run() throws IOException, InterruptedException;
+    }
+}
@@ -0,0 +1,441 @@
+package lambdalabs.filestorage.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Transfers files to and from the file storage over several connections at once.
+ * <p>
+ * Downloads are split into {@code segmentSize} byte ranges fetched concurrently, each written into place
+ * in the target file; a failed range is fetched again from where it stopped. {@code If-Range} makes the
+ * server answer with the whole file instead of a range when the content changed meanwhile, which fails
+ * the download. Uploads go in parts of about {@code segmentSize} bytes (see {@code POST /api/files/uploads}),
+ * each retried on its own and checked against the MD5 the server computed of it.
+ * <p>
+ * Both end with comparing the MD5 of the whole local file with the server's. Retryable failures (see
+ * {@link TransferException#isRetryable()}) are retried with backoff, honouring Retry-After. A 429 means
+ * the user has more transfers running than the server admits at once; it is waited out without counting
+ * as a failed attempt, for up to {@code MAX_ADMISSION_WAIT}.
+ */
+public class FileStorageClient {
+
+    // The server's default file-storage.admission.large.per-user, more connections only queue
+    public static final int DEFAULT_CONNECTIONS = 2;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+
+    private static final int ATTEMPTS = 5;
+
+    private static final Duration FIRST_BACKOFF = Duration.ofMillis(200);
+
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    private static final Duration MAX_ADMISSION_WAIT = Duration.ofMinutes(10);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final URI baseUrl;
+
+    private final String userId;
+
+    private final int connections;
+
+    private final long segmentSize;
+
+    private final ObjectMapper json = new ObjectMapper();
+
+    // HTTP/1.1, so concurrent requests are concurrent connections
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    public FileStorageClient(URI baseUrl, String userId, int connections, long segmentSize) {
+        if (connections < 1 || segmentSize < 1) {
+            throw new IllegalArgumentException("connections and segmentSize must be positive");
+        }
+        this.baseUrl = baseUrl;
+        this.userId = userId;
+        this.connections = connections;
+        this.segmentSize = segmentSize;
+    }
+
+    public FileStorageClient(URI baseUrl, String userId) {
+        this(baseUrl, userId, DEFAULT_CONNECTIONS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public RemoteFile getFile(String fileId) throws IOException, InterruptedException {
+        return retrying(() -> read(send(request("/api/files/" + fileId).GET().build(), 200), RemoteFile.class));
+    }
+
+    public RemoteFile download(String fileId, Path target) throws IOException, InterruptedException {
+        return download(getFile(fileId), target);
+    }
+
+    /**
+     * Download the file into {@code target}, replacing it
+     *
+     * @throws TransferException when the file changed during the download or did not arrive intact
+     */
+    public RemoteFile download(RemoteFile file, Path target) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (file.size() > 0) {
+                // Allocated up front, segments are written into place in any order
+                channel.write(ByteBuffer.allocate(1), file.size() - 1);
+            }
+            List<IoCall<Void>> segments = new ArrayList<>();
+            for (long start = 0; start < file.size(); start += segmentSize) {
+                long from = start;
+                long to = Math.min(file.size(), start + segmentSize);
+                segments.add(() -> {
+                    downloadSegment(file, channel, from, to);
+                    return null;
+                });
+            }
+            runAll(segments);
+        }
+        String md5 = md5(target);
+        if (!md5.equals(file.md5())) {
+            throw new TransferException("Downloaded content of " + file.id() + " has md5 " + md5 + ", the server's is " + file.md5());
+        }
+        return file;
+    }
+
+    private void downloadSegment(RemoteFile file, FileChannel channel, long start, long end) throws IOException, InterruptedException {
+        long[] position = {start};
+        retrying(() -> {
+            HttpRequest request = request("/api/files/" + file.id() + "/download")
+                    .header("Range", "bytes=" + position[0] + "-" + (end - 1))
+                    // The download ETag is the quoted md5
+                    .header("If-Range", "\"" + file.md5() + "\"")
+                    .GET()
+                    .build();
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            try (InputStream body = response.body()) {
+                if (response.statusCode() == 200) {
+                    throw new TransferException("File " + file.id() + " changed during the download", 200, null);
+                }
+                if (response.statusCode() != 206) {
+                    throw failure(request, response.statusCode(), response.headers(), new String(body.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while (position[0] < end && (read = body.read(buffer, 0, (int) Math.min(buffer.length, end - position[0]))) != -1) {
+                    ByteBuffer written = ByteBuffer.wrap(buffer, 0, read);
+                    while (written.hasRemaining()) {
+                        position[0] += channel.write(written, position[0]);
+                    }
+                }
+            }
+            if (position[0] < end) {
+                throw new TransferException("Range of " + file.id() + " ended at " + position[0] + " instead of " + end);
+            }
+            return null;
+        });
+    }
+
+    public RemoteFile upload(Path source, String filename, String contentType, String visibility) throws IOException, InterruptedException {
+        return continueUpload(startUpload(source, filename, contentType, visibility), source);
+    }
+
+    /**
+     * Start an upload in parts of the source file, see {@link #continueUpload}
+     *
+     * @param contentType null to let the server derive it from the filename
+     * @param visibility null for the server's default
+     */
+    public PartUpload startUpload(Path source, String filename, String contentType, String visibility) throws IOException, InterruptedException {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("filename", filename);
+        params.put("size", Long.toString(Files.size(source)));
+        params.put("partSize", Long.toString(segmentSize));
+        if (contentType != null) {
+            params.put("contentType", contentType);
+        }
+        if (visibility != null) {
+            params.put("visibility", visibility);
+        }
+        String query = params.entrySet().stream()
+                .map(param -> param.getKey() + "=" + URLEncoder.encode(param.getValue(), StandardCharsets.UTF_8))
+                .collect(Collectors.joining("&"));
+        // An upload created twice by a retry is abandoned and removed by the server
+        return retrying(() -> read(send(request("/api/files/uploads?" + query)
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), 201), PartUpload.class));
+    }
+
+    public PartUpload getUpload(String uploadId) throws IOException, InterruptedException {
+        return retrying(() -> read(send(request("/api/files/uploads/" + uploadId).GET().build(), 200), PartUpload.class));
+    }
+
+    public RemoteFile resumeUpload(String uploadId, Path source) throws IOException, InterruptedException {
+        return continueUpload(getUpload(uploadId), source);
+    }
+
+    /**
+     * Send the parts of the upload not stored yet and complete it
+     *
+     * @throws TransferException when the server's content does not match the source file
+     */
+    public RemoteFile continueUpload(PartUpload upload, Path source) throws IOException, InterruptedException {
+        if (Files.size(source) != upload.size()) {
+            throw new TransferException(source + " has " + Files.size(source) + " bytes, upload " + upload.id() + " is of " + upload.size());
+        }
+        // Hashed while the parts are sent
+        FutureTask<String> localMd5 = new FutureTask<>(() -> md5(source));
+        Thread.ofVirtual().name("md5-" + upload.id()).start(localMd5);
+        try {
+            for (int round = 1; ; round++) {
+                PartUpload current = upload;
+                List<IoCall<Void>> parts = new ArrayList<>();
+                for (int part = 0; part < current.partCount(); part++) {
+                    if (current.fileId() == null && !current.parts().contains(part)) {
+                        int number = part;
+                        parts.add(() -> {
+                            uploadPart(current, source, number);
+                            return null;
+                        });
+                    }
+                }
+                runAll(parts);
+                try {
+                    RemoteFile file = retrying(() -> read(send(request("/api/files/uploads/" + current.id() + "/complete")
+                            .POST(HttpRequest.BodyPublishers.noBody()).build(), 201), RemoteFile.class));
+                    String md5 = localMd5.get();
+                    if (!md5.equals(file.md5())) {
+                        throw new TransferException("Uploaded content of " + file.id() + " has md5 " + file.md5() + ", " + source + " has " + md5);
+                    }
+                    return file;
+                } catch (TransferException e) {
+                    // Parts the server lost meanwhile are sent again, other conflicts are final
+                    if (e.getStatus() != 409 || round == ATTEMPTS) {
+                        throw e;
+                    }
+                    upload = getUpload(current.id());
+                    if (upload.parts().size() == upload.partCount()) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException("Failed to hash " + source, e.getCause());
+        } finally {
+            localMd5.cancel(true);
+        }
+    }
+
+    private void uploadPart(PartUpload upload, Path source, int part) throws IOException, InterruptedException {
+        long offset = upload.partOffset(part);
+        long length = upload.partLength(part);
+        retrying(() -> {
+            AtomicReference<MessageDigest> sent = new AtomicReference<>();
+            HttpRequest request = request("/api/files/uploads/" + upload.id() + "/parts/" + part)
+                    .header("Content-Type", "application/octet-stream")
+                    .PUT(HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> {
+                        sent.set(newMd5());
+                        return new DigestInputStream(range(source, offset, length), sent.get());
+                    }), length))
+                    .build();
+            JsonNode stored = json.readTree(send(request, 200).body());
+            String md5 = HexFormat.of().formatHex(sent.get().digest());
+            if (!md5.equals(stored.path("md5").asText())) {
+                throw new TransferException("Part " + part + " of upload " + upload.id() + " arrived corrupted");
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Run the transfers on up to {@code connections} threads, failing with the first that fails
+     */
+    private void runAll(List<IoCall<Void>> transfers) throws IOException, InterruptedException {
+        if (transfers.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, transfers.size()),
+                Thread.ofVirtual().name("transfer-", 0).factory());
+        try {
+            CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+            transfers.forEach(transfer -> completion.submit(transfer::call));
+            for (int i = 0; i < transfers.size(); i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException io) {
+                        throw io;
+                    }
+                    if (e.getCause() instanceof InterruptedException interrupted) {
+                        throw interrupted;
+                    }
+                    throw new IllegalStateException("Transfer failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private <T> T retrying(IoCall<T> call) throws IOException, InterruptedException {
+        long admissionDeadline = System.nanoTime() + MAX_ADMISSION_WAIT.toNanos();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (TransferException e) {
+                if (e.getStatus() == 429 && System.nanoTime() < admissionDeadline) {
+                    // Not admitted yet, not a failure of the transfer
+                    pause(1, e.getRetryAfter());
+                    attempt--;
+                    continue;
+                }
+                if (!e.isRetryable() || attempt == ATTEMPTS) {
+                    throw e;
+                }
+                pause(attempt, e.getRetryAfter());
+            } catch (IOException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                pause(attempt, null);
+            }
+        }
+    }
+
+    private static void pause(int attempt, Duration retryAfter) throws InterruptedException {
+        Duration backoff = FIRST_BACKOFF.multipliedBy(1L << Math.min(attempt - 1, 16));
+        if (retryAfter != null && retryAfter.compareTo(backoff) > 0) {
+            backoff = retryAfter;
+        }
+        Thread.sleep(backoff.compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : backoff);
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(baseUrl.resolve(path)).header("User-Id", userId);
+    }
+
+    private HttpResponse<String> send(HttpRequest request, int expectedStatus) throws IOException, InterruptedException {
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != expectedStatus) {
+            throw failure(request, response.statusCode(), response.headers(), response.body());
+        }
+        return response;
+    }
+
+    private TransferException failure(HttpRequest request, int status, HttpHeaders headers, String body) {
+        Duration retryAfter = headers.firstValueAsLong("Retry-After").isPresent()
+                ? Duration.ofSeconds(headers.firstValueAsLong("Retry-After").getAsLong()) : null;
+        String message;
+        try {
+            message = json.readTree(body).path("message").asText(body);
+        } catch (IOException e) {
+            message = body;
+        }
+        return new TransferException(request.method() + " " + request.uri().getPath() + " answered " + status
+                + (message.isEmpty() ? "" : ": " + message), status, retryAfter);
+    }
+
+    private <T> T read(HttpResponse<String> response, Class<T> type) throws IOException {
+        return json.readValue(response.body(), type);
+    }
+
+    static String md5(Path path) throws IOException {
+        MessageDigest md5 = newMd5();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md5.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(md5.digest());
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    /**
+     * {@code length} bytes of the file from {@code offset} on
+     */
+    private static InputStream range(Path source, long offset, long length) {
+        try {
+            InputStream in = Files.newInputStream(source);
+            in.skipNBytes(offset);
+            return new FilterInputStream(in) {
+                private long remaining = length;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int b = in.read();
+                    if (b != -1) {
+                        remaining--;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int read = in.read(b, off, (int) Math.min(len, remaining));
+                    if (read > 0) {
+                        remaining -= read;
+                    }
+                    return read;
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface IoCall<T> {
+        T call() throws IOException, InterruptedException;
+    }
+}
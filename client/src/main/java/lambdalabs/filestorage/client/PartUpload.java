@@ -0,0 +1,21 @@
+package lambdalabs.filestorage.client;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.Set;
+
+/**
+ * An upload in parts on the server: parts are numbered from 0 and all but the last hold {@code partSize}
+ * bytes. {@code parts} are the ones stored so far, {@code fileId} is set once the upload was completed.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record PartUpload(String id, String filename, long size, long partSize, int partCount, Set<Integer> parts, String fileId) {
+
+    public long partOffset(int part) {
+        return part * partSize;
+    }
+
+    public long partLength(int part) {
+        return Math.min(partSize, size - partOffset(part));
+    }
+}
@@ -0,0 +1,10 @@
+package lambdalabs.filestorage.client;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * The parts of a stored file's metadata transfers need
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record RemoteFile(String id, String filename, long size, String md5, String contentType) {
+}
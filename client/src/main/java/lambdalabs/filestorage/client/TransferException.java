@@ -0,0 +1,43 @@
+package lambdalabs.filestorage.client;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * A transfer the server refused or that did not arrive intact. {@code status} is the HTTP status,
+ * 0 when there was no answer to blame, e.g. content that failed its MD5 check.
+ */
+public class TransferException extends IOException {
+
+    private final int status;
+
+    private final Duration retryAfter;
+
+    public TransferException(String message, int status, Duration retryAfter) {
+        super(message);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public TransferException(String message) {
+        this(message, 0, null);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * How long the server asked to wait before trying again, null when it did not say
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * Whether trying again may succeed: corrupted transfers, admission rejections and server errors
+     */
+    public boolean isRetryable() {
+        return status == 0 || status == 429 || status >= 500;
+    }
+}
@@ -0,0 +1,266 @@
+package lambdalabs.filestorage.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Against a fake of the server's download and part upload endpoints that fails some requests
+ */
+public class FileStorageClientTest {
+
+	private static final int SEGMENT = 64 * 1024;
+
+	private final byte[] content = new byte[10 * SEGMENT + 123];
+
+	private final Map<Integer, byte[]> parts = new ConcurrentHashMap<>();
+
+	private final AtomicBoolean cutSegment = new AtomicBoolean(true);
+
+	private final AtomicBoolean rejectPart = new AtomicBoolean(true);
+
+	private final AtomicInteger notAdmitted = new AtomicInteger();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final AtomicInteger maxActive = new AtomicInteger();
+
+	private volatile boolean corrupt;
+
+	private volatile String servedMd5;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private FileStorageClient client;
+
+	@TempDir
+	Path dir;
+
+	@BeforeEach
+	void start() throws Exception {
+		new Random(7).nextBytes(content);
+		servedMd5 = md5(content);
+		executor = Executors.newCachedThreadPool();
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/api/files/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+		client = new FileStorageClient(URI.create("http://localhost:" + server.getAddress().getPort() + "/"), "tester", 4, SEGMENT);
+	}
+
+	@AfterEach
+	void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	void download_fetchesRangesConcurrently_andRetriesACutRangeWhereItStopped() throws Exception {
+		Path target = dir.resolve("download.bin");
+
+		RemoteFile file = client.download("f1", target);
+
+		Assertions.assertArrayEquals(content, Files.readAllBytes(target));
+		Assertions.assertEquals(servedMd5, file.md5());
+		Assertions.assertFalse(cutSegment.get(), "A range was cut");
+		Assertions.assertTrue(maxActive.get() > 1 && maxActive.get() <= 4, "Concurrent requests: " + maxActive.get());
+	}
+
+	@Test
+	void download_ofCorruptedContent_failsTheMd5Check() {
+		corrupt = true;
+
+		TransferException e = Assertions.assertThrows(TransferException.class, () -> client.download("f1", dir.resolve("corrupt.bin")));
+
+		Assertions.assertTrue(e.getMessage().contains("md5"), e.getMessage());
+	}
+
+	@Test
+	void download_ofAFileThatChanged_fails() throws Exception {
+		RemoteFile stale = client.getFile("f1");
+		content[0] ^= 1;
+		servedMd5 = md5(content);
+
+		TransferException e = Assertions.assertThrows(TransferException.class, () -> client.download(stale, dir.resolve("changed.bin")));
+
+		Assertions.assertEquals(200, e.getStatus());
+	}
+
+	@Test
+	void upload_sendsEveryPartOnce_retryingRejectedParts() throws Exception {
+		Path source = dir.resolve("upload.bin");
+		Files.write(source, content);
+
+		RemoteFile file = client.upload(source, "upload.bin", null, null);
+
+		Assertions.assertEquals(md5(content), file.md5());
+		Assertions.assertFalse(rejectPart.get(), "A part was rejected");
+		Assertions.assertArrayEquals(content, assembled());
+	}
+
+	@Test
+	void upload_waitsOutAdmissionRejections_withoutUsingUpAttempts() throws Exception {
+		Path source = dir.resolve("admission.bin");
+		Files.write(source, content);
+		notAdmitted.set(8);
+
+		RemoteFile file = client.upload(source, "admission.bin", null, null);
+
+		Assertions.assertEquals(md5(content), file.md5());
+		Assertions.assertTrue(notAdmitted.get() < 0, "Rejections left: " + notAdmitted.get());
+	}
+
+	@Test
+	void resumeUpload_sendsOnlyMissingParts() throws Exception {
+		Path source = dir.resolve("resume.bin");
+		Files.write(source, content);
+		parts.put(0, Arrays.copyOfRange(content, 0, SEGMENT));
+		parts.put(3, Arrays.copyOfRange(content, 3 * SEGMENT, 4 * SEGMENT));
+
+		RemoteFile file = client.resumeUpload("u1", source);
+
+		Assertions.assertEquals(md5(content), file.md5());
+		Assertions.assertArrayEquals(content, assembled());
+	}
+
+	@Test
+	void parseSize_acceptsUnitSuffixes() {
+		Assertions.assertEquals(512, FileStorageCli.parseSize("512"));
+		Assertions.assertEquals(8L * 1024 * 1024, FileStorageCli.parseSize("8m"));
+		Assertions.assertEquals(2L * 1024 * 1024 * 1024, FileStorageCli.parseSize("2G"));
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		int now = active.incrementAndGet();
+		maxActive.accumulateAndGet(now, Math::max);
+		try (exchange) {
+			Thread.sleep(20);
+			String path = exchange.getRequestURI().getPath();
+			String method = exchange.getRequestMethod();
+			if (path.equals("/api/files/f1") && method.equals("GET")) {
+				json(exchange, 200, file("f1"));
+			} else if (path.equals("/api/files/f1/download")) {
+				download(exchange);
+			} else if (path.equals("/api/files/uploads") && method.equals("POST")) {
+				parts.clear();
+				json(exchange, 201, session());
+			} else if (path.equals("/api/files/uploads/u1") && method.equals("GET")) {
+				json(exchange, 200, session());
+			} else if (path.startsWith("/api/files/uploads/u1/parts/")) {
+				part(exchange, Integer.parseInt(path.substring(path.lastIndexOf('/') + 1)));
+			} else if (path.equals("/api/files/uploads/u1/complete")) {
+				servedMd5 = md5(assembled());
+				json(exchange, 201, file("f2"));
+			} else {
+				json(exchange, 404, "{\"message\":\"not found\"}");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	private void download(HttpExchange exchange) throws IOException {
+		String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+		if (!("\"" + servedMd5 + "\"").equals(ifRange)) {
+			exchange.sendResponseHeaders(200, content.length);
+			exchange.getResponseBody().write(content);
+			return;
+		}
+		String[] range = exchange.getRequestHeaders().getFirst("Range").substring("bytes=".length()).split("-");
+		int start = Integer.parseInt(range[0]);
+		int end = Integer.parseInt(range[1]) + 1;
+		byte[] body = Arrays.copyOfRange(content, start, end);
+		if (corrupt) {
+			body[0] ^= 1;
+		}
+		exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + content.length);
+		exchange.sendResponseHeaders(206, body.length);
+		if (start == 2 * SEGMENT && cutSegment.compareAndSet(true, false)) {
+			// Half the range, then the connection drops
+			exchange.getResponseBody().write(body, 0, body.length / 2);
+			exchange.getResponseBody().flush();
+			exchange.close();
+			return;
+		}
+		exchange.getResponseBody().write(body);
+	}
+
+	private void part(HttpExchange exchange, int part) throws IOException {
+		byte[] body = exchange.getRequestBody().readAllBytes();
+		if (part == 1 && rejectPart.compareAndSet(true, false)) {
+			exchange.getResponseHeaders().set("Retry-After", "0");
+			json(exchange, 503, "{\"error\":\"Service unavailable\",\"message\":\"At capacity\"}");
+			return;
+		}
+		if (part == 2 && notAdmitted.getAndDecrement() > 0) {
+			exchange.getResponseHeaders().set("Retry-After", "0");
+			json(exchange, 429, "{\"error\":\"Too many requests\",\"message\":\"Too many transfers in progress\"}");
+			return;
+		}
+		Assertions.assertNull(parts.put(part, body), "Part " + part + " sent twice");
+		json(exchange, 200, "{\"partNumber\":" + part + ",\"size\":" + body.length + ",\"md5\":\"" + md5(body) + "\"}");
+	}
+
+	private String session() {
+		int partCount = (content.length + SEGMENT - 1) / SEGMENT;
+		return "{\"id\":\"u1\",\"filename\":\"upload.bin\",\"size\":" + content.length + ",\"partSize\":" + SEGMENT
+				+ ",\"partCount\":" + partCount + ",\"parts\":" + parts.keySet() + ",\"encrypted\":false}";
+	}
+
+	private String file(String id) {
+		return "{\"id\":\"" + id + "\",\"filename\":\"file.bin\",\"size\":" + content.length + ",\"md5\":\"" + servedMd5
+				+ "\",\"contentType\":\"application/octet-stream\",\"visibility\":\"PRIVATE\"}";
+	}
+
+	private byte[] assembled() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int part = 0; parts.containsKey(part); part++) {
+			out.writeBytes(parts.get(part));
+		}
+		return out.toByteArray();
+	}
+
+	private static void json(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static String md5(byte[] bytes) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(bytes));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package lambdalabs.filestorage.client;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Upload and download throughput of one large file over one connection and over several, against a
+ * running server. Multiple connections pay off on links with high latency or per-connection throttling,
+ * so run it across such a link, e.g.
+ * {@code ./mvnw -f client/pom.xml test -Dtest=TransferThroughputTest -Dthroughput.url=http://storage.example:8080}.
+ * {@code throughput.size} (default 1G) and {@code throughput.connections} (default 1,4,8) vary the run.
+ */
+public class TransferThroughputTest {
+
+	private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void singleVersusMultipleConnections() throws Exception {
+		String url = System.getProperty("throughput.url");
+		Assumptions.assumeTrue(url != null, "Set throughput.url to run the throughput test");
+		long size = FileStorageCli.parseSize(System.getProperty("throughput.size", "1G"));
+		String user = "throughput-" + System.currentTimeMillis();
+
+		Path source = dir.resolve("source.bin");
+		Random random = new Random(1);
+		byte[] block = new byte[1024 * 1024];
+		try (OutputStream out = Files.newOutputStream(source)) {
+			for (long written = 0; written < size; written += block.length) {
+				random.nextBytes(block);
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		}
+
+		System.out.printf("%11s %14s %16s%n", "connections", "upload MB/s", "download MB/s");
+		for (String connections : System.getProperty("throughput.connections", "1,4,8").split(",")) {
+			FileStorageClient client = new FileStorageClient(URI.create(url.endsWith("/") ? url : url + "/"), user,
+					Integer.parseInt(connections.trim()), SEGMENT_SIZE);
+
+			long start = System.nanoTime();
+			RemoteFile file = client.upload(source, "throughput-" + connections.trim() + ".bin", "application/octet-stream", null);
+			double uploadSeconds = (System.nanoTime() - start) / 1e9;
+
+			start = System.nanoTime();
+			client.download(file, dir.resolve("download.bin"));
+			double downloadSeconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.printf(Locale.ROOT, "%11s %14.1f %16.1f%n", connections.trim(), size / 1e6 / uploadSeconds, size / 1e6 / downloadSeconds);
+			delete(url, user, file.id());
+		}
+	}
+
+	/**
+	 * Each run uploads the same content, which the server would reject as a duplicate
+	 */
+	private static void delete(String url, String user, String fileId) throws Exception {
+		HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(url.replaceAll("/$", "") + "/api/files/"
+						+ URLEncoder.encode(fileId, StandardCharsets.UTF_8)))
+				.header("User-Id", user)
+				.DELETE()
+				.build(), HttpResponse.BodyHandlers.discarding());
+	}
+}
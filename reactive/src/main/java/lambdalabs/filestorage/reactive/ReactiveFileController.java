@@ -0,0 +1,238 @@
+package lambdalabs.filestorage.reactive;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.Visibility;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.ReactiveGridFsTemplate;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upload and download on a non-blocking stack: request and response bodies stream as DataBuffers
+ * between the connection and the reactive GridFS bucket, with demand from the slower side holding
+ * back the faster one, so an open transfer costs buffers rather than a thread.
+ * <p>
+ * Same contract as the servlet FileController for these two endpoints: User-Id header, filenames and
+ * content unique per owner, PRIVATE files visible to their owner only, expired files treated as gone.
+ * Uploads are stored unencrypted; files the servlet application encrypted at rest are not served here.
+ */
+@RestController
+@RequestMapping("/api/files")
+public class ReactiveFileController {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReactiveFileController.class);
+
+    @Autowired
+    private ReactiveGridFsTemplate gridFsTemplate;
+
+    @Autowired
+    private ReactiveFileRepository fileRepository;
+
+    @Autowired
+    private ReactiveFileCounters fileCounters;
+
+    @Value("${file-storage.download.public-max-age:1h}")
+    private Duration publicMaxAge;
+
+    @PostMapping("/upload")
+    public Mono<ResponseEntity<?>> uploadFileStream(
+            @RequestHeader("User-Id") String userId,
+            @RequestParam("filename") String filename,
+            @RequestParam(value = "contentType", required = false) String contentType,
+            @RequestParam(value = "visibility", defaultValue = "PRIVATE") Visibility visibility,
+            @RequestParam(value = "tags", required = false) Set<String> tags,
+            ServerWebExchange exchange) {
+
+        String effectiveContentType = contentType == null || contentType.isBlank()
+                ? MediaTypeFactory.getMediaType(filename).map(MediaType::toString).orElse("application/octet-stream")
+                : contentType;
+
+        // Checked before the body is read; the unique index catches uploads racing this one
+        return evictExpired(userId, "filename", filename)
+                .then(fileRepository.existsByFilenameAndOwnerId(filename, userId))
+                .flatMap(exists -> exists
+                        ? Mono.just(conflict("Filename already exists", "A file with this filename already exists for your account"))
+                        : store(exchange.getRequest().getBody(), userId, filename, effectiveContentType, visibility, tags));
+    }
+
+    private Mono<ResponseEntity<?>> store(Flux<DataBuffer> body, String userId, String filename, String contentType,
+                                          Visibility visibility, Set<String> tags) {
+        MessageDigest md5 = md5();
+        AtomicLong size = new AtomicLong();
+        Flux<DataBuffer> hashed = body.doOnNext(buffer -> {
+            size.addAndGet(buffer.readableByteCount());
+            try (DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+                iterator.forEachRemaining(md5::update);
+            }
+        });
+
+        return gridFsTemplate.store(hashed, filename, contentType).flatMap(gridFsId -> {
+            String md5Hash = HexFormat.of().formatHex(md5.digest());
+            return evictExpired(userId, "md5", md5Hash)
+                    .then(fileRepository.existsByMd5AndOwnerId(md5Hash, userId))
+                    .flatMap(duplicate -> {
+                        if (duplicate) {
+                            return fileCounters.enqueue(gridFsId, null, userId, visibility)
+                                    .thenReturn(conflict("File already exists", "A file with the same content already exists in your account"));
+                        }
+
+                        FileMetadata metadata = new FileMetadata();
+                        metadata.setFilename(filename);
+                        metadata.setVisibility(visibility);
+                        metadata.setTags(tags);
+                        metadata.setOwnerId(userId);
+                        metadata.setGridFsId(gridFsId);
+                        metadata.setSize(size.get());
+                        metadata.setMd5(md5Hash);
+                        metadata.setContentType(contentType);
+                        metadata.setUploadedAt(Instant.now());
+                        metadata.setUpdatedAt(metadata.getUploadedAt());
+                        return save(metadata);
+                    });
+        }).onErrorResume(e -> {
+            logger.error("File upload failed: filename={}, contentType={}", filename, contentType, e);
+            return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+        });
+    }
+
+    private Mono<ResponseEntity<?>> save(FileMetadata metadata) {
+        return fileRepository.insert(metadata)
+                .flatMap(saved -> fileCounters.recordUpload(saved)
+                        .onErrorResume(e -> {
+                            logger.error("Failed to update counters after upload: metadataId={}", saved.getId(), e);
+                            return Mono.empty();
+                        })
+                        .<ResponseEntity<?>>thenReturn(ResponseEntity.ok(saved)))
+                .onErrorResume(DuplicateKeyException.class, e -> fileCounters.enqueue(metadata.getGridFsId(), null,
+                                metadata.getOwnerId(), metadata.getVisibility())
+                        .thenReturn(conflict("File already exists", "A file with this filename or content already exists for your account")));
+    }
+
+    @GetMapping("/{id}/download")
+    public Mono<ResponseEntity<?>> downloadFile(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String id,
+            ServerWebExchange exchange) {
+
+        return fileRepository.findByIdVisibleToUser(id, userId)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .<ResponseEntity<?>>flatMap(found -> {
+                    if (found.isEmpty()) {
+                        logger.warn("File metadata not found or access denied: metadataId={}, userId={}", id, userId);
+                        return Mono.just(ResponseEntity.notFound().build());
+                    }
+                    FileMetadata metadata = found.get();
+                    if (metadata.getEncryption() != null) {
+                        Map<String, String> body = new HashMap<>();
+                        body.put("error", "Encrypted content");
+                        body.put("message", "This file is encrypted at rest and can only be downloaded from the servlet application");
+                        return Mono.just(ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).body(body));
+                    }
+                    if (metadata.isCold()) {
+                        Map<String, String> body = new HashMap<>();
+                        body.put("error", "Cold content");
+                        body.put("message", "This file is on the cold storage tier and can only be downloaded from the servlet application");
+                        return Mono.just(ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).body(body));
+                    }
+
+                    // Validators come from the metadata alone, so a 304 never touches GridFS
+                    String eTag = "\"" + metadata.getMd5() + "\"";
+                    Instant lastModified = contentLastModified(metadata);
+                    CacheControl cacheControl = cacheControl(metadata);
+                    if (exchange.checkNotModified(eTag, lastModified)) {
+                        exchange.getResponse().getHeaders().setCacheControl(cacheControl);
+                        return Mono.empty();
+                    }
+
+                    return gridFsTemplate.findOne(Query.query(Criteria.where("_id").is(metadata.getGridFsId())))
+                            .flatMap(gridFsTemplate::getResource)
+                            .<ResponseEntity<?>>map(resource -> {
+                                HttpHeaders headers = new HttpHeaders();
+                                headers.setContentType(metadata.getContentType() != null
+                                        ? MediaType.parseMediaType(metadata.getContentType())
+                                        : MediaType.APPLICATION_OCTET_STREAM);
+                                headers.setContentDispositionFormData("attachment", metadata.getFilename());
+                                headers.setContentLength(metadata.getSize());
+                                headers.setETag(eTag);
+                                headers.setLastModified(lastModified);
+                                headers.setCacheControl(cacheControl);
+                                return ResponseEntity.ok().headers(headers).body(resource.getDownloadStream());
+                            })
+                            .switchIfEmpty(Mono.fromSupplier(() -> {
+                                logger.warn("File not found in GridFS: metadataId={}, gridFsId={}", id, metadata.getGridFsId());
+                                return ResponseEntity.notFound().build();
+                            }));
+                });
+    }
+
+    /**
+     * Remove the owner's expired file holding the given filename or md5, if any, as the servlet
+     * application's ExpiredFileSweeper does, so it does not block the new file
+     */
+    private Mono<Void> evictExpired(String userId, String field, String value) {
+        return fileRepository.findAndRemoveExpired(userId, field, value, Instant.now())
+                .flatMap(expired -> {
+                    logger.debug("Evicted expired file ahead of sweep: metadataId={}, ownerId={}", expired.getId(), userId);
+                    return fileCounters.enqueue(expired.getGridFsId(), expired.getId(), userId, expired.getVisibility())
+                            .then(fileCounters.recordRemoval(expired));
+                });
+    }
+
+    private CacheControl cacheControl(FileMetadata metadata) {
+        if (metadata.getVisibility() == Visibility.PUBLIC) {
+            return CacheControl.maxAge(publicMaxAge).cachePublic();
+        }
+        // Private files may only be kept by the client and must be revalidated on every use
+        return CacheControl.noCache().cachePrivate();
+    }
+
+    private static Instant contentLastModified(FileMetadata metadata) {
+        if (metadata.getUploadedAt() != null) {
+            return metadata.getUploadedAt();
+        }
+        // Files stored before uploadedAt was recorded: the GridFS id carries its creation time
+        return metadata.getGridFsId().getDate().toInstant();
+    }
+
+    private static ResponseEntity<?> conflict(String error, String message) {
+        Map<String, String> body = new HashMap<>();
+        body.put("error", error);
+        body.put("message", message);
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(body);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 algorithm not available", e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package lambdalabs.filestorage.reactive;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.FileTombstone;
+import lambdalabs.filestorage.model.Folder;
+import lambdalabs.filestorage.model.TagFacet;
+import lambdalabs.filestorage.model.UserUsage;
+import lambdalabs.filestorage.model.Visibility;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bookkeeping that follows an upload or removal: usage counters, tag counts, folder totals and
+ * tombstones for the reclaimer. Writes the same documents as the servlet application's UsageService,
+ * TagFacetService, FolderService and StorageReclaimer, so both applications can serve one database.
+ */
+@Component
+public class ReactiveFileCounters {
+
+    @Autowired
+    private ReactiveMongoTemplate mongoTemplate;
+
+    public Mono<Void> recordUpload(FileMetadata metadata) {
+        return record(metadata, 1);
+    }
+
+    public Mono<Void> recordRemoval(FileMetadata metadata) {
+        return record(metadata, -1);
+    }
+
+    /**
+     * Hand stored content that no metadata refers to (anymore) over to the reclaimer
+     */
+    public Mono<Void> enqueue(ObjectId gridFsId, String metadataId, String ownerId, Visibility visibility) {
+        Update insertOnly = new Update()
+                .setOnInsert("metadataId", metadataId)
+                .setOnInsert("ownerId", ownerId)
+                .setOnInsert("visibility", visibility)
+                .setOnInsert("deletedAt", Instant.now());
+        return mongoTemplate.upsert(new Query(Criteria.where("_id").is(gridFsId)), insertOnly, FileTombstone.class).then();
+    }
+
+    private Mono<Void> record(FileMetadata metadata, int sign) {
+        return Mono.when(recordUsage(metadata, sign), recordTags(metadata, sign), recordFolders(metadata, sign));
+    }
+
+    private Mono<Void> recordUsage(FileMetadata metadata, int sign) {
+        long bytes = sign * metadata.getSize();
+        Update update = new Update().inc("fileCount", sign).inc("totalBytes", bytes);
+        tags(metadata).forEach(tag -> update.inc("tagBytes." + escapeTag(tag), bytes));
+        return mongoTemplate.upsert(new Query(Criteria.where("_id").is(metadata.getOwnerId())), update, UserUsage.class).then();
+    }
+
+    private Mono<Void> recordTags(FileMetadata metadata, int sign) {
+        List<String> scopes = new ArrayList<>();
+        scopes.add("owner:" + metadata.getOwnerId());
+        if (metadata.getVisibility() == Visibility.PUBLIC) {
+            scopes.add("public");
+        }
+        return Flux.fromIterable(scopes)
+                .flatMap(scope -> Flux.fromIterable(tags(metadata))
+                        .flatMap(tag -> mongoTemplate.upsert(new Query(Criteria.where("_id").is(scope + "/" + tag)),
+                                new Update().setOnInsert("scope", scope).setOnInsert("tag", tag).inc("count", sign),
+                                TagFacet.class)))
+                .then();
+    }
+
+    /**
+     * The file's folder and all of its ancestors hold the file in their subtree totals
+     */
+    private Mono<Void> recordFolders(FileMetadata metadata, int sign) {
+        if (metadata.getFolderId() == null) {
+            return Mono.empty();
+        }
+        Aggregation ancestors = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("_id").is(new ObjectId(metadata.getFolderId()))),
+                Aggregation.graphLookup("folders")
+                        .startWith("$parentId")
+                        .connectFrom("parentId")
+                        .connectTo("_id")
+                        .as("ancestors"),
+                Aggregation.project().and("ancestors._id").as("ancestorIds")
+        );
+        return mongoTemplate.aggregate(ancestors, Folder.class, Document.class)
+                .next()
+                .map(result -> {
+                    List<Object> chain = new ArrayList<>();
+                    chain.add(new ObjectId(metadata.getFolderId()));
+                    if (result.get("ancestorIds") instanceof List<?> ids) {
+                        chain.addAll(ids);
+                    }
+                    return chain;
+                })
+                .flatMap(chain -> mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(chain)),
+                        new Update().inc("fileCount", sign).inc("totalBytes", sign * metadata.getSize()), Folder.class))
+                .then();
+    }
+
+    private static Set<String> tags(FileMetadata metadata) {
+        return metadata.getTags() != null ? metadata.getTags() : Set.of();
+    }
+
+    /**
+     * Tags become field names, escaped as UsageService does
+     */
+    private static String escapeTag(String tag) {
+        return tag.replace("%", "%25").replace(".", "%2E").replace("$", "%24");
+    }
+}
@@ -0,0 +1,62 @@
+package lambdalabs.filestorage.reactive;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.Visibility;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+
+/**
+ * The file_metadata queries behind the transfer endpoints, the same ones the servlet
+ * application's FileMetadataRepository runs for upload and download
+ */
+@Repository
+public class ReactiveFileRepository {
+
+    private static final String COLLECTION_NAME = "file_metadata";
+
+    @Autowired
+    private ReactiveMongoTemplate mongoTemplate;
+
+    public Mono<FileMetadata> findByIdVisibleToUser(String id, String userId) {
+        Query query = new Query(notExpired(Criteria.where("id").is(id)).orOperator(
+                Criteria.where("visibility").is(Visibility.PUBLIC),
+                Criteria.where("ownerId").is(userId)
+        ));
+        return mongoTemplate.findOne(query, FileMetadata.class, COLLECTION_NAME);
+    }
+
+    public Mono<Boolean> existsByFilenameAndOwnerId(String filename, String ownerId) {
+        Query query = new Query(Criteria.where("filename").is(filename).and("ownerId").is(ownerId));
+        return mongoTemplate.exists(query, FileMetadata.class, COLLECTION_NAME);
+    }
+
+    public Mono<Boolean> existsByMd5AndOwnerId(String md5, String ownerId) {
+        Query query = new Query(Criteria.where("md5").is(md5).and("ownerId").is(ownerId));
+        return mongoTemplate.exists(query, FileMetadata.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Remove the owner's expired file with the given field value (filename or md5), if any
+     */
+    public Mono<FileMetadata> findAndRemoveExpired(String ownerId, String field, String value, Instant now) {
+        Query query = new Query(Criteria.where(field).is(value).and("ownerId").is(ownerId).and("expiresAt").lte(now));
+        return mongoTemplate.findAndRemove(query, FileMetadata.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Insert a new file; fails with DuplicateKeyException when the owner already has its filename or content
+     */
+    public Mono<FileMetadata> insert(FileMetadata metadata) {
+        return mongoTemplate.insert(metadata, COLLECTION_NAME);
+    }
+
+    private static Criteria notExpired(Criteria criteria) {
+        return criteria.and("expiresAt").not().lte(Instant.now());
+    }
+}
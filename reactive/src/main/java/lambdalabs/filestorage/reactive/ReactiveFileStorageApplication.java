@@ -0,0 +1,16 @@
+package lambdalabs.filestorage.reactive;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+
+@SpringBootApplication
+@EntityScan(basePackageClasses = FileMetadata.class)
+public class ReactiveFileStorageApplication {
+
+	public static void main(String[] args) {
+		SpringApplication.run(ReactiveFileStorageApplication.class, args);
+	}
+
+}
@@ -0,0 +1,111 @@
+package lambdalabs.filestorage.reactive;
+
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("test")
+public class ReactiveTransferIntegrationTest {
+
+	private static final int CHUNK = 64 * 1024;
+
+	@Autowired
+	private WebTestClient webTestClient;
+
+	@BeforeAll
+	static void setup() {
+		Assumptions.assumeTrue(isMongoRunning(), "MongoDB must be running at mongodb://localhost:27017 for this integration test");
+	}
+
+	@Test
+	void upload_thenDownload_withServletSemantics() {
+		WebTestClient client = webTestClient.mutate().responseTimeout(Duration.ofMinutes(1)).build();
+		String owner = "reactive-" + UUID.randomUUID();
+		String other = "reactive-" + UUID.randomUUID();
+		byte[] content = content(CHUNK * 20 + 123);
+
+		Map<?, ?> uploaded = client.post()
+				.uri(uri -> uri.path("/api/files/upload").queryParam("filename", "report.pdf").queryParam("tags", "work").build())
+				.header("User-Id", owner)
+				.body(body(content), DataBuffer.class)
+				.exchange()
+				.expectStatus().isOk()
+				.expectBody(Map.class)
+				.returnResult().getResponseBody();
+		Assertions.assertNotNull(uploaded);
+		Assertions.assertEquals((long) content.length, ((Number) uploaded.get("size")).longValue());
+		Assertions.assertEquals("application/pdf", uploaded.get("contentType"));
+		String id = (String) uploaded.get("id");
+
+		byte[] downloaded = client.get().uri("/api/files/{id}/download", id)
+				.header("User-Id", owner)
+				.exchange()
+				.expectStatus().isOk()
+				.expectHeader().contentLength(content.length)
+				.expectHeader().valueEquals("ETag", "\"" + uploaded.get("md5") + "\"")
+				.expectBody(byte[].class)
+				.returnResult().getResponseBody();
+		Assertions.assertArrayEquals(content, downloaded);
+
+		// PRIVATE by default: invisible to other users
+		client.get().uri("/api/files/{id}/download", id)
+				.header("User-Id", other)
+				.exchange()
+				.expectStatus().isNotFound();
+
+		client.get().uri("/api/files/{id}/download", id)
+				.header("User-Id", owner)
+				.header("If-None-Match", "\"" + uploaded.get("md5") + "\"")
+				.exchange()
+				.expectStatus().isNotModified();
+
+		// Same filename, then same content under a new name: both rejected for the owner
+		client.post()
+				.uri(uri -> uri.path("/api/files/upload").queryParam("filename", "report.pdf").build())
+				.header("User-Id", owner)
+				.body(body(content(10)), DataBuffer.class)
+				.exchange()
+				.expectStatus().isEqualTo(HttpStatus.CONFLICT);
+		client.post()
+				.uri(uri -> uri.path("/api/files/upload").queryParam("filename", "copy.pdf").build())
+				.header("User-Id", owner)
+				.body(body(content), DataBuffer.class)
+				.exchange()
+				.expectStatus().isEqualTo(HttpStatus.CONFLICT);
+	}
+
+	private static Flux<DataBuffer> body(byte[] content) {
+		return Flux.range(0, (content.length + CHUNK - 1) / CHUNK)
+				.map(i -> DefaultDataBufferFactory.sharedInstance.wrap(
+						ByteBuffer.wrap(content, i * CHUNK, Math.min(CHUNK, content.length - i * CHUNK)).slice()));
+	}
+
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) (i * 31 + i / 7 + length);
+		}
+		return content;
+	}
+
+	private static boolean isMongoRunning() {
+		try (java.net.Socket ignored = new java.net.Socket("localhost", 27017)) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package lambdalabs.filestorage.reactive;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Side-by-side load test of the servlet and the reactive application, each running on its own against the
+ * same Mongo: how many slow downloads of one large file each can keep open at once, and what each open
+ * transfer costs in server heap, direct buffers and threads (read from the servers' /actuator/metrics).
+ * <p>
+ * Clients read the first part of the file and then stop reading, holding their connection open like
+ * a slow mobile client would. A transfer counts as established once its first bytes arrived within
+ * the timeout; 429/503 answers count as rejected.
+ * <p>
+ * Start the applications first, then run e.g.
+ * {@code ./mvnw -f reactive/pom.xml test -Dtest=TransferLoadTest -Dloadtest.servlet-url=http://localhost:8080 -Dloadtest.reactive-url=http://localhost:8081}.
+ * For a like-for-like comparison start the servlet application with {@code --file-storage.admission.enabled=false},
+ * otherwise its admission limits answer most of the load with 503 by design.
+ */
+public class TransferLoadTest {
+
+	private static final long FILE_SIZE = 64L * 1024 * 1024;
+	private static final int READ_BEFORE_STALL = 256 * 1024;
+	private static final int[] CONNECTIONS = {100, 400, 1600};
+	private static final Duration ESTABLISH_TIMEOUT = Duration.ofSeconds(20);
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final HttpClient httpClient = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(10))
+			.build();
+
+	@Test
+	void servletVersusReactive() throws Exception {
+		Map<String, String> targets = new LinkedHashMap<>();
+		putIfSet(targets, "servlet", System.getProperty("loadtest.servlet-url"));
+		putIfSet(targets, "reactive", System.getProperty("loadtest.reactive-url"));
+		Assumptions.assumeFalse(targets.isEmpty(), "Set loadtest.servlet-url and/or loadtest.reactive-url to run the load test");
+
+		System.out.printf("%-9s %8s %12s %9s %8s %12s %14s %12s %9s%n", "stack", "clients", "established",
+				"rejected", "stalled", "heap MB", "heap KB/conn", "direct MB", "threads");
+		for (Map.Entry<String, String> target : targets.entrySet()) {
+			String fileId = upload(target.getValue());
+			for (int clients : CONNECTIONS) {
+				run(target.getKey(), target.getValue(), fileId, clients);
+			}
+		}
+	}
+
+	private void run(String stack, String baseUrl, String fileId, int clients) throws Exception {
+		Metrics before = metrics(baseUrl);
+		AtomicInteger established = new AtomicInteger();
+		AtomicInteger rejected = new AtomicInteger();
+		List<InputStream> open = new ArrayList<>();
+		List<CompletableFuture<?>> pending = new ArrayList<>();
+		ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+		HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/files/" + fileId + "/download"))
+				.header("User-Id", "loadtest")
+				.build();
+		for (int i = 0; i < clients; i++) {
+			pending.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
+					.thenAcceptAsync(response -> {
+						InputStream body = response.body();
+						synchronized (open) {
+							open.add(body);
+						}
+						if (response.statusCode() != 200) {
+							rejected.incrementAndGet();
+							return;
+						}
+						try {
+							body.readNBytes(READ_BEFORE_STALL);
+							established.incrementAndGet();
+						} catch (IOException e) {
+							// Counted as stalled
+						}
+					}, readers));
+		}
+		try {
+			CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new))
+					.get(ESTABLISH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (java.util.concurrent.TimeoutException e) {
+			// Whatever did not get through by now is stalled
+		}
+		Metrics during = metrics(baseUrl);
+		int stalled = clients - established.get() - rejected.get();
+		double heapDeltaMb = (during.heapBytes - before.heapBytes) / (1024.0 * 1024);
+		double perConnectionKb = established.get() > 0 ? (during.heapBytes - before.heapBytes) / 1024.0 / established.get() : 0;
+		System.out.printf("%-9s %8d %12d %9d %8d %12.1f %14.1f %12.1f %9d%n", stack, clients, established.get(),
+				rejected.get(), stalled, heapDeltaMb, perConnectionKb, during.directBytes / (1024.0 * 1024), during.threads);
+
+		pending.forEach(future -> future.cancel(true));
+		synchronized (open) {
+			for (InputStream body : open) {
+				body.close();
+			}
+		}
+		readers.shutdownNow();
+		// Let the server notice the closed connections before the next level
+		Thread.sleep(3000);
+	}
+
+	private String upload(String baseUrl) throws Exception {
+		String user = "loadtest";
+		String filename = "loadtest-" + UUID.randomUUID() + ".bin";
+		HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/files/upload?visibility=PUBLIC&filename=" + filename))
+				.header("User-Id", user)
+				.POST(HttpRequest.BodyPublishers.ofInputStream(() -> new PatternStream(FILE_SIZE, filename.hashCode())))
+				.build();
+		HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+		if (response.statusCode() != 200) {
+			throw new IllegalStateException("Upload to " + baseUrl + " failed: " + response.statusCode() + " " + response.body());
+		}
+		return objectMapper.readTree(response.body()).get("id").asText();
+	}
+
+	private Metrics metrics(String baseUrl) throws Exception {
+		return new Metrics(
+				(long) metric(baseUrl, "jvm.memory.used?tag=area:heap"),
+				(long) metric(baseUrl, "jvm.buffer.memory.used?tag=id:direct"),
+				(int) metric(baseUrl, "jvm.threads.live"));
+	}
+
+	private double metric(String baseUrl, String path) throws Exception {
+		HttpResponse<String> response = httpClient.send(
+				HttpRequest.newBuilder(URI.create(baseUrl + "/actuator/metrics/" + path)).build(),
+				HttpResponse.BodyHandlers.ofString());
+		JsonNode measurements = objectMapper.readTree(response.body()).get("measurements");
+		return measurements != null && measurements.size() > 0 ? measurements.get(0).get("value").asDouble() : 0;
+	}
+
+	private static void putIfSet(Map<String, String> targets, String name, String url) {
+		if (url != null && !url.isBlank()) {
+			targets.put(name, url);
+		}
+	}
+
+	private record Metrics(long heapBytes, long directBytes, int threads) {
+	}
+
+	/**
+	 * Generated content, varied by seed so repeated runs do not hit the per-owner content dedup
+	 */
+	private static class PatternStream extends InputStream {
+		private final long totalBytes;
+		private final int seed;
+		private long produced;
+
+		PatternStream(long totalBytes, int seed) {
+			this.totalBytes = totalBytes;
+			this.seed = seed;
+		}
+
+		@Override
+		public int read() {
+			if (produced >= totalBytes) return -1;
+			return (int) ((produced++ + seed) & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (produced >= totalBytes) return -1;
+			int toWrite = (int) Math.min(len, totalBytes - produced);
+			for (int i = 0; i < toWrite; i++) {
+				b[off + i] = (byte) ((produced + i) * seed >>> 3);
+			}
+			produced += toWrite;
+			return toWrite;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+#!/usr/bin/env bash
+# Time from launching the application to its first successful answer, e.g.
+#   scripts/time-to-first-request.sh java -jar target/file-storage-0.0.1-SNAPSHOT.jar
+#   scripts/time-to-first-request.sh docker run --rm -p 8080:8080 file-storage:aot-cds
+# URL (default: the readiness probe) is polled every 20 ms; RUNS repeats the measurement, LOG keeps the output.
+set -u
+
+URL=${URL:-http://localhost:8080/actuator/health/readiness}
+RUNS=${RUNS:-1}
+LOG=${LOG:-/dev/null}
+
+now_ms() {
+    date +%s%3N
+}
+
+for run in $(seq "$RUNS"); do
+    start=$(now_ms)
+    "$@" >>"$LOG" 2>&1 &
+    pid=$!
+    until curl -fs -o /dev/null "$URL"; do
+        if ! kill -0 "$pid" 2>/dev/null; then
+            echo "Application exited before answering $URL" >&2
+            exit 1
+        fi
+        sleep 0.02
+    done
+    echo "run $run: $(( $(now_ms) - start )) ms to first answer from $URL"
+    kill "$pid"
+    wait "$pid" 2>/dev/null || true
+done
@@ -1,15 +1,31 @@
 package lambdalabs.filestorage.config;
 
 import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.FileTombstone;
+import lambdalabs.filestorage.model.Folder;
+import lambdalabs.filestorage.model.ShareRevocation;
+import lambdalabs.filestorage.model.TagFacet;
+import lambdalabs.filestorage.model.UploadSession;
+import lambdalabs.filestorage.model.Visibility;
+import lambdalabs.filestorage.repository.MongoShards;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.index.Index;
 import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.stereotype.Component;
 
-import jakarta.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
 
 @Component
 public class MongoIndexConfig {
@@ -19,28 +35,263 @@ public class MongoIndexConfig {
     @Autowired
     private MongoTemplate mongoTemplate;
 
-    @PostConstruct
-    public void createIndexes() {
-        createFileMetadataIndexes();
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Value("${file-storage.indexes.background:true}")
+    private boolean background;
+
+    @Value("${file-storage.indexes.retry-interval:1s}")
+    private Duration retryInterval;
+
+    @Value("${file-storage.indexes.max-retry-interval:1m}")
+    private Duration maxRetryInterval;
+
+    /** Collections whose indexes are still to be created, by name, in creation order */
+    private final Map<String, BooleanSupplier> pending = new LinkedHashMap<>();
+
+    private volatile boolean done;
+
+    /** Collections left over by the last failed attempt, empty before the first one */
+    private volatile List<String> failed = List.of();
+
+    /**
+     * Reconcile indexes once the application has started, so startup does not wait on Mongo. Until this is
+     * done the application is not ready (see {@link MongoIndexesHealthIndicator}): unique indexes must exist
+     * before requests arrive. Collections that fail are retried with backoff until they succeed.
+     */
+    @EventListener(ApplicationStartedEvent.class)
+    public void onStarted() {
+        // File metadata and GridFS content are in every shard database
+        for (MongoShards.Shard shard : mongoShards.all()) {
+            String database = shard.template().getDb().getName();
+            pending.put("file_metadata@" + database, () -> createFileMetadataIndexes(shard.template()));
+            pending.put("fs@" + database, () -> createGridFsIndexes(shard.template()));
+        }
+        pending.put("file_tombstones", this::createFileTombstoneIndexes);
+        pending.put("tag_facets", this::createTagFacetIndexes);
+        pending.put("folders", this::createFolderIndexes);
+        pending.put("share_revocations", this::createShareRevocationIndexes);
+        pending.put("upload_sessions", this::createUploadSessionIndexes);
+
+        if (background) {
+            Thread.ofVirtual().name("mongo-indexes").start(this::createIndexesUntilDone);
+        } else if (!createIndexes()) {
+            // Tests wait for the first attempt only, a failing Mongo must not hang startup
+            Thread.ofVirtual().name("mongo-indexes").start(this::createIndexesUntilDone);
+        }
+    }
+
+    private void createIndexesUntilDone() {
+        Duration delay = retryInterval;
+        while (!createIndexes()) {
+            logger.warn("MongoDB indexes missing, retrying: collections={}, delayMs={}", failed, delay.toMillis());
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            delay = delay.multipliedBy(2);
+            if (delay.compareTo(maxRetryInterval) > 0) {
+                delay = maxRetryInterval;
+            }
+        }
+    }
+
+    /**
+     * One attempt at the collections still pending; returns whether all of them now have their indexes
+     */
+    public synchronized boolean createIndexes() {
+        long start = System.nanoTime();
+        pending.values().removeIf(BooleanSupplier::getAsBoolean);
+        failed = List.copyOf(pending.keySet());
+        done = pending.isEmpty();
+        logger.info("MongoDB index reconciliation finished: durationMs={}, pending={}",
+                (System.nanoTime() - start) / 1_000_000, pending.keySet());
+        return done;
+    }
+
+    /**
+     * Whether the indexes of every collection were created
+     */
+    public boolean isDone() {
+        return done;
     }
 
-    private void createFileMetadataIndexes() {
+    /**
+     * Collections whose indexes failed and are waiting to be retried
+     */
+    public List<String> getFailedCollections() {
+        return failed;
+    }
+
+    private boolean createFileMetadataIndexes(MongoTemplate mongoTemplate) {
         IndexOperations indexOps = mongoTemplate.indexOps(FileMetadata.class);
         
         try {
 
             indexOps.createIndex(new Index().on("tags", org.springframework.data.domain.Sort.Direction.ASC));
             indexOps.createIndex(new Index().on("ownerId", org.springframework.data.domain.Sort.Direction.ASC));
+            // An owner's files in id order, paged through by OwnerRebalancer
+            indexOps.createIndex(new Index().on("ownerId", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("_id", org.springframework.data.domain.Sort.Direction.ASC));
 
             indexOps.createIndex(new Index().on("filename", org.springframework.data.domain.Sort.Direction.ASC)
                     .on("ownerId", org.springframework.data.domain.Sort.Direction.ASC).unique());
             indexOps.createIndex(new Index().on("md5", org.springframework.data.domain.Sort.Direction.ASC)
                     .on("ownerId", org.springframework.data.domain.Sort.Direction.ASC).unique());
+            // Used by the reclaimer to check whether GridFS content is still referenced
+            indexOps.createIndex(new Index().on("gridFsId", org.springframework.data.domain.Sort.Direction.ASC));
+            // Not a TTL index: Mongo would drop the metadata and leave the GridFS content behind,
+            // expired files are removed by ExpiredFileSweeper instead
+            indexOps.createIndex(new Index().on("expiresAt", org.springframework.data.domain.Sort.Direction.ASC).sparse());
+            // Expired files claimed by a sweep, read back and removed by its id
+            indexOps.createIndex(new Index().on("sweepId", org.springframework.data.domain.Sort.Direction.ASC).sparse());
+
+            // Filename search: each term index comes as a per-owner variant and a PUBLIC-only one,
+            // matching the two branches of the visibility $or, with filenameLower last to serve the sort
+            indexOps.createIndex(new Index().on("ownerId", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("filenameLower", org.springframework.data.domain.Sort.Direction.ASC));
+            // Not partial, it also finds files still missing their search terms
+            indexOps.createIndex(new Index().on("visibility", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("filenameLower", org.springframework.data.domain.Sort.Direction.ASC));
+            for (String terms : new String[]{"filenameTokens", "filenameGrams"}) {
+                indexOps.createIndex(new Index().on("ownerId", org.springframework.data.domain.Sort.Direction.ASC)
+                        .on(terms, org.springframework.data.domain.Sort.Direction.ASC)
+                        .on("filenameLower", org.springframework.data.domain.Sort.Direction.ASC));
+                indexOps.createIndex(new Index().on(terms, org.springframework.data.domain.Sort.Direction.ASC)
+                        .on("filenameLower", org.springframework.data.domain.Sort.Direction.ASC)
+                        .partial(PartialIndexFilter.of(Criteria.where("visibility").is(Visibility.PUBLIC.name()))));
+            }
             
-            logger.info("MongoDB indexes created successfully for FileMetadata collection");
+            // Folder listings, keyset-paginated by filename
+            indexOps.createIndex(new Index().on("ownerId", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("folderId", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("filename", org.springframework.data.domain.Sort.Direction.ASC));
+
+            // Listings by access statistics, with the id tie-break; each flush of the counters updates these too
+            for (String stat : new String[]{"downloadCount", "lastAccessedAt"}) {
+                indexOps.createIndex(new Index().on(stat, org.springframework.data.domain.Sort.Direction.ASC)
+                        .on("_id", org.springframework.data.domain.Sort.Direction.ASC));
+            }
+
+            logger.info("MongoDB indexes created successfully for FileMetadata collection: database={}", mongoTemplate.getDb().getName());
+            return true;
 
         } catch (Exception e) {
             logger.error("Error creating FileMetadata indexes: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private boolean createFileTombstoneIndexes() {
+        IndexOperations indexOps = mongoTemplate.indexOps(FileTombstone.class);
+
+        try {
+            indexOps.createIndex(new Index().on("deletedAt", org.springframework.data.domain.Sort.Direction.ASC));
+            indexOps.createIndex(new Index().on("claimedUntil", org.springframework.data.domain.Sort.Direction.ASC));
+
+            logger.info("MongoDB indexes created successfully for FileTombstone collection");
+            return true;
+
+        } catch (Exception e) {
+            logger.error("Error creating FileTombstone indexes: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private boolean createTagFacetIndexes() {
+        IndexOperations indexOps = mongoTemplate.indexOps(TagFacet.class);
+
+        try {
+            // Top tags of a scope in count order
+            indexOps.createIndex(new Index().on("scope", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("count", org.springframework.data.domain.Sort.Direction.DESC)
+                    .on("tag", org.springframework.data.domain.Sort.Direction.ASC));
+
+            logger.info("MongoDB indexes created successfully for TagFacet collection");
+            return true;
+
+        } catch (Exception e) {
+            logger.error("Error creating TagFacet indexes: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private boolean createFolderIndexes() {
+        IndexOperations indexOps = mongoTemplate.indexOps(Folder.class);
+
+        try {
+            // Names are unique within a parent; also serves listings, keyset-paginated by name
+            indexOps.createIndex(new Index().on("ownerId", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("parentId", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("name", org.springframework.data.domain.Sort.Direction.ASC)
+                    .unique());
+
+            logger.info("MongoDB indexes created successfully for Folder collection");
+            return true;
+
+        } catch (Exception e) {
+            logger.error("Error creating Folder indexes: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private boolean createShareRevocationIndexes() {
+        IndexOperations indexOps = mongoTemplate.indexOps(ShareRevocation.class);
+
+        try {
+            // Revocations are only needed until the links they cover have expired
+            indexOps.createIndex(new Index().on("expiresAt", org.springframework.data.domain.Sort.Direction.ASC)
+                    .expire(Duration.ZERO));
+            indexOps.createIndex(new Index().on("revokedAt", org.springframework.data.domain.Sort.Direction.ASC));
+
+            logger.info("MongoDB indexes created successfully for ShareRevocation collection");
+            return true;
+
+        } catch (Exception e) {
+            logger.error("Error creating ShareRevocation indexes: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private boolean createUploadSessionIndexes() {
+        IndexOperations indexOps = mongoTemplate.indexOps(UploadSession.class);
+
+        try {
+            // Sweep of abandoned uploads
+            indexOps.createIndex(new Index().on("updatedAt", org.springframework.data.domain.Sort.Direction.ASC));
+
+            logger.info("MongoDB indexes created successfully for UploadSession collection");
+            return true;
+
+        } catch (Exception e) {
+            logger.error("Error creating UploadSession indexes: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * The indexes GridFSBucket creates on first upload. Uploads go through the upload pipeline,
+     * which writes fs.files and fs.chunks directly, so the bucket may never get to create them.
+     */
+    private boolean createGridFsIndexes(MongoTemplate mongoTemplate) {
+        try {
+            mongoTemplate.indexOps("fs.files").createIndex(new Index()
+                    .on("filename", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("uploadDate", org.springframework.data.domain.Sort.Direction.ASC));
+            mongoTemplate.indexOps("fs.chunks").createIndex(new Index()
+                    .on("files_id", org.springframework.data.domain.Sort.Direction.ASC)
+                    .on("n", org.springframework.data.domain.Sort.Direction.ASC)
+                    .unique());
+
+            logger.info("MongoDB indexes created successfully for GridFS collections: database={}", mongoTemplate.getDb().getName());
+            return true;
+
+        } catch (Exception e) {
+            logger.error("Error creating GridFS indexes: {}", e.getMessage(), e);
+            return false;
         }
     }
 
@@ -0,0 +1,30 @@
+package lambdalabs.filestorage.config;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Out of service until {@link MongoIndexConfig} has reconciled the indexes and down while it retries failed
+ * collections, part of the readiness group
+ */
+@Component
+public class MongoIndexesHealthIndicator implements HealthIndicator {
+
+    @Autowired
+    private MongoIndexConfig mongoIndexConfig;
+
+    @Override
+    public Health health() {
+        if (mongoIndexConfig.isDone()) {
+            return Health.up().build();
+        }
+        List<String> failed = mongoIndexConfig.getFailedCollections();
+        return failed.isEmpty()
+                ? Health.outOfService().withDetail("reason", "Creating indexes").build()
+                : Health.down().withDetail("reason", "Creating indexes failed, retrying").withDetail("collections", failed).build();
+    }
+}
@@ -0,0 +1,46 @@
+package lambdalabs.filestorage.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lambdalabs.filestorage.controller.SecondaryReads;
+import lambdalabs.filestorage.repository.ReadConsistency;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Hands every API request's user, consistency token and {@link SecondaryReads} marker to
+ * {@link ReadConsistency}, and returns the token of the request's writes in {@value #TOKEN_HEADER}
+ */
+@Configuration
+public class ReadConsistencyConfig implements WebMvcConfigurer {
+
+    public static final String TOKEN_HEADER = "X-Consistency-Token";
+
+    @Autowired
+    private ReadConsistency readConsistency;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (!readConsistency.isEnabled()) {
+            return;
+        }
+        registry.addInterceptor(new HandlerInterceptor() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                boolean secondaryReads = handler instanceof HandlerMethod method && method.hasMethodAnnotation(SecondaryReads.class);
+                readConsistency.begin(request.getHeader("User-Id"), secondaryReads, request.getHeader(TOKEN_HEADER),
+                        token -> response.setHeader(TOKEN_HEADER, token));
+                return true;
+            }
+
+            @Override
+            public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+                readConsistency.end();
+            }
+        }).addPathPatterns("/api/**");
+    }
+}
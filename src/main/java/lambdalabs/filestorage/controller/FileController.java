@@ -7,27 +7,58 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import lambdalabs.filestorage.dto.UpdateFileRequest;
+import lambdalabs.filestorage.model.ArchiveFormat;
 import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.FilenameTerms;
+import lambdalabs.filestorage.model.SearchMode;
+import lambdalabs.filestorage.model.ShareLink;
 import lambdalabs.filestorage.model.SortBy;
+import lambdalabs.filestorage.model.UploadSession;
 import lambdalabs.filestorage.model.Visibility;
 import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.FileTombstoneRepository;
+import lambdalabs.filestorage.repository.OwnerMovingException;
+import lambdalabs.filestorage.service.AccessStatsService;
+import lambdalabs.filestorage.service.AdmissionControl;
+import lambdalabs.filestorage.service.AdmissionRejectedException;
+import lambdalabs.filestorage.service.ArchiveService;
+import lambdalabs.filestorage.service.ContentEncryption;
+import lambdalabs.filestorage.service.DownloadCoalescer;
+import lambdalabs.filestorage.service.ExpiredFileSweeper;
+import lambdalabs.filestorage.service.FolderNotFoundException;
+import lambdalabs.filestorage.service.FolderService;
 import lambdalabs.filestorage.service.GridFsService;
-import org.bson.types.ObjectId;
+import lambdalabs.filestorage.service.PartUploads;
+import lambdalabs.filestorage.service.QuotaExceededException;
+import lambdalabs.filestorage.service.ShareLinks;
+import lambdalabs.filestorage.service.StorageReclaimer;
+import lambdalabs.filestorage.service.StorageTiering;
+import lambdalabs.filestorage.service.TagFacetService;
+import lambdalabs.filestorage.service.UploadSessionException;
+import lambdalabs.filestorage.service.UsageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.InputStreamResource;
-import org.springframework.data.mongodb.gridfs.GridFsResource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import jakarta.validation.Valid;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +66,8 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/api/files")
@@ -46,9 +79,57 @@ public class FileController {
     @Autowired
     private FileMetadataRepository fileMetadataRepository;
 
+    @Autowired
+    private FileTombstoneRepository fileTombstoneRepository;
+
     @Autowired
     private GridFsService gridFsService;
 
+    @Autowired
+    private DownloadCoalescer downloadCoalescer;
+
+    @Autowired
+    private ContentEncryption contentEncryption;
+
+    @Autowired
+    private AccessStatsService accessStatsService;
+
+    @Autowired
+    private ArchiveService archiveService;
+
+    @Autowired
+    private StorageReclaimer storageReclaimer;
+
+    @Autowired
+    private ExpiredFileSweeper expiredFileSweeper;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private UsageService usageService;
+
+    @Autowired
+    private TagFacetService tagFacetService;
+
+    @Autowired
+    private FolderService folderService;
+
+    @Autowired
+    private StorageTiering storageTiering;
+
+    @Autowired
+    private ShareLinks shareLinks;
+
+    @Autowired
+    private PartUploads partUploads;
+
+    @Value("${file-storage.download.public-max-age:1h}")
+    private Duration publicMaxAge;
+
+    @Value("${file-storage.archive.max-entries:1000}")
+    private int archiveMaxEntries;
+
 
     // Since we use User-Id passing auth approach - we expect sticky sessions,
     // So thats why we implemented locks on java level.
@@ -62,7 +143,12 @@ public class FileController {
                     content = @Content(mediaType = "application/json", schema = @Schema(implementation = FileMetadata.class))),
             @ApiResponse(responseCode = "400", description = "Invalid request parameters"),
             @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header"),
-            @ApiResponse(responseCode = "409", description = "Conflict - File with this filename or content already exists for the user")
+            @ApiResponse(responseCode = "404", description = "Folder not found"),
+            @ApiResponse(responseCode = "409", description = "Conflict - File with this filename or content already exists for the user"),
+            @ApiResponse(responseCode = "411", description = "Content-Length missing while a storage quota is enforced"),
+            @ApiResponse(responseCode = "413", description = "The file would exceed the user's storage quota"),
+            @ApiResponse(responseCode = "429", description = "Too many concurrent transfers for the user, see Retry-After"),
+            @ApiResponse(responseCode = "503", description = "Server is at transfer capacity, see Retry-After")
     })
     @PostMapping("/upload")
     @ResponseStatus(HttpStatus.CREATED)
@@ -75,65 +161,314 @@ public class FileController {
             @RequestParam(value = "contentType", required = false) String contentType,
             @RequestParam(value = "visibility", defaultValue = "PRIVATE") Visibility visibility,
             @RequestParam(value = "tags", required = false) Set<String> tags,
+            // Folder to store the file in, top level when absent
+            @RequestParam(value = "folderId", required = false) String folderId,
+            // Optional expiry, either as an absolute ISO-8601 instant or as an ISO-8601 duration from now (e.g. PT1H)
+            @RequestParam(value = "expiresAt", required = false) Instant expiresAt,
+            @RequestParam(value = "ttl", required = false) Duration ttl,
+            // Encrypt the content at rest, by default as configured for the visibility
+            @RequestParam(value = "encrypted", required = false) Boolean encrypted,
+            @RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
             InputStream fileStream) {
 
-        synchronized (locks.computeIfAbsent(userId, u -> new Object())) {
-            if (fileMetadataRepository.existsByFilenameAndOwnerId(filename, userId)) {
-                Map<String, String> error = new HashMap<>();
-                error.put("error", "Filename already exists");
-                error.put("message", "A file with this filename already exists for your account");
-                return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
-            }
+        ResponseEntity<Map<String, String>> invalid = invalidUploadOptions(expiresAt, ttl, visibility, encrypted);
+        if (invalid != null) {
+            return invalid;
+        }
+        Instant effectiveExpiresAt = ttl != null ? Instant.now().plus(ttl) : expiresAt;
+        boolean encrypt = contentEncryption.shouldEncrypt(visibility, encrypted);
+
+        // Admitted before taking the per-user lock, so a rejected upload neither waits nor reads its body
+        try (AdmissionControl.Permit permit = admissionControl.admit(userId, contentLength != null ? contentLength : -1)) {
+            synchronized (locks.computeIfAbsent(userId, u -> new Object())) {
+                expiredFileSweeper.evictExpired(userId, "filename", filename);
+                if (fileMetadataRepository.existsByFilenameAndOwnerId(filename, userId)) {
+                    return filenameConflict();
+                }
+                String effectiveFolderId = folderService.resolve(userId, folderId);
 
-            try {
-                // Derive contentType from filename if not provided
-                String effectiveContentType = contentType;
-                if (effectiveContentType == null || effectiveContentType.isBlank()) {
-                    effectiveContentType = MediaTypeFactory.getMediaType(filename)
-                            .map(MediaType::toString)
-                            .orElse("application/octet-stream");
+                // Quota is checked against the declared size before any of the body is read
+                if (contentLength == null && usageService.isByteQuotaEnforced()) {
+                    Map<String, String> error = new HashMap<>();
+                    error.put("error", "Length required");
+                    error.put("message", "Uploads must declare Content-Length while a storage quota is enforced");
+                    return ResponseEntity.status(HttpStatus.LENGTH_REQUIRED).body(error);
                 }
+                UsageService.Reservation reservation = usageService.reserve(userId, contentLength != null ? contentLength : 0);
+                FileMetadata savedMetadata = null;
 
-                ObjectId gridFsId = gridFsService.storeFileStreaming(fileStream, filename, effectiveContentType);
+                try {
+                    String effectiveContentType = contentTypeOf(filename, contentType);
+                    GridFsService.StoredContent stored = gridFsService.store(userId, fileStream, filename, effectiveContentType, encrypt);
+                    savedMetadata = saveUpload(userId, stored, filename, effectiveContentType, visibility, tags,
+                            effectiveFolderId, effectiveExpiresAt, reservation);
+                    if (savedMetadata == null) {
+                        return contentConflict();
+                    }
+                    return ResponseEntity.ok(savedMetadata);
+                } catch (IOException e) {
+                    logger.error("File upload failed: filename={}, contentType={}", filename, contentType, e);
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+                } finally {
+                    if (savedMetadata == null) {
+                        usageService.release(reservation);
+                    }
+                }
+            }
+        }
+    }
 
-                String md5Hash = gridFsService.calculateMD5FromGridFS(gridFsId);
+    /**
+     * Save the metadata of stored content and count it against the owner's usage
+     *
+     * @return null when the owner already has a file of the same content, the stored content is then reclaimed
+     */
+    private FileMetadata saveUpload(String userId, GridFsService.StoredContent stored, String filename, String contentType,
+                                    Visibility visibility, Set<String> tags, String folderId, Instant expiresAt,
+                                    UsageService.Reservation reservation) {
+        expiredFileSweeper.evictExpired(userId, "md5", stored.md5());
+        if (fileMetadataRepository.existsByMd5AndOwnerId(stored.md5(), userId)) {
+            // Clean up the stored file since we're rejecting the upload
+            storageReclaimer.enqueue(stored.gridFsId(), null, userId);
+            return null;
+        }
 
-                if (fileMetadataRepository.existsByMd5AndOwnerId(md5Hash, userId)) {
-                    // Clean up the stored file since we're rejecting the upload
-                    gridFsService.deleteFile(gridFsId);
+        FileMetadata metadata = new FileMetadata();
+        metadata.setFilename(filename);
+        metadata.setVisibility(visibility);
+        metadata.setTags(tags);
+        metadata.setOwnerId(userId);
+        metadata.setFolderId(folderId);
+        metadata.setGridFsId(stored.gridFsId());
+        metadata.setSize(stored.length());
+        metadata.setMd5(stored.md5());
+        metadata.setContentType(contentType);
+        metadata.setEncryption(stored.encryption());
+        metadata.setExpiresAt(expiresAt);
+        metadata.setUploadedAt(Instant.now());
+        metadata.setUpdatedAt(metadata.getUploadedAt());
 
-                    Map<String, String> error = new HashMap<>();
-                    error.put("error", "File already exists");
-                    error.put("message", "A file with the same content already exists in your account");
-                    return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
-                }
+        FileMetadata savedMetadata = fileMetadataRepository.save(metadata);
+        usageService.recordUpload(savedMetadata, reservation);
+        try {
+            tagFacetService.recordUpload(savedMetadata);
+        } catch (Exception e) {
+            logger.error("Failed to update tag counts after upload: metadataId={}", savedMetadata.getId(), e);
+        }
+        try {
+            folderService.recordUpload(savedMetadata);
+        } catch (Exception e) {
+            logger.error("Failed to update folder totals after upload: metadataId={}", savedMetadata.getId(), e);
+        }
+        return savedMetadata;
+    }
+
+    @Operation(summary = "Start upload in parts", description = "Start a resumable upload of a file of the given size, "
+            + "sent as numbered parts over any number of connections. The response tells the part size and count; "
+            + "parts are numbered from 0 and all but the last hold exactly partSize bytes")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "201", description = "Upload started",
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = UploadSession.class))),
+            @ApiResponse(responseCode = "400", description = "Invalid request parameters"),
+            @ApiResponse(responseCode = "404", description = "Folder not found"),
+            @ApiResponse(responseCode = "409", description = "Conflict - File with this filename already exists for the user"),
+            @ApiResponse(responseCode = "413", description = "The file would exceed the user's storage quota")
+    })
+    @PostMapping("/uploads")
+    public ResponseEntity<?> startUpload(
+            @RequestHeader("User-Id") String userId,
+            @RequestParam("filename") String filename,
+            @RequestParam(value = "contentType", required = false) String contentType,
+            @RequestParam(value = "visibility", defaultValue = "PRIVATE") Visibility visibility,
+            @RequestParam(value = "tags", required = false) Set<String> tags,
+            @RequestParam(value = "folderId", required = false) String folderId,
+            @RequestParam(value = "expiresAt", required = false) Instant expiresAt,
+            @RequestParam(value = "ttl", required = false) Duration ttl,
+            @RequestParam(value = "encrypted", required = false) Boolean encrypted,
+            @RequestParam("size") long size,
+            // Requested part size, rounded up to whole chunks
+            @RequestParam(value = "partSize", required = false) Long partSize) {
 
-                GridFsResource gridResource = gridFsService.getResource(gridFsId);
+        ResponseEntity<Map<String, String>> invalid = invalidUploadOptions(expiresAt, ttl, visibility, encrypted);
+        if (invalid != null) {
+            return invalid;
+        }
+        if (size < 0 || (partSize != null && partSize <= 0)) {
+            return badRequest("Invalid size", "size must not be negative and partSize must be positive");
+        }
+        expiredFileSweeper.evictExpired(userId, "filename", filename);
+        if (fileMetadataRepository.existsByFilenameAndOwnerId(filename, userId)) {
+            return filenameConflict();
+        }
+        UploadSession session = partUploads.create(userId, filename, contentTypeOf(filename, contentType), visibility, tags,
+                folderService.resolve(userId, folderId), ttl != null ? Instant.now().plus(ttl) : expiresAt,
+                contentEncryption.shouldEncrypt(visibility, encrypted), size, partSize);
+        return ResponseEntity.status(HttpStatus.CREATED).body(session);
+    }
 
-                FileMetadata metadata = new FileMetadata();
-                metadata.setFilename(filename);
-                metadata.setVisibility(visibility);
-                metadata.setTags(tags);
-                metadata.setOwnerId(userId);
-                metadata.setGridFsId(gridFsId);
-                metadata.setSize(gridResource.getGridFSFile().getLength());
-                metadata.setMd5(md5Hash);
-                metadata.setContentType(effectiveContentType);
+    @Operation(summary = "Get upload in parts", description = "The upload's parts and the ones written so far, to resume it")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Upload found"),
+            @ApiResponse(responseCode = "404", description = "No such upload in progress")
+    })
+    @GetMapping("/uploads/{uploadId}")
+    public ResponseEntity<UploadSession> getUpload(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String uploadId) {
+        return ResponseEntity.ok(partUploads.get(userId, uploadId));
+    }
 
-                FileMetadata savedMetadata = fileMetadataRepository.save(metadata);
+    @Operation(summary = "Upload part", description = "Write one part of an upload in parts, replacing an earlier attempt "
+            + "of it. Parts can be sent in any order and concurrently")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Part stored, with the MD5 of its bytes"),
+            @ApiResponse(responseCode = "400", description = "Part number out of range or body not of the part's length"),
+            @ApiResponse(responseCode = "404", description = "No such upload in progress"),
+            @ApiResponse(responseCode = "410", description = "The upload has to start over, the user's files were moved"),
+            @ApiResponse(responseCode = "429", description = "Too many concurrent transfers for the user, see Retry-After"),
+            @ApiResponse(responseCode = "503", description = "Server is at transfer capacity, see Retry-After")
+    })
+    @PutMapping("/uploads/{uploadId}/parts/{partNumber}")
+    public ResponseEntity<?> uploadPart(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String uploadId,
+            @PathVariable int partNumber,
+            @RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
+            InputStream partStream) {
 
-                return ResponseEntity.ok(savedMetadata);
-            } catch (IOException e) {
-                logger.error("File upload failed: filename={}, contentType={}", filename, contentType, e);
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        // Parts are not written under the per-user lock, they go in parallel
+        try (AdmissionControl.Permit permit = admissionControl.admit(userId, contentLength != null ? contentLength : -1)) {
+            GridFsService.StoredContent stored = partUploads.storePart(userId, uploadId, partNumber, partStream);
+            Map<String, Object> body = new HashMap<>();
+            body.put("partNumber", partNumber);
+            body.put("size", stored.length());
+            body.put("md5", stored.md5());
+            return ResponseEntity.ok().eTag(stored.md5()).body(body);
+        } catch (IOException e) {
+            logger.error("Part upload failed: uploadId={}, partNumber={}", uploadId, partNumber, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @Operation(summary = "Complete upload in parts", description = "Assemble the uploaded parts into the file. "
+            + "Completing an upload again returns the file it became")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "201", description = "File uploaded successfully",
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = FileMetadata.class))),
+            @ApiResponse(responseCode = "404", description = "No such upload in progress, or its folder was deleted"),
+            @ApiResponse(responseCode = "409", description = "Conflict - parts missing, or a file with this filename or content already exists"),
+            @ApiResponse(responseCode = "410", description = "The upload has to start over, the user's files were moved"),
+            @ApiResponse(responseCode = "413", description = "The file would exceed the user's storage quota")
+    })
+    @PostMapping("/uploads/{uploadId}/complete")
+    public ResponseEntity<?> completeUpload(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String uploadId) {
+
+        synchronized (locks.computeIfAbsent(userId, u -> new Object())) {
+            UploadSession session = partUploads.get(userId, uploadId);
+            if (session.getFileId() != null) {
+                return fileMetadataRepository.findByIdVisibleToUser(session.getFileId(), userId)
+                        .<ResponseEntity<?>>map(file -> ResponseEntity.status(HttpStatus.CREATED).body(file))
+                        .orElseGet(() -> ResponseEntity.notFound().build());
+            }
+            expiredFileSweeper.evictExpired(userId, "filename", session.getFilename());
+            if (fileMetadataRepository.existsByFilenameAndOwnerId(session.getFilename(), userId)) {
+                return filenameConflict();
+            }
+            String folderId = folderService.resolve(userId, session.getFolderId());
+
+            // The upload's quota reservation stays with it until it is recorded as the file or discarded
+            GridFsService.StoredContent stored = partUploads.complete(session);
+            FileMetadata savedMetadata = saveUpload(userId, stored, session.getFilename(), session.getContentType(),
+                    session.getVisibility(), session.getTags(), folderId, session.getExpiresAt(), partUploads.reservation(session));
+            if (savedMetadata == null) {
+                partUploads.discard(session);
+                return contentConflict();
             }
+            partUploads.finish(session, savedMetadata.getId());
+            return ResponseEntity.status(HttpStatus.CREATED).body(savedMetadata);
+        }
+    }
+
+    @Operation(summary = "Abort upload in parts", description = "Cancel an upload in parts and discard its parts")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "204", description = "Upload aborted"),
+            @ApiResponse(responseCode = "404", description = "No such upload in progress")
+    })
+    @DeleteMapping("/uploads/{uploadId}")
+    public ResponseEntity<Void> abortUpload(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String uploadId) {
+        // Not while the upload is being completed, which hands its quota reservation to the file
+        synchronized (locks.computeIfAbsent(userId, u -> new Object())) {
+            partUploads.abort(userId, uploadId);
+        }
+        logger.info("Upload in parts aborted: uploadId={}, userId={}", uploadId, userId);
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Checks of the options shared by both kinds of upload, null when they are valid
+     */
+    private ResponseEntity<Map<String, String>> invalidUploadOptions(Instant expiresAt, Duration ttl, Visibility visibility, Boolean encrypted) {
+        if (expiresAt != null && ttl != null) {
+            return badRequest("Invalid expiry", "Specify either expiresAt or ttl, not both");
+        }
+        Instant effectiveExpiresAt = ttl != null ? Instant.now().plus(ttl) : expiresAt;
+        if (effectiveExpiresAt != null && !effectiveExpiresAt.isAfter(Instant.now())) {
+            return badRequest("Invalid expiry", "Expiry must be in the future");
+        }
+        if (contentEncryption.shouldEncrypt(visibility, encrypted) && !contentEncryption.isEnabled()) {
+            return badRequest("Encryption not configured", "This server has no key to encrypt content with");
         }
+        return null;
+    }
+
+    /**
+     * The given content type, else the one derived from the filename
+     */
+    private static String contentTypeOf(String filename, String contentType) {
+        if (contentType != null && !contentType.isBlank()) {
+            return contentType;
+        }
+        return MediaTypeFactory.getMediaType(filename)
+                .map(MediaType::toString)
+                .orElse("application/octet-stream");
+    }
+
+    private static ResponseEntity<Map<String, String>> filenameConflict() {
+        Map<String, String> error = new HashMap<>();
+        error.put("error", "Filename already exists");
+        error.put("message", "A file with this filename already exists for your account");
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
+    }
+
+    private static ResponseEntity<Map<String, String>> contentConflict() {
+        Map<String, String> error = new HashMap<>();
+        error.put("error", "File already exists");
+        error.put("message", "A file with the same content already exists in your account");
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
     }
 
+    @Operation(summary = "Download file", description = "Download file content. Supports conditional requests "
+            + "(If-None-Match / If-Modified-Since) and single byte ranges (Range / If-Range)")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "File content"),
+            @ApiResponse(responseCode = "206", description = "Requested byte range of the file content"),
+            @ApiResponse(responseCode = "304", description = "Not modified - the client copy is current"),
+            @ApiResponse(responseCode = "404", description = "File not found"),
+            @ApiResponse(responseCode = "416", description = "Requested range not satisfiable"),
+            @ApiResponse(responseCode = "429", description = "Too many concurrent transfers for the user, see Retry-After"),
+            @ApiResponse(responseCode = "503", description = "Server is at transfer capacity, see Retry-After")
+    })
+    @SecondaryReads
     @GetMapping("/{id}/download")
     public ResponseEntity<InputStreamResource> downloadFile(
             @RequestHeader("User-Id") String userId,
-            @PathVariable String id) {
+            @PathVariable String id,
+            @RequestHeader HttpHeaders requestHeaders,
+            ServletWebRequest webRequest) {
 
         Optional<FileMetadata> metadataOpt = fileMetadataRepository.findByIdVisibleToUser(id, userId);
 
@@ -143,37 +478,297 @@ public class FileController {
         }
 
         FileMetadata metadata = metadataOpt.get();
+        return serveContent(metadata, contentETag(metadata), length -> admissionControl.admit(userId, length), Optional::empty,
+                requestHeaders, webRequest);
+    }
 
-        GridFsResource resource = gridFsService.getResource(metadata.getGridFsId());
+    /**
+     * Serve a file's content, or the requested range of it, once {@code admission} admits a transfer of its length.
+     * When the content is not where the metadata says, {@code current} may supply the file's current metadata.
+     */
+    private ResponseEntity<InputStreamResource> serveContent(FileMetadata metadata, String eTag,
+                                                             LongFunction<AdmissionControl.Permit> admission,
+                                                             Supplier<Optional<FileMetadata>> current,
+                                                             HttpHeaders requestHeaders, ServletWebRequest webRequest) {
+        // Validators come from the metadata alone, so a 304 never touches GridFS
+        Instant lastModified = contentLastModified(metadata);
+        CacheControl cacheControl = cacheControl(metadata);
+        if (isNotModified(webRequest, eTag, lastModified, cacheControl)) {
+            return null;
+        }
 
-        if (resource == null) {
-            logger.warn("File not found in GridFS: metadataId={}, gridFsId={}", id, metadata.getGridFsId());
-            return ResponseEntity.notFound().build();
+        long size = metadata.getSize();
+        HttpRange range = requestedRange(requestHeaders, eTag, lastModified);
+        long start = 0;
+        long length = size;
+        if (range != null) {
+            if (size == 0 || range.getRangeStart(size) >= size) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + size)
+                        .build();
+            }
+            start = range.getRangeStart(size);
+            length = range.getRangeEnd(size) - start + 1;
         }
 
+        // Held until the response body stream is closed
+        AdmissionControl.Permit permit = admission.apply(length);
+        boolean streaming = false;
         try {
+            InputStream content = openContent(metadata, range == null, start, length);
+            if (content == null) {
+                Optional<FileMetadata> moved = current.get();
+                if (moved.isPresent()) {
+                    metadata = moved.get();
+                    content = openContent(metadata, range == null, start, length);
+                }
+            }
+            if (content == null) {
+                logger.warn("File not found in GridFS: metadataId={}, gridFsId={}", metadata.getId(), metadata.getGridFsId());
+                return ResponseEntity.notFound().build();
+            }
+
             HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(resource.getContentType()));
+            headers.setContentType(contentType(metadata));
             headers.setContentDispositionFormData("attachment", metadata.getFilename());
-            headers.setContentLength(resource.contentLength());
+            headers.setContentLength(length);
+            headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+            headers.setETag(eTag);
+            headers.setLastModified(lastModified);
+            headers.setCacheControl(cacheControl);
+            if (range != null) {
+                headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (start + length - 1) + "/" + size);
+            }
 
-            return ResponseEntity.ok()
+            ResponseEntity<InputStreamResource> response = ResponseEntity
+                    .status(range != null ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK)
                     .headers(headers)
-                    .body(new InputStreamResource(resource.getInputStream()));
+                    .body(new InputStreamResource(permit.releasingOnClose(content)));
+            streaming = true;
+            // A resumed download's later ranges are not downloads of their own
+            if (start == 0) {
+                accessStatsService.recordDownload(metadata);
+                storageTiering.recordColdDownload(metadata);
+            } else {
+                accessStatsService.recordAccess(metadata);
+            }
+            return response;
         } catch (IOException e) {
-            logger.error("File download failed: metadataId={}, filename={}", id, metadata.getFilename(), e);
+            logger.error("File download failed: metadataId={}, filename={}", metadata.getId(), metadata.getFilename(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        } finally {
+            if (!streaming) {
+                permit.close();
+            }
         }
     }
 
+    private InputStream openContent(FileMetadata metadata, boolean wholeFile, long start, long length) throws IOException {
+        // Whole-file downloads of the same content share one upstream GridFS read
+        return wholeFile && !metadata.isCold()
+                ? gridFsService.decrypting(metadata, downloadCoalescer.open(metadata.getOwnerId(), metadata.getGridFsId()))
+                : gridFsService.openContent(metadata, start, length);
+    }
+
+    @Operation(summary = "Download shared file", description = "Download file content through a share link, without a User-Id. "
+            + "Supports the same conditional and range requests as the regular download")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "File content"),
+            @ApiResponse(responseCode = "206", description = "Requested byte range of the file content"),
+            @ApiResponse(responseCode = "304", description = "Not modified - the client copy is current"),
+            @ApiResponse(responseCode = "404", description = "Link invalid, expired or revoked, or the file was deleted"),
+            @ApiResponse(responseCode = "416", description = "Requested range not satisfiable"),
+            @ApiResponse(responseCode = "429", description = "Too many concurrent transfers for the owner, see Retry-After"),
+            @ApiResponse(responseCode = "503", description = "Server is at transfer capacity, see Retry-After")
+    })
+    @GetMapping("/shared/{token}")
+    public ResponseEntity<InputStreamResource> downloadSharedFile(
+            @PathVariable String token,
+            @RequestHeader HttpHeaders requestHeaders,
+            ServletWebRequest webRequest) {
+
+        ShareLink link = shareLinks.verify(token);
+        if (link == null) {
+            logger.warn("Share link invalid, expired or revoked");
+            return ResponseEntity.notFound().build();
+        }
+
+        // Served as the link describes the file. Metadata is only read when the link's content is tombstoned,
+        // because the file was deleted (not served while it waits for the reclaimer) or its content moved to another tier,
+        // and for links issued before they carried the md5.
+        FileMetadata file = link.toFileMetadata();
+        if (file.getMd5() == null || fileTombstoneRepository.exists(file.getGridFsId())) {
+            Optional<FileMetadata> current = fileMetadataRepository.findByIdVisibleToUser(link.fileId(), link.ownerId());
+            if (current.isEmpty()) {
+                logger.warn("Shared file deleted: metadataId={}, linkId={}", link.fileId(), link.id());
+                return ResponseEntity.notFound().build();
+            }
+            file = current.get();
+        }
+
+        // Transfers are limited per link and client, not charged to the owner
+        String clientAddress = webRequest.getRequest().getRemoteAddr();
+        return serveContent(file, contentETag(file),
+                length -> admissionControl.admitShareLink(link.id(), clientAddress, length),
+                () -> fileMetadataRepository.findByIdVisibleToUser(link.fileId(), link.ownerId()),
+                requestHeaders, webRequest);
+    }
+
+    @Operation(summary = "Create share link", description = "Issue a signed link that downloads the file without a User-Id "
+            + "until it expires, by default after the configured default-ttl. Only the owner can share a file")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "201", description = "Link created"),
+            @ApiResponse(responseCode = "400", description = "Invalid ttl"),
+            @ApiResponse(responseCode = "404", description = "File not found"),
+            @ApiResponse(responseCode = "501", description = "No share link key configured")
+    })
+    @PostMapping("/{id}/share-links")
+    public ResponseEntity<?> createShareLink(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String id,
+            @RequestParam(value = "ttl", required = false) Duration ttl) {
+
+        if (!shareLinks.isEnabled()) {
+            return notImplemented("Share links not configured", "This server has no key to sign share links with");
+        }
+        Duration linkTtl = ttl != null ? ttl : shareLinks.getDefaultTtl();
+        if (linkTtl.isNegative() || linkTtl.isZero() || linkTtl.compareTo(shareLinks.getMaxTtl()) > 0) {
+            return badRequest("Invalid ttl", "ttl must be positive and at most " + shareLinks.getMaxTtl());
+        }
+        Optional<FileMetadata> file = ownFile(id, userId);
+        if (file.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        Instant expiresAt = Instant.now().plus(linkTtl);
+        if (file.get().getExpiresAt() != null && file.get().getExpiresAt().isBefore(expiresAt)) {
+            expiresAt = file.get().getExpiresAt();
+        }
+        ShareLinks.Issued issued = shareLinks.issue(file.get(), expiresAt);
+        Map<String, Object> body = new HashMap<>();
+        body.put("id", issued.id());
+        body.put("url", ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/api/files/shared/{token}").buildAndExpand(issued.token()).toUriString());
+        body.put("expiresAt", issued.expiresAt());
+        logger.info("Share link created: metadataId={}, linkId={}, expiresAt={}", id, issued.id(), issued.expiresAt());
+        return ResponseEntity.status(HttpStatus.CREATED).body(body);
+    }
+
+    @Operation(summary = "Revoke share links", description = "Revoke all share links of the file issued so far, "
+            + "or only the one with the given link id. Other nodes stop accepting them within the revocation refresh interval")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "204", description = "Revoked"),
+            @ApiResponse(responseCode = "404", description = "File not found"),
+            @ApiResponse(responseCode = "501", description = "Share link revocation disabled")
+    })
+    @DeleteMapping({"/{id}/share-links", "/{id}/share-links/{linkId}"})
+    public ResponseEntity<?> revokeShareLinks(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String id,
+            @PathVariable(required = false) String linkId) {
+
+        if (!shareLinks.isEnabled() || !shareLinks.isRevocationEnabled()) {
+            return notImplemented("Share link revocation disabled", "Share links can only be revoked by retiring their signing key");
+        }
+        if (ownFile(id, userId).isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (linkId != null) {
+            shareLinks.revokeLink(linkId);
+        } else {
+            shareLinks.revokeFile(id);
+        }
+        logger.info("Share links revoked: metadataId={}, linkId={}", id, linkId);
+        return ResponseEntity.noContent().build();
+    }
+
+    private Optional<FileMetadata> ownFile(String id, String userId) {
+        return fileMetadataRepository.findByIdVisibleToUser(id, userId).filter(file -> userId.equals(file.getOwnerId()));
+    }
+
+    @Operation(summary = "Download archive", description = "Stream several files as one ZIP or TAR archive, "
+            + "selected either by a list of ids or by tag, with the same visibility rules as listing")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Archive content"),
+            @ApiResponse(responseCode = "400", description = "Neither or both of ids and tag given, or too many files"),
+            @ApiResponse(responseCode = "404", description = "None of the requested files is visible to the user"),
+            @ApiResponse(responseCode = "429", description = "Too many concurrent transfers for the user, see Retry-After"),
+            @ApiResponse(responseCode = "503", description = "Server is at transfer capacity, see Retry-After")
+    })
+    @GetMapping("/archive")
+    public ResponseEntity<?> downloadArchive(
+            @RequestHeader("User-Id") String userId,
+            @RequestParam(value = "ids", required = false) List<String> ids,
+            @RequestParam(value = "tag", required = false) String tag,
+            @RequestParam(value = "format", defaultValue = "ZIP") ArchiveFormat format,
+            HttpServletResponse response) throws IOException {
+
+        if ((ids == null) == (tag == null)) {
+            return badRequest("Invalid selection", "Specify either ids or tag");
+        }
+        if (ids != null && ids.size() > archiveMaxEntries) {
+            return badRequest("Too many files", "An archive can hold at most " + archiveMaxEntries + " files");
+        }
+
+        // One more than the limit, so a tag with too many files is refused instead of cut short
+        List<FileMetadata> files = ids != null
+                ? fileMetadataRepository.findByIdsVisibleToUser(ids, userId)
+                : fileMetadataRepository.findByTagVisibleToUser(tag, userId, 0, archiveMaxEntries + 1, "filename", false);
+        if (files.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (files.size() > archiveMaxEntries) {
+            return badRequest("Too many files", "An archive can hold at most " + archiveMaxEntries + " files");
+        }
+
+        long contentSize = files.stream().mapToLong(FileMetadata::getSize).sum();
+        try (AdmissionControl.Permit permit = admissionControl.admit(userId, contentSize)) {
+            writeArchive(format, files, tag, response);
+        }
+        return null;
+    }
+
+    private void writeArchive(ArchiveFormat format, List<FileMetadata> files, String tag,
+                              HttpServletResponse response) throws IOException {
+        List<String> names = archiveService.entryNames(files);
+        String archiveName = (tag != null ? tag : "files") + (format == ArchiveFormat.ZIP ? ".zip" : ".tar");
+        response.setContentType(format == ArchiveFormat.ZIP ? "application/zip" : "application/x-tar");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                ContentDisposition.attachment().filename(archiveName).build().toString());
+        if (format == ArchiveFormat.TAR) {
+            response.setContentLengthLong(archiveService.tarLength(files, names));
+        }
+
+        // Written straight to the response, nothing is staged in memory or on disk
+        // and each file counts as downloaded once its entry has been written
+        archiveService.write(format, files, names, response.getOutputStream(), accessStatsService::recordDownload);
+    }
+
+    @SecondaryReads
     @GetMapping("/{id}")
     public ResponseEntity<FileMetadata> getFileMetadata(
             @RequestHeader("User-Id") String userId,
-            @PathVariable String id) {
+            @PathVariable String id,
+            ServletWebRequest webRequest) {
         // Find file with ownership check
-        Optional<FileMetadata> metadata = fileMetadataRepository.findByIdVisibleToUser(id, userId);
-        return metadata.map(ResponseEntity::ok)
-                .orElse(ResponseEntity.notFound().build());
+        Optional<FileMetadata> metadataOpt = fileMetadataRepository.findByIdVisibleToUser(id, userId);
+        if (metadataOpt.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        FileMetadata metadata = metadataOpt.get();
+        String eTag = metadataETag(metadata);
+        Instant lastModified = metadataLastModified(metadata);
+        CacheControl cacheControl = cacheControl(metadata);
+        if (isNotModified(webRequest, eTag, lastModified, cacheControl)) {
+            return null;
+        }
+
+        return ResponseEntity.ok()
+                .eTag(eTag)
+                .lastModified(lastModified)
+                .cacheControl(cacheControl)
+                .body(metadata);
     }
 
     @Operation(summary = "List files", description = "List files visible to the current user with optional filtering, pagination, and sorting")
@@ -181,6 +776,7 @@ public class FileController {
             @ApiResponse(responseCode = "200", description = "Files retrieved successfully"),
             @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header")
     })
+    @SecondaryReads
     @GetMapping
     public List<FileMetadata> listFiles(
             @RequestHeader("User-Id") String userId,
@@ -199,7 +795,7 @@ public class FileController {
             limit = 50; // Default limit with max cap
         }
 
-        String sortField = sortBy.name().toLowerCase();
+        String sortField = sortBy.getField();
 
         if (visibility != null && tag != null) {
             return fileMetadataRepository.findByVisibilityAndTagVisibleToUser(visibility, tag, userId, skip, limit, sortField, desc);
@@ -212,6 +808,40 @@ public class FileController {
         }
     }
 
+    @Operation(summary = "Search files by name", description = "Find files visible to the current user by filename: "
+            + "PREFIX (autocomplete), TOKEN (contains all words of the query) or SUBSTRING (contains the query, "
+            + "at least 3 characters). Matching ignores case; results are ordered by name")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Matching files"),
+            @ApiResponse(responseCode = "400", description = "Query empty or too short for the search mode"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header")
+    })
+    @SecondaryReads
+    @GetMapping("/search")
+    public ResponseEntity<?> searchFiles(
+            @RequestHeader("User-Id") String userId,
+            @RequestParam("q") String q,
+            @RequestParam(value = "mode", defaultValue = "PREFIX") SearchMode mode,
+            @RequestParam(value = "limit", defaultValue = "20") int limit) {
+
+        String normalized = FilenameTerms.normalize(q);
+        if (normalized.isBlank()) {
+            return badRequest("Invalid query", "The search query must not be empty");
+        }
+        if (mode == SearchMode.TOKEN && FilenameTerms.tokens(normalized).isEmpty()) {
+            return badRequest("Invalid query", "The search query contains no words");
+        }
+        if (mode == SearchMode.SUBSTRING && FilenameTerms.grams(normalized).isEmpty()) {
+            return badRequest("Invalid query", "Substring search needs at least "
+                    + FilenameTerms.GRAM_LENGTH + " characters");
+        }
+        if (limit <= 0 || limit > 100) {
+            limit = 20;
+        }
+
+        return ResponseEntity.ok(fileMetadataRepository.searchByFilenameVisibleToUser(userId, mode, q, limit));
+    }
+
     @DeleteMapping("/{id}")
     public ResponseEntity<Void> deleteFile(
             @RequestHeader("User-Id") String userId,
@@ -229,37 +859,50 @@ public class FileController {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         }
 
-        try {
-            // Delete from GridFS
-            gridFsService.deleteFile(metadata.getGridFsId());
-
-            // Delete metadata (with ownership check)
-            boolean deleted = fileMetadataRepository.deleteByIdAndOwner(id, userId);
+        // Remove the metadata right away and leave the GridFS content to the background reclaimer,
+        // a crash before the tombstone is written is covered by the reclaimer's orphan reconciliation
+        Optional<FileMetadata> removed = fileMetadataRepository.findAndRemoveByIdAndOwner(id, userId);
+        if (removed.isEmpty()) {
+            // Lost a race with a concurrent delete of the same file
+            return ResponseEntity.notFound().build();
+        }
 
-            if (deleted) {
-                return ResponseEntity.noContent().build();
-            } else {
-                logger.error("Failed to delete file metadata: metadataId={}, userId={}", id, userId);
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
-            }
+        try {
+            usageService.recordRemoval(removed.get());
         } catch (Exception e) {
-            logger.error("Error deleting file: metadataId={}, userId={}", id, userId, e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+            logger.error("Failed to update usage counters after delete: metadataId={}, ownerId={}", id, userId, e);
+        }
+        try {
+            tagFacetService.recordRemoval(removed.get());
+        } catch (Exception e) {
+            logger.error("Failed to update tag counts after delete: metadataId={}, ownerId={}", id, userId, e);
+        }
+        try {
+            folderService.recordRemoval(removed.get());
+        } catch (Exception e) {
+            logger.error("Failed to update folder totals after delete: metadataId={}, ownerId={}", id, userId, e);
+        }
+        try {
+            storageReclaimer.enqueue(removed.get());
+        } catch (Exception e) {
+            logger.error("Failed to queue GridFS content for reclamation: metadataId={}, gridFsId={}",
+                    id, metadata.getGridFsId(), e);
         }
+        return ResponseEntity.noContent().build();
     }
 
     /**
      * Update file metadata (only by owner) - PATCH allows partial updates
      */
-    @Operation(summary = "Update file metadata", description = "Update filename and tags for a file (only by owner)")
+    @Operation(summary = "Update file metadata", description = "Update filename, tags and folder for a file (only by owner)")
     @ApiResponses(value = {
             @ApiResponse(responseCode = "200", description = "File metadata updated successfully",
                     content = @Content(mediaType = "application/json", schema = @Schema(implementation = FileMetadata.class))),
             @ApiResponse(responseCode = "400", description = "Invalid request data"),
             @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header"),
             @ApiResponse(responseCode = "403", description = "Forbidden - User does not own the file"),
-            @ApiResponse(responseCode = "404", description = "File not found"),
-            @ApiResponse(responseCode = "409", description = "Conflict - File with this filename already exists for the user")
+            @ApiResponse(responseCode = "404", description = "File or folder not found"),
+            @ApiResponse(responseCode = "409", description = "Conflict - File with this filename already exists for the user, or the file changed meanwhile")
     })
     @PatchMapping("/{id}")
     public ResponseEntity<?> updateFileMetadata(
@@ -285,6 +928,7 @@ public class FileController {
 
         // Check if new filename already exists for this user (if filename is being updated)
         if (updateRequest.getFilename() != null && !updateRequest.getFilename().equals(existing.getFilename())) {
+            expiredFileSweeper.evictExpired(userId, "filename", updateRequest.getFilename());
             if (fileMetadataRepository.existsByFilenameAndOwnerId(updateRequest.getFilename(), userId)) {
                 logger.warn("File update failed - filename already exists: filename={}, userId={}", updateRequest.getFilename(), userId);
                 Map<String, String> error = new HashMap<>();
@@ -294,11 +938,208 @@ public class FileController {
             }
             existing.setFilename(updateRequest.getFilename());
         }
+        Set<String> previousTags = existing.getTags();
         if (updateRequest.getTags() != null) {
             existing.setTags(updateRequest.getTags());
         }
+        String previousFolderId = existing.getFolderId();
+        if (updateRequest.getFolderId() != null) {
+            existing.setFolderId(folderService.resolve(userId, updateRequest.getFolderId()));
+        }
+        Instant previousUpdatedAt = existing.getUpdatedAt();
+        existing.setUpdatedAt(Instant.now());
+
+        // Only the edited fields, so downloads and tier moves meanwhile are kept
+        Optional<FileMetadata> updated = fileMetadataRepository.updateDetails(existing, previousFolderId, previousUpdatedAt);
+        if (updated.isEmpty()) {
+            logger.warn("File update failed - changed concurrently: metadataId={}, userId={}", id, userId);
+            Map<String, String> error = new HashMap<>();
+            error.put("error", "File changed");
+            error.put("message", "The file was changed or deleted by another request, fetch it and try again");
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
+        }
+        FileMetadata saved = updated.get();
+        try {
+            usageService.recordTagChange(userId, saved.getSize(), previousTags, saved.getTags());
+        } catch (Exception e) {
+            logger.error("Failed to update usage counters after update: metadataId={}, ownerId={}", id, userId, e);
+        }
+        try {
+            tagFacetService.recordTagChange(saved, previousTags, saved.getTags());
+        } catch (Exception e) {
+            logger.error("Failed to update tag counts after update: metadataId={}, ownerId={}", id, userId, e);
+        }
+        try {
+            folderService.recordMove(saved, previousFolderId);
+        } catch (Exception e) {
+            logger.error("Failed to update folder totals after update: metadataId={}, ownerId={}", id, userId, e);
+        }
+        return ResponseEntity.ok(saved);
+    }
+
+    /**
+     * Content never changes for a given file id, so the stored md5 is a strong validator for downloads
+     */
+    private static String contentETag(FileMetadata metadata) {
+        return "\"" + metadata.getMd5() + "\"";
+    }
+
+    /**
+     * Metadata can be renamed and re-tagged, so its validator also reflects the last update
+     */
+    private static String metadataETag(FileMetadata metadata) {
+        return "W/\"" + metadata.getMd5() + "-" + metadataLastModified(metadata).toEpochMilli() + "\"";
+    }
+
+    private static Instant contentLastModified(FileMetadata metadata) {
+        if (metadata.getUploadedAt() != null) {
+            return metadata.getUploadedAt();
+        }
+        // Files stored before uploadedAt was recorded: the GridFS id carries its creation time
+        return metadata.getGridFsId().getDate().toInstant();
+    }
+
+    private static Instant metadataLastModified(FileMetadata metadata) {
+        return metadata.getUpdatedAt() != null ? metadata.getUpdatedAt() : contentLastModified(metadata);
+    }
+
+    private CacheControl cacheControl(FileMetadata metadata) {
+        if (metadata.getVisibility() == Visibility.PUBLIC) {
+            return CacheControl.maxAge(publicMaxAge).cachePublic();
+        }
+        // Private files may only be kept by the client and must be revalidated on every use
+        return CacheControl.noCache().cachePrivate();
+    }
+
+    private static MediaType contentType(FileMetadata metadata) {
+        return metadata.getContentType() != null
+                ? MediaType.parseMediaType(metadata.getContentType())
+                : MediaType.APPLICATION_OCTET_STREAM;
+    }
+
+    /**
+     * Evaluate If-None-Match / If-Modified-Since. On a match the 304 (with validators and
+     * Cache-Control) is already written to the response and the handler should return null.
+     */
+    private static boolean isNotModified(ServletWebRequest webRequest, String eTag, Instant lastModified,
+                                         CacheControl cacheControl) {
+        HttpServletResponse response = webRequest.getResponse();
+        if (response != null) {
+            response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl.getHeaderValue());
+        }
+        return webRequest.checkNotModified(eTag, lastModified.toEpochMilli());
+    }
+
+    /**
+     * Return the single byte range to serve, or null to serve the whole file. Multiple ranges
+     * are answered with the full content, which RFC 9110 allows. A Range guarded by an If-Range
+     * validator that no longer matches is ignored as well.
+     */
+    private static HttpRange requestedRange(HttpHeaders requestHeaders, String eTag, Instant lastModified) {
+        List<HttpRange> ranges;
+        try {
+            ranges = requestHeaders.getRange();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (ranges.size() != 1) {
+            return null;
+        }
+
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange != null) {
+            if (ifRange.startsWith("\"")) {
+                // If-Range requires a strong comparison
+                if (!ifRange.equals(eTag)) {
+                    return null;
+                }
+            } else {
+                long ifRangeDate = requestHeaders.getFirstDate(HttpHeaders.IF_RANGE);
+                if (ifRangeDate == -1 || ifRangeDate / 1000 != lastModified.getEpochSecond()) {
+                    return null;
+                }
+            }
+        }
+        return ranges.get(0);
+    }
+
+    @ExceptionHandler(FolderNotFoundException.class)
+    public ResponseEntity<Map<String, String>> handleFolderNotFound(FolderNotFoundException e) {
+        Map<String, String> error = new HashMap<>();
+        error.put("error", "Folder not found");
+        error.put("message", e.getMessage());
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+    }
+
+    @ExceptionHandler(QuotaExceededException.class)
+    public ResponseEntity<Map<String, String>> handleQuotaExceeded(QuotaExceededException e) {
+        Map<String, String> error = new HashMap<>();
+        error.put("error", "Quota exceeded");
+        error.put("message", e.getMessage());
+        return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(error);
+    }
+
+    /**
+     * Admission rejections: 429 when the user is over their own limit, 503 when the server is at capacity
+     */
+    @ExceptionHandler(AdmissionRejectedException.class)
+    public ResponseEntity<Map<String, String>> handleAdmissionRejected(AdmissionRejectedException e) {
+        Map<String, String> error = new HashMap<>();
+        error.put("error", e.isUserLimit() ? "Too many requests" : "Service unavailable");
+        error.put("message", e.getMessage());
+        return ResponseEntity.status(e.isUserLimit() ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, e.getRetryAfter().toSeconds())))
+                .body(error);
+    }
+
+    /**
+     * Writes for an owner whose files are being moved to another shard, which takes a while
+     */
+    @ExceptionHandler(OwnerMovingException.class)
+    public ResponseEntity<Map<String, String>> handleOwnerMoving(OwnerMovingException e) {
+        Map<String, String> error = new HashMap<>();
+        error.put("error", "Service unavailable");
+        error.put("message", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, e.getRetryAfter().toSeconds())))
+                .body(error);
+    }
+
+    /**
+     * Requests about uploads in parts: 404 for unknown uploads, 400 for invalid parts, 409 when completed
+     * before all parts were stored, 410 when the upload has to start over
+     */
+    @ExceptionHandler(UploadSessionException.class)
+    public ResponseEntity<Map<String, String>> handleUploadSession(UploadSessionException e) {
+        HttpStatus status = switch (e.getReason()) {
+            case NOT_FOUND -> HttpStatus.NOT_FOUND;
+            case INVALID_PART -> HttpStatus.BAD_REQUEST;
+            case INCOMPLETE -> HttpStatus.CONFLICT;
+            case RESTART -> HttpStatus.GONE;
+        };
+        Map<String, String> error = new HashMap<>();
+        error.put("error", switch (e.getReason()) {
+            case NOT_FOUND -> "Upload not found";
+            case INVALID_PART -> "Invalid part";
+            case INCOMPLETE -> "Upload incomplete";
+            case RESTART -> "Upload must restart";
+        });
+        error.put("message", e.getMessage());
+        return ResponseEntity.status(status).body(error);
+    }
+
+    private static ResponseEntity<Map<String, String>> notImplemented(String error, String message) {
+        Map<String, String> body = new HashMap<>();
+        body.put("error", error);
+        body.put("message", message);
+        return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).body(body);
+    }
 
-        return ResponseEntity.ok(fileMetadataRepository.save(existing));
+    private static ResponseEntity<Map<String, String>> badRequest(String error, String message) {
+        Map<String, String> body = new HashMap<>();
+        body.put("error", error);
+        body.put("message", message);
+        return ResponseEntity.badRequest().body(body);
     }
 
 }
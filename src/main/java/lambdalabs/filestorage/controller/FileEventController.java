@@ -0,0 +1,61 @@
+package lambdalabs.filestorage.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lambdalabs.filestorage.service.FileEventHub;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.Duration;
+
+@RestController
+@RequestMapping("/api/files")
+@Tag(name = "File Events", description = "Push notifications of file changes")
+public class FileEventController {
+
+    @Autowired
+    private FileEventHub fileEventHub;
+
+    @Value("${file-storage.events.retry-after:5s}")
+    private Duration retryAfter;
+
+    @Operation(summary = "Subscribe to file events", description = "Server-sent events for files created, updated "
+            + "and deleted that the current user can see (own files and PUBLIC files). Each event id can be sent back "
+            + "as Last-Event-ID on reconnect to receive what was missed; a 'reset' event means the client has to relist.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Event stream opened"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header"),
+            @ApiResponse(responseCode = "503", description = "Server has no room for more subscribers, see Retry-After")
+    })
+    @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> subscribe(
+            @RequestHeader("User-Id") String userId,
+            @Parameter(description = "Id of the last event received, sent automatically by EventSource on reconnect")
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+            @Parameter(description = "Same as Last-Event-ID, for clients that cannot set headers")
+            @RequestParam(value = "after", required = false) String after) {
+        SseEmitter emitter = fileEventHub.subscribe(userId, lastEventId != null ? lastEventId : after);
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, retryAfter.toSeconds())))
+                    .build();
+        }
+        return ResponseEntity.ok()
+                // Keep reverse proxies from buffering the stream
+                .header("X-Accel-Buffering", "no")
+                .body(emitter);
+    }
+}
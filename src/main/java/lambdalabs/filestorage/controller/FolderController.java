@@ -0,0 +1,159 @@
+package lambdalabs.filestorage.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.validation.Valid;
+import lambdalabs.filestorage.dto.CreateFolderRequest;
+import lambdalabs.filestorage.dto.PageResponse;
+import lambdalabs.filestorage.dto.UpdateFolderRequest;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.Folder;
+import lambdalabs.filestorage.service.FolderConflictException;
+import lambdalabs.filestorage.service.FolderNotFoundException;
+import lambdalabs.filestorage.service.FolderService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/folders")
+@Tag(name = "Folders", description = "Virtual folders of the current user")
+public class FolderController {
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    @Autowired
+    private FolderService folderService;
+
+    @Operation(summary = "Create folder", description = "Create a folder at the top level or inside another folder")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "201", description = "Folder created",
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = Folder.class))),
+            @ApiResponse(responseCode = "400", description = "Invalid request data"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header"),
+            @ApiResponse(responseCode = "404", description = "Parent folder not found"),
+            @ApiResponse(responseCode = "409", description = "Conflict - A folder with this name already exists in the parent")
+    })
+    @PostMapping
+    public ResponseEntity<Folder> createFolder(
+            @RequestHeader("User-Id") String userId,
+            @Valid @RequestBody CreateFolderRequest request) {
+        Folder folder = folderService.create(userId, request.getName(), request.getParentId());
+        return ResponseEntity.status(HttpStatus.CREATED).body(folder);
+    }
+
+    @Operation(summary = "Get folder", description = "Get a folder with the number and total size of all files below it")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Folder retrieved successfully",
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = Folder.class))),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header"),
+            @ApiResponse(responseCode = "404", description = "Folder not found")
+    })
+    @GetMapping("/{id}")
+    public Folder getFolder(@RequestHeader("User-Id") String userId, @PathVariable String id) {
+        return folderService.get(userId, id);
+    }
+
+    @Operation(summary = "List subfolders", description = "Subfolders of a folder (\"root\" for the top level) by name, "
+            + "one page at a time")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Subfolders retrieved successfully"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header"),
+            @ApiResponse(responseCode = "404", description = "Folder not found")
+    })
+    @GetMapping("/{id}/folders")
+    public PageResponse<Folder> listFolders(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String id,
+            @Parameter(description = "Cursor from the previous page's 'next'") @RequestParam(required = false) String after,
+            @Parameter(description = "Page size (max 1000)") @RequestParam(defaultValue = "100") int limit) {
+        return folderService.listFolders(userId, id, after, pageSize(limit));
+    }
+
+    @Operation(summary = "List files in folder", description = "Files directly in a folder (\"root\" for the top level) "
+            + "by filename, one page at a time")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Files retrieved successfully"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header"),
+            @ApiResponse(responseCode = "404", description = "Folder not found")
+    })
+    @SecondaryReads
+    @GetMapping("/{id}/files")
+    public PageResponse<FileMetadata> listFiles(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String id,
+            @Parameter(description = "Cursor from the previous page's 'next'") @RequestParam(required = false) String after,
+            @Parameter(description = "Page size (max 1000)") @RequestParam(defaultValue = "100") int limit) {
+        return folderService.listFiles(userId, id, after, pageSize(limit));
+    }
+
+    @Operation(summary = "Rename or move folder", description = "Change a folder's name and/or parent; "
+            + "everything inside moves along without being rewritten")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Folder updated successfully",
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = Folder.class))),
+            @ApiResponse(responseCode = "400", description = "Invalid request data"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header"),
+            @ApiResponse(responseCode = "404", description = "Folder or new parent not found"),
+            @ApiResponse(responseCode = "409", description = "Conflict - Duplicate name, move into own subtree or concurrent move")
+    })
+    @PatchMapping("/{id}")
+    public Folder updateFolder(
+            @RequestHeader("User-Id") String userId,
+            @PathVariable String id,
+            @Valid @RequestBody UpdateFolderRequest request) {
+        return folderService.update(userId, id, request.getName(), request.getParentId());
+    }
+
+    @Operation(summary = "Delete folder", description = "Delete an empty folder")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "204", description = "Folder deleted successfully"),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header"),
+            @ApiResponse(responseCode = "404", description = "Folder not found"),
+            @ApiResponse(responseCode = "409", description = "Conflict - Folder is not empty")
+    })
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> deleteFolder(@RequestHeader("User-Id") String userId, @PathVariable String id) {
+        folderService.delete(userId, id);
+        return ResponseEntity.noContent().build();
+    }
+
+    @ExceptionHandler(FolderNotFoundException.class)
+    public ResponseEntity<Map<String, String>> handleFolderNotFound(FolderNotFoundException e) {
+        Map<String, String> error = new HashMap<>();
+        error.put("error", "Folder not found");
+        error.put("message", e.getMessage());
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+    }
+
+    @ExceptionHandler(FolderConflictException.class)
+    public ResponseEntity<Map<String, String>> handleFolderConflict(FolderConflictException e) {
+        Map<String, String> error = new HashMap<>();
+        error.put("error", "Folder conflict");
+        error.put("message", e.getMessage());
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
+    }
+
+    private static int pageSize(int limit) {
+        return Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+    }
+}
@@ -0,0 +1,16 @@
+package lambdalabs.filestorage.controller;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks read-only endpoints whose file metadata reads may go to secondaries, with the user's own writes
+ * still visible (see {@link lambdalabs.filestorage.repository.ReadConsistency}). Endpoints that read in
+ * order to write must not carry it.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface SecondaryReads {
+}
@@ -0,0 +1,59 @@
+package lambdalabs.filestorage.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lambdalabs.filestorage.dto.TagFacetsResponse;
+import lambdalabs.filestorage.model.TagFacet;
+import lambdalabs.filestorage.service.TagFacetService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/tags")
+@Tag(name = "Tags", description = "Tag counts")
+public class TagController {
+
+    private static final int MAX_LIMIT = 1000;
+
+    @Autowired
+    private TagFacetService tagFacetService;
+
+    @Operation(summary = "Get tag counts", description = "Number of files per tag among the current user's files "
+            + "and among all PUBLIC files, served from running counters")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Tag counts retrieved successfully",
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = TagFacetsResponse.class))),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header")
+    })
+    @GetMapping
+    public TagFacetsResponse getTagCounts(
+            @RequestHeader("User-Id") String userId,
+            @Parameter(description = "Maximum number of tags per scope (max 1000)")
+            @RequestParam(defaultValue = "100") int limit) {
+        int effectiveLimit = Math.max(1, Math.min(limit, MAX_LIMIT));
+
+        TagFacetsResponse response = new TagFacetsResponse();
+        response.setOwned(counts(tagFacetService.getTopTags(TagFacetService.ownerScope(userId), effectiveLimit)));
+        response.setPublicTags(counts(tagFacetService.getTopTags(TagFacetService.PUBLIC_SCOPE, effectiveLimit)));
+        return response;
+    }
+
+    private static Map<String, Long> counts(List<TagFacet> facets) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        facets.forEach(facet -> counts.put(facet.getTag(), facet.getCount()));
+        return counts;
+    }
+}
@@ -0,0 +1,58 @@
+package lambdalabs.filestorage.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lambdalabs.filestorage.dto.UsageResponse;
+import lambdalabs.filestorage.model.UserUsage;
+import lambdalabs.filestorage.service.UsageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+@RestController
+@RequestMapping("/api/usage")
+@Tag(name = "Usage", description = "Storage usage and quotas")
+public class UsageController {
+
+    @Autowired
+    private UsageService usageService;
+
+    @Operation(summary = "Get usage", description = "Files and bytes stored by the current user, per tag and in total, "
+            + "served from running counters")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Usage retrieved successfully",
+                    content = @Content(mediaType = "application/json", schema = @Schema(implementation = UsageResponse.class))),
+            @ApiResponse(responseCode = "401", description = "Unauthorized - Missing User-Id header")
+    })
+    @GetMapping
+    public UsageResponse getUsage(@RequestHeader("User-Id") String userId) {
+        UserUsage usage = usageService.getUsage(userId).orElseGet(UserUsage::new);
+
+        Map<String, Long> tagBytes = new TreeMap<>();
+        if (usage.getTagBytes() != null) {
+            // Tags whose files are all gone stay behind as zero counters
+            usage.getTagBytes().forEach((key, bytes) -> {
+                if (bytes != null && bytes != 0) {
+                    tagBytes.put(UsageService.unescapeTag(key), bytes);
+                }
+            });
+        }
+
+        UsageResponse response = new UsageResponse();
+        response.setFileCount(usage.getFileCount());
+        response.setTotalBytes(usage.getTotalBytes());
+        response.setTagBytes(tagBytes);
+        response.setMaxBytes(usageService.getMaxBytesPerUser() > 0 ? usageService.getMaxBytesPerUser() : null);
+        response.setMaxFiles(usageService.getMaxFilesPerUser() > 0 ? usageService.getMaxFilesPerUser() : null);
+        return response;
+    }
+}
@@ -0,0 +1,31 @@
+package lambdalabs.filestorage.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.NotBlank;
+
+@Schema(description = "Request to create a folder")
+public class CreateFolderRequest {
+
+    @NotBlank(message = "Name cannot be blank")
+    @Schema(description = "Folder name, unique within its parent", example = "reports")
+    private String name;
+
+    @Schema(description = "Parent folder id, absent or \"root\" for the top level")
+    private String parentId;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getParentId() {
+        return parentId;
+    }
+
+    public void setParentId(String parentId) {
+        this.parentId = parentId;
+    }
+}
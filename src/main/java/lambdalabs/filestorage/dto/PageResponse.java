@@ -0,0 +1,39 @@
+package lambdalabs.filestorage.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(description = "One page of a keyset-paginated listing")
+public class PageResponse<T> {
+
+    @Schema(description = "Items of this page")
+    private List<T> items;
+
+    @Schema(description = "Cursor to pass as 'after' for the next page, absent on the last page")
+    private String next;
+
+    public PageResponse() {
+    }
+
+    public PageResponse(List<T> items, String next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    public void setNext(String next) {
+        this.next = next;
+    }
+}
@@ -0,0 +1,33 @@
+package lambdalabs.filestorage.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.Map;
+
+@Schema(description = "Most used tags, most files first")
+public class TagFacetsResponse {
+
+    @Schema(description = "Number of the current user's files per tag")
+    private Map<String, Long> owned;
+
+    @JsonProperty("public")
+    @Schema(name = "public", description = "Number of PUBLIC files per tag, across all users")
+    private Map<String, Long> publicTags;
+
+    public Map<String, Long> getOwned() {
+        return owned;
+    }
+
+    public void setOwned(Map<String, Long> owned) {
+        this.owned = owned;
+    }
+
+    public Map<String, Long> getPublicTags() {
+        return publicTags;
+    }
+
+    public void setPublicTags(Map<String, Long> publicTags) {
+        this.publicTags = publicTags;
+    }
+}
@@ -15,6 +15,9 @@ public class UpdateFileRequest {
     @Schema(description = "Set of tags for the file", example = "[\"important\", \"work\", \"draft\"]")
     private Set<String> tags;
 
+    @Schema(description = "Folder to move the file to, \"root\" for the top level; unchanged when absent")
+    private String folderId;
+
     public String getFilename() {
         return filename;
     }
@@ -30,4 +33,12 @@ public class UpdateFileRequest {
     public void setTags(Set<String> tags) {
         this.tags = tags;
     }
+
+    public String getFolderId() {
+        return folderId;
+    }
+
+    public void setFolderId(String folderId) {
+        this.folderId = folderId;
+    }
 }
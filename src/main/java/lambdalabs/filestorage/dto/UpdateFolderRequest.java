@@ -0,0 +1,31 @@
+package lambdalabs.filestorage.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.Pattern;
+
+@Schema(description = "Request to rename and/or move a folder; absent fields are left unchanged")
+public class UpdateFolderRequest {
+
+    @Pattern(regexp = ".*\\S.*", message = "Name cannot be blank")
+    @Schema(description = "New folder name", example = "reports-2024")
+    private String name;
+
+    @Schema(description = "New parent folder id, \"root\" for the top level")
+    private String parentId;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getParentId() {
+        return parentId;
+    }
+
+    public void setParentId(String parentId) {
+        this.parentId = parentId;
+    }
+}
@@ -0,0 +1,64 @@
+package lambdalabs.filestorage.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.Map;
+
+@Schema(description = "Storage used by the current user and the quota it counts against")
+public class UsageResponse {
+
+    @Schema(description = "Number of stored files")
+    private long fileCount;
+
+    @Schema(description = "Total size of stored files in bytes")
+    private long totalBytes;
+
+    @Schema(description = "Bytes per tag; a file counts towards each of its tags")
+    private Map<String, Long> tagBytes;
+
+    @Schema(description = "Byte quota, absent when unlimited")
+    private Long maxBytes;
+
+    @Schema(description = "File count quota, absent when unlimited")
+    private Long maxFiles;
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public void setFileCount(long fileCount) {
+        this.fileCount = fileCount;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    public Map<String, Long> getTagBytes() {
+        return tagBytes;
+    }
+
+    public void setTagBytes(Map<String, Long> tagBytes) {
+        this.tagBytes = tagBytes;
+    }
+
+    public Long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(Long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public Long getMaxFiles() {
+        return maxFiles;
+    }
+
+    public void setMaxFiles(Long maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+}
@@ -0,0 +1,6 @@
+package lambdalabs.filestorage.model;
+
+public enum ArchiveFormat {
+    ZIP,
+    TAR
+}
@@ -0,0 +1,39 @@
+package lambdalabs.filestorage.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * How a file's content is encrypted at rest. Every GridFS chunk holds one plaintext chunk of
+ * {@code chunkSize} bytes sealed with {@code algorithm} under the file's own data key: the ciphertext
+ * followed by a {@code tagLength}-bit tag, with a nonce derived from the chunk index. The data key is
+ * stored wrapped with the master key {@code keyId}, so the plaintext key never reaches the database.
+ */
+public class FileEncryption {
+
+    private String algorithm;
+
+    private String keyId;
+
+    private byte[] wrappedKey;
+
+    // Plaintext bytes per chunk, the stored chunk is tagLength / 8 bytes longer
+    private int chunkSize;
+
+    private int tagLength;
+
+    public String getAlgorithm() { return algorithm; }
+    public void setAlgorithm(String algorithm) { this.algorithm = algorithm; }
+
+    public String getKeyId() { return keyId; }
+    public void setKeyId(String keyId) { this.keyId = keyId; }
+
+    @JsonIgnore
+    public byte[] getWrappedKey() { return wrappedKey; }
+    public void setWrappedKey(byte[] wrappedKey) { this.wrappedKey = wrappedKey; }
+
+    public int getChunkSize() { return chunkSize; }
+    public void setChunkSize(int chunkSize) { this.chunkSize = chunkSize; }
+
+    public int getTagLength() { return tagLength; }
+    public void setTagLength(int tagLength) { this.tagLength = tagLength; }
+}
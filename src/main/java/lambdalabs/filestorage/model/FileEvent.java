@@ -0,0 +1,39 @@
+package lambdalabs.filestorage.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * A change to a file as pushed to event feed subscribers. {@code file} is the file as it is after
+ * the change and is absent for deletes.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FileEvent {
+
+    public enum Type {
+        CREATED, UPDATED, DELETED
+    }
+
+    private Type type;
+
+    private String fileId;
+
+    private FileMetadata file;
+
+    public FileEvent() {
+    }
+
+    public FileEvent(Type type, String fileId, FileMetadata file) {
+        this.type = type;
+        this.fileId = fileId;
+        this.file = file;
+    }
+
+    public Type getType() { return type; }
+    public void setType(Type type) { this.type = type; }
+
+    public String getFileId() { return fileId; }
+    public void setFileId(String fileId) { this.fileId = fileId; }
+
+    public FileMetadata getFile() { return file; }
+    public void setFile(FileMetadata file) { this.file = file; }
+}
@@ -1,12 +1,16 @@
 package lambdalabs.filestorage.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
 
-import java.util.Objects;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 @Document(collection = "file_metadata")
 public class FileMetadata {
@@ -15,12 +19,23 @@ public class FileMetadata {
 
     private String filename;
 
+    // Search terms derived from filename (see FilenameTerms), stored for the search indexes only
+    private String filenameLower;
+
+    private List<String> filenameTokens;
+
+    private List<String> filenameGrams;
+
     private Visibility visibility;
 
     private Set<String> tags;
 
     private String ownerId;
 
+    // Containing folder, null for the top level
+    @Field(targetType = FieldType.OBJECT_ID)
+    private String folderId;
+
     private ObjectId gridFsId;
 
     private long size;
@@ -29,11 +44,44 @@ public class FileMetadata {
 
     private String contentType;
 
+    // Set when the content is encrypted at rest
+    private FileEncryption encryption;
+
+    private Instant expiresAt;
+
+    // Access statistics, written behind by AccessStatsService and possibly a flush interval behind
+    private long downloadCount;
+
+    private Instant lastAccessedAt;
+
+    // Null for files in GridFS, moved to the cold tier by StorageTiering when not accessed for a while
+    private StorageTier tier;
+
+    private Instant coldSince;
+
+    private Instant uploadedAt;
+
+    private Instant updatedAt;
+
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
 
     public String getFilename() { return filename; }
-    public void setFilename(String filename) { this.filename = filename; }
+    public void setFilename(String filename) {
+        this.filename = filename;
+        this.filenameLower = filename != null ? FilenameTerms.normalize(filename) : null;
+        this.filenameTokens = filenameLower != null ? FilenameTerms.tokens(filenameLower) : null;
+        this.filenameGrams = filenameLower != null ? FilenameTerms.grams(filenameLower) : null;
+    }
+
+    @JsonIgnore
+    public String getFilenameLower() { return filenameLower; }
+
+    @JsonIgnore
+    public List<String> getFilenameTokens() { return filenameTokens; }
+
+    @JsonIgnore
+    public List<String> getFilenameGrams() { return filenameGrams; }
 
     public Visibility getVisibility() { return visibility; }
     public void setVisibility(Visibility visibility) { this.visibility = visibility; }
@@ -41,13 +89,39 @@ public class FileMetadata {
     public Set<String> getTags() { return tags; }
     public void setTags(Set<String> tags) {
         if (tags != null) {
-            this.tags = tags.stream().filter(Objects::nonNull).map(String::toLowerCase).collect(Collectors.toSet());
+            Set<String> normalized = new HashSet<>((int) (tags.size() / 0.75f) + 1);
+            for (String tag : tags) {
+                if (tag != null) {
+                    normalized.add(tag.toLowerCase());
+                }
+            }
+            this.tags = normalized;
         }
     }
 
+    /**
+     * Filename and its search terms as stored, without deriving the terms again (see FileMetadataCodec)
+     */
+    void restoreFilename(String filename, String filenameLower, List<String> filenameTokens, List<String> filenameGrams) {
+        this.filename = filename;
+        this.filenameLower = filenameLower;
+        this.filenameTokens = filenameTokens;
+        this.filenameGrams = filenameGrams;
+    }
+
+    /**
+     * Tags as stored, already normalized when they were set
+     */
+    void restoreTags(Set<String> tags) {
+        this.tags = tags;
+    }
+
     public String getOwnerId() { return ownerId; }
     public void setOwnerId(String ownerId) { this.ownerId = ownerId; }
 
+    public String getFolderId() { return folderId; }
+    public void setFolderId(String folderId) { this.folderId = folderId; }
+
     public ObjectId getGridFsId() { return gridFsId; }
     public void setGridFsId(ObjectId gridFsId) { this.gridFsId = gridFsId; }
 
@@ -64,4 +138,31 @@ public class FileMetadata {
 
     public String getContentType() { return contentType; }
     public void setContentType(String contentType) { this.contentType = contentType; }
+
+    public FileEncryption getEncryption() { return encryption; }
+    public void setEncryption(FileEncryption encryption) { this.encryption = encryption; }
+
+    public Instant getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(Instant expiresAt) { this.expiresAt = expiresAt; }
+
+    public long getDownloadCount() { return downloadCount; }
+    public void setDownloadCount(long downloadCount) { this.downloadCount = downloadCount; }
+
+    public Instant getLastAccessedAt() { return lastAccessedAt; }
+    public void setLastAccessedAt(Instant lastAccessedAt) { this.lastAccessedAt = lastAccessedAt; }
+
+    public StorageTier getTier() { return tier; }
+    public void setTier(StorageTier tier) { this.tier = tier; }
+
+    public Instant getColdSince() { return coldSince; }
+    public void setColdSince(Instant coldSince) { this.coldSince = coldSince; }
+
+    @JsonIgnore
+    public boolean isCold() { return tier == StorageTier.COLD; }
+
+    public Instant getUploadedAt() { return uploadedAt; }
+    public void setUploadedAt(Instant uploadedAt) { this.uploadedAt = uploadedAt; }
+
+    public Instant getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(Instant updatedAt) { this.updatedAt = updatedAt; }
 }
@@ -0,0 +1,236 @@
+package lambdalabs.filestorage.model;
+
+import org.bson.BsonBinary;
+import org.bson.BsonObjectId;
+import org.bson.BsonReader;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.BsonWriter;
+import org.bson.codecs.CollectibleCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads and writes {@link FileMetadata} straight from and to BSON, for the repository's hot paths.
+ * <p>
+ * Produces the same documents as Spring's mapping (ids and folder ids as ObjectId, enums by name,
+ * instants as dates, nulls omitted, {@code _class} included), so both can read what the other wrote,
+ * but without reflection, an intermediate {@code Document} or deriving search terms again.
+ * Unknown fields are skipped. Fields added to {@link FileMetadata} must be added here as well.
+ */
+public class FileMetadataCodec implements CollectibleCodec<FileMetadata> {
+
+    private static final String TYPE_HINT = FileMetadata.class.getName();
+
+    @Override
+    public FileMetadata decode(BsonReader reader, DecoderContext decoderContext) {
+        FileMetadata metadata = new FileMetadata();
+        String filename = null;
+        String filenameLower = null;
+        List<String> filenameTokens = null;
+        List<String> filenameGrams = null;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+            switch (name) {
+                case "_id" -> metadata.setId(readId(reader));
+                case "filename" -> filename = reader.readString();
+                case "filenameLower" -> filenameLower = reader.readString();
+                case "filenameTokens" -> filenameTokens = readStrings(reader, new ArrayList<>());
+                case "filenameGrams" -> filenameGrams = readStrings(reader, new ArrayList<>());
+                case "visibility" -> metadata.setVisibility(Visibility.valueOf(reader.readString()));
+                case "tags" -> metadata.restoreTags(readStrings(reader, new HashSet<>()));
+                case "ownerId" -> metadata.setOwnerId(reader.readString());
+                case "folderId" -> metadata.setFolderId(readId(reader));
+                case "gridFsId" -> metadata.setGridFsId(reader.readObjectId());
+                case "size" -> metadata.setSize(readLong(reader));
+                case "md5" -> metadata.setMd5(reader.readString());
+                case "contentType" -> metadata.setContentType(reader.readString());
+                case "encryption" -> metadata.setEncryption(readEncryption(reader));
+                case "expiresAt" -> metadata.setExpiresAt(Instant.ofEpochMilli(reader.readDateTime()));
+                case "downloadCount" -> metadata.setDownloadCount(readLong(reader));
+                case "lastAccessedAt" -> metadata.setLastAccessedAt(Instant.ofEpochMilli(reader.readDateTime()));
+                case "tier" -> metadata.setTier(StorageTier.valueOf(reader.readString()));
+                case "coldSince" -> metadata.setColdSince(Instant.ofEpochMilli(reader.readDateTime()));
+                case "uploadedAt" -> metadata.setUploadedAt(Instant.ofEpochMilli(reader.readDateTime()));
+                case "updatedAt" -> metadata.setUpdatedAt(Instant.ofEpochMilli(reader.readDateTime()));
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        metadata.restoreFilename(filename, filenameLower, filenameTokens, filenameGrams);
+        return metadata;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, FileMetadata metadata, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        if (metadata.getId() != null) {
+            writer.writeName("_id");
+            writeId(writer, metadata.getId());
+        }
+        writeString(writer, "filename", metadata.getFilename());
+        writeString(writer, "filenameLower", metadata.getFilenameLower());
+        writeStrings(writer, "filenameTokens", metadata.getFilenameTokens());
+        writeStrings(writer, "filenameGrams", metadata.getFilenameGrams());
+        writeString(writer, "visibility", metadata.getVisibility() != null ? metadata.getVisibility().name() : null);
+        writeStrings(writer, "tags", metadata.getTags());
+        writeString(writer, "ownerId", metadata.getOwnerId());
+        if (metadata.getFolderId() != null) {
+            writer.writeName("folderId");
+            writeId(writer, metadata.getFolderId());
+        }
+        if (metadata.getGridFsId() != null) {
+            writer.writeObjectId("gridFsId", metadata.getGridFsId());
+        }
+        writer.writeInt64("size", metadata.getSize());
+        writeString(writer, "md5", metadata.getMd5());
+        writeString(writer, "contentType", metadata.getContentType());
+        writeEncryption(writer, metadata.getEncryption());
+        writeInstant(writer, "expiresAt", metadata.getExpiresAt());
+        writer.writeInt64("downloadCount", metadata.getDownloadCount());
+        writeInstant(writer, "lastAccessedAt", metadata.getLastAccessedAt());
+        writeString(writer, "tier", metadata.getTier() != null ? metadata.getTier().name() : null);
+        writeInstant(writer, "coldSince", metadata.getColdSince());
+        writeInstant(writer, "uploadedAt", metadata.getUploadedAt());
+        writeInstant(writer, "updatedAt", metadata.getUpdatedAt());
+        writer.writeString("_class", TYPE_HINT);
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public Class<FileMetadata> getEncoderClass() {
+        return FileMetadata.class;
+    }
+
+    @Override
+    public FileMetadata generateIdIfAbsentFromDocument(FileMetadata metadata) {
+        if (metadata.getId() == null) {
+            metadata.setId(new ObjectId().toHexString());
+        }
+        return metadata;
+    }
+
+    @Override
+    public boolean documentHasId(FileMetadata metadata) {
+        return metadata.getId() != null;
+    }
+
+    @Override
+    public BsonValue getDocumentId(FileMetadata metadata) {
+        if (metadata.getId() == null) {
+            throw new IllegalStateException("The file metadata does not have an id yet");
+        }
+        return ObjectId.isValid(metadata.getId()) ? new BsonObjectId(new ObjectId(metadata.getId())) : new BsonString(metadata.getId());
+    }
+
+    /**
+     * Ids are stored as ObjectId whenever the string is one, the same rule Spring applies
+     */
+    private static String readId(BsonReader reader) {
+        return reader.getCurrentBsonType() == BsonType.OBJECT_ID ? reader.readObjectId().toHexString() : reader.readString();
+    }
+
+    private static void writeId(BsonWriter writer, String id) {
+        if (ObjectId.isValid(id)) {
+            writer.writeObjectId(new ObjectId(id));
+        } else {
+            writer.writeString(id);
+        }
+    }
+
+    private static FileEncryption readEncryption(BsonReader reader) {
+        FileEncryption encryption = new FileEncryption();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+            switch (name) {
+                case "algorithm" -> encryption.setAlgorithm(reader.readString());
+                case "keyId" -> encryption.setKeyId(reader.readString());
+                case "wrappedKey" -> encryption.setWrappedKey(reader.readBinaryData().getData());
+                case "chunkSize" -> encryption.setChunkSize((int) readLong(reader));
+                case "tagLength" -> encryption.setTagLength((int) readLong(reader));
+                default -> reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        return encryption;
+    }
+
+    private static void writeEncryption(BsonWriter writer, FileEncryption encryption) {
+        if (encryption == null) {
+            return;
+        }
+        writer.writeStartDocument("encryption");
+        writeString(writer, "algorithm", encryption.getAlgorithm());
+        writeString(writer, "keyId", encryption.getKeyId());
+        if (encryption.getWrappedKey() != null) {
+            writer.writeBinaryData("wrappedKey", new BsonBinary(encryption.getWrappedKey()));
+        }
+        writer.writeInt32("chunkSize", encryption.getChunkSize());
+        writer.writeInt32("tagLength", encryption.getTagLength());
+        writer.writeEndDocument();
+    }
+
+    private static long readLong(BsonReader reader) {
+        return switch (reader.getCurrentBsonType()) {
+            case INT32 -> reader.readInt32();
+            case DOUBLE -> (long) reader.readDouble();
+            default -> reader.readInt64();
+        };
+    }
+
+    private static <C extends Collection<String>> C readStrings(BsonReader reader, C target) {
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            if (reader.getCurrentBsonType() == BsonType.STRING) {
+                target.add(reader.readString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.readEndArray();
+        return target;
+    }
+
+    private static void writeString(BsonWriter writer, String name, String value) {
+        if (value != null) {
+            writer.writeString(name, value);
+        }
+    }
+
+    private static void writeStrings(BsonWriter writer, String name, Collection<String> values) {
+        if (values != null) {
+            writer.writeStartArray(name);
+            for (String value : values) {
+                writer.writeString(value);
+            }
+            writer.writeEndArray();
+        }
+    }
+
+    private static void writeInstant(BsonWriter writer, String name, Instant value) {
+        if (value != null) {
+            writer.writeDateTime(name, value.toEpochMilli());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package lambdalabs.filestorage.model;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Marks GridFS content whose metadata is already gone and which is waiting
+ * for the background reclaimer to remove its chunks.
+ */
+@Document(collection = "file_tombstones")
+public class FileTombstone {
+    // Keyed by the GridFS id so enqueueing the same content twice is idempotent
+    @Id
+    private ObjectId gridFsId;
+
+    private String metadataId;
+
+    private String ownerId;
+
+    // Shard database the content is in, null for the first one
+    private String shard;
+
+    // Visibility of the removed file, so its delete event reaches everyone who could see it
+    private Visibility visibility;
+
+    private Instant deletedAt;
+
+    private String claimedBy;
+
+    private Instant claimedUntil;
+
+    public ObjectId getGridFsId() { return gridFsId; }
+    public void setGridFsId(ObjectId gridFsId) { this.gridFsId = gridFsId; }
+
+    public String getMetadataId() { return metadataId; }
+    public void setMetadataId(String metadataId) { this.metadataId = metadataId; }
+
+    public String getOwnerId() { return ownerId; }
+    public void setOwnerId(String ownerId) { this.ownerId = ownerId; }
+
+    public String getShard() { return shard; }
+    public void setShard(String shard) { this.shard = shard; }
+
+    public Visibility getVisibility() { return visibility; }
+    public void setVisibility(Visibility visibility) { this.visibility = visibility; }
+
+    public Instant getDeletedAt() { return deletedAt; }
+    public void setDeletedAt(Instant deletedAt) { this.deletedAt = deletedAt; }
+
+    public String getClaimedBy() { return claimedBy; }
+    public void setClaimedBy(String claimedBy) { this.claimedBy = claimedBy; }
+
+    public Instant getClaimedUntil() { return claimedUntil; }
+    public void setClaimedUntil(Instant claimedUntil) { this.claimedUntil = claimedUntil; }
+}
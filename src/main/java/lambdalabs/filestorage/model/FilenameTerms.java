@@ -0,0 +1,53 @@
+package lambdalabs.filestorage.model;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Search terms derived from a filename and stored next to it, so filename search runs on plain
+ * index lookups: the normalized name for prefix matches, its words for token matches and its
+ * trigrams for substring matches.
+ */
+public final class FilenameTerms {
+
+    public static final int GRAM_LENGTH = 3;
+
+    private FilenameTerms() {
+    }
+
+    /**
+     * Case- and width-insensitive form of a name (NFKC, lower case)
+     */
+    public static String normalize(String filename) {
+        return Normalizer.normalize(filename, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Words of a normalized name, split on anything that is not a letter or digit
+     */
+    public static List<String> tokens(String normalized) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String token : normalized.split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    /**
+     * Distinct substrings of {@link #GRAM_LENGTH} code points of a normalized name
+     */
+    public static List<String> grams(String normalized) {
+        int[] codePoints = normalized.codePoints().toArray();
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= codePoints.length; i++) {
+            grams.add(new String(codePoints, i, GRAM_LENGTH));
+        }
+        return new ArrayList<>(grams);
+    }
+}
@@ -0,0 +1,62 @@
+package lambdalabs.filestorage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.time.Instant;
+
+/**
+ * A virtual folder of one owner. Folders and files point at their parent folder by id (null for
+ * the top level) and never store a path, so renaming or moving a folder changes only this document
+ * whatever is below it.
+ * <p>
+ * {@code fileCount} and {@code totalBytes} cover the whole subtree and are kept up to date with
+ * {@code $inc} on the folder and all its ancestors (see FolderService).
+ */
+@Document(collection = "folders")
+public class Folder {
+    @Id
+    private String id;
+
+    private String ownerId;
+
+    // Stored as ObjectId so the ancestor chain can be walked with $graphLookup against _id
+    @Field(targetType = FieldType.OBJECT_ID)
+    private String parentId;
+
+    private String name;
+
+    private long fileCount;
+
+    private long totalBytes;
+
+    private Instant createdAt;
+
+    private Instant updatedAt;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getOwnerId() { return ownerId; }
+    public void setOwnerId(String ownerId) { this.ownerId = ownerId; }
+
+    public String getParentId() { return parentId; }
+    public void setParentId(String parentId) { this.parentId = parentId; }
+
+    public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
+
+    public long getFileCount() { return fileCount; }
+    public void setFileCount(long fileCount) { this.fileCount = fileCount; }
+
+    public long getTotalBytes() { return totalBytes; }
+    public void setTotalBytes(long totalBytes) { this.totalBytes = totalBytes; }
+
+    public Instant getCreatedAt() { return createdAt; }
+    public void setCreatedAt(Instant createdAt) { this.createdAt = createdAt; }
+
+    public Instant getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(Instant updatedAt) { this.updatedAt = updatedAt; }
+}
@@ -0,0 +1,36 @@
+package lambdalabs.filestorage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * The shard database holding an owner's files, fixed on the owner's first upload so that changing
+ * the configured shards never moves anyone implicitly. {@code movingTo} is set while the rebalancer
+ * copies the owner to another shard, the owner's files are read-only until it is done.
+ */
+@Document(collection = "owner_placements")
+public class OwnerPlacement {
+    // The owner id
+    @Id
+    private String id;
+
+    private String shard;
+
+    private String movingTo;
+
+    private Instant movingSince;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getShard() { return shard; }
+    public void setShard(String shard) { this.shard = shard; }
+
+    public String getMovingTo() { return movingTo; }
+    public void setMovingTo(String movingTo) { this.movingTo = movingTo; }
+
+    public Instant getMovingSince() { return movingSince; }
+    public void setMovingSince(Instant movingSince) { this.movingSince = movingSince; }
+}
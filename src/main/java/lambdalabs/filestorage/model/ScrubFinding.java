@@ -0,0 +1,89 @@
+package lambdalabs.filestorage.model;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * A file whose stored content failed the integrity scrub. Kept until a later pass finds the content
+ * intact again, findings of files deleted since stay until they are removed by hand.
+ */
+@Document(collection = "scrub_findings")
+public class ScrubFinding {
+
+    public enum Problem {
+        // Neither GridFS nor the cold tier has the content
+        MISSING_CONTENT,
+        // GridFS has the file but not all of its chunks
+        MISSING_CHUNKS,
+        // The content reads, but fails decryption or decompression
+        UNREADABLE,
+        // The content reads, but its length differs from the metadata's size
+        SIZE_MISMATCH,
+        MD5_MISMATCH
+    }
+
+    // The metadata id, so a file has at most one finding
+    @Id
+    private String id;
+
+    private ObjectId gridFsId;
+
+    private String ownerId;
+
+    private String filename;
+
+    private StorageTier tier;
+
+    private Problem problem;
+
+    private String detail;
+
+    private String expectedMd5;
+
+    private String actualMd5;
+
+    private long expectedSize;
+
+    private long actualSize;
+
+    private Instant detectedAt;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public ObjectId getGridFsId() { return gridFsId; }
+    public void setGridFsId(ObjectId gridFsId) { this.gridFsId = gridFsId; }
+
+    public String getOwnerId() { return ownerId; }
+    public void setOwnerId(String ownerId) { this.ownerId = ownerId; }
+
+    public String getFilename() { return filename; }
+    public void setFilename(String filename) { this.filename = filename; }
+
+    public StorageTier getTier() { return tier; }
+    public void setTier(StorageTier tier) { this.tier = tier; }
+
+    public Problem getProblem() { return problem; }
+    public void setProblem(Problem problem) { this.problem = problem; }
+
+    public String getDetail() { return detail; }
+    public void setDetail(String detail) { this.detail = detail; }
+
+    public String getExpectedMd5() { return expectedMd5; }
+    public void setExpectedMd5(String expectedMd5) { this.expectedMd5 = expectedMd5; }
+
+    public String getActualMd5() { return actualMd5; }
+    public void setActualMd5(String actualMd5) { this.actualMd5 = actualMd5; }
+
+    public long getExpectedSize() { return expectedSize; }
+    public void setExpectedSize(long expectedSize) { this.expectedSize = expectedSize; }
+
+    public long getActualSize() { return actualSize; }
+    public void setActualSize(long actualSize) { this.actualSize = actualSize; }
+
+    public Instant getDetectedAt() { return detectedAt; }
+    public void setDetectedAt(Instant detectedAt) { this.detectedAt = detectedAt; }
+}
@@ -0,0 +1,59 @@
+package lambdalabs.filestorage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Where the integrity scrub is in its pass over file_metadata, shared by all nodes.
+ * The node holding the lease is the only one scrubbing.
+ */
+@Document(collection = "scrub_progress")
+public class ScrubProgress {
+
+    public static final String ID = "scrubber";
+
+    @Id
+    private String id;
+
+    // Last metadata id checked in the current pass, null before the first one
+    private String after;
+
+    private Instant passStartedAt;
+
+    private Instant lastPassCompletedAt;
+
+    // Totals of the current pass
+    private long filesChecked;
+
+    private long bytesChecked;
+
+    private String claimedBy;
+
+    private Instant claimedUntil;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getAfter() { return after; }
+    public void setAfter(String after) { this.after = after; }
+
+    public Instant getPassStartedAt() { return passStartedAt; }
+    public void setPassStartedAt(Instant passStartedAt) { this.passStartedAt = passStartedAt; }
+
+    public Instant getLastPassCompletedAt() { return lastPassCompletedAt; }
+    public void setLastPassCompletedAt(Instant lastPassCompletedAt) { this.lastPassCompletedAt = lastPassCompletedAt; }
+
+    public long getFilesChecked() { return filesChecked; }
+    public void setFilesChecked(long filesChecked) { this.filesChecked = filesChecked; }
+
+    public long getBytesChecked() { return bytesChecked; }
+    public void setBytesChecked(long bytesChecked) { this.bytesChecked = bytesChecked; }
+
+    public String getClaimedBy() { return claimedBy; }
+    public void setClaimedBy(String claimedBy) { this.claimedBy = claimedBy; }
+
+    public Instant getClaimedUntil() { return claimedUntil; }
+    public void setClaimedUntil(Instant claimedUntil) { this.claimedUntil = claimedUntil; }
+}
@@ -0,0 +1,10 @@
+package lambdalabs.filestorage.model;
+
+public enum SearchMode {
+    // Filename starts with the query (autocomplete)
+    PREFIX,
+    // Filename contains every word of the query
+    TOKEN,
+    // Filename contains the query anywhere, at least 3 characters
+    SUBSTRING
+}
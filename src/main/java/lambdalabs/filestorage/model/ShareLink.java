@@ -0,0 +1,77 @@
+package lambdalabs.filestorage.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+
+/**
+ * What a signed share link carries: enough to serve the file's content without reading its metadata.
+ * Field names are short since the whole link is part of the URL.
+ *
+ * @param id         random id of the link, for revoking it alone
+ * @param md5        content md5, the same validator as a regular download; null in links issued before it was carried
+ * @param uploadedAt epoch milliseconds, null when the file has no upload time
+ * @param issuedAt   epoch seconds
+ * @param expiresAt  epoch seconds
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record ShareLink(
+        @JsonProperty("i") String id,
+        @JsonProperty("f") String fileId,
+        @JsonProperty("o") String ownerId,
+        @JsonProperty("g") String gridFsId,
+        @JsonProperty("s") long size,
+        @JsonProperty("t") String contentType,
+        @JsonProperty("n") String filename,
+        @JsonProperty("m") String md5,
+        @JsonProperty("u") Long uploadedAt,
+        @JsonProperty("e") Encryption encryption,
+        @JsonProperty("c") long issuedAt,
+        @JsonProperty("x") long expiresAt) {
+
+    /**
+     * The file's {@link FileEncryption}. The data key stays wrapped, only the master key opens it.
+     */
+    public record Encryption(
+            @JsonProperty("a") String algorithm,
+            @JsonProperty("k") String keyId,
+            @JsonProperty("w") byte[] wrappedKey,
+            @JsonProperty("c") int chunkSize,
+            @JsonProperty("l") int tagLength) {
+
+        public static Encryption of(FileEncryption encryption) {
+            return encryption == null ? null : new Encryption(encryption.getAlgorithm(), encryption.getKeyId(),
+                    encryption.getWrappedKey(), encryption.getChunkSize(), encryption.getTagLength());
+        }
+
+        public FileEncryption toFileEncryption() {
+            FileEncryption encryption = new FileEncryption();
+            encryption.setAlgorithm(algorithm);
+            encryption.setKeyId(keyId);
+            encryption.setWrappedKey(wrappedKey);
+            encryption.setChunkSize(chunkSize);
+            encryption.setTagLength(tagLength);
+            return encryption;
+        }
+    }
+
+    /**
+     * The shared file as its link describes it, stored in GridFS as it was when the link was issued
+     */
+    public FileMetadata toFileMetadata() {
+        FileMetadata file = new FileMetadata();
+        file.setId(fileId);
+        file.setOwnerId(ownerId);
+        file.setGridFsId(new ObjectId(gridFsId));
+        file.setSize(size);
+        file.setContentType(contentType);
+        file.setFilename(filename);
+        file.setMd5(md5);
+        file.setUploadedAt(uploadedAt != null ? Instant.ofEpochMilli(uploadedAt) : null);
+        file.setVisibility(Visibility.PRIVATE);
+        file.setEncryption(encryption != null ? encryption.toFileEncryption() : null);
+        return file;
+    }
+}
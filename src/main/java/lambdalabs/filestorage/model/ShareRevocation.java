@@ -0,0 +1,31 @@
+package lambdalabs.filestorage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Revokes the share links issued until {@code revokedAt}: a single link when keyed by the link id,
+ * every link of a file when keyed by the file's metadata id. Removed by a TTL index once every link
+ * it covers has expired anyway.
+ */
+@Document(collection = "share_revocations")
+public class ShareRevocation {
+
+    @Id
+    private String id;
+
+    private Instant revokedAt;
+
+    private Instant expiresAt;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public Instant getRevokedAt() { return revokedAt; }
+    public void setRevokedAt(Instant revokedAt) { this.revokedAt = revokedAt; }
+
+    public Instant getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(Instant expiresAt) { this.expiresAt = expiresAt; }
+}
@@ -1,6 +1,19 @@
 package lambdalabs.filestorage.model;
 
 public enum SortBy {
-    ID,
-    FILENAME
+    ID("id"),
+    FILENAME("filename"),
+    // Access statistics lag behind downloads by up to the access-stats flush interval
+    DOWNLOADS("downloadCount"),
+    LAST_ACCESSED("lastAccessedAt");
+
+    private final String field;
+
+    SortBy(String field) {
+        this.field = field;
+    }
+
+    public String getField() {
+        return field;
+    }
 }
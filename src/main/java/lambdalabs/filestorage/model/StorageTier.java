@@ -0,0 +1,8 @@
+package lambdalabs.filestorage.model;
+
+public enum StorageTier {
+    // GridFS, also where files without a tier are
+    HOT,
+    // Gzip-compressed on the cold tier's filesystem
+    COLD
+}
@@ -0,0 +1,40 @@
+package lambdalabs.filestorage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Number of files carrying a tag within one scope: the files of one owner ("owner:&lt;id&gt;")
+ * or all PUBLIC files ("public"). One small document per scope and tag, so concurrent
+ * updates to different tags never contend on the same document.
+ */
+@Document(collection = "tag_facets")
+public class TagFacet {
+    // scope + "/" + tag
+    @Id
+    private String id;
+
+    private String scope;
+
+    private String tag;
+
+    private long count;
+
+    // Marks facets written by the latest rebuild, see TagFacetService#repair
+    private String rebuildId;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getScope() { return scope; }
+    public void setScope(String scope) { this.scope = scope; }
+
+    public String getTag() { return tag; }
+    public void setTag(String tag) { this.tag = tag; }
+
+    public long getCount() { return count; }
+    public void setCount(long count) { this.count = count; }
+
+    public String getRebuildId() { return rebuildId; }
+    public void setRebuildId(String rebuildId) { this.rebuildId = rebuildId; }
+}
@@ -0,0 +1,138 @@
+package lambdalabs.filestorage.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A file being uploaded in parts, see PartUploads. Parts are numbered from 0 and, except for the last one,
+ * hold exactly {@code partSize} bytes: whole GridFS chunks of the file's preallocated {@code gridFsId},
+ * so they can be written in any order and retried on their own. Encrypted uploads seal every attempt of
+ * a part under a key of its own, see {@code GridFsService.completeEncryptedParts}.
+ */
+@Document(collection = "upload_sessions")
+public class UploadSession {
+    @Id
+    private String id;
+
+    private String ownerId;
+
+    // The owner's shard when the upload started, the chunks are written there
+    private String shard;
+
+    private ObjectId gridFsId;
+
+    private String filename;
+
+    private String contentType;
+
+    private Visibility visibility;
+
+    private Set<String> tags;
+
+    private String folderId;
+
+    // Expiry of the file once uploaded
+    private Instant expiresAt;
+
+    private boolean encrypted;
+
+    // Encrypted uploads: the key each part's last stored attempt was sealed with, by part number
+    private Map<String, FileEncryption> partKeys = new HashMap<>();
+
+    private long size;
+
+    // Whether size bytes and one file are reserved against the owner's quota until the upload ends
+    private boolean quotaReserved;
+
+    private long partSize;
+
+    private Set<Integer> parts = new TreeSet<>();
+
+    private Instant createdAt;
+
+    private Instant updatedAt;
+
+    // Metadata id of the uploaded file, once completed
+    private String fileId;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getOwnerId() { return ownerId; }
+    public void setOwnerId(String ownerId) { this.ownerId = ownerId; }
+
+    @JsonIgnore
+    public String getShard() { return shard; }
+    public void setShard(String shard) { this.shard = shard; }
+
+    @JsonIgnore
+    public ObjectId getGridFsId() { return gridFsId; }
+    public void setGridFsId(ObjectId gridFsId) { this.gridFsId = gridFsId; }
+
+    public String getFilename() { return filename; }
+    public void setFilename(String filename) { this.filename = filename; }
+
+    public String getContentType() { return contentType; }
+    public void setContentType(String contentType) { this.contentType = contentType; }
+
+    public Visibility getVisibility() { return visibility; }
+    public void setVisibility(Visibility visibility) { this.visibility = visibility; }
+
+    public Set<String> getTags() { return tags; }
+    public void setTags(Set<String> tags) { this.tags = tags; }
+
+    public String getFolderId() { return folderId; }
+    public void setFolderId(String folderId) { this.folderId = folderId; }
+
+    public Instant getExpiresAt() { return expiresAt; }
+    public void setExpiresAt(Instant expiresAt) { this.expiresAt = expiresAt; }
+
+    public boolean isEncrypted() { return encrypted; }
+    public void setEncrypted(boolean encrypted) { this.encrypted = encrypted; }
+
+    @JsonIgnore
+    public Map<String, FileEncryption> getPartKeys() { return partKeys; }
+    public void setPartKeys(Map<String, FileEncryption> partKeys) { this.partKeys = partKeys; }
+
+    public long getSize() { return size; }
+    public void setSize(long size) { this.size = size; }
+
+    @JsonIgnore
+    public boolean isQuotaReserved() { return quotaReserved; }
+    public void setQuotaReserved(boolean quotaReserved) { this.quotaReserved = quotaReserved; }
+
+    public long getPartSize() { return partSize; }
+    public void setPartSize(long partSize) { this.partSize = partSize; }
+
+    public int getPartCount() {
+        return size == 0 ? 1 : (int) ((size + partSize - 1) / partSize);
+    }
+
+    /**
+     * Bytes in the given part: {@code partSize}, except for the last part
+     */
+    public long partLength(int part) {
+        return Math.min(partSize, size - part * partSize);
+    }
+
+    // Parts written so far
+    public Set<Integer> getParts() { return parts; }
+    public void setParts(Set<Integer> parts) { this.parts = parts; }
+
+    public Instant getCreatedAt() { return createdAt; }
+    public void setCreatedAt(Instant createdAt) { this.createdAt = createdAt; }
+
+    public Instant getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(Instant updatedAt) { this.updatedAt = updatedAt; }
+
+    public String getFileId() { return fileId; }
+    public void setFileId(String fileId) { this.fileId = fileId; }
+}
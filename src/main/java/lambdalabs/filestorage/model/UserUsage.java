@@ -0,0 +1,48 @@
+package lambdalabs.filestorage.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Map;
+
+/**
+ * Running storage usage of one owner, kept up to date with {@code $inc} on every change
+ * so usage and quota checks never have to aggregate file_metadata.
+ * <p>
+ * {@code reservedBytes} / {@code reservedFiles} belong to uploads admitted against the quota
+ * but not finished yet. Keys of {@code tagBytes} are escaped tag names (see UsageService).
+ */
+@Document(collection = "user_usage")
+public class UserUsage {
+    // The owner id
+    @Id
+    private String id;
+
+    private long fileCount;
+
+    private long totalBytes;
+
+    private long reservedBytes;
+
+    private long reservedFiles;
+
+    private Map<String, Long> tagBytes;
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public long getFileCount() { return fileCount; }
+    public void setFileCount(long fileCount) { this.fileCount = fileCount; }
+
+    public long getTotalBytes() { return totalBytes; }
+    public void setTotalBytes(long totalBytes) { this.totalBytes = totalBytes; }
+
+    public long getReservedBytes() { return reservedBytes; }
+    public void setReservedBytes(long reservedBytes) { this.reservedBytes = reservedBytes; }
+
+    public long getReservedFiles() { return reservedFiles; }
+    public void setReservedFiles(long reservedFiles) { this.reservedFiles = reservedFiles; }
+
+    public Map<String, Long> getTagBytes() { return tagBytes; }
+    public void setTagBytes(Map<String, Long> tagBytes) { this.tagBytes = tagBytes; }
+}
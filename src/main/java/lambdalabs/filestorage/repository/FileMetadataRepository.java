@@ -1,17 +1,69 @@
 package lambdalabs.filestorage.repository;
 
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import jakarta.annotation.PostConstruct;
 import jakarta.validation.constraints.NotNull;
 import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.FileMetadataCodec;
+import lambdalabs.filestorage.model.FilenameTerms;
+import lambdalabs.filestorage.model.SearchMode;
+import lambdalabs.filestorage.model.StorageTier;
 import lambdalabs.filestorage.model.Visibility;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.convert.UpdateMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Repository;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Repository
 public class FileMetadataRepository {
@@ -19,59 +71,407 @@ public class FileMetadataRepository {
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Autowired
+    private ReadConsistency readConsistency;
+
     private static final String COLLECTION_NAME = "file_metadata";
 
+    private static final FileMetadataCodec CODEC = new FileMetadataCodec();
+
+    // Claims of expired files older than this belong to a sweep that failed half way
+    private static final Duration ABANDONED_SWEEP = Duration.ofMinutes(10);
+
+    // Fields listings can be sorted on, to merge the results of several shards in the same order
+    private static final Map<String, Function<FileMetadata, Comparable<?>>> SORT_KEYS = Map.of(
+            "id", FileMetadata::getId,
+            "filename", FileMetadata::getFilename,
+            "filenameLower", FileMetadata::getFilenameLower,
+            "downloadCount", FileMetadata::getDownloadCount,
+            "lastAccessedAt", FileMetadata::getLastAccessedAt);
+
+    private QueryMapper queryMapper;
+
+    private UpdateMapper updateMapper;
+
+    private MongoPersistentEntity<?> entity;
+
+    private CodecRegistry codecRegistry;
+
+    @PostConstruct
+    void init() {
+        queryMapper = new QueryMapper(mongoTemplate.getConverter());
+        updateMapper = new UpdateMapper(mongoTemplate.getConverter());
+        entity = mongoTemplate.getConverter().getMappingContext().getRequiredPersistentEntity(FileMetadata.class);
+        codecRegistry = CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(CODEC), mongoTemplate.getDb().getCodecRegistry());
+    }
+
     public FileMetadata save(FileMetadata fileMetadata) {
-        return mongoTemplate.save(fileMetadata, COLLECTION_NAME);
+        return write(mongoShards.forOwnerWrite(fileMetadata.getOwnerId()), (collection, session) -> {
+            if (fileMetadata.getId() == null) {
+                // The codec assigns the id
+                if (session != null) {
+                    collection.insertOne(session, fileMetadata);
+                } else {
+                    collection.insertOne(fileMetadata);
+                }
+            } else {
+                Bson filter = Filters.eq("_id", CODEC.getDocumentId(fileMetadata));
+                ReplaceOptions options = new ReplaceOptions().upsert(true);
+                if (session != null) {
+                    collection.replaceOne(session, filter, fileMetadata, options);
+                } else {
+                    collection.replaceOne(filter, fileMetadata, options);
+                }
+            }
+            return fileMetadata;
+        });
     }
 
 
     public List<FileMetadata> findAllVisibleToUser(String userId, int skip, int limit, String sortField, boolean desc) {
-        Query query = new Query(new Criteria().orOperator(
+        Query query = new Query(notExpired(new Criteria()).orOperator(
                 Criteria.where("visibility").is(Visibility.PUBLIC),
                 Criteria.where("ownerId").is(userId)
         ));
-        query.skip(skip).limit(limit);
+        query.skip(skip).limit(limit).with(sort(sortField, desc));
+        excludeSearchTerms(query);
 
-        Sort.Direction direction = desc ? Sort.Direction.DESC : Sort.Direction.ASC;
-        query.with(Sort.by(direction, sortField));
-        
-        return mongoTemplate.find(query, FileMetadata.class, COLLECTION_NAME);
+        return findAll(query);
     }
 
     public Optional<FileMetadata> findByIdVisibleToUser(String id, String userId) {
-        Query query = new Query(Criteria.where("id").is(id).orOperator(
+        Query query = new Query(notExpired(Criteria.where("id").is(id)).orOperator(
                     Criteria.where("visibility").is(Visibility.PUBLIC),
                     Criteria.where("ownerId").is(userId)
                 )
         );
-        return Optional.ofNullable(mongoTemplate.findOne(query, FileMetadata.class, COLLECTION_NAME));
+        return findAll(query.limit(1)).stream().findFirst();
     }
 
 
+    /**
+     * Files among the given ids that the user can see, in the order the ids were given
+     */
+    public List<FileMetadata> findByIdsVisibleToUser(List<String> ids, String userId) {
+        Query query = new Query(notExpired(Criteria.where("id").in(ids)).orOperator(
+                Criteria.where("visibility").is(Visibility.PUBLIC),
+                Criteria.where("ownerId").is(userId)
+        ));
+        excludeSearchTerms(query);
+        Map<String, FileMetadata> byId = findAll(query).stream()
+                .collect(Collectors.toMap(FileMetadata::getId, Function.identity()));
+        return ids.stream().distinct().map(byId::get).filter(Objects::nonNull).toList();
+    }
+
     public List<FileMetadata> findByVisibilityVisibleToUser(Visibility visibility, String userId, int skip, int limit, String sortField, boolean desc) {
-        return getFileMetadataList(skip, limit, sortField, desc,
-                Criteria.where("visibility").is(visibility).orOperator(
+        return getFileMetadataList(visibility, userId, skip, limit, sortField, desc,
+                notExpired(Criteria.where("visibility").is(visibility)).orOperator(
                         Criteria.where("visibility").is(Visibility.PUBLIC),
                         Criteria.where("ownerId").is(userId)
                 ));
     }
 
-    private List<FileMetadata> getFileMetadataList(int skip, int limit, String sortField, boolean desc, Criteria criteriaDefinition) {
-        Query query = new Query(criteriaDefinition);
-        query.skip(skip).limit(limit);
+    /**
+     * One page of the owner's files directly in a folder (null for the top level) by filename, starting
+     * after the given filename. Filenames are unique per owner, so the last one of a page is the cursor
+     * of the next; each page is a bounded scan of the {ownerId, folderId, filename} index.
+     */
+    public List<FileMetadata> findInFolder(String ownerId, String folderId, String afterFilename, int limit) {
+        Criteria criteria = notExpired(Criteria.where("ownerId").is(ownerId).and("folderId").is(folderId));
+        if (afterFilename != null) {
+            criteria.and("filename").gt(afterFilename);
+        }
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "filename")).limit(limit);
+        excludeSearchTerms(query);
+        return find(mongoShards.forOwner(ownerId), query, readConsistency.target());
+    }
+
+    /**
+     * Files visible to the user whose filename matches the query, ordered by normalized filename.
+     * <p>
+     * The match is repeated inside both branches of the visibility $or, so each branch is a bounded
+     * scan of its own index ({ownerId, term} for the user's files, a PUBLIC-only index for the rest)
+     * and the two sorted streams are merged without an in-memory sort.
+     */
+    public List<FileMetadata> searchByFilenameVisibleToUser(String userId, SearchMode mode, String text, int limit) {
+        String normalized = FilenameTerms.normalize(text);
+        UnaryOperator<Criteria> match = switch (mode) {
+            case PREFIX -> c -> c.and("filenameLower").regex("^" + escapeRegex(normalized));
+            case TOKEN -> c -> c.and("filenameTokens").all(FilenameTerms.tokens(normalized));
+            // Grams narrow the candidates through the index, the regex checks they are adjacent and in order
+            case SUBSTRING -> c -> c.and("filenameGrams").all(FilenameTerms.grams(normalized))
+                    .and("filenameLower").regex(escapeRegex(normalized));
+        };
+
+        Query query = new Query(notExpired(new Criteria()).orOperator(
+                match.apply(Criteria.where("visibility").is(Visibility.PUBLIC)),
+                match.apply(Criteria.where("ownerId").is(userId))
+        ));
+        query.limit(limit).with(Sort.by(Sort.Direction.ASC, "filenameLower"));
+        excludeSearchTerms(query);
+        return findAll(query);
+    }
+
+    /**
+     * Up to {@code limit} files stored before search terms were derived from filenames
+     */
+    public List<FileMetadata> findMissingSearchTerms(int limit) {
+        // Every file has a visibility, so this is a bounded scan of the {visibility, filenameLower} index
+        Query query = new Query(Criteria.where("visibility").in((Object[]) Visibility.values())
+                .and("filenameLower").is(null)).limit(limit);
+        query.fields().include("filename").include("ownerId");
+        return findAll(query);
+    }
+
+    public void setSearchTerms(List<FileMetadata> files) {
+        byShard(files, FileMetadata::getOwnerId).forEach((shard, shardFiles) -> {
+            BulkOperations bulk = shard.template().bulkOps(BulkOperations.BulkMode.UNORDERED, FileMetadata.class, COLLECTION_NAME);
+            for (FileMetadata file : shardFiles) {
+                bulk.updateOne(new Query(Criteria.where("id").is(file.getId()).and("filename").is(file.getFilename())),
+                        new Update()
+                                .set("filenameLower", file.getFilenameLower())
+                                .set("filenameTokens", file.getFilenameTokens())
+                                .set("filenameGrams", file.getFilenameGrams()));
+            }
+            bulk.execute();
+        });
+    }
+
+    /**
+     * Add coalesced downloads to the files' counters and move their last access forward, one bulk write
+     * for all of them. Files deleted in the meantime match nothing and are skipped.
+     */
+    public void recordAccesses(Collection<AccessDelta> accesses) {
+        byShard(accesses, AccessDelta::ownerId).forEach((shard, shardAccesses) -> {
+            BulkOperations bulk = shard.template().bulkOps(BulkOperations.BulkMode.UNORDERED, FileMetadata.class, COLLECTION_NAME);
+            for (AccessDelta access : shardAccesses) {
+                Update update = new Update().max("lastAccessedAt", access.lastAccessedAt());
+                if (access.downloads() > 0) {
+                    update.inc("downloadCount", access.downloads());
+                }
+                bulk.updateOne(new Query(Criteria.where("id").is(access.id())), update);
+            }
+            bulk.execute();
+        });
+    }
 
+    public record AccessDelta(String id, String ownerId, long downloads, Instant lastAccessedAt) {
+    }
+
+    /**
+     * Sort on the requested field, ties broken by id so that skip/limit pages neither repeat nor miss
+     * files when many share a value (download counts, mostly)
+     */
+    private static Sort sort(String sortField, boolean desc) {
         Sort.Direction direction = desc ? Sort.Direction.DESC : Sort.Direction.ASC;
-        query.with(Sort.by(direction, sortField));
+        Sort sort = Sort.by(direction, sortField);
+        return "id".equals(sortField) ? sort : sort.and(Sort.by(direction, "id"));
+    }
+
+    /**
+     * Listings do not need the search terms, which can be larger than the rest of the document
+     */
+    private static void excludeSearchTerms(Query query) {
+        query.fields().exclude("filenameTokens").exclude("filenameGrams");
+    }
+
+    /**
+     * Run a query on every shard and merge the results the way a single collection would have returned
+     * them: each shard returns up to skip + limit files, merged in sort order before skip and limit apply.
+     * A file found on two shards, while its owner is being moved, is returned once.
+     */
+    private List<FileMetadata> findAll(Query query) {
+        ReadConsistency.Target target = readConsistency.target();
+        if (!mongoShards.isSharded()) {
+            return find(mongoShards.all().get(0), query, target);
+        }
+        int perShardLimit = query.getLimit() > 0 ? (int) Math.min(Integer.MAX_VALUE, query.getSkip() + query.getLimit()) : 0;
+        Query perShard = Query.of(query).skip(0).limit(perShardLimit);
+        Stream<FileMetadata> merged = mongoShards.scatter(shard -> find(shard, perShard, target)).stream()
+                .flatMap(List::stream)
+                .filter(distinctIds());
+        Comparator<FileMetadata> order = comparator(query.getSortObject());
+        if (order != null) {
+            merged = merged.sorted(order);
+        }
+        merged = merged.skip(query.getSkip());
+        if (query.getLimit() > 0) {
+            merged = merged.limit(query.getLimit());
+        }
+        return merged.toList();
+    }
+
+    private static Predicate<FileMetadata> distinctIds() {
+        Set<String> seen = new HashSet<>();
+        return file -> seen.add(file.getId());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Comparator<FileMetadata> comparator(Document sort) {
+        Comparator<FileMetadata> order = null;
+        for (Map.Entry<String, Object> field : sort.entrySet()) {
+            Function<FileMetadata, Comparable<?>> key = SORT_KEYS.get(field.getKey());
+            if (key == null) {
+                throw new IllegalArgumentException("Cannot merge shard results sorted by " + field.getKey());
+            }
+            // Nulls first like Mongo, and last when descending
+            Comparator<FileMetadata> fieldOrder = Comparator.comparing(file -> (Comparable<Object>) key.apply(file),
+                    Comparator.nullsFirst(Comparator.naturalOrder()));
+            if (((Number) field.getValue()).intValue() < 0) {
+                fieldOrder = fieldOrder.reversed();
+            }
+            order = order == null ? fieldOrder : order.thenComparing(fieldOrder);
+        }
+        return order;
+    }
 
-        return mongoTemplate.find(query, FileMetadata.class, COLLECTION_NAME);
+    /**
+     * Group items by the shard of their owner
+     */
+    private <T> Map<MongoShards.Shard, List<T>> byShard(Collection<T> items, Function<T, String> owner) {
+        Map<MongoShards.Shard, List<T>> grouped = new LinkedHashMap<>();
+        for (T item : items) {
+            grouped.computeIfAbsent(mongoShards.forOwner(owner.apply(item)), shard -> new ArrayList<>()).add(item);
+        }
+        return grouped;
+    }
+
+    /**
+     * Run a query through the driver with {@link FileMetadataCodec}: the query is mapped by Spring as
+     * usual, the results are decoded straight from BSON
+     */
+    private List<FileMetadata> find(MongoShards.Shard shard, Query query) {
+        return find(shard, query, ReadConsistency.PRIMARY);
+    }
+
+    /**
+     * Same, on the members the target names. A secondary that has not caught up with the target's operation
+     * time within the wait timeout is given up on, the query then goes to the primary.
+     */
+    private List<FileMetadata> find(MongoShards.Shard shard, Query query, ReadConsistency.Target target) {
+        Document filter = queryMapper.getMappedObject(query.getQueryObject(), entity);
+        Document sort = queryMapper.getMappedSort(query.getSortObject(), entity);
+        Document projection = queryMapper.getMappedFields(query.getFieldsObject(), entity);
+        if (target.after() == null) {
+            return execute(shard, collection -> find(collection.withReadPreference(target.readPreference()).find(filter), query, sort, projection));
+        }
+        try (ClientSession session = readConsistency.readSession(target.after())) {
+            return execute(shard, collection -> find(collection.withReadPreference(target.readPreference()).find(session, filter)
+                    .maxTime(readConsistency.waitTimeout().toMillis(), TimeUnit.MILLISECONDS), query, sort, projection));
+        } catch (DataAccessException e) {
+            // Mostly maxTimeMS expiring while waiting for the secondary, a failed secondary is worth a retry too
+            readConsistency.recordFallback();
+            return execute(shard, collection -> find(collection.find(filter), query, sort, projection));
+        }
+    }
+
+    private static List<FileMetadata> find(FindIterable<FileMetadata> results, Query query, Document sort, Document projection) {
+        results.sort(sort).projection(projection).skip((int) query.getSkip());
+        if (query.getLimit() > 0) {
+            results.limit(query.getLimit());
+        }
+        return results.into(new ArrayList<>(query.getLimit() > 0 ? Math.min(query.getLimit(), 1000) : 16));
+    }
+
+    /**
+     * Write what an owner edits (filename, tags, folder) with a targeted update, leaving the fields other
+     * requests keep up to date, such as download counters and tier, as they are. Only applied while the
+     * file still has the folder and {@code updatedAt} it was read with: every edit moves {@code updatedAt},
+     * and the caller adjusts tag and folder counters from what it read.
+     *
+     * @return the file as updated, empty when it changed or went away in the meantime
+     */
+    public Optional<FileMetadata> updateDetails(FileMetadata edited, String readFolderId, Instant readUpdatedAt) {
+        Query query = new Query(Criteria.where("id").is(edited.getId()).and("ownerId").is(edited.getOwnerId())
+                .and("folderId").is(readFolderId).and("updatedAt").is(readUpdatedAt));
+        Update update = new Update()
+                .set("filename", edited.getFilename())
+                .set("filenameLower", edited.getFilenameLower())
+                .set("filenameTokens", edited.getFilenameTokens())
+                .set("filenameGrams", edited.getFilenameGrams())
+                .set("tags", edited.getTags())
+                .set("updatedAt", edited.getUpdatedAt());
+        if (edited.getFolderId() != null) {
+            update.set("folderId", edited.getFolderId());
+        } else {
+            update.unset("folderId");
+        }
+        Document filter = queryMapper.getMappedObject(query.getQueryObject(), entity);
+        Document mappedUpdate = updateMapper.getMappedObject(update.getUpdateObject(), entity);
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+        return Optional.ofNullable(write(mongoShards.forOwnerWrite(edited.getOwnerId()), (collection, session) -> session != null
+                ? collection.findOneAndUpdate(session, filter, mappedUpdate, options)
+                : collection.findOneAndUpdate(filter, mappedUpdate, options)));
+    }
+
+    private Optional<FileMetadata> findAndRemove(MongoShards.Shard shard, Query query) {
+        Document filter = queryMapper.getMappedObject(query.getQueryObject(), entity);
+        return Optional.ofNullable(write(shard, (collection, session) ->
+                session != null ? collection.findOneAndDelete(session, filter) : collection.findOneAndDelete(filter)));
+    }
+
+    /**
+     * A write on the shard's collection. Within a request, while secondary reads are enabled, it runs in a
+     * session so its operation time can be handed to {@link ReadConsistency}; otherwise the session is null.
+     */
+    private <T> T write(MongoShards.Shard shard, BiFunction<MongoCollection<FileMetadata>, ClientSession, T> action) {
+        if (!readConsistency.tracksWrites()) {
+            return execute(shard, collection -> action.apply(collection, null));
+        }
+        try (ClientSession session = readConsistency.writeSession()) {
+            T result = execute(shard, collection -> action.apply(collection, session));
+            readConsistency.recordWrite(session.getOperationTime());
+            return result;
+        }
+    }
+
+    /**
+     * Driver access to the shard's collection with exceptions translated as for any other template operation
+     */
+    private <T> T execute(MongoShards.Shard shard, Function<MongoCollection<FileMetadata>, T> action) {
+        return shard.template().execute(COLLECTION_NAME,
+                collection -> action.apply(collection.withDocumentClass(FileMetadata.class).withCodecRegistry(codecRegistry)));
+    }
+
+    private static String escapeRegex(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (char c : text.toCharArray()) {
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Expired files disappear from every read as soon as they expire,
+     * whether or not the sweeper has removed them yet
+     */
+    private static Criteria notExpired(Criteria criteria) {
+        return criteria.and("expiresAt").not().lte(Instant.now());
+    }
+
+    /**
+     * @param visibility when not PUBLIC the criteria only match the user's own files, which are all on their shard
+     */
+    private List<FileMetadata> getFileMetadataList(Visibility visibility, String userId, int skip, int limit, String sortField, boolean desc,
+                                                   Criteria criteriaDefinition) {
+        Query query = new Query(criteriaDefinition);
+        query.skip(skip).limit(limit).with(sort(sortField, desc));
+        excludeSearchTerms(query);
+
+        return visibility != null && visibility != Visibility.PUBLIC ? find(mongoShards.forOwner(userId), query, readConsistency.target()) : findAll(query);
     }
 
 
     public List<FileMetadata> findByTagVisibleToUser(
             @NotNull String tag, String userId, int skip, int limit, String sortField, boolean desc) {
-        return getFileMetadataList(skip, limit, sortField, desc,
-                Criteria.where("tags").in(tag.toLowerCase()).orOperator(
+        return getFileMetadataList(null, userId, skip, limit, sortField, desc,
+                notExpired(Criteria.where("tags").in(tag.toLowerCase())).orOperator(
                     Criteria.where("visibility").is(Visibility.PUBLIC),
                     Criteria.where("ownerId").is(userId)
                 )
@@ -82,9 +482,9 @@ public class FileMetadataRepository {
     public List<FileMetadata> findByVisibilityAndTagVisibleToUser(
             Visibility visibility, @NotNull String tag, String userId, int skip, int limit, String sortField,
             boolean desc) {
-        return getFileMetadataList(skip, limit, sortField, desc,
-                Criteria.where("visibility").is(visibility)
-                        .and("tags").in(tag.toLowerCase())
+        return getFileMetadataList(visibility, userId, skip, limit, sortField, desc,
+                notExpired(Criteria.where("visibility").is(visibility)
+                        .and("tags").in(tag.toLowerCase()))
                         .orOperator(
                                 Criteria.where("visibility").is(Visibility.PUBLIC),
                                 Criteria.where("ownerId").is(userId)
@@ -92,24 +492,306 @@ public class FileMetadataRepository {
         );
     }
 
-    public boolean deleteByIdAndOwner(String id, String ownerId) {
-        return mongoTemplate.remove(
-                new Query(Criteria.where("id").is(id).and("ownerId").is(ownerId)),
-                FileMetadata.class, COLLECTION_NAME).
-                getDeletedCount() > 0;
+    /**
+     * Atomically remove the metadata document (with ownership check) and return what was removed,
+     * so the caller can hand its GridFS content over to the reclaimer
+     */
+    public Optional<FileMetadata> findAndRemoveByIdAndOwner(String id, String ownerId) {
+        return findAndRemove(mongoShards.forOwnerWrite(ownerId), new Query(Criteria.where("id").is(id).and("ownerId").is(ownerId)));
+    }
+
+    /**
+     * The given GridFS ids that are still referenced by some metadata document on the shard, with the tier
+     * that document keeps its content on. GridFS content of a COLD file is a leftover, its cold file is not.
+     */
+    public Map<ObjectId, StorageTier> findGridFsReferences(MongoShards.Shard shard, Collection<ObjectId> gridFsIds) {
+        Query query = new Query(Criteria.where("gridFsId").in(gridFsIds));
+        query.fields().include("gridFsId").include("tier");
+        return find(shard, query).stream()
+                .collect(Collectors.toMap(FileMetadata::getGridFsId,
+                        file -> file.isCold() ? StorageTier.COLD : StorageTier.HOT, (a, b) -> a));
+    }
+
+    /**
+     * Same over every shard, for content kept outside of them: a cold file may belong to an owner since moved
+     */
+    public Map<ObjectId, StorageTier> findGridFsReferences(Collection<ObjectId> gridFsIds) {
+        Map<ObjectId, StorageTier> references = new HashMap<>();
+        mongoShards.scatter(shard -> findGridFsReferences(shard, gridFsIds)).forEach(references::putAll);
+        return references;
+    }
+
+    /**
+     * One page, in id order after {@code afterId}, of files in GridFS neither accessed nor uploaded since
+     * {@code before}, with the fields needed to move their content
+     */
+    public List<FileMetadata> findColdCandidates(Instant before, String afterId, int limit) {
+        // not().gte() also matches files that were never accessed or predate uploadedAt
+        Criteria criteria = notExpired(Criteria.where("tier").ne(StorageTier.COLD)
+                .and("lastAccessedAt").not().gte(before)
+                .and("uploadedAt").not().gte(before));
+        if (afterId != null) {
+            criteria.and("id").gt(new ObjectId(afterId));
+        }
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "id")).limit(limit);
+        query.fields().include("gridFsId").include("ownerId").include("filename").include("contentType")
+                .include("size").include("md5").include("encryption");
+        return findAll(query);
+    }
+
+    /**
+     * One page, in id order after {@code afterId}, of all files with the fields needed to open and check
+     * their content
+     */
+    public List<FileMetadata> findForScrub(String afterId, int limit) {
+        Criteria criteria = new Criteria();
+        if (afterId != null) {
+            criteria = Criteria.where("id").gt(new ObjectId(afterId));
+        }
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "id")).limit(limit);
+        query.fields().include("gridFsId").include("ownerId").include("filename").include("size")
+                .include("md5").include("encryption").include("tier");
+        return findAll(query);
+    }
+
+    /**
+     * Record that the file's content now is on the cold tier, unless the file changed in the meantime
+     */
+    public boolean markCold(FileMetadata file, Instant since) {
+        return mongoShards.forOwnerWrite(file.getOwnerId()).template().updateFirst(
+                new Query(Criteria.where("id").is(file.getId()).and("gridFsId").is(file.getGridFsId()).and("tier").ne(StorageTier.COLD)),
+                new Update().set("tier", StorageTier.COLD).set("coldSince", since),
+                FileMetadata.class, COLLECTION_NAME).getModifiedCount() > 0;
+    }
+
+    /**
+     * Point a cold file at its content stored in GridFS again, unless the file changed in the meantime
+     */
+    public boolean markHot(FileMetadata file, ObjectId gridFsId) {
+        return mongoShards.forOwnerWrite(file.getOwnerId()).template().updateFirst(
+                new Query(Criteria.where("id").is(file.getId()).and("gridFsId").is(file.getGridFsId()).and("tier").is(StorageTier.COLD)),
+                new Update().set("gridFsId", gridFsId).unset("tier").unset("coldSince"),
+                FileMetadata.class, COLLECTION_NAME).getModifiedCount() > 0;
+    }
+
+    /**
+     * Load up to {@code limit} expired files, with just the fields needed to reclaim their content
+     * and to take them off their owner's usage counters
+     */
+    public List<FileMetadata> findExpired(Instant now, int limit) {
+        Query query = new Query(Criteria.where("expiresAt").lte(now)).limit(limit);
+        query.fields().include("gridFsId").include("ownerId").include("size").include("tags").include("visibility").include("folderId");
+        return findAll(query);
+    }
+
+    /**
+     * Remove the given files that are still expired, returning the ones this call removed. Per shard, the
+     * files are claimed with one update that stamps them with a sweep id, the claimed ones read back by
+     * it and then removed by it, so three round trips however large the batch. Files evicted or deleted
+     * before the claim are left out, their remover accounts for them; claimed files are no longer evicted.
+     */
+    public List<FileMetadata> deleteExpired(Collection<FileMetadata> files, Instant now) {
+        ObjectId sweepId = new ObjectId();
+        List<FileMetadata> deleted = new ArrayList<>();
+        for (Map.Entry<MongoShards.Shard, List<FileMetadata>> shardFiles : byShard(files, FileMetadata::getOwnerId).entrySet()) {
+            MongoTemplate template = shardFiles.getKey().template();
+            List<String> ids = shardFiles.getValue().stream().map(FileMetadata::getId).toList();
+            long claimed = template.updateMulti(new Query(unclaimed(Criteria.where("id").in(ids).and("expiresAt").lte(now), now)),
+                    new Update().set("sweepId", sweepId), FileMetadata.class, COLLECTION_NAME).getModifiedCount();
+            if (claimed == 0) {
+                continue;
+            }
+            Query bySweep = new Query(Criteria.where("sweepId").is(sweepId));
+            bySweep.fields().include("gridFsId").include("ownerId").include("size").include("tags").include("visibility").include("folderId");
+            deleted.addAll(find(shardFiles.getKey(), bySweep));
+            template.remove(new Query(Criteria.where("sweepId").is(sweepId)), COLLECTION_NAME);
+        }
+        return deleted;
+    }
+
+    /**
+     * Files no sweep claimed, or claimed by one that stopped before removing them (its id carries its time)
+     */
+    private static Criteria unclaimed(Criteria criteria, Instant now) {
+        return criteria.orOperator(Criteria.where("sweepId").exists(false),
+                Criteria.where("sweepId").lt(new ObjectId(Date.from(now.minus(ABANDONED_SWEEP)))));
+    }
+
+    /**
+     * Remove an expired file of the owner that still holds the given unique field value
+     * (filename or md5), so a new file can take its place before the sweeper gets to it
+     */
+    public Optional<FileMetadata> findAndRemoveExpired(String ownerId, String field, String value, Instant now) {
+        return findAndRemove(mongoShards.forOwnerWrite(ownerId),
+                new Query(unclaimed(Criteria.where(field).is(value).and("ownerId").is(ownerId).and("expiresAt").lte(now), now)));
+    }
+
+    /**
+     * File count and bytes of every owner, ordered by owner id. A full collection scan, only for rebuilding counters.
+     */
+    public Stream<OwnerTotals> streamOwnerTotals() {
+        return mergeSorted(mongoShards.all().stream()
+                        .map(shard -> streamOwnerTotals(shard).filter(totals -> isPlacedOn(shard, totals.id())))
+                        .toList(),
+                Comparator.comparing(OwnerTotals::id, Comparator.nullsFirst(Comparator.naturalOrder())));
+    }
+
+    /**
+     * Same as {@link #streamOwnerTotals()} for the owners with files on one shard
+     */
+    public Stream<OwnerTotals> streamOwnerTotals(MongoShards.Shard shard) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.group("ownerId").count().as("fileCount").sum("size").as("totalBytes"),
+                Aggregation.sort(Sort.Direction.ASC, "_id")
+        ).withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+        return shard.template().aggregateStream(aggregation, COLLECTION_NAME, OwnerTotals.class);
+    }
+
+    /**
+     * Bytes and files (all and PUBLIC) per owner and tag, ordered by owner id. A full collection scan,
+     * only for rebuilding counters.
+     */
+    public Stream<OwnerTagBytes> streamOwnerTagBytes() {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.unwind("tags"),
+                Aggregation.group("ownerId", "tags").sum("size").as("bytes").count().as("files")
+                        .sum(ConditionalOperators.when(Criteria.where("visibility").is(Visibility.PUBLIC.name()))
+                                .then(1).otherwise(0)).as("publicFiles"),
+                Aggregation.project("bytes", "files", "publicFiles").and("ownerId").as("ownerId").and("tags").as("tag").andExclude("_id"),
+                Aggregation.sort(Sort.Direction.ASC, "ownerId")
+        ).withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+        return mergeSorted(mongoShards.all().stream()
+                        .map(shard -> shard.template().aggregateStream(aggregation, COLLECTION_NAME, OwnerTagBytes.class)
+                                .filter(row -> isPlacedOn(shard, row.ownerId())))
+                        .toList(),
+                Comparator.comparing(OwnerTagBytes::ownerId, Comparator.nullsFirst(Comparator.naturalOrder())));
+    }
+
+    /**
+     * Whether the owner's files are read from the shard, so rows of copies made by a move in progress
+     * or left behind by one are not counted twice
+     */
+    private boolean isPlacedOn(MongoShards.Shard shard, String ownerId) {
+        return !mongoShards.isSharded() || mongoShards.forOwner(ownerId) == shard;
+    }
+
+    /**
+     * Merge streams that are each sorted into one sorted stream, reading them all in step
+     */
+    private static <T> Stream<T> mergeSorted(List<Stream<T>> streams, Comparator<T> order) {
+        if (streams.size() == 1) {
+            return streams.get(0);
+        }
+        List<Iterator<T>> sources = streams.stream().map(Stream::iterator).toList();
+        // Heads of the sources, ties taken in shard order
+        PriorityQueue<Map.Entry<T, Integer>> heads = new PriorityQueue<>(
+                Comparator.<Map.Entry<T, Integer>, T>comparing(Map.Entry::getKey, order).thenComparing(Map.Entry::getValue));
+        Iterator<T> merged = new Iterator<>() {
+            private boolean started;
+
+            @Override
+            public boolean hasNext() {
+                if (!started) {
+                    for (int i = 0; i < sources.size(); i++) {
+                        advance(i);
+                    }
+                    started = true;
+                }
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<T, Integer> head = heads.poll();
+                advance(head.getValue());
+                return head.getKey();
+            }
+
+            private void advance(int source) {
+                if (sources.get(source).hasNext()) {
+                    heads.add(Map.entry(sources.get(source).next(), source));
+                }
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+                .onClose(() -> streams.forEach(Stream::close));
+    }
+
+    public record OwnerTotals(String id, long fileCount, long totalBytes) {
+    }
+
+    public record OwnerTagBytes(String ownerId, String tag, long bytes, long files, long publicFiles) {
     }
 
     public long count() {
-        return mongoTemplate.count(new Query(), FileMetadata.class, COLLECTION_NAME);
+        return mongoShards.scatter(shard -> shard.template().count(new Query(), FileMetadata.class, COLLECTION_NAME))
+                .stream().mapToLong(Long::longValue).sum();
     }
 
     public boolean existsByFilenameAndOwnerId(String filename, String ownerId) {
         Query query = new Query(Criteria.where("filename").is(filename).and("ownerId").is(ownerId));
-        return mongoTemplate.exists(query, FileMetadata.class, COLLECTION_NAME);
+        return mongoShards.forOwner(ownerId).template().exists(query, FileMetadata.class, COLLECTION_NAME);
     }
 
     public boolean existsByMd5AndOwnerId(String md5, String ownerId) {
         Query query = new Query(Criteria.where("md5").is(md5).and("ownerId").is(ownerId));
-        return mongoTemplate.exists(query, FileMetadata.class, COLLECTION_NAME);
+        return mongoShards.forOwner(ownerId).template().exists(query, FileMetadata.class, COLLECTION_NAME);
+    }
+
+    /**
+     * One page of an owner's metadata documents on a shard, in id order after {@code afterId}, as stored
+     */
+    public List<Document> findOwnerDocuments(MongoShards.Shard shard, String ownerId, Object afterId, int limit) {
+        Criteria criteria = Criteria.where("ownerId").is(ownerId);
+        if (afterId != null) {
+            criteria.and("_id").gt(afterId);
+        }
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "_id")).limit(limit);
+        return shard.template().find(query, Document.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Like {@link #findOwnerDocuments}, with only the id and the fields writes to a file change
+     * (and not download statistics), to compare an owner's documents across shards
+     */
+    public List<Document> findOwnerVersions(MongoShards.Shard shard, String ownerId, Object afterId, int limit) {
+        Criteria criteria = Criteria.where("ownerId").is(ownerId);
+        if (afterId != null) {
+            criteria.and("_id").gt(afterId);
+        }
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "_id")).limit(limit);
+        query.fields().include("_id").include("updatedAt").include("filename").include("tags").include("folderId")
+                .include("gridFsId").include("tier").include("expiresAt");
+        return shard.template().find(query, Document.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Write copies of metadata documents to a shard, replacing earlier copies. Copies carry {@code movedAt},
+     * which keeps them out of the file event feed.
+     */
+    public void copyDocuments(MongoShards.Shard shard, List<Document> documents, Instant movedAt) {
+        if (documents.isEmpty()) {
+            return;
+        }
+        BulkOperations bulk = shard.template().bulkOps(BulkOperations.BulkMode.UNORDERED, COLLECTION_NAME);
+        for (Document document : documents) {
+            Document copy = new Document(document).append("movedAt", movedAt);
+            bulk.replaceOne(new Query(Criteria.where("_id").is(document.get("_id"))), copy, FindAndReplaceOptions.options().upsert());
+        }
+        bulk.execute();
+    }
+
+    public long countByOwner(MongoShards.Shard shard, String ownerId) {
+        return shard.template().count(new Query(Criteria.where("ownerId").is(ownerId)), COLLECTION_NAME);
+    }
+
+    /**
+     * Remove metadata documents from a shard, without tombstones: for the copies a move leaves behind
+     */
+    public long deleteDocuments(MongoShards.Shard shard, Collection<Object> ids) {
+        return shard.template().remove(new Query(Criteria.where("_id").in(ids)), COLLECTION_NAME).getDeletedCount();
     }
 }
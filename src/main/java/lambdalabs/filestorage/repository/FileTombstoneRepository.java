@@ -0,0 +1,106 @@
+package lambdalabs.filestorage.repository;
+
+import lambdalabs.filestorage.model.FileTombstone;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public class FileTombstoneRepository {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private static final String COLLECTION_NAME = "file_tombstones";
+
+    /**
+     * Insert the tombstone unless one already exists for the same GridFS id
+     */
+    public void upsert(FileTombstone tombstone) {
+        mongoTemplate.upsert(byGridFsId(tombstone), insertOnly(tombstone), FileTombstone.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Same as {@link #upsert} for a whole batch, sent as one unordered bulk write
+     */
+    public void upsertAll(List<FileTombstone> tombstones) {
+        if (tombstones.isEmpty()) {
+            return;
+        }
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, FileTombstone.class, COLLECTION_NAME);
+        for (FileTombstone tombstone : tombstones) {
+            bulk.upsert(byGridFsId(tombstone), insertOnly(tombstone));
+        }
+        bulk.execute();
+    }
+
+    private static Query byGridFsId(FileTombstone tombstone) {
+        return new Query(Criteria.where("_id").is(tombstone.getGridFsId()));
+    }
+
+    private static Update insertOnly(FileTombstone tombstone) {
+        return new Update()
+                .setOnInsert("metadataId", tombstone.getMetadataId())
+                .setOnInsert("ownerId", tombstone.getOwnerId())
+                .setOnInsert("shard", tombstone.getShard())
+                .setOnInsert("visibility", tombstone.getVisibility())
+                .setOnInsert("deletedAt", tombstone.getDeletedAt());
+    }
+
+    /**
+     * Lease up to {@code limit} unclaimed (or expired-claim) tombstones to the given worker.
+     * Several nodes may run the reclaimer at once, the lease keeps them off each other's batches.
+     */
+    public List<FileTombstone> claimBatch(String workerId, Instant now, Instant leaseUntil, int limit) {
+        Criteria claimable = new Criteria().orOperator(
+                Criteria.where("claimedUntil").exists(false),
+                Criteria.where("claimedUntil").lt(now)
+        );
+
+        Query candidates = new Query(claimable).limit(limit).with(Sort.by(Sort.Direction.ASC, "deletedAt"));
+        candidates.fields().include("_id");
+        List<ObjectId> ids = mongoTemplate.find(candidates, FileTombstone.class, COLLECTION_NAME).stream()
+                .map(FileTombstone::getGridFsId)
+                .toList();
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        mongoTemplate.updateMulti(
+                new Query(Criteria.where("_id").in(ids).orOperator(
+                        Criteria.where("claimedUntil").exists(false),
+                        Criteria.where("claimedUntil").lt(now))),
+                new Update().set("claimedBy", workerId).set("claimedUntil", leaseUntil),
+                FileTombstone.class, COLLECTION_NAME);
+
+        return mongoTemplate.find(
+                new Query(Criteria.where("_id").in(ids).and("claimedBy").is(workerId)),
+                FileTombstone.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Whether the GridFS content is waiting to be reclaimed, i.e. its file was deleted or the content replaced
+     */
+    public boolean exists(ObjectId gridFsId) {
+        return mongoTemplate.exists(new Query(Criteria.where("_id").is(gridFsId)), FileTombstone.class, COLLECTION_NAME);
+    }
+
+    public long deleteByGridFsIds(Collection<ObjectId> gridFsIds) {
+        return mongoTemplate.remove(new Query(Criteria.where("_id").in(gridFsIds)),
+                FileTombstone.class, COLLECTION_NAME).getDeletedCount();
+    }
+
+    public long count() {
+        return mongoTemplate.count(new Query(), FileTombstone.class, COLLECTION_NAME);
+    }
+}
@@ -0,0 +1,121 @@
+package lambdalabs.filestorage.repository;
+
+import lambdalabs.filestorage.model.Folder;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+@Repository
+public class FolderRepository {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private static final String COLLECTION_NAME = "folders";
+
+    public Folder insert(Folder folder) {
+        return mongoTemplate.insert(folder, COLLECTION_NAME);
+    }
+
+    public Optional<Folder> findByIdAndOwner(String id, String ownerId) {
+        Query query = new Query(Criteria.where("id").is(id).and("ownerId").is(ownerId));
+        return Optional.ofNullable(mongoTemplate.findOne(query, Folder.class, COLLECTION_NAME));
+    }
+
+    /**
+     * One page of a folder's subfolders by name, starting after the given name. Names are unique
+     * within a parent, so the last name of a page is the cursor of the next one; each page is a
+     * bounded scan of the {ownerId, parentId, name} index.
+     */
+    public List<Folder> findChildren(String ownerId, String parentId, String afterName, int limit) {
+        Criteria criteria = Criteria.where("ownerId").is(ownerId).and("parentId").is(parentId);
+        if (afterName != null) {
+            criteria.and("name").gt(afterName);
+        }
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "name")).limit(limit);
+        return mongoTemplate.find(query, Folder.class, COLLECTION_NAME);
+    }
+
+    public boolean hasChildren(String ownerId, String parentId) {
+        return mongoTemplate.exists(new Query(Criteria.where("ownerId").is(ownerId).and("parentId").is(parentId)),
+                Folder.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Ids of the folder's ancestors, in no particular order. One $graphLookup round trip whatever the depth.
+     */
+    public List<String> findAncestorIds(String folderId) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("_id").is(new ObjectId(folderId))),
+                Aggregation.graphLookup(COLLECTION_NAME)
+                        .startWith("$parentId")
+                        .connectFrom("parentId")
+                        .connectTo("_id")
+                        .as("ancestors"),
+                Aggregation.project().and("ancestors._id").as("ancestorIds")
+        );
+        Document result = mongoTemplate.aggregate(aggregation, COLLECTION_NAME, Document.class).getUniqueMappedResult();
+        List<String> ids = new ArrayList<>();
+        if (result != null && result.get("ancestorIds") instanceof List<?> list) {
+            list.forEach(id -> ids.add(id.toString()));
+        }
+        return ids;
+    }
+
+    /**
+     * Change the subtree counters of the given folders, one update per folder chain
+     *
+     * @param deltas file count and byte deltas keyed by the list of folder ids they apply to
+     */
+    public void incrementAll(Map<List<String>, long[]> deltas) {
+        BulkOperations bulk = null;
+        for (Map.Entry<List<String>, long[]> delta : deltas.entrySet()) {
+            if (delta.getKey().isEmpty() || (delta.getValue()[0] == 0 && delta.getValue()[1] == 0)) {
+                continue;
+            }
+            if (bulk == null) {
+                bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Folder.class, COLLECTION_NAME);
+            }
+            bulk.updateMulti(new Query(Criteria.where("id").in(delta.getKey())),
+                    new Update().inc("fileCount", delta.getValue()[0]).inc("totalBytes", delta.getValue()[1]));
+        }
+        if (bulk != null) {
+            bulk.execute();
+        }
+    }
+
+    /**
+     * Rename and/or move one folder, provided it still has the parent the caller checked the move against
+     *
+     * @return the folder as it was before the change, empty if it is gone or was moved concurrently
+     */
+    public Optional<Folder> update(String id, String ownerId, String expectedParentId, String parentId, String name) {
+        Query query = new Query(Criteria.where("id").is(id).and("ownerId").is(ownerId).and("parentId").is(expectedParentId));
+        Update update = new Update().set("parentId", parentId).set("name", name).set("updatedAt", Instant.now());
+        return Optional.ofNullable(mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(false), Folder.class, COLLECTION_NAME));
+    }
+
+    /**
+     * Remove the folder if no files are counted under it
+     */
+    public boolean removeIfEmpty(String id, String ownerId) {
+        Query query = new Query(Criteria.where("id").is(id).and("ownerId").is(ownerId).and("fileCount").lte(0));
+        return mongoTemplate.remove(query, Folder.class, COLLECTION_NAME).getDeletedCount() > 0;
+    }
+}
@@ -0,0 +1,333 @@
+package lambdalabs.filestorage.repository;
+
+import com.mongodb.client.MongoClient;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lambdalabs.filestorage.model.OwnerPlacement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * The databases file_metadata and GridFS content are spread over, by owner. Everything else (folders,
+ * usage, tags, tombstones...) stays in the default database.
+ * <p>
+ * Shards are databases on the deployment {@code spring.data.mongodb.uri} points at, listed in
+ * {@code file-storage.shards.databases}; without a list the default database is the only shard. An owner
+ * is placed on a shard by a consistent hash of their id ({@link HashRing}) when their files are first
+ * written, and stays there (owner_placements) until {@code OwnerRebalancer} moves them, so changing the
+ * list never moves anyone implicitly. Owners that already have files in the first shard, from before
+ * sharding was set up, are placed there.
+ * <p>
+ * Placements are cached for {@code placement-cache-ttl}, which is also how long other nodes may keep
+ * routing to an owner's previous shard after a move.
+ */
+@Component
+public class MongoShards {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoShards.class);
+
+    private static final String PLACEMENTS_COLLECTION = "owner_placements";
+
+    /**
+     * One shard database with its template and GridFS bucket
+     */
+    public record Shard(String name, MongoTemplate template, GridFsTemplate gridFs) {
+    }
+
+    private record CachedPlacement(OwnerPlacement placement, long expiresAtNanos, boolean placed) {
+    }
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private GridFsTemplate gridFsTemplate;
+
+    @Autowired
+    private MongoClient mongoClient;
+
+    @Autowired
+    private MongoConverter mongoConverter;
+
+    @Value("${file-storage.shards.databases:}")
+    private List<String> databases;
+
+    @Value("${file-storage.shards.virtual-nodes:128}")
+    private int virtualNodes;
+
+    @Value("${file-storage.shards.placement-cache-ttl:5s}")
+    private Duration placementCacheTtl;
+
+    @Value("${file-storage.shards.placement-cache-size:100000}")
+    private int placementCacheSize;
+
+    @Value("${file-storage.shards.moving-retry-after:30s}")
+    private Duration movingRetryAfter;
+
+    private List<Shard> shards;
+
+    private final Map<String, Shard> byName = new LinkedHashMap<>();
+
+    private HashRing ring;
+
+    private final ConcurrentMap<String, CachedPlacement> placements = new ConcurrentHashMap<>();
+
+    private final ExecutorService scatter = Executors.newVirtualThreadPerTaskExecutor();
+
+    @PostConstruct
+    void init() {
+        String defaultDatabase = mongoTemplate.getDb().getName();
+        List<String> names = databases.stream().map(String::trim).filter(name -> !name.isEmpty()).distinct().toList();
+        if (names.isEmpty()) {
+            names = List.of(defaultDatabase);
+        }
+        for (String name : names) {
+            if (name.equals(defaultDatabase)) {
+                byName.put(name, new Shard(name, mongoTemplate, gridFsTemplate));
+            } else {
+                SimpleMongoClientDatabaseFactory factory = new SimpleMongoClientDatabaseFactory(mongoClient, name);
+                byName.put(name, new Shard(name, new MongoTemplate(factory, mongoConverter), new GridFsTemplate(factory, mongoConverter)));
+            }
+        }
+        shards = List.copyOf(byName.values());
+        ring = new HashRing(names, virtualNodes);
+        if (isSharded()) {
+            logger.info("Files are sharded by owner over databases: {}", names);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        scatter.shutdownNow();
+    }
+
+    public List<Shard> all() {
+        return shards;
+    }
+
+    public boolean isSharded() {
+        return shards.size() > 1;
+    }
+
+    /**
+     * The shard of the given name, the first one for null (tombstones from before sharding)
+     */
+    public Shard named(String name) {
+        if (name == null) {
+            return shards.get(0);
+        }
+        Shard shard = byName.get(name);
+        if (shard == null) {
+            throw new IllegalStateException("Shard database is not configured: " + name);
+        }
+        return shard;
+    }
+
+    /**
+     * Where the owner's files are read from
+     */
+    public Shard forOwner(String ownerId) {
+        if (!isSharded() || ownerId == null) {
+            return shards.get(0);
+        }
+        return named(placement(ownerId, false).getShard());
+    }
+
+    /**
+     * Where the owner's new and changed files go, placing the owner on first use
+     *
+     * @throws OwnerMovingException while the owner is being moved to another shard
+     */
+    public Shard forOwnerWrite(String ownerId) {
+        if (!isSharded() || ownerId == null) {
+            return shards.get(0);
+        }
+        OwnerPlacement placement = placement(ownerId, true);
+        if (placement.getMovingTo() != null) {
+            throw new OwnerMovingException(ownerId, movingRetryAfter);
+        }
+        return named(placement.getShard());
+    }
+
+    public boolean isMoving(String ownerId) {
+        return isSharded() && ownerId != null && placement(ownerId, false).getMovingTo() != null;
+    }
+
+    /**
+     * The shard the hash ring assigns to the owner, which is where the rebalancer moves them
+     */
+    public String ringShard(String ownerId) {
+        return ring.node(ownerId);
+    }
+
+    /**
+     * Run the action on every shard at once, results in shard order
+     */
+    public <T> List<T> scatter(Function<Shard, T> action) {
+        if (!isSharded()) {
+            return List.of(action.apply(shards.get(0)));
+        }
+        List<Future<T>> futures = new ArrayList<>(shards.size());
+        for (Shard shard : shards) {
+            futures.add(scatter.submit(() -> action.apply(shard)));
+        }
+        List<T> results = new ArrayList<>(shards.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException("Failed to query shards", e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+        return results;
+    }
+
+    /**
+     * Mark the owner as moving from one shard to another, unless they are not on {@code from} or
+     * already moving. Writes are refused from then on, by every node once its cache expired.
+     */
+    public boolean startMove(String ownerId, String from, String to) {
+        boolean started = mongoTemplate.updateFirst(
+                new Query(Criteria.where("_id").is(ownerId).and("shard").is(from).and("movingTo").exists(false)),
+                new Update().set("movingTo", to).set("movingSince", Instant.now()),
+                OwnerPlacement.class, PLACEMENTS_COLLECTION).getModifiedCount() > 0;
+        placements.remove(ownerId);
+        return started;
+    }
+
+    /**
+     * Show that a move is still making progress, see {@link #findStaleMoves}
+     *
+     * @return false when the move was aborted in the meantime
+     */
+    public boolean renewMove(String ownerId, String to) {
+        return mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(ownerId).and("movingTo").is(to)),
+                new Update().set("movingSince", Instant.now()),
+                OwnerPlacement.class, PLACEMENTS_COLLECTION).getModifiedCount() > 0;
+    }
+
+    /**
+     * Place the owner on the shard they were moved to and accept writes again
+     *
+     * @return false when the move was aborted in the meantime
+     */
+    public boolean finishMove(String ownerId, String to) {
+        boolean finished = mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(ownerId).and("movingTo").is(to)),
+                new Update().set("shard", to).unset("movingTo").unset("movingSince"),
+                OwnerPlacement.class, PLACEMENTS_COLLECTION).getModifiedCount() > 0;
+        placements.remove(ownerId);
+        return finished;
+    }
+
+    /**
+     * Leave the owner where they were and accept writes again
+     */
+    public void abortMove(String ownerId, String to) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(ownerId).and("movingTo").is(to)),
+                new Update().unset("movingTo").unset("movingSince"),
+                OwnerPlacement.class, PLACEMENTS_COLLECTION);
+        placements.remove(ownerId);
+    }
+
+    /**
+     * Moves that made no progress since the given time, left behind by a node that stopped
+     */
+    public List<OwnerPlacement> findStaleMoves(Instant before) {
+        return mongoTemplate.find(new Query(Criteria.where("movingSince").lt(before)), OwnerPlacement.class, PLACEMENTS_COLLECTION);
+    }
+
+    /**
+     * How long nodes may act on a placement they read earlier
+     */
+    public Duration placementCacheTtl() {
+        return placementCacheTtl;
+    }
+
+    /**
+     * The owner's placement. Only writes place an owner that has none yet; reads go where that would put them.
+     */
+    private OwnerPlacement placement(String ownerId, boolean write) {
+        long now = System.nanoTime();
+        CachedPlacement cached = placements.get(ownerId);
+        if (cached != null && cached.expiresAtNanos() - now > 0 && (cached.placed() || !write)) {
+            return cached.placement();
+        }
+        OwnerPlacement placement = mongoTemplate.findById(ownerId, OwnerPlacement.class, PLACEMENTS_COLLECTION);
+        boolean placed = placement != null || write;
+        if (placement == null) {
+            placement = write ? place(ownerId) : unplaced(ownerId);
+        }
+        // Crude bound, entries are cheap to reload
+        if (placements.size() >= placementCacheSize) {
+            placements.clear();
+        }
+        placements.put(ownerId, new CachedPlacement(placement, now + placementCacheTtl.toNanos(), placed));
+        return placement;
+    }
+
+    /**
+     * Fix the owner's shard, the first writer wins when nodes race
+     */
+    private OwnerPlacement place(String ownerId) {
+        String shard = initialShard(ownerId);
+        try {
+            return mongoTemplate.findAndModify(new Query(Criteria.where("_id").is(ownerId)),
+                    new Update().setOnInsert("shard", shard),
+                    FindAndModifyOptions.options().upsert(true).returnNew(true),
+                    OwnerPlacement.class, PLACEMENTS_COLLECTION);
+        } catch (DuplicateKeyException e) {
+            // Two upserts raced and this one lost, the other one's placement stands
+            return mongoTemplate.findById(ownerId, OwnerPlacement.class, PLACEMENTS_COLLECTION);
+        }
+    }
+
+    /**
+     * Where {@link #place} would put the owner, without persisting it
+     */
+    private OwnerPlacement unplaced(String ownerId) {
+        OwnerPlacement placement = new OwnerPlacement();
+        placement.setId(ownerId);
+        placement.setShard(initialShard(ownerId));
+        return placement;
+    }
+
+    private String initialShard(String ownerId) {
+        Shard first = shards.get(0);
+        boolean hasFiles = first.template().exists(new Query(Criteria.where("ownerId").is(ownerId)), "file_metadata");
+        return hasFiles ? first.name() : ring.node(ownerId);
+    }
+}
@@ -0,0 +1,20 @@
+package lambdalabs.filestorage.repository;
+
+import java.time.Duration;
+
+/**
+ * Thrown on a write for an owner whose files are being moved to another shard
+ */
+public class OwnerMovingException extends RuntimeException {
+
+    private final Duration retryAfter;
+
+    public OwnerMovingException(String ownerId, Duration retryAfter) {
+        super("Files of owner " + ownerId + " are being moved, try again later");
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
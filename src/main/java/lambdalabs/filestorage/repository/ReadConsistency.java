@@ -0,0 +1,219 @@
+package lambdalabs.filestorage.repository;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.bson.BsonTimestamp;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Read-your-writes for file metadata reads sent to secondaries.
+ * <p>
+ * Requests that may read from secondaries (see {@code SecondaryReads}) read through a causally consistent
+ * session advanced to the operation time of the user's latest write, so a secondary answers only once it
+ * has replicated that write. The time comes from the consistency token the client sends back, which every
+ * file metadata write of a request returns, or else from this node's memory of the user's recent writes.
+ * A secondary that does not catch up within {@code wait-timeout} is given up on and the primary asked.
+ * <p>
+ * Everything else, including the reads that precede a write, stays on the primary.
+ */
+@Component
+public class ReadConsistency {
+
+    /**
+     * Where one read goes: {@code readPreference} and, for secondaries, the operation time they have to
+     * reach first (null when the user wrote nothing this node or the client knows of)
+     */
+    record Target(ReadPreference readPreference, BsonTimestamp after) {
+    }
+
+    static final Target PRIMARY = new Target(ReadPreference.primary(), null);
+
+    private record Request(String userId, boolean secondaryReads, BsonTimestamp token, Consumer<String> tokenSink) {
+    }
+
+    private record RecentWrite(BsonTimestamp operationTime, long expiresAtNanos) {
+    }
+
+    private static final ThreadLocal<Request> REQUEST = new ThreadLocal<>();
+
+    @Autowired
+    private MongoClient mongoClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${file-storage.secondary-reads.enabled:false}")
+    private boolean enabled;
+
+    @Value("${file-storage.secondary-reads.read-preference:secondaryPreferred}")
+    private String readPreferenceName;
+
+    @Value("${file-storage.secondary-reads.wait-timeout:500ms}")
+    private Duration waitTimeout;
+
+    @Value("${file-storage.secondary-reads.remember-writes-for:1m}")
+    private Duration rememberWritesFor;
+
+    @Value("${file-storage.secondary-reads.remembered-users:100000}")
+    private int rememberedUsers;
+
+    private ReadPreference readPreference;
+
+    // Latest write per user on this node, for clients that do not send the token back
+    private final ConcurrentMap<String, RecentWrite> recentWrites = new ConcurrentHashMap<>();
+
+    private Counter primaryReads;
+
+    private Counter secondaryReads;
+
+    private Counter fallbacks;
+
+    @PostConstruct
+    void init() {
+        readPreference = ReadPreference.valueOf(readPreferenceName);
+        primaryReads = reads("primary");
+        secondaryReads = reads("secondary");
+        fallbacks = Counter.builder("filestorage.metadata.reads.fallbacks")
+                .description("Secondary metadata reads retried on the primary after the secondary did not catch up in time")
+                .register(meterRegistry);
+    }
+
+    private Counter reads(String target) {
+        return Counter.builder("filestorage.metadata.reads")
+                .description("File metadata reads of requests, by where they were sent")
+                .tag("target", target)
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start a request of the user on this thread
+     *
+     * @param secondaryReads whether the request's reads may go to secondaries
+     * @param token the consistency token the client sent, ignored when malformed
+     * @param tokenSink receives the new token after each write of the request
+     */
+    public void begin(String userId, boolean secondaryReads, String token, Consumer<String> tokenSink) {
+        REQUEST.set(new Request(userId, secondaryReads, parseToken(token), tokenSink));
+    }
+
+    public void end() {
+        REQUEST.remove();
+    }
+
+    /**
+     * Where the current thread's next metadata read goes
+     */
+    Target target() {
+        Request request = REQUEST.get();
+        if (request == null) {
+            return PRIMARY;
+        }
+        if (!enabled || !request.secondaryReads()) {
+            primaryReads.increment();
+            return PRIMARY;
+        }
+        secondaryReads.increment();
+        return new Target(readPreference, later(request.token(), recentWrite(request.userId())));
+    }
+
+    /**
+     * A causally consistent session for a read that has to observe the given operation time
+     */
+    ClientSession readSession(BsonTimestamp after) {
+        ClientSession session = mongoClient.startSession(ClientSessionOptions.builder().causallyConsistent(true).build());
+        session.advanceOperationTime(after);
+        return session;
+    }
+
+    Duration waitTimeout() {
+        return waitTimeout;
+    }
+
+    void recordFallback() {
+        fallbacks.increment();
+    }
+
+    /**
+     * Whether writes on this thread should run in a session, to learn their operation time
+     */
+    boolean tracksWrites() {
+        return enabled && REQUEST.get() != null;
+    }
+
+    ClientSession writeSession() {
+        return mongoClient.startSession(ClientSessionOptions.builder().causallyConsistent(true).build());
+    }
+
+    /**
+     * Remember a write of the current request and hand the client its new token
+     */
+    void recordWrite(BsonTimestamp operationTime) {
+        Request request = REQUEST.get();
+        if (request == null || operationTime == null) {
+            return;
+        }
+        if (request.userId() != null) {
+            // Crude bound, a forgotten write only means that read waits for nothing
+            if (recentWrites.size() >= rememberedUsers) {
+                recentWrites.clear();
+            }
+            recentWrites.merge(request.userId(), new RecentWrite(operationTime, System.nanoTime() + rememberWritesFor.toNanos()),
+                    (a, b) -> a.operationTime().compareTo(b.operationTime()) >= 0 ? a : b);
+        }
+        request.tokenSink().accept(formatToken(operationTime));
+    }
+
+    private BsonTimestamp recentWrite(String userId) {
+        RecentWrite write = userId != null ? recentWrites.get(userId) : null;
+        if (write == null) {
+            return null;
+        }
+        if (write.expiresAtNanos() - System.nanoTime() < 0) {
+            recentWrites.remove(userId, write);
+            return null;
+        }
+        return write.operationTime();
+    }
+
+    private static BsonTimestamp later(BsonTimestamp a, BsonTimestamp b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null || a.compareTo(b) >= 0 ? a : b;
+    }
+
+    /**
+     * The token is the operation time as {@code seconds.increment}
+     */
+    static String formatToken(BsonTimestamp operationTime) {
+        return Integer.toUnsignedString(operationTime.getTime()) + "." + Integer.toUnsignedString(operationTime.getInc());
+    }
+
+    static BsonTimestamp parseToken(String token) {
+        if (token == null) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        try {
+            return dot < 0 ? null : new BsonTimestamp(Integer.parseUnsignedInt(token.substring(0, dot)), Integer.parseUnsignedInt(token.substring(dot + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
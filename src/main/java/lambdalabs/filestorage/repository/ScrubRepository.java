@@ -0,0 +1,98 @@
+package lambdalabs.filestorage.repository;
+
+import lambdalabs.filestorage.model.ScrubFinding;
+import lambdalabs.filestorage.model.ScrubProgress;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.Collection;
+
+/**
+ * The integrity scrub's progress document and its findings
+ */
+@Repository
+public class ScrubRepository {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private static final String PROGRESS_COLLECTION = "scrub_progress";
+    private static final String FINDINGS_COLLECTION = "scrub_findings";
+
+    /**
+     * Lease the scrub to the given worker, creating the progress document on first use.
+     * Returns null while another worker holds the lease.
+     */
+    public ScrubProgress claim(String workerId, Instant now, Instant leaseUntil) {
+        Query claimable = new Query(Criteria.where("_id").is(ScrubProgress.ID).orOperator(
+                Criteria.where("claimedUntil").exists(false),
+                Criteria.where("claimedUntil").lt(now),
+                Criteria.where("claimedBy").is(workerId)));
+        try {
+            return mongoTemplate.findAndModify(claimable,
+                    new Update().set("claimedBy", workerId).set("claimedUntil", leaseUntil),
+                    FindAndModifyOptions.options().upsert(true).returnNew(true),
+                    ScrubProgress.class, PROGRESS_COLLECTION);
+        } catch (DuplicateKeyException e) {
+            // The document exists and its lease is held by someone else
+            return null;
+        }
+    }
+
+    /**
+     * Store the progress and extend the lease, as long as the worker still holds it
+     */
+    public boolean saveProgress(String workerId, ScrubProgress progress, Instant leaseUntil) {
+        return mongoTemplate.updateFirst(held(workerId),
+                new Update()
+                        .set("after", progress.getAfter())
+                        .set("passStartedAt", progress.getPassStartedAt())
+                        .set("lastPassCompletedAt", progress.getLastPassCompletedAt())
+                        .set("filesChecked", progress.getFilesChecked())
+                        .set("bytesChecked", progress.getBytesChecked())
+                        .set("claimedUntil", leaseUntil),
+                ScrubProgress.class, PROGRESS_COLLECTION).getMatchedCount() > 0;
+    }
+
+    public boolean renew(String workerId, Instant leaseUntil) {
+        return mongoTemplate.updateFirst(held(workerId), new Update().set("claimedUntil", leaseUntil),
+                ScrubProgress.class, PROGRESS_COLLECTION).getMatchedCount() > 0;
+    }
+
+    public void release(String workerId) {
+        mongoTemplate.updateFirst(held(workerId), new Update().unset("claimedBy").unset("claimedUntil"),
+                ScrubProgress.class, PROGRESS_COLLECTION);
+    }
+
+    private static Query held(String workerId) {
+        return new Query(Criteria.where("_id").is(ScrubProgress.ID).and("claimedBy").is(workerId));
+    }
+
+    /**
+     * Record a finding, replacing an earlier one for the same file
+     */
+    public void report(ScrubFinding finding) {
+        mongoTemplate.save(finding, FINDINGS_COLLECTION);
+    }
+
+    /**
+     * Drop the findings of files whose content checked out again
+     */
+    public void clear(Collection<String> metadataIds) {
+        if (metadataIds.isEmpty()) {
+            return;
+        }
+        mongoTemplate.remove(new Query(Criteria.where("_id").in(metadataIds)), ScrubFinding.class, FINDINGS_COLLECTION);
+    }
+
+    public long countFindings() {
+        return mongoTemplate.count(new Query(), ScrubFinding.class, FINDINGS_COLLECTION);
+    }
+}
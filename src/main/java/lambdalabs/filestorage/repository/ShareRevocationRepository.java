@@ -0,0 +1,45 @@
+package lambdalabs.filestorage.repository;
+
+import lambdalabs.filestorage.model.ShareRevocation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public class ShareRevocationRepository {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private static final String COLLECTION_NAME = "share_revocations";
+
+    /**
+     * Revoke what was issued for the key until {@code revokedAt}, keeping the revocation until
+     * {@code expiresAt}. Revoking again only ever extends both.
+     */
+    public void revoke(String key, Instant revokedAt, Instant expiresAt) {
+        mongoTemplate.upsert(new Query(Criteria.where("_id").is(key)),
+                new Update().max("revokedAt", revokedAt).max("expiresAt", expiresAt),
+                ShareRevocation.class, COLLECTION_NAME);
+    }
+
+    public List<ShareRevocation> findByIds(Collection<String> keys) {
+        return mongoTemplate.find(new Query(Criteria.where("_id").in(keys)), ShareRevocation.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Revocations made since the given time that still cover unexpired links, only their ids and times
+     */
+    public List<ShareRevocation> findRevokedSince(Instant since, Instant now) {
+        Query query = new Query(Criteria.where("revokedAt").gte(since).and("expiresAt").gt(now));
+        query.fields().include("revokedAt");
+        return mongoTemplate.find(query, ShareRevocation.class, COLLECTION_NAME);
+    }
+}
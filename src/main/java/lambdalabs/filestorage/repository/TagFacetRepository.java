@@ -0,0 +1,89 @@
+package lambdalabs.filestorage.repository;
+
+import lambdalabs.filestorage.model.TagFacet;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Map;
+
+@Repository
+public class TagFacetRepository {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private static final String COLLECTION_NAME = "tag_facets";
+
+    /**
+     * Most used tags of a scope, served from the {scope, count, tag} index
+     */
+    public List<TagFacet> findTopByScope(String scope, int limit) {
+        Query query = new Query(Criteria.where("scope").is(scope).and("count").gt(0))
+                .with(Sort.by(Sort.Order.desc("count"), Sort.Order.asc("tag")))
+                .limit(limit);
+        return mongoTemplate.find(query, TagFacet.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Apply count deltas keyed by scope and then tag, as one unordered bulk write
+     */
+    public void increment(Map<String, Map<String, Long>> deltas) {
+        BulkOperations bulk = null;
+        for (Map.Entry<String, Map<String, Long>> scope : deltas.entrySet()) {
+            for (Map.Entry<String, Long> tag : scope.getValue().entrySet()) {
+                if (tag.getValue() == 0) {
+                    continue;
+                }
+                if (bulk == null) {
+                    bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, TagFacet.class, COLLECTION_NAME);
+                }
+                bulk.upsert(new Query(Criteria.where("_id").is(scope.getKey() + "/" + tag.getKey())),
+                        new Update()
+                                .setOnInsert("scope", scope.getKey())
+                                .setOnInsert("tag", tag.getKey())
+                                .inc("count", tag.getValue()));
+            }
+        }
+        if (bulk != null) {
+            bulk.execute();
+        }
+    }
+
+    /**
+     * Overwrite the counts keyed by scope and then tag, marking the facets as written by the given rebuild
+     */
+    public void replaceAll(Map<String, Map<String, Long>> counts, String rebuildId) {
+        BulkOperations bulk = null;
+        for (Map.Entry<String, Map<String, Long>> scope : counts.entrySet()) {
+            for (Map.Entry<String, Long> tag : scope.getValue().entrySet()) {
+                if (bulk == null) {
+                    bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, TagFacet.class, COLLECTION_NAME);
+                }
+                bulk.upsert(new Query(Criteria.where("_id").is(scope.getKey() + "/" + tag.getKey())),
+                        new Update()
+                                .set("scope", scope.getKey())
+                                .set("tag", tag.getKey())
+                                .set("count", tag.getValue())
+                                .set("rebuildId", rebuildId));
+            }
+        }
+        if (bulk != null) {
+            bulk.execute();
+        }
+    }
+
+    /**
+     * Remove the facets not written by the given rebuild, no file carries their tag anymore
+     */
+    public long removeNotRebuilt(String rebuildId) {
+        return mongoTemplate.remove(new Query(Criteria.where("rebuildId").ne(rebuildId)), TagFacet.class, COLLECTION_NAME)
+                .getDeletedCount();
+    }
+}
@@ -0,0 +1,73 @@
+package lambdalabs.filestorage.repository;
+
+import lambdalabs.filestorage.model.FileEncryption;
+import lambdalabs.filestorage.model.UploadSession;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public class UploadSessionRepository {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private static final String COLLECTION_NAME = "upload_sessions";
+
+    public UploadSession insert(UploadSession session) {
+        return mongoTemplate.insert(session, COLLECTION_NAME);
+    }
+
+    public Optional<UploadSession> findByIdAndOwner(String id, String ownerId) {
+        return Optional.ofNullable(mongoTemplate.findOne(byIdAndOwner(id, ownerId), UploadSession.class, COLLECTION_NAME));
+    }
+
+    /**
+     * Record a written part and, for encrypted uploads, the key it was sealed with, returning the session
+     * as it is afterwards, empty when it is gone
+     */
+    public Optional<UploadSession> addPart(String id, String ownerId, int part, FileEncryption key, Instant now) {
+        Update update = new Update().addToSet("parts", part).set("updatedAt", now);
+        if (key != null) {
+            update.set("partKeys." + part, key);
+        }
+        return Optional.ofNullable(mongoTemplate.findAndModify(byIdAndOwner(id, ownerId), update,
+                FindAndModifyOptions.options().returnNew(true), UploadSession.class, COLLECTION_NAME));
+    }
+
+    /**
+     * Mark the session completed with the given file, unless it already was
+     */
+    public boolean markCompleted(String id, String fileId, Instant now) {
+        return mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(id).and("fileId").isNull()),
+                new Update().set("fileId", fileId).set("updatedAt", now),
+                UploadSession.class, COLLECTION_NAME).getModifiedCount() > 0;
+    }
+
+    public boolean delete(String id) {
+        return mongoTemplate.remove(new Query(Criteria.where("_id").is(id)), UploadSession.class, COLLECTION_NAME).getDeletedCount() > 0;
+    }
+
+    /**
+     * Sessions without activity since the given time, oldest first
+     */
+    public List<UploadSession> findInactiveSince(Instant before, int limit) {
+        Query query = new Query(Criteria.where("updatedAt").lt(before))
+                .with(Sort.by(Sort.Direction.ASC, "updatedAt"))
+                .limit(limit);
+        return mongoTemplate.find(query, UploadSession.class, COLLECTION_NAME);
+    }
+
+    private static Query byIdAndOwner(String id, String ownerId) {
+        return new Query(Criteria.where("_id").is(id).and("ownerId").is(ownerId));
+    }
+}
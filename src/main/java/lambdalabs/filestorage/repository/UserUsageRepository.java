@@ -0,0 +1,132 @@
+package lambdalabs.filestorage.repository;
+
+import lambdalabs.filestorage.model.UserUsage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public class UserUsageRepository {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private static final String COLLECTION_NAME = "user_usage";
+
+    public Optional<UserUsage> findByOwnerId(String ownerId) {
+        return Optional.ofNullable(mongoTemplate.findById(ownerId, UserUsage.class, COLLECTION_NAME));
+    }
+
+    /**
+     * Atomically reserve room for one more file of {@code bytes} bytes, but only if the owner's
+     * stored plus already reserved usage leaves room for it. Non-positive limits are not enforced.
+     *
+     * @return false when the reservation would exceed a limit
+     */
+    public boolean reserve(String ownerId, long bytes, long maxBytes, long maxFiles) {
+        // Make sure the counters exist, the conditional update below cannot upsert
+        mongoTemplate.upsert(byOwner(ownerId), new Update().setOnInsert("fileCount", 0L), UserUsage.class, COLLECTION_NAME);
+
+        List<Criteria> limits = new ArrayList<>();
+        if (maxBytes > 0) {
+            limits.add(Criteria.expr(ComparisonOperators.Lte
+                    .valueOf(ArithmeticOperators.Add.valueOf(counter("totalBytes")).add(counter("reservedBytes")))
+                    .lessThanEqualToValue(maxBytes - bytes)));
+        }
+        if (maxFiles > 0) {
+            limits.add(Criteria.expr(ComparisonOperators.Lt
+                    .valueOf(ArithmeticOperators.Add.valueOf(counter("fileCount")).add(counter("reservedFiles")))
+                    .lessThanValue(maxFiles)));
+        }
+        Criteria criteria = Criteria.where("_id").is(ownerId);
+        if (!limits.isEmpty()) {
+            criteria = criteria.andOperator(limits);
+        }
+        return mongoTemplate.updateFirst(new Query(criteria),
+                new Update().inc("reservedBytes", bytes).inc("reservedFiles", 1),
+                UserUsage.class, COLLECTION_NAME).getModifiedCount() == 1;
+    }
+
+    /**
+     * Apply counter deltas to one owner in a single atomic update, creating the document if needed
+     */
+    public void increment(String ownerId, Update deltas) {
+        mongoTemplate.upsert(byOwner(ownerId), deltas, UserUsage.class, COLLECTION_NAME);
+    }
+
+    /**
+     * Same as {@link #increment} for several owners, sent as one unordered bulk write
+     */
+    public void incrementAll(List<UsageDelta> deltas) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserUsage.class, COLLECTION_NAME);
+        for (UsageDelta delta : deltas) {
+            bulk.upsert(byOwner(delta.ownerId()), delta.update());
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Overwrite the counters of a batch of owners with freshly computed values. Reservations are left
+     * alone, they belong to uploads still in progress (including uploads in parts, which hold theirs for
+     * as long as they are open) and are released or converted by them. Every document written is stamped
+     * with {@code rebuildId}.
+     */
+    public void replaceAll(Collection<UserUsage> usages, String rebuildId) {
+        if (usages.isEmpty()) {
+            return;
+        }
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserUsage.class, COLLECTION_NAME);
+        for (UserUsage usage : usages) {
+            bulk.upsert(byOwner(usage.getId()), new Update()
+                    .set("fileCount", usage.getFileCount())
+                    .set("totalBytes", usage.getTotalBytes())
+                    .set("tagBytes", usage.getTagBytes())
+                    .set("rebuildId", rebuildId));
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Reset the counters of owners not written by the given rebuild, they no longer have any files.
+     * Their reservations are left alone like in {@link #replaceAll}.
+     */
+    public long resetNotRebuilt(String rebuildId) {
+        return mongoTemplate.updateMulti(new Query(Criteria.where("rebuildId").ne(rebuildId)),
+                new Update()
+                        .set("fileCount", 0L)
+                        .set("totalBytes", 0L)
+                        .unset("tagBytes")
+                        .set("rebuildId", rebuildId),
+                UserUsage.class, COLLECTION_NAME).getModifiedCount();
+    }
+
+    /**
+     * A counter that was never incremented is missing, and {@code $add} with a missing field yields null
+     */
+    private static AggregationExpression counter(String field) {
+        return ConditionalOperators.ifNull(field).then(0L);
+    }
+
+    private static Query byOwner(String ownerId) {
+        return new Query(Criteria.where("_id").is(ownerId));
+    }
+
+    public record UsageDelta(String ownerId, Update update) {
+    }
+}
@@ -0,0 +1,126 @@
+package lambdalabs.filestorage.service;
+
+import lambdalabs.filestorage.repository.FileMetadataRepository.AccessDelta;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accesses per file, coalesced in memory until they are drained for a flush.
+ * <p>
+ * Files are spread over {@code stripes} maps, each with its own lock, so concurrent downloads of
+ * different files rarely contend and a record is a map lookup and two field updates. Draining swaps
+ * out one stripe at a time, recording never waits for a flush.
+ */
+final class AccessCounters {
+
+    private final Stripe[] stripes;
+    private final int mask;
+    // Files with pending accesses, over all stripes
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @param stripes rounded up to a power of two
+     */
+    AccessCounters(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new Stripe[Math.max(1, size)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.mask = this.stripes.length - 1;
+    }
+
+    /**
+     * @param download whether this access counts as a download or only moves the last access forward
+     * @return the number of files with pending accesses, counting this one, if the file had none so far,
+     * otherwise 0
+     */
+    int record(String fileId, String ownerId, boolean download, Instant at) {
+        Stripe stripe = stripe(fileId);
+        synchronized (stripe) {
+            Entry entry = stripe.entries.get(fileId);
+            int added = 0;
+            if (entry == null) {
+                entry = new Entry(ownerId);
+                stripe.entries.put(fileId, entry);
+                added = pending.incrementAndGet();
+            }
+            entry.add(download ? 1 : 0, at.toEpochMilli());
+            return added;
+        }
+    }
+
+    /**
+     * Take every pending access out, one delta per file
+     */
+    List<AccessDelta> drain() {
+        List<AccessDelta> drained = new ArrayList<>(pending.get());
+        for (Stripe stripe : stripes) {
+            Map<String, Entry> entries;
+            synchronized (stripe) {
+                if (stripe.entries.isEmpty()) {
+                    continue;
+                }
+                entries = stripe.entries;
+                stripe.entries = new HashMap<>();
+                pending.addAndGet(-entries.size());
+            }
+            entries.forEach((id, entry) ->
+                    drained.add(new AccessDelta(id, entry.ownerId, entry.downloads, Instant.ofEpochMilli(entry.lastAccessed))));
+        }
+        return drained;
+    }
+
+    /**
+     * Put drained accesses back after a failed flush, merged with what was recorded since
+     */
+    void restore(List<AccessDelta> deltas) {
+        for (AccessDelta delta : deltas) {
+            Stripe stripe = stripe(delta.id());
+            synchronized (stripe) {
+                Entry entry = stripe.entries.get(delta.id());
+                if (entry == null) {
+                    entry = new Entry(delta.ownerId());
+                    stripe.entries.put(delta.id(), entry);
+                    pending.incrementAndGet();
+                }
+                entry.add(delta.downloads(), delta.lastAccessedAt().toEpochMilli());
+            }
+        }
+    }
+
+    int pending() {
+        return pending.get();
+    }
+
+    private Stripe stripe(String fileId) {
+        int hash = fileId.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private static final class Stripe {
+        // Guarded by the stripe
+        Map<String, Entry> entries = new HashMap<>();
+    }
+
+    private static final class Entry {
+        // Which shard the file is on
+        final String ownerId;
+        long downloads;
+        long lastAccessed;
+
+        Entry(String ownerId) {
+            this.ownerId = ownerId;
+        }
+
+        void add(long downloads, long accessed) {
+            this.downloads += downloads;
+            this.lastAccessed = Math.max(this.lastAccessed, accessed);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package lambdalabs.filestorage.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.FileMetadataRepository.AccessDelta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Download counts and last access times of files, written behind.
+ * <p>
+ * Downloads are only counted in memory ({@link AccessCounters}) and flushed to file_metadata every
+ * {@code flush-interval} as one bulk write of {@code $inc}/{@code $max} updates per {@code batch-size}
+ * files, so a file downloaded a thousand times between two flushes costs one update. A flush also starts
+ * early once {@code max-pending} files have pending accesses, and on shutdown. A crash therefore loses
+ * at most one flush interval of accesses, over at most {@code max-pending} files. A failed flush keeps
+ * its accesses for the next one, so a batch that failed part way can be counted twice.
+ * <p>
+ * A metadata update (PATCH) replaces the whole document, so one racing a flush can overwrite that
+ * flush's increments for the file.
+ */
+@Service
+public class AccessStatsService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessStatsService.class);
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${file-storage.access-stats.enabled:true}")
+    private boolean enabled;
+
+    @Value("${file-storage.access-stats.stripes:16}")
+    private int stripes;
+
+    @Value("${file-storage.access-stats.max-pending:10000}")
+    private int maxPending;
+
+    @Value("${file-storage.access-stats.batch-size:1000}")
+    private int batchSize;
+
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    private AccessCounters counters;
+
+    @PostConstruct
+    void init() {
+        counters = new AccessCounters(stripes);
+        Gauge.builder("filestorage.access-stats.pending", counters, AccessCounters::pending)
+                .description("Files with accesses not yet written to file_metadata")
+                .register(meterRegistry);
+    }
+
+    /**
+     * A download of the file's content from its start
+     */
+    public void recordDownload(FileMetadata file) {
+        record(file, true);
+    }
+
+    /**
+     * Any other read of the content (a later range of a resumed download, say), which does not count
+     * as a download of its own
+     */
+    public void recordAccess(FileMetadata file) {
+        record(file, false);
+    }
+
+    private void record(FileMetadata file, boolean download) {
+        if (!enabled) {
+            return;
+        }
+        // Only the access that reaches the limit starts a flush, so a failing Mongo is not retried on every download
+        if (counters.record(file.getId(), file.getOwnerId(), download, Instant.now()) == maxPending) {
+            Thread.ofVirtual().name("access-stats-flush").start(this::flush);
+        }
+    }
+
+    @Scheduled(initialDelayString = "${file-storage.access-stats.flush-interval:10s}",
+            fixedDelayString = "${file-storage.access-stats.flush-interval:10s}")
+    public void flush() {
+        // One flush at a time, a flush that finds another running leaves the work to it
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<AccessDelta> pending = counters.drain();
+            for (int from = 0; from < pending.size(); from += batchSize) {
+                List<AccessDelta> batch = pending.subList(from, Math.min(from + batchSize, pending.size()));
+                try {
+                    fileMetadataRepository.recordAccesses(batch);
+                } catch (Exception e) {
+                    List<AccessDelta> unwritten = pending.subList(from, pending.size());
+                    logger.warn("Failed to write access statistics, keeping them for the next flush: files={}", unwritten.size(), e);
+                    counters.restore(unwritten);
+                    return;
+                }
+            }
+            if (!pending.isEmpty()) {
+                logger.debug("Flushed access statistics: files={}", pending.size());
+            }
+        } finally {
+            flushing.set(false);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        flush();
+    }
+}
@@ -0,0 +1,220 @@
+package lambdalabs.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admission control for content transfers (uploads, downloads, archives).
+ * <p>
+ * Transfers are split into two lanes by size. Small ones (up to {@code small-transfer-size}) have
+ * their own generous limits, so a burst of multi-GB transfers cannot take every worker and starve
+ * them. Large ones share a tight concurrency limit and a budget of bytes in flight, which is what
+ * actually bounds Mongo write and read load. Metadata requests never pass through here.
+ * <p>
+ * Over-limit requests fail fast with {@link AdmissionRejectedException} rather than queueing unboundedly.
+ * Share link downloads have no user of their own; they are limited per link and client address instead
+ * of being charged to the file's owner.
+ */
+@Service
+public class AdmissionControl {
+
+    private static final Logger logger = LoggerFactory.getLogger(AdmissionControl.class);
+
+    public enum Lane {
+        SMALL, LARGE
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${file-storage.admission.enabled:true}")
+    private boolean enabled;
+
+    @Value("${file-storage.admission.small-transfer-size:1MB}")
+    private DataSize smallTransferSize;
+
+    @Value("${file-storage.admission.unknown-size-estimate:256MB}")
+    private DataSize unknownSizeEstimate;
+
+    @Value("${file-storage.admission.small.max-concurrent:128}")
+    private int smallMaxConcurrent;
+
+    @Value("${file-storage.admission.small.per-user:16}")
+    private int smallPerUser;
+
+    @Value("${file-storage.admission.small.queue-size:256}")
+    private int smallQueueSize;
+
+    @Value("${file-storage.admission.small.queue-timeout:500ms}")
+    private Duration smallQueueTimeout;
+
+    @Value("${file-storage.admission.small.retry-after:1s}")
+    private Duration smallRetryAfter;
+
+    @Value("${file-storage.admission.large.max-concurrent:32}")
+    private int largeMaxConcurrent;
+
+    @Value("${file-storage.admission.large.per-user:2}")
+    private int largePerUser;
+
+    @Value("${file-storage.admission.large.max-bytes-in-flight:8GB}")
+    private DataSize largeMaxBytesInFlight;
+
+    @Value("${file-storage.admission.large.queue-size:64}")
+    private int largeQueueSize;
+
+    @Value("${file-storage.admission.large.queue-timeout:2s}")
+    private Duration largeQueueTimeout;
+
+    @Value("${file-storage.admission.large.retry-after:10s}")
+    private Duration largeRetryAfter;
+
+    @Value("${file-storage.admission.share-links.per-client:2}")
+    private int shareLinkPerClient;
+
+    private final Map<Lane, TransferLane> lanes = new EnumMap<>(Lane.class);
+
+    @PostConstruct
+    public void init() {
+        lanes.put(Lane.SMALL, new TransferLane(smallMaxConcurrent, smallPerUser, 0, smallQueueSize, smallQueueTimeout));
+        lanes.put(Lane.LARGE, new TransferLane(largeMaxConcurrent, largePerUser, largeMaxBytesInFlight.toBytes(),
+                largeQueueSize, largeQueueTimeout));
+
+        for (Map.Entry<Lane, TransferLane> entry : lanes.entrySet()) {
+            String lane = entry.getKey().name().toLowerCase();
+            TransferLane transferLane = entry.getValue();
+            Gauge.builder("filestorage.admission.queue.depth", transferLane, TransferLane::waiting)
+                    .description("Transfers waiting for admission")
+                    .tag("lane", lane)
+                    .register(meterRegistry);
+            Gauge.builder("filestorage.admission.active", transferLane, TransferLane::active)
+                    .description("Transfers currently admitted")
+                    .tag("lane", lane)
+                    .register(meterRegistry);
+            Gauge.builder("filestorage.admission.bytes.in.flight", transferLane, TransferLane::bytesInFlight)
+                    .description("Declared size of admitted transfers")
+                    .baseUnit("bytes")
+                    .tag("lane", lane)
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Admit a transfer of {@code size} bytes, or of unknown size when negative (e.g. a chunked upload).
+     * The returned permit must be closed when the transfer ends.
+     *
+     * @throws AdmissionRejectedException when the user or the lane has no capacity left
+     */
+    public Permit admit(String userId, long size) {
+        return admit(userId, 0, size, "Too many concurrent transfers for this user");
+    }
+
+    /**
+     * Admit a download through a share link, limited per link and client address rather than per user
+     *
+     * @throws AdmissionRejectedException when the client or the lane has no capacity left
+     */
+    public Permit admitShareLink(String linkId, String clientAddress, long size) {
+        // Not a valid User-Id, so it cannot collide with one
+        return admit("share-link " + linkId + " " + clientAddress, shareLinkPerClient, size,
+                "Too many concurrent downloads of this link");
+    }
+
+    /**
+     * @param limit concurrent transfers of {@code key} in either lane, 0 for the lane's per-user limit
+     */
+    private Permit admit(String key, int limit, long size, String limitMessage) {
+        if (!enabled) {
+            return new Permit(() -> {});
+        }
+        long bytes = size >= 0 ? size : unknownSizeEstimate.toBytes();
+        Lane lane = size >= 0 && size <= smallTransferSize.toBytes() ? Lane.SMALL : Lane.LARGE;
+        TransferLane transferLane = lanes.get(lane);
+
+        TransferLane.Rejection rejection;
+        try {
+            rejection = limit > 0 ? transferLane.acquire(key, limit, bytes) : transferLane.acquire(key, bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejection = TransferLane.Rejection.TIMEOUT;
+        }
+        if (rejection != null) {
+            Counter.builder("filestorage.admission.rejections")
+                    .description("Transfers refused by admission control")
+                    .tag("lane", lane.name().toLowerCase())
+                    .tag("reason", rejection.name().toLowerCase())
+                    .register(meterRegistry)
+                    .increment();
+            logger.debug("Transfer rejected: key={}, lane={}, size={}, reason={}", key, lane, size, rejection);
+            boolean userLimit = rejection == TransferLane.Rejection.USER_LIMIT;
+            throw new AdmissionRejectedException(
+                    userLimit ? limitMessage : "Server is busy, try again later",
+                    userLimit,
+                    lane == Lane.SMALL ? smallRetryAfter : largeRetryAfter);
+        }
+        return new Permit(() -> transferLane.release(key, bytes));
+    }
+
+    /**
+     * Transfers admitted or waiting for admission in both lanes, which background jobs back off from
+     */
+    public int foregroundTransfers() {
+        int transfers = 0;
+        for (TransferLane lane : lanes.values()) {
+            transfers += lane.active() + lane.waiting();
+        }
+        return transfers;
+    }
+
+    /**
+     * Held for the duration of an admitted transfer, closing it more than once is harmless
+     */
+    public static final class Permit implements AutoCloseable {
+
+        private final Runnable release;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Runnable release) {
+            this.release = release;
+        }
+
+        /**
+         * Tie the permit to a response body stream, which the framework closes once it was written or failed
+         */
+        public InputStream releasingOnClose(InputStream stream) {
+            return new FilterInputStream(stream) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Permit.this.close();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release.run();
+            }
+        }
+    }
+}
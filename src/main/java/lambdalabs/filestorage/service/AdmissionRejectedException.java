@@ -0,0 +1,27 @@
+package lambdalabs.filestorage.service;
+
+import java.time.Duration;
+
+/**
+ * A transfer was refused by admission control. {@code userLimit} tells a client over its own
+ * concurrency limit (429) apart from a server without capacity (503).
+ */
+public class AdmissionRejectedException extends RuntimeException {
+
+    private final boolean userLimit;
+    private final Duration retryAfter;
+
+    public AdmissionRejectedException(String message, boolean userLimit, Duration retryAfter) {
+        super(message);
+        this.userLimit = userLimit;
+        this.retryAfter = retryAfter;
+    }
+
+    public boolean isUserLimit() {
+        return userLimit;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
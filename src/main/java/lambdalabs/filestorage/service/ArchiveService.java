@@ -0,0 +1,211 @@
+package lambdalabs.filestorage.service;
+
+import lambdalabs.filestorage.model.ArchiveFormat;
+import lambdalabs.filestorage.model.FileMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams several stored files as one ZIP or TAR archive, built on the fly straight into the response.
+ * <p>
+ * While an entry is being written, the next entry's GridFS file is already opened and its first chunk
+ * read on a separate thread, so the per-file lookup and first round trip overlap with the transfer.
+ */
+@Service
+public class ArchiveService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveService.class);
+
+    // Content types that are already compressed, deflating them again only costs CPU
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+            "application/x-xz", "application/zstd", "application/x-7z-compressed", "application/vnd.rar",
+            "application/x-rar-compressed", "application/java-archive", "application/pdf", "font/woff2");
+    private static final List<String> COMPRESSED_PREFIXES = List.of(
+            "image/", "video/", "audio/", "application/vnd.openxmlformats-officedocument.");
+
+    private final Executor prefetchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @Autowired
+    private GridFsService gridFsService;
+
+    @Value("${file-storage.archive.prefetch-bytes:262144}")
+    private int prefetchBytes;
+
+    /**
+     * Archive entry names: file names made safe for extraction and unique within the archive
+     */
+    public List<String> entryNames(List<FileMetadata> files) {
+        Set<String> used = new HashSet<>();
+        List<String> names = new ArrayList<>(files.size());
+        for (FileMetadata file : files) {
+            String base = safeName(file.getFilename());
+            String name = base;
+            for (int n = 2; !used.add(name); n++) {
+                int dot = base.lastIndexOf('.');
+                name = dot > 0
+                        ? base.substring(0, dot) + " (" + n + ")" + base.substring(dot)
+                        : base + " (" + n + ")";
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Size of the TAR archive for the given entries, known before any content is read
+     */
+    public long tarLength(List<FileMetadata> files, List<String> names) {
+        long length = TarWriter.endOfArchiveLength();
+        for (int i = 0; i < files.size(); i++) {
+            length += TarWriter.entryLength(names.get(i), files.get(i).getSize());
+        }
+        return length;
+    }
+
+    /**
+     * Writes the archive to {@code out}, calling {@code written} with each file once its entry is complete
+     */
+    public void write(ArchiveFormat format, List<FileMetadata> files, List<String> names, OutputStream out,
+                      Consumer<FileMetadata> written) throws IOException {
+        CompletableFuture<InputStream> next = prefetch(files.get(0));
+        ZipOutputStream zip = format == ArchiveFormat.ZIP ? new ZipOutputStream(out) : null;
+        TarWriter tar = format == ArchiveFormat.TAR ? new TarWriter(out) : null;
+        byte[] buffer = new byte[64 * 1024];
+
+        for (int i = 0; i < files.size(); i++) {
+            FileMetadata file = files.get(i);
+            InputStream content = await(next, file);
+            next = i + 1 < files.size() ? prefetch(files.get(i + 1)) : null;
+
+            try (content) {
+                Instant modified = file.getUploadedAt() != null ? file.getUploadedAt() : file.getGridFsId().getDate().toInstant();
+                if (zip != null) {
+                    ZipEntry entry = new ZipEntry(names.get(i));
+                    entry.setLastModifiedTime(FileTime.from(modified));
+                    entry.setSize(file.getSize());
+                    // Store already-compressed content as raw deflate blocks instead of compressing it again
+                    zip.setLevel(isCompressed(file.getContentType()) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+                    zip.putNextEntry(entry);
+                    int read;
+                    while ((read = content.read(buffer)) != -1) {
+                        zip.write(buffer, 0, read);
+                    }
+                    zip.closeEntry();
+                } else {
+                    tar.putEntry(names.get(i), file.getSize(), modified.getEpochSecond());
+                    int read;
+                    while ((read = content.read(buffer)) != -1) {
+                        tar.write(buffer, 0, read);
+                    }
+                    tar.closeEntry();
+                }
+                written.accept(file);
+            } catch (IOException e) {
+                if (next != null) {
+                    next.thenAccept(ArchiveService::closeQuietly);
+                }
+                throw e;
+            }
+        }
+
+        if (zip != null) {
+            zip.finish();
+        } else {
+            tar.finish();
+        }
+        out.flush();
+    }
+
+    private CompletableFuture<InputStream> prefetch(FileMetadata file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                InputStream stream = gridFsService.openContent(file, 0, file.getSize());
+                if (stream == null) {
+                    throw new FileNotFoundException("File not found in GridFS: " + file.getGridFsId());
+                }
+                byte[] head = stream.readNBytes((int) Math.min(prefetchBytes, file.getSize()));
+                return new SequenceInputStream(new ByteArrayInputStream(head), stream);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, prefetchExecutor);
+    }
+
+    private static InputStream await(CompletableFuture<InputStream> future, FileMetadata file) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening archive entry");
+        } catch (ExecutionException e) {
+            logger.error("Failed to open archive entry: metadataId={}, gridFsId={}", file.getId(), file.getGridFsId(), e.getCause());
+            if (e.getCause() instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            throw new IOException("Failed to open archive entry", e.getCause());
+        }
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+    }
+
+    static boolean isCompressed(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+        if (type.equals("image/svg+xml") || type.equals("image/bmp")) {
+            return false;
+        }
+        return COMPRESSED_TYPES.contains(type) || COMPRESSED_PREFIXES.stream().anyMatch(type::startsWith);
+    }
+
+    /**
+     * Keep names relative and free of "." / ".." segments so extracting an archive cannot escape its target directory
+     */
+    private static String safeName(String filename) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : filename.replace('\\', '/').split("/")) {
+            if (!segment.isEmpty() && !segment.equals(".") && !segment.equals("..")) {
+                segments.add(segment);
+            }
+        }
+        return segments.isEmpty() ? "file" : String.join("/", segments);
+    }
+}
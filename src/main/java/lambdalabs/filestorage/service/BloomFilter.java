@@ -0,0 +1,65 @@
+package lambdalabs.filestorage.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over strings, sized for an expected number of keys and false positive rate. It never
+ * misses a key that was added; a key that was not is reported with about that rate, until more keys
+ * than expected were added. Keys cannot be removed. Safe for concurrent use.
+ * <p>
+ * Bit positions come from the two halves of the key's MD5 (double hashing).
+ */
+final class BloomFilter {
+
+    private final AtomicLongArray words;
+
+    private final long bits;
+
+    private final int hashes;
+
+    BloomFilter(int expectedKeys, double falsePositiveRate) {
+        int keys = Math.max(1, expectedKeys);
+        double ln2 = Math.log(2);
+        long optimalBits = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        words = new AtomicLongArray((int) Math.max(1, (optimalBits + 63) / 64));
+        bits = words.length() * 64L;
+        hashes = Math.max(1, (int) Math.round((double) bits / keys * ln2));
+    }
+
+    void add(String key) {
+        long[] hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(hash[0] + i * hash[1], bits);
+            long mask = 1L << bit;
+            words.getAndAccumulate((int) (bit >>> 6), mask, (word, set) -> word | set);
+        }
+    }
+
+    boolean mightContain(String key) {
+        long[] hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(hash[0] + i * hash[1], bits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long bitCount() {
+        return bits;
+    }
+
+    private static long[] hash(String key) {
+        try {
+            ByteBuffer digest = ByteBuffer.wrap(MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8)));
+            return new long[]{digest.getLong(), digest.getLong()};
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 algorithm not available", e);
+        }
+    }
+}
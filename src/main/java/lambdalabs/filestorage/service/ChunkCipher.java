@@ -0,0 +1,75 @@
+package lambdalabs.filestorage.service;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * AES-GCM sealing of single GridFS chunks under one file's data key, in place.
+ * <p>
+ * Chunk {@code n} is sealed with the 96-bit nonce {@code n}, so a data key must seal each chunk index
+ * only once: it is generated for one pass over a file's chunks (a stored file, or one attempt of a part
+ * of an upload in parts) and never reused, and a chunk moved to another index fails to open.
+ * The sealed chunk is the ciphertext followed by the 128-bit tag. Uses the JDK provider, whose AES and
+ * GHASH run on the CPU's AES and carry-less multiply instructions where available.
+ * Not thread-safe, one instance per upload or download stream.
+ */
+public final class ChunkCipher {
+
+    public static final String ALGORITHM = "AES-256-GCM";
+    public static final int TAG_BITS = 128;
+    public static final int TAG_BYTES = TAG_BITS / 8;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_BYTES = 12;
+
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[NONCE_BYTES];
+
+    public ChunkCipher(SecretKey key) {
+        this.key = key;
+        try {
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " not available", e);
+        }
+    }
+
+    /**
+     * Encrypt the first {@code length} bytes of {@code buffer}, which must have {@link #TAG_BYTES} to spare,
+     * returning the sealed length
+     */
+    public int seal(byte[] buffer, int length, long index) {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce(index)));
+            return cipher.doFinal(buffer, 0, length, buffer, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to seal chunk " + index, e);
+        }
+    }
+
+    /**
+     * Decrypt and verify the first {@code length} sealed bytes of {@code buffer}, returning the plaintext length
+     */
+    public int open(byte[] buffer, int length, long index) throws IOException {
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce(index)));
+            return cipher.doFinal(buffer, 0, length, buffer, 0);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Stored chunk " + index + " failed authentication", e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to open chunk " + index, e);
+        }
+    }
+
+    private byte[] nonce(long index) {
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE_BYTES - 1 - i] = (byte) (index >>> (8 * i));
+        }
+        return nonce;
+    }
+}
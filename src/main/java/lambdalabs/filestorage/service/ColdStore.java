@@ -0,0 +1,159 @@
+package lambdalabs.filestorage.service;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The cold tier's files: the stored content of one GridFS file each, gzip-compressed, named after
+ * the GridFS id under a directory that is shared by every node (local disk for a single node, a
+ * network mount otherwise).
+ * <p>
+ * A file is written under a temporary name, synced, read back and compared, and only then renamed into
+ * place, so a cold file that exists is always complete. Leftovers of an interrupted write are replaced
+ * by the next attempt or removed together with the cold file.
+ */
+@Component
+public class ColdStore {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Value("${file-storage.cold-tier.directory:data/cold}")
+    private Path root;
+
+    public ColdStore() {
+    }
+
+    ColdStore(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Copy {@code content} into the cold file of {@code gridFsId}, replacing one already there
+     *
+     * @param progress told about every block of bytes read, e.g. to pace the copy
+     * @return the md5 of the content, as verified against what was written
+     */
+    public byte[] write(ObjectId gridFsId, InputStream content, Progress progress) throws IOException, InterruptedException {
+        Path target = path(gridFsId);
+        Files.createDirectories(target.getParent());
+        Path temporary = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            MessageDigest written = md5();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 GZIPOutputStream gzip = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = content.read(buffer)) != -1) {
+                    written.update(buffer, 0, read);
+                    gzip.write(buffer, 0, read);
+                    progress.read(read);
+                }
+                gzip.finish();
+                // On disk before the rename makes it the cold file
+                channel.force(true);
+            }
+
+            byte[] expected = written.digest();
+            MessageDigest readBack = md5();
+            try (InputStream stored = new DigestInputStream(open(temporary), readBack)) {
+                stored.transferTo(OutputStream.nullOutputStream());
+            }
+            if (!Arrays.equals(expected, readBack.digest())) {
+                throw new IOException("Cold file does not read back as written: " + gridFsId);
+            }
+
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return expected;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * The decompressed content positioned at {@code offset}, limited to {@code length} bytes.
+     * Compressed content cannot seek, so everything before the offset is decompressed and skipped.
+     * Returns null when there is no cold file for the id.
+     */
+    public InputStream open(ObjectId gridFsId, long offset, long length) throws IOException {
+        InputStream content;
+        try {
+            content = open(path(gridFsId));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            content.skipNBytes(offset);
+        } catch (IOException e) {
+            content.close();
+            throw e;
+        }
+        return new BoundedInputStream(content, length);
+    }
+
+    /**
+     * Remove the cold file of the id and anything an interrupted write left next to it
+     *
+     * @return whether there was a cold file
+     */
+    public boolean delete(ObjectId gridFsId) throws IOException {
+        Path target = path(gridFsId);
+        if (Files.isDirectory(target.getParent())) {
+            try (var leftovers = Files.newDirectoryStream(target.getParent(), target.getFileName() + ".*.tmp")) {
+                for (Path leftover : leftovers) {
+                    Files.deleteIfExists(leftover);
+                }
+            }
+        }
+        return Files.deleteIfExists(target);
+    }
+
+    private Path path(ObjectId gridFsId) {
+        String hex = gridFsId.toHexString();
+        // The last bytes of an ObjectId are a counter, which spreads files evenly over the directories
+        return root.resolve(hex.substring(hex.length() - 2)).resolve(hex + ".gz");
+    }
+
+    private static InputStream open(Path path) throws IOException {
+        InputStream file = Files.newInputStream(path);
+        try {
+            return new GZIPInputStream(file, BUFFER_SIZE);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 algorithm not available", e);
+        }
+    }
+
+    /**
+     * Notified while a write reads its content
+     */
+    public interface Progress {
+        void read(int bytes) throws InterruptedException;
+    }
+}
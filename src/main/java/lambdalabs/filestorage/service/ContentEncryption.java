@@ -0,0 +1,165 @@
+package lambdalabs.filestorage.service;
+
+import jakarta.annotation.PostConstruct;
+import lambdalabs.filestorage.model.FileEncryption;
+import lambdalabs.filestorage.model.Visibility;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Encryption at rest for stored content: a fresh AES-256 data key per file, kept in the file's metadata
+ * wrapped (AES key wrap) with the configured master key, and content sealed chunk by chunk with
+ * {@link ChunkCipher} so range reads only decrypt the chunks they cover.
+ * <p>
+ * Disabled while no master key is configured. Only the master key named by {@code key-id} is known;
+ * files wrapped with another key cannot be read until it is configured again.
+ */
+@Service
+public class ContentEncryption {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentEncryption.class);
+
+    private static final String KEY_WRAP = "AES/KW/NoPadding";
+
+    enum Scope {
+        NONE, PRIVATE, ALL
+    }
+
+    /**
+     * A new file's encryption parameters, for its metadata, and the cipher sealing its chunks
+     */
+    public record FileKey(FileEncryption encryption, ChunkCipher cipher) {
+    }
+
+    @Value("${file-storage.encryption.master-key:}")
+    private String masterKeyBase64;
+
+    @Value("${file-storage.encryption.key-id:default}")
+    private String keyId;
+
+    @Value("${file-storage.encryption.default-scope:PRIVATE}")
+    private Scope defaultScope;
+
+    @Value("${file-storage.encryption.buffer-pool-size:64}")
+    private int bufferPoolSize;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private SecretKey masterKey;
+
+    // Download buffers for the usual chunk size, others are allocated per stream
+    private BlockingQueue<byte[]> buffers;
+    private volatile int pooledBufferSize = -1;
+
+    @PostConstruct
+    void init() {
+        buffers = new ArrayBlockingQueue<>(Math.max(1, bufferPoolSize));
+        if (masterKeyBase64 == null || masterKeyBase64.isBlank()) {
+            logger.info("Content encryption disabled, no master key configured");
+            return;
+        }
+        byte[] key = Base64.getDecoder().decode(masterKeyBase64.trim());
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalStateException("file-storage.encryption.master-key must be 16, 24 or 32 bytes, base64 encoded");
+        }
+        masterKey = new SecretKeySpec(key, "AES");
+        logger.info("Content encryption enabled: keyId={}, defaultScope={}", keyId, defaultScope);
+    }
+
+    public boolean isEnabled() {
+        return masterKey != null;
+    }
+
+    /**
+     * Whether an upload is to be encrypted: as requested, otherwise by the configured default scope
+     */
+    public boolean shouldEncrypt(Visibility visibility, Boolean requested) {
+        if (requested != null) {
+            return requested;
+        }
+        return isEnabled() && (defaultScope == Scope.ALL || (defaultScope == Scope.PRIVATE && visibility != Visibility.PUBLIC));
+    }
+
+    /**
+     * Generate a data key for one new file sealed in chunks of {@code chunkSize} plaintext bytes
+     */
+    public FileKey newFileKey(int chunkSize) {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Content encryption is not configured");
+        }
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256, random);
+            SecretKey dataKey = generator.generateKey();
+
+            Cipher wrap = Cipher.getInstance(KEY_WRAP);
+            wrap.init(Cipher.WRAP_MODE, masterKey);
+
+            FileEncryption encryption = new FileEncryption();
+            encryption.setAlgorithm(ChunkCipher.ALGORITHM);
+            encryption.setKeyId(keyId);
+            encryption.setWrappedKey(wrap.wrap(dataKey));
+            encryption.setChunkSize(chunkSize);
+            encryption.setTagLength(ChunkCipher.TAG_BITS);
+            return new FileKey(encryption, new ChunkCipher(dataKey));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to create a file key", e);
+        }
+    }
+
+    /**
+     * Plaintext of an encrypted file from its stored content, which must be positioned at the start of
+     * chunk {@code firstChunk}. Closing the returned stream closes {@code sealed}.
+     */
+    public InputStream decrypting(InputStream sealed, FileEncryption encryption, long firstChunk, long plainSize) throws IOException {
+        ChunkCipher cipher = new ChunkCipher(unwrap(encryption));
+        int bufferSize = encryption.getChunkSize() + ChunkCipher.TAG_BYTES;
+        return new DecryptingInputStream(sealed, cipher, encryption.getChunkSize(), firstChunk, plainSize,
+                acquire(bufferSize), this::release);
+    }
+
+    private SecretKey unwrap(FileEncryption encryption) throws IOException {
+        if (!ChunkCipher.ALGORITHM.equals(encryption.getAlgorithm()) || encryption.getTagLength() != ChunkCipher.TAG_BITS) {
+            throw new IOException("Unsupported content encryption: " + encryption.getAlgorithm() + "/" + encryption.getTagLength());
+        }
+        if (!isEnabled() || !keyId.equals(encryption.getKeyId())) {
+            throw new IOException("Master key not configured: keyId=" + encryption.getKeyId());
+        }
+        try {
+            Cipher unwrap = Cipher.getInstance(KEY_WRAP);
+            unwrap.init(Cipher.UNWRAP_MODE, masterKey);
+            return (SecretKey) unwrap.unwrap(encryption.getWrappedKey(), "AES", Cipher.SECRET_KEY);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to unwrap the file key", e);
+        }
+    }
+
+    private byte[] acquire(int size) {
+        if (pooledBufferSize == -1) {
+            pooledBufferSize = size;
+        }
+        byte[] buffer = size == pooledBufferSize ? buffers.poll() : null;
+        return buffer != null ? buffer : new byte[size];
+    }
+
+    private void release(byte[] buffer) {
+        // Buffers beyond the pool size are left to the garbage collector
+        if (buffer.length == pooledBufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package lambdalabs.filestorage.service;
+
+import com.mongodb.MongoGridFSException;
+import lambdalabs.filestorage.model.ScrubFinding.Problem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Reads a file's content to its end and compares it with the metadata's size and md5.
+ * Failures of the content itself become a {@link Problem}; anything else (Mongo unreachable, say)
+ * is thrown, so it is never reported as damage.
+ */
+final class ContentVerifier {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ContentVerifier() {
+    }
+
+    /**
+     * @param problem null when the content is intact
+     * @param md5     of what could be read, null when nothing was
+     */
+    record Result(Problem problem, String detail, String md5, long length) {
+    }
+
+    /**
+     * Told about every block read, before the next one is, e.g. to pace the reads
+     */
+    interface Pacer {
+        void read(int bytes) throws InterruptedException;
+    }
+
+    /**
+     * @param content         the file's plaintext, null when it was not found
+     * @param expectedMd5     hex md5 to compare with, not compared when null
+     */
+    static Result verify(InputStream content, String expectedMd5, long expectedSize, Pacer pacer)
+            throws InterruptedException {
+        if (content == null) {
+            return new Result(Problem.MISSING_CONTENT, null, null, 0);
+        }
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 algorithm not available", e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long length = 0;
+        try {
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                md5.update(buffer, 0, read);
+                length += read;
+                pacer.read(read);
+            }
+        } catch (MongoGridFSException e) {
+            return new Result(Problem.MISSING_CHUNKS, e.getMessage(), null, length);
+        } catch (IOException e) {
+            return new Result(Problem.UNREADABLE, e.getMessage(), null, length);
+        }
+
+        String actual = HexFormat.of().formatHex(md5.digest());
+        if (length != expectedSize) {
+            return new Result(Problem.SIZE_MISMATCH, null, actual, length);
+        }
+        if (expectedMd5 != null && !expectedMd5.equalsIgnoreCase(actual)) {
+            return new Result(Problem.MD5_MISMATCH, null, actual, length);
+        }
+        return new Result(null, null, actual, length);
+    }
+}
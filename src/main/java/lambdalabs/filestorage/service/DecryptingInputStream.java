@@ -0,0 +1,95 @@
+package lambdalabs.filestorage.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+/**
+ * Plaintext of an encrypted file, read from its stored (sealed) chunks starting at chunk {@code firstChunk}.
+ * Each chunk is opened as a whole into one buffer, so only the chunks actually read get decrypted.
+ * A store that ends before {@code plainSize} is reached fails rather than returning a truncated file.
+ */
+final class DecryptingInputStream extends InputStream {
+
+    private final InputStream sealed;
+    private final ChunkCipher cipher;
+    private final int chunkSize;
+    private final Consumer<byte[]> release;
+    private byte[] buffer;
+    private long nextChunk;
+    private long remaining;
+    private int position;
+    private int limit;
+
+    /**
+     * @param chunkSize plaintext bytes per chunk
+     * @param buffer    at least {@code chunkSize + ChunkCipher.TAG_BYTES} long, handed to {@code release} on close
+     */
+    DecryptingInputStream(InputStream sealed, ChunkCipher cipher, int chunkSize, long firstChunk, long plainSize,
+                          byte[] buffer, Consumer<byte[]> release) {
+        this.sealed = sealed;
+        this.cipher = cipher;
+        this.chunkSize = chunkSize;
+        this.release = release;
+        this.buffer = buffer;
+        this.nextChunk = firstChunk;
+        this.remaining = Math.max(0, plainSize - firstChunk * chunkSize);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    private boolean fill() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
+        }
+        if (remaining == 0) {
+            return false;
+        }
+        int plain = (int) Math.min(chunkSize, remaining);
+        int sealedLength = plain + ChunkCipher.TAG_BYTES;
+        if (sealed.readNBytes(buffer, 0, sealedLength) != sealedLength) {
+            throw new EOFException("Stored content ends before chunk " + nextChunk + " is complete");
+        }
+        limit = cipher.open(buffer, sealedLength, nextChunk++);
+        position = 0;
+        remaining -= limit;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer != null) {
+            byte[] released = buffer;
+            buffer = null;
+            position = limit = 0;
+            release.accept(released);
+        }
+        sealed.close();
+    }
+}
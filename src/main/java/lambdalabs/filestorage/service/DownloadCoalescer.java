@@ -0,0 +1,103 @@
+package lambdalabs.filestorage.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.gridfs.GridFsResource;
+import org.springframework.stereotype.Service;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Single-flight full-file downloads: concurrent readers of the same GridFS file share one
+ * upstream chunk stream (see {@link DownloadFlight}) instead of each opening its own cursor,
+ * so Mongo reads for a hot file do not grow with the number of clients.
+ */
+@Service
+public class DownloadCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadCoalescer.class);
+
+    @Autowired
+    private GridFsService gridFsService;
+
+    @Value("${file-storage.download.coalescing.enabled:true}")
+    private boolean enabled;
+
+    @Value("${file-storage.download.coalescing.buffer-chunks:16}")
+    private int bufferChunks;
+
+    private final ConcurrentMap<ObjectId, DownloadFlight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Open the whole stored file, joining an in-progress flight when possible.
+     * Returns null when the file is not in GridFS.
+     */
+    public InputStream open(String ownerId, ObjectId gridFsId) throws IOException {
+        if (!enabled) {
+            return gridFsService.openStream(ownerId, gridFsId, 0, Long.MAX_VALUE);
+        }
+
+        InputStream reader = null;
+        DownloadFlight flight = null;
+        while (reader == null) {
+            DownloadFlight existing = flights.get(gridFsId);
+            if (existing != null) {
+                reader = existing.join();
+                if (reader != null) {
+                    flight = existing;
+                    break;
+                }
+            }
+
+            DownloadFlight created = new DownloadFlight(upstream(ownerId, gridFsId), bufferChunks,
+                    closed -> flights.remove(gridFsId, closed));
+            // Only one of the racing requests gets to register a flight, the others loop around and join it
+            boolean registered = existing == null
+                    ? flights.putIfAbsent(gridFsId, created) == null
+                    : flights.replace(gridFsId, existing, created);
+            if (registered) {
+                flight = created;
+                reader = created.join();
+                Thread.ofVirtual().name("download-flight-" + gridFsId).start(created::run);
+                logger.debug("Started shared download: gridFsId={}", gridFsId);
+            }
+        }
+
+        if (!flight.awaitOpened()) {
+            reader.close();
+            return null;
+        }
+        return reader;
+    }
+
+    private DownloadFlight.Upstream upstream(String ownerId, ObjectId gridFsId) {
+        return new DownloadFlight.Upstream() {
+            @Override
+            public DownloadFlight.Source open() throws IOException {
+                GridFsResource resource = gridFsService.getResource(ownerId, gridFsId);
+                if (resource == null) {
+                    return null;
+                }
+                GridFSFile file = resource.getGridFSFile();
+                return new DownloadFlight.Source(resource.getInputStream(), file.getLength(), file.getChunkSize());
+            }
+
+            @Override
+            public InputStream openAt(long offset) throws IOException {
+                InputStream stream = gridFsService.openStream(ownerId, gridFsId, offset, Long.MAX_VALUE);
+                if (stream == null) {
+                    throw new FileNotFoundException("File not found in GridFS: " + gridFsId);
+                }
+                return stream;
+            }
+        };
+    }
+}
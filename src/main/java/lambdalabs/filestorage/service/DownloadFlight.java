@@ -0,0 +1,297 @@
+package lambdalabs.filestorage.service;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * One upstream pass over a stored file, shared by every reader that joined it.
+ * <p>
+ * A single producer reads the file chunk by chunk into a ring of {@code capacity} slots and readers
+ * copy out of it. The producer stays at most {@code capacity / 2} chunks ahead of the fastest reader,
+ * so memory is bounded by the ring no matter how many readers there are. A reader that falls so far
+ * behind that its chunk was already overwritten is detached and continues on its own upstream stream
+ * from its current offset, so a slow consumer never holds back the others. Readers can join only while
+ * the first chunk is still in the ring; later arrivals start a new flight.
+ * <p>
+ * Chunks are immutable once published, readers copy from them without holding the lock.
+ */
+final class DownloadFlight {
+
+    /**
+     * Upstream access for the flight: the shared pass and private streams for detached readers
+     */
+    interface Upstream {
+        /**
+         * Open the whole file for the shared pass, or return null if it does not exist
+         */
+        Source open() throws IOException;
+
+        InputStream openAt(long offset) throws IOException;
+    }
+
+    record Source(InputStream stream, long length, int chunkSize) {
+    }
+
+    private final Upstream upstream;
+    private final int capacity;
+    private final int readAhead;
+    private final Consumer<DownloadFlight> onClose;
+    private final byte[][] ring;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // All guarded by lock
+    private boolean opened;
+    private boolean missing;
+    private long length;
+    private int chunkSize;
+    private long totalChunks;
+    private long fetched;
+    private long wanted = -1;
+    private int readers;
+    private boolean closed;
+    private IOException failure;
+
+    DownloadFlight(Upstream upstream, int capacity, Consumer<DownloadFlight> onClose) {
+        this.upstream = upstream;
+        this.capacity = Math.max(2, capacity);
+        this.readAhead = Math.max(1, this.capacity / 2);
+        this.onClose = onClose;
+        this.ring = new byte[this.capacity][];
+    }
+
+    /**
+     * Attach a new reader starting at offset 0, or return null if the flight can no longer take one
+     */
+    InputStream join() {
+        lock.lock();
+        try {
+            if (closed || failure != null || fetched > capacity) {
+                return null;
+            }
+            readers++;
+            return new Reader();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until the upstream file was opened; false means it does not exist
+     */
+    boolean awaitOpened() throws IOException {
+        lock.lock();
+        try {
+            while (!opened && failure == null) {
+                changed.await();
+            }
+            if (failure != null && !missing) {
+                throw new IOException("Failed to open shared download", failure);
+            }
+            return !missing;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening shared download");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Producer loop, runs on its own thread for the lifetime of the flight
+     */
+    void run() {
+        InputStream stream = null;
+        try {
+            Source source = upstream.open();
+            lock.lock();
+            try {
+                if (source == null) {
+                    missing = true;
+                    failure = new FileNotFoundException("File not found");
+                    changed.signalAll();
+                } else {
+                    stream = source.stream();
+                    length = source.length();
+                    chunkSize = source.chunkSize();
+                    totalChunks = (length + chunkSize - 1) / chunkSize;
+                    opened = true;
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (missing) {
+                onClose.accept(this);
+                return;
+            }
+
+            for (long k = 0; k < totalChunks; k++) {
+                lock.lock();
+                try {
+                    while (!closed && k > wanted + readAhead) {
+                        changed.await();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                int expected = (int) Math.min(chunkSize, length - k * chunkSize);
+                byte[] chunk = stream.readNBytes(expected);
+                if (chunk.length != expected) {
+                    throw new IOException("Unexpected end of stored file at chunk " + k);
+                }
+
+                lock.lock();
+                try {
+                    ring[(int) (k % capacity)] = chunk;
+                    fetched = k + 1;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("Shared download interrupted"));
+        } catch (RuntimeException e) {
+            fail(new IOException(e));
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                    // nothing left to do with it
+                }
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        lock.lock();
+        try {
+            failure = e;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        onClose.accept(this);
+    }
+
+    /**
+     * Return chunk {@code k}, waiting for the producer if needed, or null if it was already overwritten
+     */
+    private byte[] awaitChunk(long k) throws IOException {
+        lock.lock();
+        try {
+            if (k > wanted) {
+                wanted = k;
+                changed.signalAll();
+            }
+            while (fetched <= k && failure == null) {
+                changed.await();
+            }
+            if (fetched <= k) {
+                throw new IOException("Shared download failed", failure);
+            }
+            if (k < fetched - capacity) {
+                return null;
+            }
+            return ring[(int) (k % capacity)];
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for shared download");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void leave() {
+        boolean last;
+        lock.lock();
+        try {
+            readers--;
+            last = readers == 0 && !closed;
+            if (last) {
+                closed = true;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (last) {
+            onClose.accept(this);
+        }
+    }
+
+    private final class Reader extends InputStream {
+
+        private long position;
+        private InputStream detached;
+        private boolean attached = true;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int read = read(one, 0, 1);
+            return read == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (detached != null) {
+                int read = detached.read(b, off, len);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (!attached || position >= length) {
+                return -1;
+            }
+
+            long k = position / chunkSize;
+            byte[] chunk = awaitChunk(k);
+            if (chunk == null) {
+                // Overrun by faster readers: continue on a private stream from where we are
+                detach();
+                detached = upstream.openAt(position);
+                return read(b, off, len);
+            }
+
+            int within = (int) (position - k * chunkSize);
+            int n = Math.min(len, chunk.length - within);
+            System.arraycopy(chunk, within, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private void detach() {
+            if (attached) {
+                attached = false;
+                leave();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            detach();
+            if (detached != null) {
+                detached.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package lambdalabs.filestorage.service;
+
+import jakarta.annotation.PostConstruct;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.MongoShards;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Removes files whose {@code expiresAt} has passed.
+ * <p>
+ * Expired files are already hidden by every read in {@link FileMetadataRepository}, so the sweep only
+ * has to free space: it claims and removes expired metadata in bulk, a batch at a time, and hands
+ * the GridFS content of the files it removed to the {@link StorageReclaimer} as one bulk tombstone
+ * write per batch.
+ */
+@Service
+public class ExpiredFileSweeper {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExpiredFileSweeper.class);
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    @Autowired
+    private StorageReclaimer storageReclaimer;
+
+    @Autowired
+    private UsageService usageService;
+
+    @Autowired
+    private TagFacetService tagFacetService;
+
+    @Autowired
+    private FolderService folderService;
+
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Value("${file-storage.expiry.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${file-storage.expiry.files-per-second:5000}")
+    private double filesPerSecond;
+
+    private Throttle throttle;
+
+    @PostConstruct
+    void init() {
+        throttle = new Throttle(filesPerSecond);
+    }
+
+    @Scheduled(initialDelayString = "${file-storage.expiry.sweep-interval:1m}",
+            fixedDelayString = "${file-storage.expiry.sweep-interval:1m}")
+    public void sweep() {
+        long swept = 0;
+        try {
+            List<FileMetadata> found;
+            do {
+                Instant now = Instant.now();
+                found = fileMetadataRepository.findExpired(now, batchSize);
+                // Files of owners being moved to another shard wait until the move is over
+                List<FileMetadata> batch = found.stream().filter(file -> !mongoShards.isMoving(file.getOwnerId())).toList();
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                // Same order as a single delete: metadata first, then tombstones,
+                // a crash in between only leaves orphans for the reclaimer's reconciliation.
+                // Files evicted by an upload in between are not returned, the eviction accounted for them.
+                List<FileMetadata> deleted = fileMetadataRepository.deleteExpired(batch, now);
+                if (!deleted.isEmpty()) {
+                    storageReclaimer.enqueueAll(deleted);
+                    // Counters last, a failure there must not keep the content from being reclaimed
+                    usageService.recordRemovals(deleted);
+                    tagFacetService.recordRemovals(deleted);
+                    folderService.recordRemovals(deleted);
+                }
+
+                swept += deleted.size();
+                throttle.acquire(batch.size());
+            } while (found.size() == batchSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Expired file sweep failed", e);
+        }
+        if (swept > 0) {
+            logger.info("Swept expired files: count={}", swept);
+        }
+    }
+
+    /**
+     * Remove the owner's expired file holding the given filename or md5, if any, so that
+     * the unique indexes do not reject a new file because of one nobody can see anymore
+     */
+    public void evictExpired(String ownerId, String field, String value) {
+        Optional<FileMetadata> expired = fileMetadataRepository.findAndRemoveExpired(ownerId, field, value, Instant.now());
+        expired.ifPresent(metadata -> {
+            logger.debug("Evicted expired file ahead of sweep: metadataId={}, ownerId={}", metadata.getId(), ownerId);
+            storageReclaimer.enqueue(metadata);
+            usageService.recordRemoval(metadata);
+            tagFacetService.recordRemoval(metadata);
+            folderService.recordRemoval(metadata);
+        });
+    }
+}
@@ -0,0 +1,347 @@
+package lambdalabs.filestorage.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lambdalabs.filestorage.model.FileEvent;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.Visibility;
+import lambdalabs.filestorage.repository.MongoShards;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes file changes to connected clients so they do not have to poll listings.
+ * <p>
+ * A single change stream per node watches file_metadata inserts and replaces (uploads), updates
+ * that set {@code updatedAt} (metadata edits) and file_tombstones inserts (deletes and expiry, as the
+ * metadata itself is gone by then).
+ * Each change is serialized once, kept in a replay log and offered to the bounded queue of every
+ * subscriber allowed to see it: the owner, or everyone for PUBLIC files. A shared pool of sender
+ * threads writes the queues out. A subscriber whose queue overflows is disconnected and resumes from
+ * its last event id when it reconnects; when that is older than the replay log it gets a
+ * {@code reset} event and relists.
+ * <p>
+ * Change streams need a replica set; on a standalone server the feed stays connected but silent.
+ * With file metadata sharded over several databases (see {@link MongoShards}) the stream watches the
+ * whole deployment, limited to those databases and the default one.
+ */
+@Service
+public class FileEventHub {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileEventHub.class);
+
+    private static final int CHANGE_STREAM_NOT_SUPPORTED = 40573;
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private MongoClient mongoClient;
+
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${file-storage.events.enabled:true}")
+    private boolean enabled;
+
+    @Value("${file-storage.events.replay-size:10000}")
+    private int replaySize;
+
+    @Value("${file-storage.events.queue-size:256}")
+    private int queueSize;
+
+    @Value("${file-storage.events.max-subscribers:10000}")
+    private int maxSubscribers;
+
+    @Value("${file-storage.events.sender-threads:4}")
+    private int senderThreads;
+
+    @Value("${file-storage.events.timeout:30m}")
+    private Duration timeout;
+
+    @Value("${file-storage.events.retry-delay:10s}")
+    private Duration retryDelay;
+
+    // Guards the log and the subscriber registry, so a new subscriber's replay and the live events
+    // that follow it neither overlap nor leave a gap
+    private final Object lock = new Object();
+
+    private final Set<FileEventSubscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<FileEventSubscriber>> subscribersByUser = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    private FileEventLog log;
+    private ExecutorService sender;
+    private Thread watcher;
+    private volatile boolean running;
+
+    private Counter published;
+    private Counter overflows;
+
+    @PostConstruct
+    void init() {
+        log = new FileEventLog(replaySize);
+        AtomicInteger threads = new AtomicInteger();
+        sender = Executors.newFixedThreadPool(senderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "file-events-sender-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Gauge.builder("filestorage.events.subscribers", subscriberCount, AtomicInteger::get)
+                .description("Connected event feed clients")
+                .register(meterRegistry);
+        published = Counter.builder("filestorage.events.published")
+                .description("File events read from the change stream")
+                .register(meterRegistry);
+        overflows = Counter.builder("filestorage.events.overflows")
+                .description("Event feed clients disconnected for falling behind")
+                .register(meterRegistry);
+
+        if (enabled) {
+            running = true;
+            watcher = new Thread(this::watch, "file-events-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        running = false;
+        if (watcher != null) {
+            watcher.interrupt();
+        }
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+        sender.shutdown();
+    }
+
+    /**
+     * Connect a client to the feed, first sending it the events after {@code lastEventId} if given
+     *
+     * @return the stream to return from the controller, null when the node has no room for more subscribers
+     */
+    public SseEmitter subscribe(String userId, String lastEventId) {
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            return null;
+        }
+        SseEmitter emitter = new SseEmitter(timeout.toMillis());
+        FileEventSubscriber subscriber = new FileEventSubscriber(userId, emitter, queueSize, sender, lastEventId);
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+        emitter.onError(e -> unsubscribe(subscriber));
+
+        synchronized (lock) {
+            if (lastEventId != null) {
+                List<FileEventLog.Entry> missed = log.since(lastEventId);
+                if (missed == null || missed.size() > queueSize) {
+                    subscriber.offer(resetEntry());
+                } else {
+                    missed.stream().filter(entry -> entry.visibleTo(userId)).forEach(subscriber::offer);
+                }
+            }
+            subscribers.add(subscriber);
+            subscribersByUser.computeIfAbsent(userId, u -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+        return emitter;
+    }
+
+    @Scheduled(fixedDelayString = "${file-storage.events.heartbeat-interval:15s}")
+    public void heartbeat() {
+        // Keeps idle connections open through proxies and finds clients that are gone
+        subscribers.forEach(subscriber -> deliver(subscriber, FileEventSubscriber.HEARTBEAT));
+    }
+
+    private void unsubscribe(FileEventSubscriber subscriber) {
+        subscriber.close();
+        if (subscribers.remove(subscriber)) {
+            subscriberCount.decrementAndGet();
+            subscribersByUser.computeIfPresent(subscriber.userId, (u, set) -> {
+                set.remove(subscriber);
+                return set.isEmpty() ? null : set;
+            });
+        }
+    }
+
+    private void publish(FileEventLog.Entry entry) {
+        synchronized (lock) {
+            log.append(entry);
+            if (entry.isPublic()) {
+                subscribers.forEach(subscriber -> deliver(subscriber, entry));
+            } else {
+                subscribersByUser.getOrDefault(entry.ownerId(), Set.of()).forEach(subscriber -> deliver(subscriber, entry));
+            }
+        }
+        published.increment();
+    }
+
+    private void deliver(FileEventSubscriber subscriber, FileEventLog.Entry entry) {
+        if (!subscriber.offer(entry)) {
+            overflows.increment();
+            logger.debug("Event feed client fell behind, disconnecting: userId={}", subscriber.userId);
+            unsubscribe(subscriber);
+            subscriber.emitter.complete();
+        }
+    }
+
+    /**
+     * Tells clients that events were lost and they have to relist; its id is where to resume from afterwards
+     */
+    private FileEventLog.Entry resetEntry() {
+        return new FileEventLog.Entry(log.latestId(), FileEventLog.Entry.RESET, "{\"type\":\"RESET\"}", null, true);
+    }
+
+    private void watch() {
+        BsonDocument resumeToken = null;
+        boolean warnedStandalone = false;
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = openChangeStream(resumeToken)) {
+                if (resumeToken == null) {
+                    synchronized (lock) {
+                        boolean restarted = log.latestId() != null;
+                        log.reset(tokenId(cursor.getResumeToken()));
+                        if (restarted) {
+                            subscribers.forEach(subscriber -> deliver(subscriber, resetEntry()));
+                        }
+                    }
+                }
+                logger.info("Watching file changes for the event feed");
+                warnedStandalone = false;
+                while (running) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change != null) {
+                        resumeToken = change.getResumeToken();
+                        FileEventLog.Entry entry = toEntry(change);
+                        if (entry != null) {
+                            publish(entry);
+                        }
+                    }
+                }
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() == CHANGE_STREAM_NOT_SUPPORTED) {
+                    if (!warnedStandalone) {
+                        logger.warn("MongoDB is not a replica set, the file event feed stays silent until it is");
+                        warnedStandalone = true;
+                    }
+                } else if (e.getErrorCode() == CHANGE_STREAM_HISTORY_LOST) {
+                    logger.warn("Change stream history lost, event feed clients will be told to relist");
+                    resumeToken = null;
+                } else {
+                    logger.error("File change stream failed, retrying in {}", retryDelay, e);
+                }
+                pause();
+            } catch (Exception e) {
+                if (running) {
+                    logger.error("File change stream failed, retrying in {}", retryDelay, e);
+                    pause();
+                }
+            }
+        }
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openChangeStream(BsonDocument resumeToken) {
+        Document changes = new Document("$or", List.of(
+                new Document("ns.coll", "file_metadata")
+                        .append("operationType", new Document("$in", List.of("insert", "replace")))
+                        // Copies written by a move to another shard are not new files
+                        .append("fullDocument.movedAt", new Document("$exists", false)),
+                // Edits set updatedAt; download statistics, tier moves and search term backfills do not
+                new Document("ns.coll", "file_metadata")
+                        .append("operationType", "update")
+                        .append("updateDescription.updatedFields.updatedAt", new Document("$exists", true)),
+                // Tombstones of rejected uploads have no metadata id and nobody saw those files
+                new Document("ns.coll", "file_tombstones")
+                        .append("operationType", "insert")
+                        .append("fullDocument.metadataId", new Document("$ne", null))));
+        ChangeStreamIterable<Document> changeStream;
+        if (mongoShards.isSharded()) {
+            Set<String> databases = new LinkedHashSet<>();
+            databases.add(mongoTemplate.getDb().getName());
+            mongoShards.all().forEach(shard -> databases.add(shard.name()));
+            changes = new Document("$and", List.of(new Document("ns.db", new Document("$in", List.copyOf(databases))), changes));
+            changeStream = mongoClient.watch(List.of(new Document("$match", changes)));
+        } else {
+            changeStream = mongoTemplate.getDb().watch(List.of(new Document("$match", changes)));
+        }
+        // Edits are targeted updates, the file they leave is looked up for the event
+        changeStream = changeStream.fullDocument(FullDocument.UPDATE_LOOKUP).maxAwaitTime(1, TimeUnit.SECONDS);
+        if (resumeToken != null) {
+            changeStream = changeStream.resumeAfter(resumeToken);
+        }
+        return changeStream.cursor();
+    }
+
+    private FileEventLog.Entry toEntry(ChangeStreamDocument<Document> change) throws JsonProcessingException {
+        Document document = change.getFullDocument();
+        if (document == null || change.getNamespace() == null) {
+            return null;
+        }
+        FileEvent event;
+        String ownerId;
+        boolean isPublic;
+        if ("file_tombstones".equals(change.getNamespace().getCollectionName())) {
+            event = new FileEvent(FileEvent.Type.DELETED, document.getString("metadataId"), null);
+            ownerId = document.getString("ownerId");
+            isPublic = Visibility.PUBLIC.name().equals(document.getString("visibility"));
+        } else {
+            FileMetadata file = mongoTemplate.getConverter().read(FileMetadata.class, document);
+            event = new FileEvent("insert".equals(change.getOperationTypeString()) ? FileEvent.Type.CREATED : FileEvent.Type.UPDATED,
+                    file.getId(), file);
+            ownerId = file.getOwnerId();
+            isPublic = file.getVisibility() == Visibility.PUBLIC;
+        }
+        return new FileEventLog.Entry(tokenId(change.getResumeToken()), event.getType().name().toLowerCase(),
+                objectMapper.writeValueAsString(event), ownerId, isPublic);
+    }
+
+    private static String tokenId(BsonDocument resumeToken) {
+        return resumeToken != null ? resumeToken.getString("_data").getValue() : null;
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(retryDelay.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
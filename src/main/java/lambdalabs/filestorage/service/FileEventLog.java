@@ -0,0 +1,87 @@
+package lambdalabs.filestorage.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The most recent file events of this node, kept so a reconnecting client can be sent what it
+ * missed instead of relisting everything. Ids are change stream resume tokens, which grow in
+ * stream order on every node of a cluster, so a client may resume on a different node than the one
+ * it was connected to.
+ * <p>
+ * Not thread-safe, guarded by {@link FileEventHub}.
+ */
+final class FileEventLog {
+
+    /**
+     * An event ready to be written to subscribers, serialized once for all of them
+     */
+    record Entry(String id, String name, String data, String ownerId, boolean isPublic) {
+
+        static final String RESET = "reset";
+
+        boolean isReset() {
+            return RESET.equals(name);
+        }
+
+        boolean visibleTo(String userId) {
+            return isPublic || userId.equals(ownerId);
+        }
+    }
+
+    private final Entry[] ring;
+    private int start;
+    private int size;
+    // Id up to which events may have been dropped, null until the change stream has started
+    private String floorId;
+
+    FileEventLog(int capacity) {
+        this.ring = new Entry[Math.max(1, capacity)];
+    }
+
+    /**
+     * Forget all events, the log continues from the given position
+     */
+    void reset(String floorId) {
+        Arrays.fill(ring, null);
+        start = 0;
+        size = 0;
+        this.floorId = floorId;
+    }
+
+    void append(Entry entry) {
+        if (size == ring.length) {
+            floorId = ring[start].id();
+            ring[start] = null;
+            start = (start + 1) % ring.length;
+            size--;
+        }
+        ring[(start + size) % ring.length] = entry;
+        size++;
+    }
+
+    /**
+     * Id of the latest event, or the position the log started from when it is empty
+     */
+    String latestId() {
+        return size > 0 ? ring[(start + size - 1) % ring.length].id() : floorId;
+    }
+
+    /**
+     * Events after the given id, oldest first, or null when some of them may have been dropped already
+     */
+    List<Entry> since(String id) {
+        if (floorId == null || id.compareTo(floorId) < 0) {
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Entry entry = ring[(start + i) % ring.length];
+            if (entry.id().compareTo(id) > 0) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+}
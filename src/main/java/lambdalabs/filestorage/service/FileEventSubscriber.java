@@ -0,0 +1,91 @@
+package lambdalabs.filestorage.service;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One connected event feed client: a bounded queue of events drained into its SSE stream by the
+ * shared sender pool, so thousands of idle connections hold no threads.
+ */
+final class FileEventSubscriber {
+
+    static final FileEventLog.Entry HEARTBEAT = new FileEventLog.Entry(null, null, null, null, true);
+
+    final String userId;
+    final SseEmitter emitter;
+    private final BlockingQueue<FileEventLog.Entry> queue;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Executor sender;
+    // Events up to this id were already seen by the client, e.g. on another node
+    private final String resumedFrom;
+    private volatile boolean closed;
+
+    FileEventSubscriber(String userId, SseEmitter emitter, int queueSize, Executor sender, String resumedFrom) {
+        this.userId = userId;
+        this.emitter = emitter;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.sender = sender;
+        this.resumedFrom = resumedFrom;
+    }
+
+    /**
+     * Queue an event for sending without blocking
+     *
+     * @return false when the queue is full and the client is too slow to keep up
+     */
+    boolean offer(FileEventLog.Entry entry) {
+        if (closed) {
+            return true;
+        }
+        if (entry.id() != null && resumedFrom != null && entry.id().compareTo(resumedFrom) <= 0 && !entry.isReset()) {
+            return true;
+        }
+        if (!queue.offer(entry)) {
+            return false;
+        }
+        if (draining.compareAndSet(false, true)) {
+            sender.execute(this::drain);
+        }
+        return true;
+    }
+
+    void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private void drain() {
+        while (true) {
+            FileEventLog.Entry entry;
+            while ((entry = queue.poll()) != null && !closed) {
+                try {
+                    if (entry == HEARTBEAT) {
+                        emitter.send(SseEmitter.event().comment("keep-alive"));
+                    } else {
+                        SseEmitter.SseEventBuilder event = SseEmitter.event().name(entry.name()).data(entry.data());
+                        emitter.send(entry.id() != null ? event.id(entry.id()) : event);
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    // The client is gone; the emitter's callbacks unsubscribe it
+                    close();
+                    emitter.completeWithError(e);
+                    return;
+                }
+            }
+            draining.set(false);
+            // Something may have been queued after the last poll but before the flag was cleared
+            if (closed || queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package lambdalabs.filestorage.service;
+
+/**
+ * A folder change clashes with the current tree: a duplicate name, a move into its own subtree,
+ * removing a folder that is not empty or a concurrent move of the same folder
+ */
+public class FolderConflictException extends RuntimeException {
+
+    public FolderConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,11 @@
+package lambdalabs.filestorage.service;
+
+/**
+ * A folder id does not name a folder of the requesting user
+ */
+public class FolderNotFoundException extends RuntimeException {
+
+    public FolderNotFoundException(String message) {
+        super(message);
+    }
+}
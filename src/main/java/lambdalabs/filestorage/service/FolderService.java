@@ -0,0 +1,200 @@
+package lambdalabs.filestorage.service;
+
+import lambdalabs.filestorage.dto.PageResponse;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.Folder;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.FolderRepository;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Virtual folders: creating, listing, renaming, moving and removing them, and keeping their subtree
+ * file counts and sizes up to date.
+ * <p>
+ * A rename or move changes the folder document only; its subtree totals are then taken off the old
+ * ancestors and added to the new ones, so the cost grows with depth, never with the size of the subtree.
+ * File changes are applied with one {@code $inc} over the file's folder and its ancestors. A file
+ * change racing with a move of one of its ancestors can land on the old ancestor chain.
+ */
+@Service
+public class FolderService {
+
+    private static final Logger logger = LoggerFactory.getLogger(FolderService.class);
+
+    /**
+     * Folder id accepted in requests for the top level
+     */
+    public static final String ROOT = "root";
+
+    @Autowired
+    private FolderRepository folderRepository;
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    public Folder create(String ownerId, String name, String parentId) {
+        Folder folder = new Folder();
+        folder.setOwnerId(ownerId);
+        folder.setParentId(resolve(ownerId, parentId));
+        folder.setName(name);
+        folder.setCreatedAt(Instant.now());
+        folder.setUpdatedAt(folder.getCreatedAt());
+        try {
+            return folderRepository.insert(folder);
+        } catch (DuplicateKeyException e) {
+            throw new FolderConflictException("A folder with this name already exists here");
+        }
+    }
+
+    public Folder get(String ownerId, String id) {
+        return find(ownerId, id).orElseThrow(() -> new FolderNotFoundException("Folder not found"));
+    }
+
+    /**
+     * Id of the folder to store in a file or folder, null for the top level
+     *
+     * @throws FolderNotFoundException when the id does not name one of the owner's folders
+     */
+    public String resolve(String ownerId, String id) {
+        if (id == null || ROOT.equals(id)) {
+            return null;
+        }
+        return get(ownerId, id).getId();
+    }
+
+    public PageResponse<Folder> listFolders(String ownerId, String id, String after, int limit) {
+        List<Folder> folders = folderRepository.findChildren(ownerId, resolve(ownerId, id), after, limit + 1);
+        return page(folders, limit, Folder::getName);
+    }
+
+    public PageResponse<FileMetadata> listFiles(String ownerId, String id, String after, int limit) {
+        List<FileMetadata> files = fileMetadataRepository.findInFolder(ownerId, resolve(ownerId, id), after, limit + 1);
+        return page(files, limit, FileMetadata::getFilename);
+    }
+
+    /**
+     * Rename and/or move a folder
+     *
+     * @param name     new name, null to keep it
+     * @param parentId new parent ({@link #ROOT} for the top level), null to keep it
+     */
+    public Folder update(String ownerId, String id, String name, String parentId) {
+        Folder folder = get(ownerId, id);
+        String newParentId = parentId != null ? resolve(ownerId, parentId) : folder.getParentId();
+        if (newParentId != null && (newParentId.equals(folder.getId())
+                || folderRepository.findAncestorIds(newParentId).contains(folder.getId()))) {
+            throw new FolderConflictException("A folder cannot be moved into itself or one of its subfolders");
+        }
+
+        Folder before;
+        try {
+            before = folderRepository.update(folder.getId(), ownerId, folder.getParentId(), newParentId,
+                    name != null ? name : folder.getName())
+                    .orElseThrow(() -> new FolderConflictException("The folder was moved or removed concurrently"));
+        } catch (DuplicateKeyException e) {
+            throw new FolderConflictException("A folder with this name already exists here");
+        }
+
+        if (!Objects.equals(before.getParentId(), newParentId)) {
+            Map<List<String>, long[]> deltas = new HashMap<>();
+            deltas.put(chain(before.getParentId()), new long[]{-before.getFileCount(), -before.getTotalBytes()});
+            deltas.merge(chain(newParentId), new long[]{before.getFileCount(), before.getTotalBytes()}, FolderService::sum);
+            folderRepository.incrementAll(deltas);
+            logger.debug("Moved folder: folderId={}, from={}, to={}", id, before.getParentId(), newParentId);
+        }
+        return get(ownerId, id);
+    }
+
+    /**
+     * Remove a folder that holds neither files nor subfolders
+     */
+    public void delete(String ownerId, String id) {
+        Folder folder = get(ownerId, id);
+        if (folderRepository.hasChildren(ownerId, folder.getId()) || !folderRepository.removeIfEmpty(folder.getId(), ownerId)) {
+            throw new FolderConflictException("Only empty folders can be removed");
+        }
+    }
+
+    public void recordUpload(FileMetadata metadata) {
+        record(List.of(metadata), 1);
+    }
+
+    public void recordRemoval(FileMetadata metadata) {
+        record(List.of(metadata), -1);
+    }
+
+    /**
+     * Take a batch of removed files off their folders, one ancestor lookup and update per folder
+     */
+    public void recordRemovals(List<FileMetadata> removed) {
+        record(removed, -1);
+    }
+
+    public void recordMove(FileMetadata metadata, String previousFolderId) {
+        if (Objects.equals(previousFolderId, metadata.getFolderId())) {
+            return;
+        }
+        Map<List<String>, long[]> deltas = new HashMap<>();
+        deltas.put(chain(previousFolderId), new long[]{-1, -metadata.getSize()});
+        deltas.merge(chain(metadata.getFolderId()), new long[]{1, metadata.getSize()}, FolderService::sum);
+        folderRepository.incrementAll(deltas);
+    }
+
+    private void record(List<FileMetadata> files, int sign) {
+        Map<String, long[]> byFolder = new HashMap<>();
+        for (FileMetadata file : files) {
+            if (file.getFolderId() != null) {
+                byFolder.merge(file.getFolderId(), new long[]{sign, sign * file.getSize()}, FolderService::sum);
+            }
+        }
+        Map<List<String>, long[]> deltas = new HashMap<>();
+        byFolder.forEach((folderId, delta) -> deltas.merge(chain(folderId), delta, FolderService::sum));
+        folderRepository.incrementAll(deltas);
+    }
+
+    /**
+     * The folder and all its ancestors, empty for the top level
+     */
+    private List<String> chain(String folderId) {
+        if (folderId == null) {
+            return List.of();
+        }
+        List<String> chain = new ArrayList<>();
+        chain.add(folderId);
+        chain.addAll(folderRepository.findAncestorIds(folderId));
+        return chain;
+    }
+
+    private Optional<Folder> find(String ownerId, String id) {
+        if (id == null || !ObjectId.isValid(id)) {
+            return Optional.empty();
+        }
+        return folderRepository.findByIdAndOwner(id, ownerId);
+    }
+
+    private static <T> PageResponse<T> page(List<T> items, int limit, Function<T, String> key) {
+        if (items.size() <= limit) {
+            return new PageResponse<>(items, null);
+        }
+        List<T> page = items.subList(0, limit);
+        return new PageResponse<>(page, key.apply(page.get(limit - 1)));
+    }
+
+    private static long[] sum(long[] a, long[] b) {
+        return new long[]{a[0] + b[0], a[1] + b[1]};
+    }
+}
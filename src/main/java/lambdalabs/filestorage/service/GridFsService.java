@@ -1,57 +1,247 @@
 package lambdalabs.filestorage.service;
 
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Updates;
 import com.mongodb.client.gridfs.model.GridFSFile;
+import jakarta.annotation.PostConstruct;
+import lambdalabs.filestorage.model.FileEncryption;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.repository.MongoShards;
+import lambdalabs.filestorage.repository.MongoShards.Shard;
+import lambdalabs.filestorage.repository.OwnerMovingException;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.gridfs.GridFsOperations;
 import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * GridFS content, each owner's in the bucket of their shard database (see {@link MongoShards})
+ */
 @Service
 public class GridFsService {
 
     private static final Logger logger = LoggerFactory.getLogger(GridFsService.class);
 
+    private static final String FILES_COLLECTION = "fs.files";
+    private static final String CHUNKS_COLLECTION = "fs.chunks";
+
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Autowired
+    private ContentEncryption contentEncryption;
+
     @Autowired
-    private GridFsOperations gridFsOperations;
+    private ColdStore coldStore;
+
+    /**
+     * Stored content as the upload saw it: plaintext length and md5, and how it is encrypted, if at all
+     */
+    public record StoredContent(ObjectId gridFsId, long length, String md5, FileEncryption encryption) {
+    }
+
+    @Value("${file-storage.upload.pipeline.enabled:true}")
+    private boolean pipelineEnabled;
+
+    @Value("${file-storage.upload.pipeline.chunk-size:261120}")
+    private int chunkSize;
+
+    @Value("${file-storage.upload.pipeline.batch-chunks:4}")
+    private int batchChunks;
+
+    @Value("${file-storage.upload.pipeline.queue-batches:2}")
+    private int queueBatches;
+
+    @Value("${file-storage.upload.pipeline.buffer-pool-size:256}")
+    private int bufferPoolSize;
+
+    private final ExecutorService chunkWriters = Executors.newVirtualThreadPerTaskExecutor();
+
+    private UploadPipeline uploadPipeline;
+
+    // The upload pipeline's sink for each shard
+    private final Map<String, UploadPipeline.Sink> sinks = new HashMap<>();
+
+    @PostConstruct
+    void init() {
+        for (Shard shard : mongoShards.all()) {
+            sinks.put(shard.name(), sink(shard.template()));
+        }
+        uploadPipeline = new UploadPipeline(sinks.get(mongoShards.all().get(0).name()), chunkWriters,
+                chunkSize, batchChunks, queueBatches, bufferPoolSize);
+    }
+
+    private static UploadPipeline.Sink sink(MongoTemplate mongoTemplate) {
+        MongoCollection<BsonDocument> files = mongoTemplate.getCollection(FILES_COLLECTION).withDocumentClass(BsonDocument.class);
+        MongoCollection<BsonDocument> chunks = mongoTemplate.getCollection(CHUNKS_COLLECTION).withDocumentClass(BsonDocument.class);
+        return new UploadPipeline.Sink() {
+            @Override
+            public void insertChunks(List<BsonDocument> documents) {
+                chunks.insertMany(documents);
+            }
+
+            @Override
+            public void insertFile(BsonDocument file) {
+                files.insertOne(file);
+            }
+
+            @Override
+            public void deleteChunks(BsonObjectId fileId) {
+                chunks.deleteMany(Filters.eq("files_id", fileId));
+            }
+        };
+    }
 
     /**
      * Store a file in GridFS using streaming with custom parameters
-     * This method streams the InputStream directly without loading it into memory
+     * This method streams the InputStream directly without loading it into memory,
+     * reading the next chunks while earlier ones are written (see {@link UploadPipeline})
+     */
+    public ObjectId storeFileStreaming(String ownerId, InputStream inputStream, String filename, String contentType) throws IOException {
+        return store(ownerId, inputStream, filename, contentType, false).gridFsId();
+    }
+
+    /**
+     * Store a file in GridFS, encrypted chunk by chunk when {@code encrypt} is set (see {@link ContentEncryption}).
+     * Encrypted content always goes through the upload pipeline, which seals the chunks before writing them.
+     *
+     * @throws OwnerMovingException while the owner's files are being moved to another shard
      */
-    public ObjectId storeFileStreaming(InputStream inputStream, String filename, String contentType) throws IOException {
-        logger.debug("Storing file in GridFS: filename={}, contentType={}", filename, contentType);
+    public StoredContent store(String ownerId, InputStream inputStream, String filename, String contentType, boolean encrypt) throws IOException {
+        logger.debug("Storing file in GridFS: filename={}, contentType={}, encrypt={}", filename, contentType, encrypt);
+        Shard shard = mongoShards.forOwnerWrite(ownerId);
         try {
-            return gridFsOperations.store(inputStream, filename, contentType);
+            if (!pipelineEnabled && !encrypt) {
+                ObjectId gridFsId = shard.gridFs().store(inputStream, filename, contentType);
+                return new StoredContent(gridFsId, getResource(shard, gridFsId).getGridFSFile().getLength(),
+                        calculateMD5FromGridFS(shard, gridFsId), null);
+            }
+            ContentEncryption.FileKey key = encrypt ? contentEncryption.newFileKey(chunkSize - ChunkCipher.TAG_BYTES) : null;
+            long started = System.nanoTime();
+            UploadPipeline.Result result = uploadPipeline.store(sinks.get(shard.name()), inputStream, filename, contentType,
+                    key != null ? key.cipher() : null);
+            logger.debug("Stored file in GridFS: gridFsId={}, bytes={}, ms={}",
+                    result.id(), result.length(), (System.nanoTime() - started) / 1_000_000);
+            return new StoredContent(result.id(), result.length(), result.md5(), key != null ? key.encryption() : null);
         } catch (Exception e) {
             logger.error("Failed to store file in GridFS: filename={}, contentType={}", filename, contentType, e);
             throw new IOException("Failed to store file in GridFS", e);
         }
     }
 
-    public GridFsResource getResource(ObjectId objectId) {
-        GridFSFile gridFSFile = gridFsOperations.findOne(Query.query(Criteria.where("_id").is(objectId)));
+    public GridFsResource getResource(String ownerId, ObjectId objectId) {
+        return getResource(mongoShards.forOwner(ownerId), objectId);
+    }
+
+    private GridFsResource getResource(Shard shard, ObjectId objectId) {
+        GridFSFile gridFSFile = shard.gridFs().findOne(Query.query(Criteria.where("_id").is(objectId)));
         if (gridFSFile != null) {
-            return gridFsOperations.getResource(gridFSFile);
+            return shard.gridFs().getResource(gridFSFile);
         } else {
             logger.warn("File not found in GridFS: objectId={}", objectId);
             return null;
         }
     }
 
-    public void deleteFile(ObjectId objectId) {
+    /**
+     * Open the stored content positioned at {@code offset}, limited to {@code length} bytes.
+     * GridFS seeks to the chunk holding the offset, so earlier chunks are not read.
+     * Returns null when the file is not in GridFS.
+     */
+    public InputStream openStream(String ownerId, ObjectId objectId, long offset, long length) throws IOException {
+        return openStream(mongoShards.forOwner(ownerId), objectId, offset, length);
+    }
+
+    private InputStream openStream(Shard shard, ObjectId objectId, long offset, long length) throws IOException {
+        GridFsResource resource = getResource(shard, objectId);
+        if (resource == null) {
+            return null;
+        }
+        InputStream inputStream = resource.getInputStream();
+        try {
+            inputStream.skipNBytes(offset);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+        return new BoundedInputStream(inputStream, length);
+    }
+
+    /**
+     * Open a file's plaintext positioned at {@code offset}, limited to {@code length} bytes, from whichever
+     * tier holds it. For an encrypted file only the chunks from the one holding the offset onwards are
+     * decrypted. Returns null when the content is not found.
+     */
+    public InputStream openContent(FileMetadata file, long offset, long length) throws IOException {
+        FileEncryption encryption = file.getEncryption();
+        if (encryption == null) {
+            return openStored(file, offset, length);
+        }
+        long firstChunk = offset / encryption.getChunkSize();
+        long sealedChunkSize = encryption.getChunkSize() + ChunkCipher.TAG_BYTES;
+        InputStream sealed = openStored(file, firstChunk * sealedChunkSize, Long.MAX_VALUE);
+        if (sealed == null) {
+            return null;
+        }
+        InputStream plain = contentEncryption.decrypting(sealed, encryption, firstChunk, file.getSize());
+        try {
+            plain.skipNBytes(offset - firstChunk * encryption.getChunkSize());
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+        return new BoundedInputStream(plain, length);
+    }
+
+    private InputStream openStored(FileMetadata file, long offset, long length) throws IOException {
+        return file.isCold()
+                ? coldStore.open(file.getGridFsId(), offset, length)
+                : openStream(mongoShards.forOwner(file.getOwnerId()), file.getGridFsId(), offset, length);
+    }
+
+    /**
+     * The plaintext of a whole stored file opened elsewhere, e.g. by the {@link DownloadCoalescer}
+     */
+    public InputStream decrypting(FileMetadata file, InputStream stored) throws IOException {
+        if (stored == null || file.getEncryption() == null) {
+            return stored;
+        }
+        return contentEncryption.decrypting(stored, file.getEncryption(), 0, file.getSize());
+    }
+
+    public void deleteFile(String ownerId, ObjectId objectId) {
         try {
-            gridFsOperations.delete(Query.query(Criteria.where("_id").is(objectId)));
+            mongoShards.forOwner(ownerId).gridFs().delete(Query.query(Criteria.where("_id").is(objectId)));
             logger.info("Successfully deleted file from GridFS: objectId={}", objectId);
         } catch (Exception e) {
             logger.error("Failed to delete file from GridFS: objectId={}", objectId, e);
@@ -59,13 +249,221 @@ public class GridFsService {
         }
     }
 
+    /**
+     * Remove the fs.files documents only. Once this is done the content can no longer be opened,
+     * the chunks are left for {@link #deleteChunkBatch} to remove at a controlled pace.
+     */
+    public long deleteFileDocuments(Shard shard, Collection<ObjectId> objectIds) {
+        return shard.template().remove(Query.query(Criteria.where("_id").in(objectIds)), FILES_COLLECTION)
+                .getDeletedCount();
+    }
+
+    /**
+     * Delete at most {@code batchSize} chunks belonging to the given files.
+     * Returns the number of chunks removed, zero means nothing is left.
+     */
+    public long deleteChunkBatch(Shard shard, Collection<ObjectId> objectIds, int batchSize) {
+        Query query = Query.query(Criteria.where("files_id").in(objectIds)).limit(batchSize);
+        query.fields().include("_id");
+        List<Object> chunkIds = shard.template().find(query, Document.class, CHUNKS_COLLECTION).stream()
+                .map(chunk -> chunk.get("_id"))
+                .toList();
+        if (chunkIds.isEmpty()) {
+            return 0;
+        }
+        return shard.template().remove(Query.query(Criteria.where("_id").in(chunkIds)), CHUNKS_COLLECTION)
+                .getDeletedCount();
+    }
+
+    /**
+     * Page through fs.files in _id order, returning ids of files uploaded before the given instant
+     */
+    public List<ObjectId> findFileIdsUploadedBefore(Shard shard, ObjectId after, Instant uploadedBefore, int limit) {
+        Criteria criteria = Criteria.where("uploadDate").lt(Date.from(uploadedBefore));
+        if (after != null) {
+            criteria = criteria.and("_id").gt(after);
+        }
+        Query query = Query.query(criteria).limit(limit).with(Sort.by(Sort.Direction.ASC, "_id"));
+        query.fields().include("_id");
+        return shard.template().find(query, Document.class, FILES_COLLECTION).stream()
+                .map(file -> file.getObjectId("_id"))
+                .toList();
+    }
+
+    /**
+     * Copy a GridFS file as stored, same id and chunks, from one shard to another, replacing an earlier
+     * copy. The fs.files document goes last, so an interrupted copy is never readable.
+     *
+     * @param throttle paces the copy in bytes
+     * @return the bytes copied, -1 when the file is not on {@code from}
+     */
+    public long copyContent(Shard from, Shard to, ObjectId gridFsId, Throttle throttle) throws InterruptedException {
+        Document file = from.template().findOne(Query.query(Criteria.where("_id").is(gridFsId)), Document.class, FILES_COLLECTION);
+        if (file == null) {
+            return -1;
+        }
+        to.template().remove(Query.query(Criteria.where("files_id").is(gridFsId)), CHUNKS_COLLECTION);
+        long bytes = 0;
+        int next = 0;
+        while (true) {
+            Query page = Query.query(Criteria.where("files_id").is(gridFsId).and("n").gte(next))
+                    .with(Sort.by(Sort.Direction.ASC, "n")).limit(batchChunks);
+            List<Document> chunks = from.template().find(page, Document.class, CHUNKS_COLLECTION);
+            if (chunks.isEmpty()) {
+                break;
+            }
+            to.template().insert(chunks, CHUNKS_COLLECTION);
+            long copied = chunks.stream().mapToLong(chunk -> chunk.get("data", Binary.class).length()).sum();
+            bytes += copied;
+            next = chunks.get(chunks.size() - 1).getInteger("n") + 1;
+            throttle.acquire(copied);
+        }
+        to.template().save(file, FILES_COLLECTION);
+        return bytes;
+    }
+
+    /**
+     * Plaintext bytes per GridFS chunk of new uploads, part sizes of uploads in parts are a multiple of it
+     */
+    public int plainChunkSize(boolean encrypted) {
+        return encrypted ? chunkSize - ChunkCipher.TAG_BYTES : chunkSize;
+    }
+
+    /**
+     * Write one attempt of a part of a file uploaded in parts as its chunks from {@code firstChunk} on,
+     * replacing whatever an earlier attempt left. An encrypted attempt is sealed under a data key of its
+     * own, returned as the content's encryption, since its chunk indexes were or may be sealed before.
+     * The md5 returned is that of the part.
+     */
+    public StoredContent storePart(Shard shard, ObjectId gridFsId, int firstChunk, int partChunks,
+                                   InputStream content, boolean encrypt) throws IOException {
+        shard.template().getCollection(CHUNKS_COLLECTION).deleteMany(Filters.and(Filters.eq("files_id", gridFsId),
+                Filters.gte("n", firstChunk), Filters.lt("n", firstChunk + partChunks)));
+        ContentEncryption.FileKey key = encrypt ? contentEncryption.newFileKey(plainChunkSize(true)) : null;
+        UploadPipeline.Written written = uploadPipeline.storePart(sinks.get(shard.name()), gridFsId, firstChunk, content,
+                key != null ? key.cipher() : null);
+        return new StoredContent(gridFsId, written.length(), written.md5(), key != null ? key.encryption() : null);
+    }
+
+    /**
+     * Finish an unencrypted file uploaded in parts: write its fs.files document and hash the content read
+     * back from the chunks, which also checks that none is missing or of the wrong size.
+     *
+     * @return null when chunks are missing
+     * @throws IOException when the stored chunks do not make up the file, its fs.files document is removed again
+     */
+    public StoredContent completeParts(Shard shard, ObjectId gridFsId, String filename, String contentType, long size) throws IOException {
+        MongoCollection<BsonDocument> files = partsFile(shard, gridFsId, filename, contentType, size, chunkSize, 0);
+        if (files == null) {
+            return null;
+        }
+        String hash;
+        try (InputStream content = openStream(shard, gridFsId, 0, Long.MAX_VALUE)) {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[chunkSize];
+            long length = 0;
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                md5.update(buffer, 0, read);
+                length += read;
+            }
+            if (length != size) {
+                throw new IOException("Stored parts hold " + length + " of " + size + " bytes");
+            }
+            hash = HexFormat.of().formatHex(md5.digest());
+        } catch (IOException | RuntimeException | NoSuchAlgorithmException e) {
+            files.deleteOne(Filters.eq("_id", gridFsId));
+            throw e instanceof IOException io ? io : new IOException("Failed to read back the stored parts", e);
+        }
+        files.updateOne(Filters.eq("_id", gridFsId), Updates.set("md5", hash));
+        return new StoredContent(gridFsId, size, hash, null);
+    }
+
+    /**
+     * Finish an encrypted file uploaded in parts. Its parts were staged under {@code stagingId}, each sealed
+     * with the key of its last attempt ({@code partKeys}, by part); they are opened and stored again as a new
+     * file under a fresh data key, so that every key seals each chunk index once. The staged chunks are left
+     * for the caller to reclaim.
+     *
+     * @return the new file, null when staged chunks are missing
+     * @throws IOException when the staged chunks do not make up the file
+     */
+    public StoredContent completeEncryptedParts(String ownerId, Shard shard, ObjectId stagingId, String filename, String contentType,
+                                                long size, long partSize, List<FileEncryption> partKeys) throws IOException {
+        int plainChunkSize = plainChunkSize(true);
+        int sealedChunkSize = plainChunkSize + ChunkCipher.TAG_BYTES;
+        if (partsFile(shard, stagingId, filename, contentType, size, plainChunkSize, ChunkCipher.TAG_BYTES) == null) {
+            return null;
+        }
+        long sealedPartSize = partSize / plainChunkSize * sealedChunkSize;
+
+        // Each part is opened only once the one before it was read
+        Enumeration<InputStream> parts = new Enumeration<>() {
+            private int part;
+
+            @Override
+            public boolean hasMoreElements() {
+                return part < partKeys.size();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                long plainOffset = part * partSize;
+                long plainLength = Math.min(partSize, size - plainOffset);
+                try {
+                    InputStream sealed = openStream(shard, stagingId, part * sealedPartSize, Long.MAX_VALUE);
+                    return contentEncryption.decrypting(sealed, partKeys.get(part++), plainOffset / plainChunkSize, plainOffset + plainLength);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        StoredContent stored;
+        try (InputStream plaintext = new SequenceInputStream(parts)) {
+            stored = store(ownerId, plaintext, filename, contentType, true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (stored.length() != size) {
+            deleteFile(ownerId, stored.gridFsId());
+            throw new IOException("Stored parts hold " + stored.length() + " of " + size + " bytes");
+        }
+        return stored;
+    }
+
+    /**
+     * Write the fs.files document of a file uploaded in parts, once all its chunks are there. Replaced,
+     * a completion that failed half way may have left it.
+     *
+     * @return the fs.files collection, null when chunks are missing
+     */
+    private MongoCollection<BsonDocument> partsFile(Shard shard, ObjectId gridFsId, String filename, String contentType,
+                                                    long size, int plainChunkSize, int chunkOverhead) {
+        long chunks = (size + plainChunkSize - 1) / plainChunkSize;
+        if (shard.template().getCollection(CHUNKS_COLLECTION).countDocuments(Filters.eq("files_id", gridFsId)) != chunks) {
+            return null;
+        }
+        MongoCollection<BsonDocument> files = shard.template().getCollection(FILES_COLLECTION).withDocumentClass(BsonDocument.class);
+        files.replaceOne(Filters.eq("_id", gridFsId),
+                uploadPipeline.partsFileDocument(gridFsId, filename, contentType, size + chunks * chunkOverhead),
+                new ReplaceOptions().upsert(true));
+        return files;
+    }
+
     /**
      * Calculate MD5 hash from a GridFS file by ObjectId
-     * This method streams the file content without loading it entirely into memory
+     * Files stored by the upload pipeline carry their hash, others are streamed without loading them into memory.
+     * For encrypted files this is the hash of the plaintext, as recorded by the pipeline.
      */
-    public String calculateMD5FromGridFS(ObjectId objectId) throws IOException {
-        
-        GridFsResource resource = getResource(objectId);
+    private String calculateMD5FromGridFS(Shard shard, ObjectId objectId) throws IOException {
+        Query stored = Query.query(Criteria.where("_id").is(objectId));
+        stored.fields().include("md5");
+        Document file = shard.template().findOne(stored, Document.class, FILES_COLLECTION);
+        if (file != null && file.get("md5") instanceof String md5) {
+            return md5;
+        }
+
+        GridFsResource resource = getResource(shard, objectId);
         if (resource == null) {
             throw new IOException("File not found in GridFS: " + objectId);
         }
@@ -0,0 +1,331 @@
+package lambdalabs.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.ScrubFinding;
+import lambdalabs.filestorage.model.ScrubProgress;
+import lambdalabs.filestorage.model.StorageTier;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.MongoShards;
+import lambdalabs.filestorage.repository.ScrubRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-reads stored content in the background and checks it against the metadata's size and md5
+ * (see {@link ContentVerifier}), so damaged or missing content is found before a user downloads it.
+ * <p>
+ * A pass walks file_metadata in id order, {@code batch-size} files at a time with {@code concurrency}
+ * files read at once, and stores its position after every batch in scrub_progress, so a restart or
+ * another node resumes where it stopped. One node at a time scrubs, under a lease. Reads are paced to
+ * {@code bytes-per-second} over all of them, and pause while more than {@code yield-above-transfers}
+ * uploads and downloads are admitted or waiting. Problems are written to scrub_findings, one per file,
+ * and dropped again once the file checks out. A new pass starts {@code pass-interval} after the
+ * previous one completed.
+ */
+@Service
+public class IntegrityScrubber {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntegrityScrubber.class);
+
+    private final String workerId = UUID.randomUUID().toString();
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    @Autowired
+    private ScrubRepository scrubRepository;
+
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Autowired
+    private GridFsService gridFsService;
+
+    @Autowired
+    private ContentEncryption contentEncryption;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${file-storage.scrub.enabled:true}")
+    private boolean enabled;
+
+    @Value("${file-storage.scrub.pass-interval:7d}")
+    private Duration passInterval;
+
+    @Value("${file-storage.scrub.batch-size:32}")
+    private int batchSize;
+
+    @Value("${file-storage.scrub.concurrency:2}")
+    private int concurrency;
+
+    @Value("${file-storage.scrub.bytes-per-second:8388608}")
+    private double bytesPerSecond;
+
+    @Value("${file-storage.scrub.yield-above-transfers:8}")
+    private int yieldAboveTransfers;
+
+    @Value("${file-storage.scrub.yield-pause:1s}")
+    private Duration yieldPause;
+
+    @Value("${file-storage.scrub.lease:5m}")
+    private Duration lease;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile boolean stopping;
+
+    private volatile Thread pass;
+
+    private Throttle throttle;
+
+    private ExecutorService readers;
+
+    private Counter filesChecked;
+
+    private Counter bytesChecked;
+
+    private Counter yields;
+
+    // Files checked so far in the current pass, as last stored
+    private final AtomicLong passFiles = new AtomicLong();
+
+    private final AtomicLong lastPassCompleted = new AtomicLong();
+
+    @PostConstruct
+    void init() {
+        throttle = new Throttle(bytesPerSecond);
+        readers = Executors.newFixedThreadPool(Math.max(1, concurrency), Thread.ofVirtual().name("scrub-reader-", 0).factory());
+        filesChecked = Counter.builder("filestorage.scrub.files")
+                .description("Files whose content the integrity scrub read and checked")
+                .register(meterRegistry);
+        bytesChecked = Counter.builder("filestorage.scrub.bytes")
+                .description("Content bytes read by the integrity scrub")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        yields = Counter.builder("filestorage.scrub.yields")
+                .description("Pauses of the integrity scrub in favour of foreground transfers")
+                .register(meterRegistry);
+        Gauge.builder("filestorage.scrub.pass.files", passFiles, AtomicLong::get)
+                .description("Files checked so far in the current integrity scrub pass")
+                .register(meterRegistry);
+        Gauge.builder("filestorage.scrub.last.pass.completed", lastPassCompleted, AtomicLong::get)
+                .description("When the last integrity scrub pass completed, in seconds since the epoch")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Start or resume a pass when it is due. The pass runs on a thread of its own for as long as it
+     * takes, keeping the scheduler free for the other jobs.
+     */
+    @Scheduled(initialDelayString = "${file-storage.scrub.interval:1m}",
+            fixedDelayString = "${file-storage.scrub.interval:1m}")
+    public void scrub() {
+        if (!enabled || stopping || !running.compareAndSet(false, true)) {
+            return;
+        }
+        pass = Thread.ofVirtual().name("integrity-scrub").start(() -> {
+            try {
+                runPass();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.error("Integrity scrub failed", e);
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    private void runPass() throws InterruptedException {
+        Instant now = Instant.now();
+        ScrubProgress progress = scrubRepository.claim(workerId, now, now.plus(lease));
+        if (progress == null) {
+            return;
+        }
+        try {
+            if (progress.getLastPassCompletedAt() != null) {
+                lastPassCompleted.set(progress.getLastPassCompletedAt().getEpochSecond());
+            }
+            if (progress.getPassStartedAt() == null) {
+                if (progress.getLastPassCompletedAt() != null && progress.getLastPassCompletedAt().plus(passInterval).isAfter(now)) {
+                    return;
+                }
+                progress.setPassStartedAt(now);
+                progress.setAfter(null);
+                progress.setFilesChecked(0);
+                progress.setBytesChecked(0);
+                logger.info("Integrity scrub pass started");
+            }
+
+            List<FileMetadata> batch;
+            do {
+                batch = fileMetadataRepository.findForScrub(progress.getAfter(), batchSize);
+                long bytes = checkBatch(batch);
+                if (batch.isEmpty()) {
+                    progress.setLastPassCompletedAt(Instant.now());
+                    logger.info("Integrity scrub pass completed: files={}, bytes={}, findings={}",
+                            progress.getFilesChecked(), progress.getBytesChecked(), scrubRepository.countFindings());
+                    progress.setPassStartedAt(null);
+                    progress.setAfter(null);
+                    lastPassCompleted.set(progress.getLastPassCompletedAt().getEpochSecond());
+                } else {
+                    progress.setAfter(batch.get(batch.size() - 1).getId());
+                    progress.setFilesChecked(progress.getFilesChecked() + batch.size());
+                    progress.setBytesChecked(progress.getBytesChecked() + bytes);
+                }
+                if (!scrubRepository.saveProgress(workerId, progress, Instant.now().plus(lease))) {
+                    logger.warn("Integrity scrub lost its lease, stopping");
+                    return;
+                }
+                passFiles.set(progress.getFilesChecked());
+            } while (!batch.isEmpty() && !stopping);
+        } finally {
+            scrubRepository.release(workerId);
+        }
+    }
+
+    /**
+     * Check the files of one batch, renewing the lease while the reads take longer than a fraction of it
+     *
+     * @return bytes read
+     */
+    private long checkBatch(List<FileMetadata> batch) throws InterruptedException {
+        List<Future<ContentVerifier.Result>> checks = new ArrayList<>(batch.size());
+        for (FileMetadata file : batch) {
+            checks.add(readers.submit(() -> check(file)));
+        }
+
+        long bytes = 0;
+        List<String> intact = new ArrayList<>();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                ContentVerifier.Result result = await(checks.get(i));
+                if (result == null) {
+                    continue;
+                }
+                bytes += result.length();
+                if (result.problem() == null) {
+                    intact.add(batch.get(i).getId());
+                } else {
+                    report(batch.get(i), result);
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to read stored content", e.getCause());
+        } finally {
+            checks.forEach(check -> check.cancel(true));
+        }
+        scrubRepository.clear(intact);
+        return bytes;
+    }
+
+    private ContentVerifier.Result await(Future<ContentVerifier.Result> check) throws InterruptedException, ExecutionException {
+        long renewEvery = Math.max(1, lease.toMillis() / 3);
+        while (true) {
+            try {
+                return check.get(renewEvery, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (!scrubRepository.renew(workerId, Instant.now().plus(lease))) {
+                    throw new IllegalStateException("Integrity scrub lost its lease");
+                }
+            }
+        }
+    }
+
+    /**
+     * @return null for content that cannot be checked on this node
+     */
+    private ContentVerifier.Result check(FileMetadata file) throws Exception {
+        // Without the master key every encrypted file would look damaged
+        if (file.getEncryption() != null && !contentEncryption.isEnabled()) {
+            return null;
+        }
+        ContentVerifier.Result result;
+        try (InputStream content = gridFsService.openContent(file, 0, Long.MAX_VALUE)) {
+            result = ContentVerifier.verify(content, file.getMd5(), file.getSize(), this::pace);
+        }
+        filesChecked.increment();
+        bytesChecked.increment(result.length());
+        return result;
+    }
+
+    private void pace(int bytes) throws InterruptedException {
+        throttle.acquire(bytes);
+        // Foreground transfers come first, the scrub has all the time in the world
+        while (admissionControl.foregroundTransfers() > yieldAboveTransfers && !stopping) {
+            yields.increment();
+            Thread.sleep(yieldPause);
+        }
+    }
+
+    private void report(FileMetadata file, ContentVerifier.Result result) {
+        // A file deleted, moved between tiers or moved to another shard while it was read is not damaged
+        StorageTier tier = file.isCold() ? StorageTier.COLD : StorageTier.HOT;
+        if (mongoShards.isMoving(file.getOwnerId())
+                || fileMetadataRepository.findGridFsReferences(mongoShards.forOwner(file.getOwnerId()), List.of(file.getGridFsId()))
+                        .get(file.getGridFsId()) != tier) {
+            return;
+        }
+        ScrubFinding finding = new ScrubFinding();
+        finding.setId(file.getId());
+        finding.setGridFsId(file.getGridFsId());
+        finding.setOwnerId(file.getOwnerId());
+        finding.setFilename(file.getFilename());
+        finding.setTier(tier);
+        finding.setProblem(result.problem());
+        finding.setDetail(result.detail());
+        finding.setExpectedMd5(file.getMd5());
+        finding.setActualMd5(result.md5());
+        finding.setExpectedSize(file.getSize());
+        finding.setActualSize(result.length());
+        finding.setDetectedAt(Instant.now());
+        scrubRepository.report(finding);
+
+        Counter.builder("filestorage.scrub.findings")
+                .description("Files found damaged or missing by the integrity scrub")
+                .tag("problem", result.problem().name().toLowerCase())
+                .register(meterRegistry)
+                .increment();
+        logger.warn("Integrity scrub found damaged content: metadataId={}, gridFsId={}, tier={}, problem={}, detail={}",
+                file.getId(), file.getGridFsId(), tier, result.problem(), result.detail());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        stopping = true;
+        Thread current = pass;
+        if (current != null) {
+            current.interrupt();
+        }
+        readers.shutdownNow();
+    }
+}
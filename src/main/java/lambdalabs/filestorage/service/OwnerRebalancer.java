@@ -0,0 +1,292 @@
+package lambdalabs.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lambdalabs.filestorage.model.OwnerPlacement;
+import lambdalabs.filestorage.model.StorageTier;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.MongoShards;
+import lambdalabs.filestorage.repository.MongoShards.Shard;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Moves owners to the shard the hash ring assigns them, after shard databases were added or removed
+ * (see {@link MongoShards}). Owners move one at a time, online:
+ * <ol>
+ * <li>the owner is marked as moving, which makes their files read-only, and the rebalancer waits
+ * until every node saw that;</li>
+ * <li>metadata and then GridFS content are copied to the new shard in pages, paced to
+ * {@code bytes-per-second}, while reads keep going to the old one;</li>
+ * <li>once the copy is complete and every copy still matches the old shard's document, so no write
+ * slipped in after all, the owner is placed on the new shard and, after every node saw that, the old
+ * copies are removed, GridFS content through the {@link StorageReclaimer}.</li>
+ * </ol>
+ * A move that fails is aborted and its copies removed the same way. A move left behind by a node that
+ * stopped is aborted once it made no progress for {@code stale-after}. Cold tier content is shared by
+ * all shards and stays where it is.
+ */
+@Service
+public class OwnerRebalancer {
+
+    private static final Logger logger = LoggerFactory.getLogger(OwnerRebalancer.class);
+
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    @Autowired
+    private GridFsService gridFsService;
+
+    @Autowired
+    private StorageReclaimer storageReclaimer;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${file-storage.shards.rebalance.enabled:false}")
+    private boolean enabled;
+
+    @Value("${file-storage.shards.rebalance.max-owners-per-run:10}")
+    private int maxOwnersPerRun;
+
+    @Value("${file-storage.shards.rebalance.batch-size:100}")
+    private int batchSize;
+
+    @Value("${file-storage.shards.rebalance.bytes-per-second:20971520}")
+    private double bytesPerSecond;
+
+    @Value("${file-storage.shards.rebalance.stale-after:1h}")
+    private Duration staleAfter;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private volatile boolean stopping;
+
+    private volatile Thread run;
+
+    private Throttle throttle;
+
+    private Counter ownersMoved;
+
+    private Counter bytesMoved;
+
+    @PostConstruct
+    void init() {
+        throttle = new Throttle(bytesPerSecond);
+        ownersMoved = Counter.builder("filestorage.rebalance.owners")
+                .description("Owners moved to the shard the hash ring assigns them")
+                .register(meterRegistry);
+        bytesMoved = Counter.builder("filestorage.rebalance.bytes")
+                .description("GridFS content bytes copied between shards")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Move up to {@code max-owners-per-run} misplaced owners. Moves wait for placement caches to expire
+     * and copy content for as long as it takes, so they run on a thread of their own.
+     */
+    @Scheduled(initialDelayString = "${file-storage.shards.rebalance.interval:10m}",
+            fixedDelayString = "${file-storage.shards.rebalance.interval:10m}")
+    public void rebalance() {
+        if (!enabled || !mongoShards.isSharded() || stopping || !running.compareAndSet(false, true)) {
+            return;
+        }
+        run = Thread.ofVirtual().name("owner-rebalance").start(() -> {
+            try {
+                abortStaleMoves();
+                moveOwners();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.error("Owner rebalancing failed", e);
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    private void abortStaleMoves() throws InterruptedException {
+        for (OwnerPlacement placement : mongoShards.findStaleMoves(Instant.now().minus(staleAfter))) {
+            logger.warn("Aborting stalled owner move: ownerId={}, from={}, to={}, since={}",
+                    placement.getId(), placement.getShard(), placement.getMovingTo(), placement.getMovingSince());
+            mongoShards.abortMove(placement.getId(), placement.getMovingTo());
+            awaitPlacementCaches();
+            discard(placement.getId(), mongoShards.named(placement.getMovingTo()));
+        }
+    }
+
+    private void moveOwners() throws InterruptedException {
+        int moved = 0;
+        for (Shard shard : mongoShards.all()) {
+            List<String> misplaced;
+            try (Stream<FileMetadataRepository.OwnerTotals> owners = fileMetadataRepository.streamOwnerTotals(shard)) {
+                misplaced = owners.map(FileMetadataRepository.OwnerTotals::id)
+                        .filter(ownerId -> ownerId != null && mongoShards.forOwner(ownerId) == shard
+                                && !mongoShards.ringShard(ownerId).equals(shard.name()))
+                        .limit(maxOwnersPerRun - moved)
+                        .toList();
+            }
+            for (String ownerId : misplaced) {
+                if (stopping) {
+                    return;
+                }
+                try {
+                    if (move(ownerId, shard, mongoShards.named(mongoShards.ringShard(ownerId)))) {
+                        moved++;
+                    }
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.error("Failed to move owner: ownerId={}, from={}", ownerId, shard.name(), e);
+                }
+            }
+            if (moved >= maxOwnersPerRun) {
+                return;
+            }
+        }
+    }
+
+    private boolean move(String ownerId, Shard from, Shard to) throws InterruptedException {
+        if (fileMetadataRepository.countByOwner(to, ownerId) > 0) {
+            // Left by an aborted move, the reclaimer gets the content out of the way before the next attempt
+            logger.info("Removing copies of an earlier move first: ownerId={}, shard={}", ownerId, to.name());
+            discard(ownerId, to);
+            return false;
+        }
+        if (!mongoShards.startMove(ownerId, from.name(), to.name())) {
+            return false;
+        }
+        logger.info("Moving owner: ownerId={}, from={}, to={}", ownerId, from.name(), to.name());
+        long files = 0;
+        long bytes = 0;
+        boolean finished = false;
+        try {
+            // Nodes that read the placement before the move still accept writes until then
+            awaitPlacementCaches();
+
+            Object after = null;
+            List<Document> page;
+            do {
+                page = fileMetadataRepository.findOwnerDocuments(from, ownerId, after, batchSize);
+                // Metadata first, so the reclaimer's orphan scan never takes the content copies for orphans
+                fileMetadataRepository.copyDocuments(to, page, Instant.now());
+                for (Document document : page) {
+                    if (!StorageTier.COLD.name().equals(document.getString("tier"))
+                            && document.get("gridFsId") instanceof ObjectId gridFsId) {
+                        long copied = gridFsService.copyContent(from, to, gridFsId, throttle);
+                        if (copied < 0) {
+                            logger.warn("File not found in GridFS, moving its metadata only: ownerId={}, gridFsId={}", ownerId, gridFsId);
+                        } else {
+                            bytes += copied;
+                            bytesMoved.increment(copied);
+                        }
+                    }
+                    if (!mongoShards.renewMove(ownerId, to.name())) {
+                        logger.warn("Owner move was aborted elsewhere: ownerId={}", ownerId);
+                        return false;
+                    }
+                }
+                if (!page.isEmpty()) {
+                    after = page.get(page.size() - 1).get("_id");
+                }
+                files += page.size();
+            } while (page.size() == batchSize && !stopping);
+            if (stopping) {
+                return false;
+            }
+
+            long copies = fileMetadataRepository.countByOwner(to, ownerId);
+            if (copies != files || files != fileMetadataRepository.countByOwner(from, ownerId)) {
+                throw new IllegalStateException("Copied " + copies + " of " + files + " metadata documents");
+            }
+            // A node that missed the move for longer than the caches live could still have written meanwhile
+            if (!copiesMatch(ownerId, from, to)) {
+                throw new IllegalStateException("Files changed on " + from.name() + " while they were copied");
+            }
+            finished = mongoShards.finishMove(ownerId, to.name());
+            if (!finished) {
+                return false;
+            }
+        } finally {
+            if (!finished) {
+                mongoShards.abortMove(ownerId, to.name());
+                awaitPlacementCaches();
+                discard(ownerId, to);
+            }
+        }
+
+        // Nodes that read the placement during the move may still read from the old shard until then
+        awaitPlacementCaches();
+        discard(ownerId, from);
+        ownersMoved.increment();
+        logger.info("Moved owner: ownerId={}, from={}, to={}, files={}, bytes={}", ownerId, from.name(), to.name(), files, bytes);
+        return true;
+    }
+
+    /**
+     * Whether the owner's documents on both shards are the same files with the same versions
+     */
+    private boolean copiesMatch(String ownerId, Shard from, Shard to) {
+        Object after = null;
+        List<Document> sources;
+        do {
+            sources = fileMetadataRepository.findOwnerVersions(from, ownerId, after, batchSize);
+            if (!sources.equals(fileMetadataRepository.findOwnerVersions(to, ownerId, after, batchSize))) {
+                return false;
+            }
+            if (!sources.isEmpty()) {
+                after = sources.get(sources.size() - 1).get("_id");
+            }
+        } while (sources.size() == batchSize);
+        return true;
+    }
+
+    /**
+     * Remove the owner's metadata from a shard they are not placed on, handing the GridFS content
+     * to the reclaimer once no metadata there refers to it anymore
+     */
+    private void discard(String ownerId, Shard shard) {
+        List<Document> page;
+        do {
+            page = fileMetadataRepository.findOwnerDocuments(shard, ownerId, null, batchSize);
+            fileMetadataRepository.deleteDocuments(shard, page.stream().map(document -> document.get("_id")).toList());
+            for (Document document : page) {
+                if (!StorageTier.COLD.name().equals(document.getString("tier"))
+                        && document.get("gridFsId") instanceof ObjectId gridFsId) {
+                    storageReclaimer.enqueue(shard, gridFsId, ownerId);
+                }
+            }
+        } while (!page.isEmpty());
+    }
+
+    private void awaitPlacementCaches() throws InterruptedException {
+        Thread.sleep(mongoShards.placementCacheTtl().multipliedBy(2));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        stopping = true;
+        Thread current = run;
+        if (current != null) {
+            current.interrupt();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package lambdalabs.filestorage.service;
+
+import lambdalabs.filestorage.model.FileEncryption;
+import lambdalabs.filestorage.model.UploadSession;
+import lambdalabs.filestorage.model.Visibility;
+import lambdalabs.filestorage.repository.MongoShards;
+import lambdalabs.filestorage.repository.MongoShards.Shard;
+import lambdalabs.filestorage.repository.UploadSessionRepository;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Uploads in parts, which clients send over several connections at once and retry one by one.
+ * <p>
+ * A part is a run of whole GridFS chunks of the file, so parts are written straight into place, in any
+ * order, and a retried part replaces what the failed attempt left. Completing the upload writes the
+ * fs.files document and hashes the content read back; the caller then saves the metadata like for any
+ * other upload, converting the room the upload reserved in the owner's quota when it started into usage.
+ * Aborted and abandoned uploads give the room back. Encrypted parts are sealed under a new data key per attempt and stored again as a new
+ * file on completion, so no key seals a chunk index twice. Uploads nobody wrote a part of for {@code abandon-after} are removed with their chunks.
+ */
+@Service
+public class PartUploads {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartUploads.class);
+
+    @Autowired
+    private UploadSessionRepository uploadSessionRepository;
+
+    @Autowired
+    private GridFsService gridFsService;
+
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Autowired
+    private StorageReclaimer storageReclaimer;
+
+    @Autowired
+    private UsageService usageService;
+
+    @Value("${file-storage.upload.parts.default-part-size:16MB}")
+    private DataSize defaultPartSize;
+
+    @Value("${file-storage.upload.parts.max-part-size:256MB}")
+    private DataSize maxPartSize;
+
+    @Value("${file-storage.upload.parts.max-parts:10000}")
+    private int maxParts;
+
+    @Value("${file-storage.upload.parts.abandon-after:24h}")
+    private Duration abandonAfter;
+
+    @Value("${file-storage.upload.parts.sweep-batch-size:1000}")
+    private int sweepBatchSize;
+
+    /**
+     * Start an upload of {@code size} bytes in parts of about {@code partSize} bytes (the default when null)
+     *
+     * @param folderId the resolved folder
+     * @throws QuotaExceededException when the file would not fit the owner's quota
+     */
+    public UploadSession create(String ownerId, String filename, String contentType, Visibility visibility,
+                                Set<String> tags, String folderId, Instant expiresAt, boolean encrypt,
+                                long size, Long partSize) {
+        // Held until the upload is completed, aborted or abandoned, so other uploads cannot take its room meanwhile
+        UsageService.Reservation reservation = usageService.reserve(ownerId, size);
+
+        UploadSession session = new UploadSession();
+        session.setOwnerId(ownerId);
+        session.setShard(mongoShards.forOwnerWrite(ownerId).name());
+        session.setGridFsId(new ObjectId());
+        session.setFilename(filename);
+        session.setContentType(contentType);
+        session.setVisibility(visibility);
+        session.setTags(tags);
+        session.setFolderId(folderId);
+        session.setExpiresAt(expiresAt);
+        session.setEncrypted(encrypt);
+        session.setSize(size);
+        session.setQuotaReserved(reservation.held());
+        session.setPartSize(partSize(size, partSize != null ? partSize : defaultPartSize.toBytes(), gridFsService.plainChunkSize(encrypt)));
+        session.setCreatedAt(Instant.now());
+        session.setUpdatedAt(session.getCreatedAt());
+        UploadSession created;
+        try {
+            created = uploadSessionRepository.insert(session);
+        } catch (RuntimeException e) {
+            usageService.release(reservation);
+            throw e;
+        }
+        logger.info("Upload in parts started: uploadId={}, ownerId={}, size={}, partSize={}, parts={}",
+                created.getId(), ownerId, size, created.getPartSize(), created.getPartCount());
+        return created;
+    }
+
+    /**
+     * Whole chunks, at most {@code max-part-size} unless more parts than {@code max-parts} would be needed
+     */
+    long partSize(long size, long requested, int plainChunkSize) {
+        long chunks = Math.max(1, (Math.min(requested, maxPartSize.toBytes()) + plainChunkSize - 1) / plainChunkSize);
+        long minChunks = ((size + plainChunkSize - 1) / plainChunkSize + maxParts - 1) / maxParts;
+        return Math.max(chunks, minChunks) * plainChunkSize;
+    }
+
+    /**
+     * @throws UploadSessionException NOT_FOUND when the owner has no such upload
+     */
+    public UploadSession get(String ownerId, String uploadId) {
+        return uploadSessionRepository.findByIdAndOwner(uploadId, ownerId)
+                .orElseThrow(() -> new UploadSessionException(UploadSessionException.Reason.NOT_FOUND, "No upload " + uploadId + " in progress"));
+    }
+
+    /**
+     * Write one part, replacing an earlier attempt of it. The body must hold exactly the part's length.
+     *
+     * @return the part as stored, with the md5 of its bytes
+     */
+    public GridFsService.StoredContent storePart(String ownerId, String uploadId, int part, InputStream body) throws IOException {
+        UploadSession session = get(ownerId, uploadId);
+        if (session.getFileId() != null) {
+            throw new UploadSessionException(UploadSessionException.Reason.INVALID_PART, "The upload was already completed");
+        }
+        if (part < 0 || part >= session.getPartCount()) {
+            throw new UploadSessionException(UploadSessionException.Reason.INVALID_PART,
+                    "Part numbers of this upload run from 0 to " + (session.getPartCount() - 1));
+        }
+        Shard shard = writeShard(session);
+
+        long partLength = session.partLength(part);
+        int plainChunkSize = gridFsService.plainChunkSize(session.isEncrypted());
+        int partChunks = (int) (session.getPartSize() / plainChunkSize);
+        GridFsService.StoredContent stored = gridFsService.storePart(shard, session.getGridFsId(), part * partChunks, partChunks,
+                new BoundedInputStream(body, partLength), session.isEncrypted());
+        if (stored.length() != partLength || body.read() != -1) {
+            // Left in place, the retry of the part replaces it
+            throw new UploadSessionException(UploadSessionException.Reason.INVALID_PART,
+                    "Part " + part + " must hold exactly " + partLength + " bytes");
+        }
+        uploadSessionRepository.addPart(uploadId, ownerId, part, stored.encryption(), Instant.now())
+                .orElseThrow(() -> new UploadSessionException(UploadSessionException.Reason.NOT_FOUND, "No upload " + uploadId + " in progress"));
+        logger.debug("Part stored: uploadId={}, part={}, length={}", uploadId, part, partLength);
+        return stored;
+    }
+
+    /**
+     * The room the upload holds in its owner's quota, to be converted when the file is recorded
+     */
+    public UsageService.Reservation reservation(UploadSession session) {
+        return new UsageService.Reservation(session.getOwnerId(), session.getSize(), session.isQuotaReserved());
+    }
+
+    /**
+     * Assemble the parts into the file's content. The caller saves the metadata and then calls
+     * {@link #finish} (or {@link #discard} when it rejects the content).
+     *
+     * @throws UploadSessionException INCOMPLETE when parts are missing or do not make up the file
+     */
+    public GridFsService.StoredContent complete(UploadSession session) {
+        Shard shard = writeShard(session);
+        if (session.getParts().size() != session.getPartCount()) {
+            throw new UploadSessionException(UploadSessionException.Reason.INCOMPLETE,
+                    session.getParts().size() + " of " + session.getPartCount() + " parts were uploaded");
+        }
+        try {
+            GridFsService.StoredContent stored = session.isEncrypted()
+                    ? gridFsService.completeEncryptedParts(session.getOwnerId(), shard, session.getGridFsId(), session.getFilename(),
+                            session.getContentType(), session.getSize(), session.getPartSize(), partKeys(session))
+                    : gridFsService.completeParts(shard, session.getGridFsId(), session.getFilename(), session.getContentType(),
+                            session.getSize());
+            if (stored == null) {
+                throw new UploadSessionException(UploadSessionException.Reason.INCOMPLETE, "Stored parts are missing, upload them again");
+            }
+            return stored;
+        } catch (IOException e) {
+            logger.warn("Parts do not make up the file: uploadId={}", session.getId(), e);
+            throw new UploadSessionException(UploadSessionException.Reason.INCOMPLETE, "The stored parts do not make up the file, upload them again");
+        }
+    }
+
+    /**
+     * Record the file the upload became, completing it again then returns that file. The file was
+     * recorded with {@link #reservation}, which took over the upload's room in the quota.
+     */
+    public void finish(UploadSession session, String fileId) {
+        reclaimStaging(session);
+        uploadSessionRepository.markCompleted(session.getId(), fileId, Instant.now());
+        logger.info("Upload in parts completed: uploadId={}, metadataId={}", session.getId(), fileId);
+    }
+
+    /**
+     * Forget an upload whose content the caller already queued for reclamation
+     */
+    public void discard(UploadSession session) {
+        reclaimStaging(session);
+        if (uploadSessionRepository.delete(session.getId())) {
+            usageService.release(reservation(session));
+        }
+    }
+
+    /**
+     * Cancel an upload in progress and reclaim its parts
+     */
+    public void abort(String ownerId, String uploadId) {
+        remove(get(ownerId, uploadId));
+    }
+
+    @Scheduled(initialDelayString = "${file-storage.upload.parts.sweep-interval:1h}",
+            fixedDelayString = "${file-storage.upload.parts.sweep-interval:1h}")
+    public void sweepAbandoned() {
+        long swept = 0;
+        try {
+            List<UploadSession> batch;
+            do {
+                batch = uploadSessionRepository.findInactiveSince(Instant.now().minus(abandonAfter), sweepBatchSize);
+                batch.forEach(this::remove);
+                swept += batch.size();
+            } while (batch.size() == sweepBatchSize);
+        } catch (Exception e) {
+            logger.error("Sweep of abandoned uploads failed", e);
+        }
+        if (swept > 0) {
+            logger.info("Removed abandoned uploads: count={}", swept);
+        }
+    }
+
+    private void remove(UploadSession session) {
+        // Content and room of completed uploads belong to their file
+        if (session.getFileId() == null) {
+            storageReclaimer.enqueue(mongoShards.named(session.getShard()), session.getGridFsId(), session.getOwnerId());
+        }
+        // Only by whoever removed it, so the room is given back once
+        if (uploadSessionRepository.delete(session.getId()) && session.getFileId() == null) {
+            usageService.release(reservation(session));
+        }
+    }
+
+    /**
+     * The keys of the parts of an encrypted upload, in part order
+     */
+    private static List<FileEncryption> partKeys(UploadSession session) {
+        List<FileEncryption> keys = new ArrayList<>();
+        for (int part = 0; part < session.getPartCount(); part++) {
+            FileEncryption key = session.getPartKeys().get(Integer.toString(part));
+            if (key == null) {
+                throw new UploadSessionException(UploadSessionException.Reason.INCOMPLETE, "Part " + part + " is missing, upload it again");
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * Encrypted parts were stored again as the file on completion, what they were staged in goes
+     */
+    private void reclaimStaging(UploadSession session) {
+        if (session.isEncrypted()) {
+            storageReclaimer.enqueue(mongoShards.named(session.getShard()), session.getGridFsId(), session.getOwnerId());
+        }
+    }
+
+    /**
+     * The shard the upload's chunks are on, as long as the owner's files are still written there
+     */
+    private Shard writeShard(UploadSession session) {
+        Shard shard = mongoShards.forOwnerWrite(session.getOwnerId());
+        if (!shard.name().equals(session.getShard())) {
+            remove(session);
+            throw new UploadSessionException(UploadSessionException.Reason.RESTART,
+                    "Your files were moved while uploading, start the upload again");
+        }
+        return shard;
+    }
+}
@@ -0,0 +1,11 @@
+package lambdalabs.filestorage.service;
+
+/**
+ * An upload was refused because it would take the owner over their storage quota
+ */
+public class QuotaExceededException extends RuntimeException {
+
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
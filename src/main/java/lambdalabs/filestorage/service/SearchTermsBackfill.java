@@ -0,0 +1,67 @@
+package lambdalabs.filestorage.service;
+
+import jakarta.annotation.PostConstruct;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+
+/**
+ * Derives filename search terms for files stored before search existed. New and renamed files
+ * get them on write; this only has work to do right after an upgrade and is a single index
+ * probe per run otherwise.
+ */
+@Service
+public class SearchTermsBackfill {
+
+    private static final Logger logger = LoggerFactory.getLogger(SearchTermsBackfill.class);
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    @Value("${file-storage.search.backfill-batch-size:1000}")
+    private int batchSize;
+
+    @Value("${file-storage.search.backfill-files-per-second:5000}")
+    private double filesPerSecond;
+
+    private Throttle throttle;
+
+    @PostConstruct
+    void init() {
+        throttle = new Throttle(filesPerSecond);
+    }
+
+    @Scheduled(initialDelayString = "${file-storage.search.backfill-initial-delay:1m}",
+            fixedDelayString = "${file-storage.search.backfill-interval:1h}")
+    public void backfill() {
+        long updated = 0;
+        try {
+            List<FileMetadata> batch;
+            do {
+                batch = fileMetadataRepository.findMissingSearchTerms(batchSize);
+                // Files without a filename cannot be searched and would be found again on every pass
+                batch = batch.stream().filter(file -> file.getFilename() != null).toList();
+                for (FileMetadata file : batch) {
+                    file.setFilename(file.getFilename());
+                }
+                fileMetadataRepository.setSearchTerms(batch);
+                updated += batch.size();
+                throttle.acquire(batch.size());
+            } while (batch.size() == batchSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Search terms backfill failed", e);
+        }
+        if (updated > 0) {
+            logger.info("Backfilled filename search terms: count={}", updated);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package lambdalabs.filestorage.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.ShareLink;
+import lambdalabs.filestorage.model.ShareRevocation;
+import lambdalabs.filestorage.repository.ShareRevocationRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stateless share links: {@code keyId.payload.signature}, where the payload is the {@link ShareLink}
+ * and the signature an HMAC-SHA256 of the key id and payload. Verifying a link needs no database read.
+ * <p>
+ * Keys are rotated by putting a new key first in {@code keys}, which signs links from then on, and
+ * dropping an old key once the links it signed have expired; dropping it earlier revokes them all.
+ * <p>
+ * Single links and all links of a file can also be revoked. Revocations are stored in Mongo and every
+ * node keeps a Bloom filter of them, refreshed every {@code refresh-interval}, so only links the filter
+ * (rarely falsely) reports as revoked are looked up. Until a node loaded the filter it looks up every link.
+ */
+@Service
+public class ShareLinks {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShareLinks.class);
+
+    private static final String HMAC = "HmacSHA256";
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+
+    // Revocations are timestamped by the node that made them, refreshes overlap by this much
+    private static final Duration CLOCK_SKEW = Duration.ofMinutes(1);
+
+    /**
+     * A new link: its id, for revoking it, and the token that goes into its URL
+     */
+    public record Issued(String id, String token, Instant expiresAt) {
+    }
+
+    @Autowired
+    private ShareRevocationRepository shareRevocationRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${file-storage.share-links.keys:}")
+    private String keysConfig;
+
+    @Value("${file-storage.share-links.default-ttl:1d}")
+    private Duration defaultTtl;
+
+    @Value("${file-storage.share-links.max-ttl:30d}")
+    private Duration maxTtl;
+
+    @Value("${file-storage.share-links.revocation.enabled:true}")
+    private boolean revocationEnabled;
+
+    @Value("${file-storage.share-links.revocation.expected-revocations:10000}")
+    private int expectedRevocations;
+
+    @Value("${file-storage.share-links.revocation.false-positive-rate:0.01}")
+    private double falsePositiveRate;
+
+    private final SecureRandom random = new SecureRandom();
+
+    // Insertion ordered, the first key signs
+    private Map<String, SecretKey> keys;
+
+    private String signingKeyId;
+
+    // Null until the revocations were loaded
+    private volatile BloomFilter revoked;
+
+    private int revokedCount;
+
+    private int revokedCapacity;
+
+    private Instant loadedUntil;
+
+    private Counter revocationLookups;
+
+    @PostConstruct
+    void init() {
+        keys = parseKeys(keysConfig);
+        signingKeyId = keys.isEmpty() ? null : keys.keySet().iterator().next();
+        revocationLookups = Counter.builder("filestorage.share-links.revocation-lookups")
+                .description("Share link downloads that looked up revocations, because the filter reported them or was not loaded yet")
+                .register(meterRegistry);
+        if (keys.isEmpty()) {
+            logger.info("Share links disabled, no signing key configured");
+        } else {
+            logger.info("Share links enabled: signingKeyId={}, verifyingKeyIds={}, revocation={}", signingKeyId, keys.keySet(), revocationEnabled);
+        }
+    }
+
+    public boolean isEnabled() {
+        return signingKeyId != null;
+    }
+
+    public boolean isRevocationEnabled() {
+        return revocationEnabled;
+    }
+
+    public Duration getDefaultTtl() {
+        return defaultTtl;
+    }
+
+    public Duration getMaxTtl() {
+        return maxTtl;
+    }
+
+    public Issued issue(FileMetadata file, Instant expiresAt) {
+        String id = newId();
+        ShareLink link = new ShareLink(id, file.getId(), file.getOwnerId(), file.getGridFsId().toHexString(), file.getSize(),
+                file.getContentType(), file.getFilename(), file.getMd5(),
+                file.getUploadedAt() != null ? file.getUploadedAt().toEpochMilli() : null, ShareLink.Encryption.of(file.getEncryption()),
+                Instant.now().getEpochSecond(), expiresAt.getEpochSecond());
+        return new Issued(id, encode(link, signingKeyId, keys.get(signingKeyId)), Instant.ofEpochSecond(link.expiresAt()));
+    }
+
+    /**
+     * The link a token carries, or null when it is malformed, not signed by a known key, expired or revoked
+     */
+    public ShareLink verify(String token) {
+        ShareLink link = decode(token, keys);
+        if (link == null || link.expiresAt() <= Instant.now().getEpochSecond()) {
+            return null;
+        }
+        return isRevoked(link) ? null : link;
+    }
+
+    public void revokeLink(String linkId) {
+        revoke(linkId);
+    }
+
+    /**
+     * Revoke every link of the file issued so far
+     */
+    public void revokeFile(String fileId) {
+        revoke(fileId);
+    }
+
+    private void revoke(String key) {
+        Instant now = Instant.now();
+        // No link outlives max-ttl, neither does its revocation
+        shareRevocationRepository.revoke(key, now, now.plus(maxTtl));
+        BloomFilter filter = revoked;
+        if (filter != null) {
+            filter.add(key);
+        }
+    }
+
+    private boolean isRevoked(ShareLink link) {
+        if (!revocationEnabled) {
+            return false;
+        }
+        BloomFilter filter = revoked;
+        if (filter != null && !filter.mightContain(link.id()) && !filter.mightContain(link.fileId())) {
+            return false;
+        }
+        revocationLookups.increment();
+        for (ShareRevocation revocation : shareRevocationRepository.findByIds(List.of(link.id(), link.fileId()))) {
+            if (revocation.getRevokedAt().getEpochSecond() >= link.issuedAt()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add revocations made on other nodes to the filter. The filter is rebuilt from scratch, which also
+     * drops expired revocations, once it holds more than it was sized for.
+     */
+    @Scheduled(fixedDelayString = "${file-storage.share-links.revocation.refresh-interval:10s}")
+    public void refreshRevocations() {
+        if (!revocationEnabled || !isEnabled()) {
+            return;
+        }
+        Instant now = Instant.now();
+        try {
+            BloomFilter filter = revoked;
+            if (filter == null || revokedCount > revokedCapacity) {
+                List<ShareRevocation> all = shareRevocationRepository.findRevokedSince(Instant.EPOCH, now);
+                int capacity = Math.max(expectedRevocations, all.size() * 2);
+                BloomFilter rebuilt = new BloomFilter(capacity, falsePositiveRate);
+                all.forEach(revocation -> rebuilt.add(revocation.getId()));
+                revokedCount = all.size();
+                revokedCapacity = capacity;
+                revoked = rebuilt;
+                logger.info("Loaded share link revocations: revocations={}, filterBits={}", all.size(), rebuilt.bitCount());
+            } else {
+                for (ShareRevocation revocation : shareRevocationRepository.findRevokedSince(loadedUntil.minus(CLOCK_SKEW), now)) {
+                    filter.add(revocation.getId());
+                    if (revocation.getRevokedAt().isAfter(loadedUntil)) {
+                        revokedCount++;
+                    }
+                }
+            }
+            loadedUntil = now;
+        } catch (Exception e) {
+            logger.error("Failed to load share link revocations", e);
+        }
+    }
+
+    private String newId() {
+        byte[] id = new byte[9];
+        random.nextBytes(id);
+        return BASE64.encodeToString(id);
+    }
+
+    /**
+     * Parse {@code keyId:base64-secret} pairs separated by commas, secrets of at least 32 bytes
+     */
+    static Map<String, SecretKey> parseKeys(String config) {
+        Map<String, SecretKey> keys = new LinkedHashMap<>();
+        if (config == null || config.isBlank()) {
+            return keys;
+        }
+        for (String entry : config.split(",")) {
+            int colon = entry.indexOf(':');
+            String keyId = colon > 0 ? entry.substring(0, colon).trim() : "";
+            if (keyId.isEmpty() || keyId.contains(".")) {
+                throw new IllegalStateException("file-storage.share-links.keys entries must be keyId:base64-secret, key ids without dots");
+            }
+            byte[] secret = Base64.getDecoder().decode(entry.substring(colon + 1).trim());
+            if (secret.length < 32) {
+                throw new IllegalStateException("Share link key " + keyId + " must be at least 32 bytes, base64 encoded");
+            }
+            keys.put(keyId, new SecretKeySpec(secret, HMAC));
+        }
+        return Collections.unmodifiableMap(keys);
+    }
+
+    static String encode(ShareLink link, String keyId, SecretKey key) {
+        try {
+            String signed = keyId + "." + BASE64.encodeToString(JSON.writeValueAsBytes(link));
+            return signed + "." + BASE64.encodeToString(mac(key, signed));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to write share link", e);
+        }
+    }
+
+    /**
+     * The link of a token signed by one of the keys, or null. Only a correctly signed payload is parsed.
+     */
+    static ShareLink decode(String token, Map<String, SecretKey> keys) {
+        int signatureDot = token.lastIndexOf('.');
+        int keyDot = token.indexOf('.');
+        if (keyDot <= 0 || keyDot == signatureDot) {
+            return null;
+        }
+        SecretKey key = keys.get(token.substring(0, keyDot));
+        if (key == null) {
+            return null;
+        }
+        String signed = token.substring(0, signatureDot);
+        try {
+            byte[] signature = Base64.getUrlDecoder().decode(token.substring(signatureDot + 1));
+            if (!MessageDigest.isEqual(mac(key, signed), signature)) {
+                return null;
+            }
+            return JSON.readValue(Base64.getUrlDecoder().decode(signed.substring(keyDot + 1)), ShareLink.class);
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] mac(SecretKey key, String signed) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(key);
+            return mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 not available", e);
+        }
+    }
+}
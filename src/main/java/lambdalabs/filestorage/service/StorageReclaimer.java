@@ -0,0 +1,241 @@
+package lambdalabs.filestorage.service;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.FileTombstone;
+import lambdalabs.filestorage.model.StorageTier;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.FileTombstoneRepository;
+import lambdalabs.filestorage.repository.MongoShards;
+import lambdalabs.filestorage.repository.MongoShards.Shard;
+import jakarta.annotation.PostConstruct;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Deletes GridFS content in the background.
+ * <p>
+ * Request threads only remove the metadata and leave a {@link FileTombstone} behind; this service
+ * picks tombstones up and removes the fs.files documents and then the chunks in rate-limited batches.
+ * It also periodically reconciles fs.files against file_metadata, so content left behind by a crash
+ * between the metadata removal and the tombstone insert (or by a failed upload) is eventually reclaimed too.
+ * <p>
+ * Content on the cold tier is removed along with the GridFS content, once no metadata refers to it.
+ * A tombstone for a COLD file's id only takes down what is left in GridFS after the move.
+ * <p>
+ * Each tombstone names the shard its GridFS content is in, references are checked on that shard.
+ */
+@Service
+public class StorageReclaimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageReclaimer.class);
+
+    private final String workerId = UUID.randomUUID().toString();
+
+    @Autowired
+    private FileTombstoneRepository fileTombstoneRepository;
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    @Autowired
+    private GridFsService gridFsService;
+
+    @Autowired
+    private ColdStore coldStore;
+
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Value("${file-storage.reclaimer.batch-size:100}")
+    private int batchSize;
+
+    @Value("${file-storage.reclaimer.chunk-batch-size:500}")
+    private int chunkBatchSize;
+
+    @Value("${file-storage.reclaimer.lease:5m}")
+    private Duration lease;
+
+    @Value("${file-storage.reclaimer.orphan-grace-period:1h}")
+    private Duration orphanGracePeriod;
+
+    @Value("${file-storage.reclaimer.chunks-per-second:2000}")
+    private double chunksPerSecond;
+
+    private Throttle chunkThrottle;
+
+    @PostConstruct
+    void init() {
+        chunkThrottle = new Throttle(chunksPerSecond);
+    }
+
+    public void enqueue(FileMetadata metadata) {
+        fileTombstoneRepository.upsert(tombstone(metadata, mongoShards.forOwner(metadata.getOwnerId()), Instant.now()));
+        logger.debug("Queued GridFS content for reclamation: gridFsId={}, metadataId={}", metadata.getGridFsId(), metadata.getId());
+    }
+
+    public void enqueue(ObjectId gridFsId, String metadataId, String ownerId) {
+        fileTombstoneRepository.upsert(tombstone(gridFsId, metadataId, ownerId, mongoShards.forOwner(ownerId), Instant.now()));
+        logger.debug("Queued GridFS content for reclamation: gridFsId={}, metadataId={}", gridFsId, metadataId);
+    }
+
+    /**
+     * Queue GridFS content of the given shard, which no longer has metadata referring to it
+     */
+    public void enqueue(Shard shard, ObjectId gridFsId, String ownerId) {
+        fileTombstoneRepository.upsert(tombstone(gridFsId, null, ownerId, shard, Instant.now()));
+        logger.debug("Queued GridFS content for reclamation: gridFsId={}, shard={}", gridFsId, shard.name());
+    }
+
+    public void enqueueAll(List<FileMetadata> removed) {
+        Instant now = Instant.now();
+        fileTombstoneRepository.upsertAll(removed.stream()
+                .map(metadata -> tombstone(metadata, mongoShards.forOwner(metadata.getOwnerId()), now))
+                .toList());
+    }
+
+    /**
+     * Tombstone of a removed file, which also carries its visibility for the delete event it produces (see FileEventHub)
+     */
+    private static FileTombstone tombstone(FileMetadata metadata, Shard shard, Instant deletedAt) {
+        FileTombstone tombstone = tombstone(metadata.getGridFsId(), metadata.getId(), metadata.getOwnerId(), shard, deletedAt);
+        tombstone.setVisibility(metadata.getVisibility());
+        return tombstone;
+    }
+
+    private static FileTombstone tombstone(ObjectId gridFsId, String metadataId, String ownerId, Shard shard, Instant deletedAt) {
+        FileTombstone tombstone = new FileTombstone();
+        tombstone.setGridFsId(gridFsId);
+        tombstone.setMetadataId(metadataId);
+        tombstone.setOwnerId(ownerId);
+        tombstone.setShard(shard.name());
+        tombstone.setDeletedAt(deletedAt);
+        return tombstone;
+    }
+
+    @Scheduled(initialDelayString = "${file-storage.reclaimer.interval:5s}",
+            fixedDelayString = "${file-storage.reclaimer.interval:5s}")
+    public void reclaim() {
+        try {
+            List<FileTombstone> batch;
+            do {
+                Instant now = Instant.now();
+                batch = fileTombstoneRepository.claimBatch(workerId, now, now.plus(lease), batchSize);
+                Map<String, List<FileTombstone>> byShard = batch.stream()
+                        .collect(Collectors.groupingBy(tombstone -> mongoShards.named(tombstone.getShard()).name()));
+                for (Map.Entry<String, List<FileTombstone>> shard : byShard.entrySet()) {
+                    reclaimBatch(mongoShards.named(shard.getKey()), shard.getValue());
+                }
+            } while (batch.size() == batchSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("GridFS reclamation pass failed", e);
+        }
+    }
+
+    private void reclaimBatch(Shard shard, List<FileTombstone> batch) throws InterruptedException, IOException {
+        List<ObjectId> gridFsIds = batch.stream().map(FileTombstone::getGridFsId).toList();
+
+        // A tombstone must never take down content that is (again) referenced by metadata
+        Map<ObjectId, StorageTier> references = fileMetadataRepository.findGridFsReferences(shard, gridFsIds);
+        List<ObjectId> reclaimable = new ArrayList<>();
+        List<ObjectId> referenced = new ArrayList<>();
+        for (ObjectId gridFsId : gridFsIds) {
+            StorageTier tier = references.get(gridFsId);
+            if (tier == StorageTier.HOT) {
+                referenced.add(gridFsId);
+            } else {
+                reclaimable.add(gridFsId);
+            }
+        }
+        List<ObjectId> unreferenced = reclaimable.stream().filter(gridFsId -> !references.containsKey(gridFsId)).toList();
+        if (!unreferenced.isEmpty()) {
+            // The cold tier is shared, the file may now belong to the owner's copy on another shard
+            Map<ObjectId, StorageTier> anywhere = mongoShards.isSharded()
+                    ? fileMetadataRepository.findGridFsReferences(unreferenced) : Map.of();
+            for (ObjectId gridFsId : unreferenced) {
+                if (!anywhere.containsKey(gridFsId) && coldStore.delete(gridFsId)) {
+                    logger.debug("Removed cold file: gridFsId={}", gridFsId);
+                }
+            }
+        }
+        if (!referenced.isEmpty()) {
+            logger.warn("Skipping reclamation of GridFS content still referenced by metadata: gridFsIds={}", referenced);
+        }
+
+        if (!reclaimable.isEmpty()) {
+            gridFsService.deleteFileDocuments(shard, reclaimable);
+
+            long chunks = 0;
+            long deleted;
+            while ((deleted = gridFsService.deleteChunkBatch(shard, reclaimable, chunkBatchSize)) > 0) {
+                chunks += deleted;
+                chunkThrottle.acquire(deleted);
+            }
+            logger.info("Reclaimed GridFS content: shard={}, files={}, chunks={}", shard.name(), reclaimable.size(), chunks);
+        }
+
+        fileTombstoneRepository.deleteByGridFsIds(gridFsIds);
+    }
+
+    /**
+     * Find GridFS files that no metadata document points to and queue them for reclamation.
+     * Files younger than the grace period are left alone since an upload in progress
+     * writes GridFS content before it saves the metadata.
+     */
+    @Scheduled(initialDelayString = "${file-storage.reclaimer.orphan-scan-interval:1h}",
+            fixedDelayString = "${file-storage.reclaimer.orphan-scan-interval:1h}")
+    public void reconcileOrphans() {
+        Instant uploadedBefore = Instant.now().minus(orphanGracePeriod);
+        for (Shard shard : mongoShards.all()) {
+            reconcileOrphans(shard, uploadedBefore);
+        }
+    }
+
+    private void reconcileOrphans(Shard shard, Instant uploadedBefore) {
+        ObjectId after = null;
+        long orphans = 0;
+        try {
+            List<ObjectId> page;
+            do {
+                page = gridFsService.findFileIdsUploadedBefore(shard, after, uploadedBefore, batchSize);
+                if (page.isEmpty()) {
+                    break;
+                }
+                after = page.get(page.size() - 1);
+
+                // Content of COLD files left in GridFS by an interrupted move is an orphan as well
+                Map<ObjectId, StorageTier> references = fileMetadataRepository.findGridFsReferences(shard, page);
+                for (ObjectId gridFsId : page) {
+                    if (references.get(gridFsId) != StorageTier.HOT) {
+                        enqueue(shard, gridFsId, null);
+                        orphans++;
+                    }
+                }
+                chunkThrottle.acquire(page.size());
+            } while (page.size() == batchSize);
+
+            if (orphans > 0) {
+                logger.warn("Queued orphaned GridFS files for reclamation: shard={}, count={}", shard.name(), orphans);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("GridFS orphan reconciliation failed", e);
+        }
+    }
+}
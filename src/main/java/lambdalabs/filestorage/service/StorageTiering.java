@@ -0,0 +1,199 @@
+package lambdalabs.filestorage.service;
+
+import jakarta.annotation.PostConstruct;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.MongoShards;
+import lambdalabs.filestorage.repository.OwnerMovingException;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Moves the content of files nobody read for {@code cold-after} from GridFS to the cold tier
+ * ({@link ColdStore}), and back to GridFS once a cold file is downloaded {@code promote-after-downloads}
+ * times.
+ * <p>
+ * Every move writes the content to its new place first, then switches the metadata with a conditional
+ * update and only then hands the old copy to the {@link StorageReclaimer}. A crash at any point leaves
+ * the file readable from wherever the metadata points, the other copy is reclaimed later: cold files
+ * along with their GridFS id, GridFS leftovers by the reclaimer's orphan scan. Moves are paced to
+ * {@code bytes-per-second}.
+ */
+@Service
+public class StorageTiering {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageTiering.class);
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    @Autowired
+    private GridFsService gridFsService;
+
+    @Autowired
+    private ColdStore coldStore;
+
+    @Autowired
+    private StorageReclaimer storageReclaimer;
+
+    @Autowired
+    private MongoShards mongoShards;
+
+    @Value("${file-storage.cold-tier.enabled:false}")
+    private boolean enabled;
+
+    @Value("${file-storage.cold-tier.cold-after:90d}")
+    private Duration coldAfter;
+
+    @Value("${file-storage.cold-tier.batch-size:100}")
+    private int batchSize;
+
+    @Value("${file-storage.cold-tier.bytes-per-second:20971520}")
+    private double bytesPerSecond;
+
+    @Value("${file-storage.cold-tier.promote-after-downloads:3}")
+    private int promoteAfterDownloads;
+
+    private Throttle throttle;
+
+    // Downloads of cold files since they went cold, as far as this node saw them
+    private final Map<String, Integer> coldDownloads = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        throttle = new Throttle(bytesPerSecond);
+    }
+
+    @Scheduled(initialDelayString = "${file-storage.cold-tier.scan-interval:1h}",
+            fixedDelayString = "${file-storage.cold-tier.scan-interval:1h}")
+    public void moveColdFiles() {
+        if (!enabled) {
+            return;
+        }
+        Instant before = Instant.now().minus(coldAfter);
+        String after = null;
+        long moved = 0;
+        long bytes = 0;
+        try {
+            List<FileMetadata> batch;
+            do {
+                batch = fileMetadataRepository.findColdCandidates(before, after, batchSize);
+                for (FileMetadata file : batch) {
+                    // Left for after a move to another shard, which copies the content as it is
+                    if (mongoShards.isMoving(file.getOwnerId())) {
+                        continue;
+                    }
+                    try {
+                        if (moveToCold(file)) {
+                            moved++;
+                            bytes += file.getSize();
+                        }
+                    } catch (IOException e) {
+                        logger.error("Failed to move file to the cold tier: metadataId={}, gridFsId={}",
+                                file.getId(), file.getGridFsId(), e);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    after = batch.get(batch.size() - 1).getId();
+                }
+            } while (batch.size() == batchSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Cold tier pass failed", e);
+        }
+        if (moved > 0) {
+            logger.info("Moved files to the cold tier: files={}, bytes={}", moved, bytes);
+        }
+    }
+
+    private boolean moveToCold(FileMetadata file) throws IOException, InterruptedException {
+        byte[] md5;
+        try (InputStream stored = gridFsService.openStream(file.getOwnerId(), file.getGridFsId(), 0, Long.MAX_VALUE)) {
+            if (stored == null) {
+                logger.warn("File not found in GridFS, not moving it: metadataId={}, gridFsId={}", file.getId(), file.getGridFsId());
+                return false;
+            }
+            md5 = coldStore.write(file.getGridFsId(), stored, throttle::acquire);
+        }
+        // Encrypted content is stored sealed, its md5 is that of the plaintext
+        if (file.getEncryption() == null && file.getMd5() != null
+                && !HexFormat.of().formatHex(md5).equals(file.getMd5())) {
+            coldStore.delete(file.getGridFsId());
+            throw new IOException("Content read from GridFS does not match its md5");
+        }
+
+        boolean marked;
+        try {
+            marked = fileMetadataRepository.markCold(file, Instant.now());
+        } catch (OwnerMovingException e) {
+            // The move started while the content was copied, it takes the file along as it is
+            coldStore.delete(file.getGridFsId());
+            return false;
+        }
+        if (!marked) {
+            // Deleted or moved in the meantime: whoever did that owns the content now
+            logger.debug("File changed while moving it to the cold tier: metadataId={}", file.getId());
+            if (fileMetadataRepository.findGridFsReferences(List.of(file.getGridFsId())).isEmpty()) {
+                coldStore.delete(file.getGridFsId());
+            }
+            return false;
+        }
+        // Takes down the GridFS copy only, the metadata now refers to the cold file
+        storageReclaimer.enqueue(file.getGridFsId(), null, file.getOwnerId());
+        return true;
+    }
+
+    /**
+     * Count a download of a cold file, moving its content back to GridFS in the background
+     * once it was downloaded often enough
+     */
+    public void recordColdDownload(FileMetadata file) {
+        if (promoteAfterDownloads <= 0 || !file.isCold()) {
+            return;
+        }
+        if (coldDownloads.merge(file.getId(), 1, Integer::sum) == promoteAfterDownloads) {
+            Thread.ofVirtual().name("cold-tier-promote").start(() -> {
+                try {
+                    promote(file);
+                } catch (Exception e) {
+                    logger.error("Failed to move file back from the cold tier: metadataId={}", file.getId(), e);
+                } finally {
+                    coldDownloads.remove(file.getId());
+                }
+            });
+        }
+    }
+
+    private void promote(FileMetadata file) throws IOException {
+        ObjectId gridFsId;
+        try (InputStream cold = coldStore.open(file.getGridFsId(), 0, Long.MAX_VALUE)) {
+            if (cold == null) {
+                return;
+            }
+            // Stored as it is, encrypted content stays sealed
+            gridFsId = gridFsService.storeFileStreaming(file.getOwnerId(), cold, file.getFilename(), file.getContentType());
+        }
+        if (fileMetadataRepository.markHot(file, gridFsId)) {
+            // No metadata refers to the old id anymore, so this removes the cold file
+            storageReclaimer.enqueue(file.getGridFsId(), null, file.getOwnerId());
+            logger.info("Moved file back from the cold tier: metadataId={}, gridFsId={}", file.getId(), gridFsId);
+        } else {
+            storageReclaimer.enqueue(gridFsId, null, file.getOwnerId());
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package lambdalabs.filestorage.service;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.TagFacet;
+import lambdalabs.filestorage.model.Visibility;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.TagFacetRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Tag counts per owner and over all PUBLIC files, kept up to date with {@code $inc} on every upload,
+ * tag change, delete and expiry so that listing them never aggregates over file_metadata.
+ * {@link #repair()} rebuilds them should they ever drift.
+ */
+@Service
+public class TagFacetService {
+
+    public static final String PUBLIC_SCOPE = "public";
+
+    private static final Logger logger = LoggerFactory.getLogger(TagFacetService.class);
+
+    @Autowired
+    private TagFacetRepository tagFacetRepository;
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    @Value("${file-storage.tags.repair-batch-size:1000}")
+    private int repairBatchSize;
+
+    public static String ownerScope(String ownerId) {
+        return "owner:" + ownerId;
+    }
+
+    public List<TagFacet> getTopTags(String scope, int limit) {
+        return tagFacetRepository.findTopByScope(scope, limit);
+    }
+
+    public void recordUpload(FileMetadata metadata) {
+        tagFacetRepository.increment(new Deltas().add(metadata, 1).deltas);
+    }
+
+    public void recordRemoval(FileMetadata metadata) {
+        tagFacetRepository.increment(new Deltas().add(metadata, -1).deltas);
+    }
+
+    /**
+     * Take a batch of removed files off the counts, one bulk write for the whole batch
+     */
+    public void recordRemovals(List<FileMetadata> removed) {
+        Deltas deltas = new Deltas();
+        removed.forEach(metadata -> deltas.add(metadata, -1));
+        tagFacetRepository.increment(deltas.deltas);
+    }
+
+    public void recordTagChange(FileMetadata metadata, Set<String> oldTags, Set<String> newTags) {
+        Set<String> before = oldTags != null ? oldTags : Set.of();
+        Set<String> after = newTags != null ? newTags : Set.of();
+        Deltas deltas = new Deltas();
+        before.stream().filter(tag -> !after.contains(tag)).forEach(tag -> deltas.add(metadata, tag, -1));
+        after.stream().filter(tag -> !before.contains(tag)).forEach(tag -> deltas.add(metadata, tag, 1));
+        tagFacetRepository.increment(deltas.deltas);
+    }
+
+    /**
+     * Rebuild all counts from file_metadata, e.g. after an upgrade from a version without tag counts.
+     * A full collection scan for quiet hours or manual runs: changes made while it runs may be lost
+     * and are fixed by the next run.
+     */
+    @Scheduled(cron = "${file-storage.tags.repair-cron:-}")
+    public void repair() {
+        String rebuildId = UUID.randomUUID().toString();
+        long facets = 0;
+        try {
+            Map<String, Map<String, Long>> batch = new HashMap<>();
+            int batchSize = 0;
+            // Public counts span all owners, so they are only complete after the last row
+            Map<String, Long> publicCounts = new HashMap<>();
+            try (Stream<FileMetadataRepository.OwnerTagBytes> rows = fileMetadataRepository.streamOwnerTagBytes()) {
+                for (FileMetadataRepository.OwnerTagBytes row : (Iterable<FileMetadataRepository.OwnerTagBytes>) rows::iterator) {
+                    if (row.ownerId() == null || row.tag() == null) {
+                        continue;
+                    }
+                    batch.computeIfAbsent(ownerScope(row.ownerId()), s -> new HashMap<>()).put(row.tag(), row.files());
+                    if (row.publicFiles() > 0) {
+                        publicCounts.merge(row.tag(), row.publicFiles(), Long::sum);
+                    }
+                    if (++batchSize == repairBatchSize) {
+                        tagFacetRepository.replaceAll(batch, rebuildId);
+                        facets += batchSize;
+                        batch.clear();
+                        batchSize = 0;
+                    }
+                }
+            }
+            tagFacetRepository.replaceAll(batch, rebuildId);
+            facets += batchSize;
+            tagFacetRepository.replaceAll(Map.of(PUBLIC_SCOPE, publicCounts), rebuildId);
+            facets += publicCounts.size();
+            long removed = tagFacetRepository.removeNotRebuilt(rebuildId);
+
+            logger.info("Rebuilt tag counts: facets={}, removed={}", facets, removed);
+        } catch (Exception e) {
+            logger.error("Tag count repair failed", e);
+        }
+    }
+
+    /**
+     * Count changes summed per scope and tag, so a batch touches each facet once
+     */
+    private static final class Deltas {
+        private final Map<String, Map<String, Long>> deltas = new HashMap<>();
+
+        Deltas add(FileMetadata metadata, long delta) {
+            if (metadata.getTags() != null) {
+                metadata.getTags().forEach(tag -> add(metadata, tag, delta));
+            }
+            return this;
+        }
+
+        void add(FileMetadata metadata, String tag, long delta) {
+            if (metadata.getOwnerId() != null) {
+                deltas.computeIfAbsent(ownerScope(metadata.getOwnerId()), s -> new HashMap<>()).merge(tag, delta, Long::sum);
+            }
+            if (metadata.getVisibility() == Visibility.PUBLIC) {
+                deltas.computeIfAbsent(PUBLIC_SCOPE, s -> new HashMap<>()).merge(tag, delta, Long::sum);
+            }
+        }
+    }
+}
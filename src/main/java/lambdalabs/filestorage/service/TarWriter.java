@@ -0,0 +1,168 @@
+package lambdalabs.filestorage.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming writer for POSIX (pax) tar archives. Entry sizes must be known up front,
+ * which is always the case for stored files, so nothing is buffered beyond one header block.
+ * Names that do not fit ustar (longer than 100 bytes or non-ASCII) and sizes of 8 GiB or more
+ * are carried in a pax extended header.
+ */
+final class TarWriter {
+
+    static final int BLOCK_SIZE = 512;
+
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private final OutputStream out;
+
+    private long entryRemaining;
+    private long entrySize;
+
+    TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    void putEntry(String name, long size, long modifiedEpochSeconds) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean asciiName = nameBytes.length == name.length();
+        if (nameBytes.length > 100 || !asciiName || size > MAX_OCTAL_SIZE) {
+            byte[] pax = paxRecords(name, size, nameBytes.length > 100 || !asciiName, size > MAX_OCTAL_SIZE);
+            out.write(header("PaxHeader", pax.length, modifiedEpochSeconds, (byte) 'x'));
+            out.write(pax);
+            pad(pax.length);
+        }
+
+        String ustarName = asciiName && nameBytes.length <= 100 ? name : fallbackName(name);
+        out.write(header(ustarName, Math.min(size, MAX_OCTAL_SIZE), modifiedEpochSeconds, (byte) '0'));
+        entrySize = size;
+        entryRemaining = size;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len > entryRemaining) {
+            throw new IOException("Entry data exceeds declared size");
+        }
+        out.write(b, off, len);
+        entryRemaining -= len;
+    }
+
+    void closeEntry() throws IOException {
+        if (entryRemaining != 0) {
+            throw new IOException("Entry data is " + entryRemaining + " bytes short of its declared size");
+        }
+        pad(entrySize);
+    }
+
+    void finish() throws IOException {
+        out.write(new byte[BLOCK_SIZE * 2]);
+        out.flush();
+    }
+
+    /**
+     * Exact number of archive bytes one entry takes, so the response can carry a Content-Length
+     */
+    static long entryLength(String name, long size) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean longName = nameBytes.length > 100 || nameBytes.length != name.length();
+        boolean largeSize = size > MAX_OCTAL_SIZE;
+        long length = BLOCK_SIZE + padded(size);
+        if (longName || largeSize) {
+            length += BLOCK_SIZE + padded(paxRecords(name, size, longName, largeSize).length);
+        }
+        return length;
+    }
+
+    static long endOfArchiveLength() {
+        return BLOCK_SIZE * 2;
+    }
+
+    private void pad(long written) throws IOException {
+        int remainder = (int) (written % BLOCK_SIZE);
+        if (remainder != 0) {
+            out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    private static long padded(long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private static byte[] paxRecords(String name, long size, boolean includePath, boolean includeSize) {
+        StringBuilder records = new StringBuilder();
+        if (includePath) {
+            records.append(paxRecord("path", name));
+        }
+        if (includeSize) {
+            records.append(paxRecord("size", Long.toString(size)));
+        }
+        return records.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A pax record is "<length> <key>=<value>\n" where length counts the whole record including itself
+     */
+    private static String paxRecord(String key, String value) {
+        int body = (" " + key + "=" + value + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int length = body + Integer.toString(body).length();
+        if (Integer.toString(length).length() != Integer.toString(body).length()) {
+            length++;
+        }
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    /**
+     * Readers without pax support still get a usable (ASCII, truncated) name
+     */
+    private static String fallbackName(String name) {
+        StringBuilder ascii = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            ascii.append(c < 0x80 ? c : '_');
+        }
+        return ascii.length() > 100 ? ascii.substring(ascii.length() - 100) : ascii.toString();
+    }
+
+    private static byte[] header(String name, long size, long mtime, byte type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        put(header, 0, 100, name.getBytes(StandardCharsets.US_ASCII));
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, Math.max(0, mtime));
+        header[156] = type;
+        put(header, 257, 6, "ustar\0".getBytes(StandardCharsets.US_ASCII));
+        put(header, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+
+        // Checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        putOctal(header, 148, 7, checksum);
+        header[155] = ' ';
+        return header;
+    }
+
+    private static void put(byte[] header, int offset, int length, byte[] value) {
+        System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+    }
+
+    /**
+     * Zero-padded octal number followed by a NUL, filling the field
+     */
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        StringBuilder field = new StringBuilder();
+        for (int i = octal.length(); i < length - 1; i++) {
+            field.append('0');
+        }
+        field.append(octal);
+        put(header, offset, length - 1, field.toString().getBytes(StandardCharsets.US_ASCII));
+        header[offset + length - 1] = 0;
+    }
+}
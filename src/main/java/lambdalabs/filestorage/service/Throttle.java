@@ -0,0 +1,36 @@
+package lambdalabs.filestorage.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple pacing limiter for background jobs: callers acquire permits (documents, bytes...)
+ * and are put to sleep long enough to keep the long-run rate at {@code permitsPerSecond}.
+ * A non-positive rate disables throttling.
+ */
+public class Throttle {
+
+    private final double permitsPerSecond;
+
+    private long nextFreeNanos = System.nanoTime();
+
+    public Throttle(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public void acquire(long permits) throws InterruptedException {
+        if (permitsPerSecond <= 0 || permits <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // Do not let idle time accumulate into a burst
+            long start = Math.max(nextFreeNanos, now);
+            nextFreeNanos = start + (long) (permits * TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            waitNanos = start - now;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
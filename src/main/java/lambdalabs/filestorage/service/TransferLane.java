@@ -0,0 +1,139 @@
+package lambdalabs.filestorage.service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One admission lane: a global concurrency limit, a per-user concurrency limit and a budget of
+ * bytes in flight, with a short bounded queue in front of the global limits.
+ * <p>
+ * A user over their own limit is rejected at once, waiting would only let them hold a queue slot.
+ * Requests that only miss global capacity may wait up to {@code queueTimeout}, but no more than
+ * {@code queueSize} of them at a time, so an overloaded lane answers quickly instead of piling up.
+ * A single transfer larger than the whole byte budget is admitted only when the lane carries no other bytes.
+ */
+final class TransferLane {
+
+    enum Rejection {
+        USER_LIMIT, QUEUE_FULL, TIMEOUT
+    }
+
+    private final int maxConcurrent;
+    private final int perUser;
+    private final long maxBytes;
+    private final int queueSize;
+    private final long queueTimeoutNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    // All guarded by lock
+    private int active;
+    private long bytesInFlight;
+    private int waiting;
+    private final Map<String, Integer> activeByUser = new HashMap<>();
+
+    TransferLane(int maxConcurrent, int perUser, long maxBytes, int queueSize, Duration queueTimeout) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.perUser = Math.max(1, perUser);
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.queueSize = Math.max(0, queueSize);
+        this.queueTimeoutNanos = queueTimeout.toNanos();
+    }
+
+    /**
+     * Take a slot for {@code bytes}, returning null on success or the reason the request was refused
+     */
+    Rejection acquire(String userId, long bytes) throws InterruptedException {
+        return acquire(userId, perUser, bytes);
+    }
+
+    /**
+     * Take a slot for {@code bytes} with a limit of {@code perUser} concurrent transfers of {@code userId}
+     * instead of the lane's, e.g. for a key that is not a user
+     */
+    Rejection acquire(String userId, int perUser, long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            if (activeByUser.getOrDefault(userId, 0) >= perUser) {
+                return Rejection.USER_LIMIT;
+            }
+            if (!hasCapacity(bytes)) {
+                if (waiting >= queueSize) {
+                    return Rejection.QUEUE_FULL;
+                }
+                waiting++;
+                try {
+                    long remaining = queueTimeoutNanos;
+                    while (!hasCapacity(bytes)) {
+                        if (remaining <= 0) {
+                            return Rejection.TIMEOUT;
+                        }
+                        remaining = released.awaitNanos(remaining);
+                    }
+                    // The user may have started other transfers while this one waited
+                    if (activeByUser.getOrDefault(userId, 0) >= perUser) {
+                        return Rejection.USER_LIMIT;
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+            active++;
+            bytesInFlight += bytes;
+            activeByUser.merge(userId, 1, Integer::sum);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(String userId, long bytes) {
+        lock.lock();
+        try {
+            active--;
+            bytesInFlight -= bytes;
+            activeByUser.computeIfPresent(userId, (u, n) -> n > 1 ? n - 1 : null);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasCapacity(long bytes) {
+        if (active >= maxConcurrent) {
+            return false;
+        }
+        return bytes > maxBytes ? bytesInFlight == 0 : bytesInFlight + bytes <= maxBytes;
+    }
+
+    int active() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int waiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long bytesInFlight() {
+        lock.lock();
+        try {
+            return bytesInFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
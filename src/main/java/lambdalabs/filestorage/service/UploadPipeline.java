@@ -0,0 +1,402 @@
+package lambdalabs.filestorage.service;
+
+import org.bson.BsonBinary;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes an upload into GridFS with body reads and Mongo writes overlapped.
+ * <p>
+ * The calling thread reads the body into pooled chunk buffers and hashes it on the way, a writer
+ * inserts the chunks into fs.chunks {@code batchChunks} at a time with insertMany. At most
+ * {@code queueBatches} filled batches wait between the two, so a slow Mongo holds back the reader
+ * instead of letting the upload pile up in memory. The fs.files document is written last, once every
+ * chunk is stored, in the same layout GridFSBucket uses, so readers never see a partial file.
+ * A body that fits in one batch is written by the calling thread without starting a writer.
+ * <p>
+ * With a {@link ChunkCipher} each chunk holds {@link ChunkCipher#TAG_BYTES} less plaintext and is sealed
+ * just before it is inserted, so sealed chunks keep the configured chunk size. The md5 is of the plaintext,
+ * the fs.files length that of the stored chunks.
+ */
+final class UploadPipeline {
+
+    /**
+     * Where the pipeline puts its documents, normally fs.chunks and fs.files
+     */
+    interface Sink {
+        void insertChunks(List<BsonDocument> chunks);
+
+        void insertFile(BsonDocument file);
+
+        void deleteChunks(BsonObjectId fileId);
+    }
+
+    record Result(ObjectId id, long length, String md5) {
+    }
+
+    private static final Batch END = new Batch(-1, 0);
+    private static final long POLL_MILLIS = 100;
+
+    private final Sink sink;
+    private final ExecutorService writers;
+    private final int chunkSize;
+    private final int batchChunks;
+    private final int queueBatches;
+    private final BlockingQueue<byte[]> pool;
+
+    UploadPipeline(Sink sink, ExecutorService writers, int chunkSize, int batchChunks, int queueBatches, int poolSize) {
+        this.sink = sink;
+        this.writers = writers;
+        this.chunkSize = chunkSize;
+        this.batchChunks = Math.max(1, batchChunks);
+        this.queueBatches = Math.max(1, queueBatches);
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    Result store(InputStream content, String filename, String contentType) throws IOException {
+        return store(content, filename, contentType, null);
+    }
+
+    /**
+     * @param cipher seals the chunks, null to store them as read
+     */
+    Result store(InputStream content, String filename, String contentType, ChunkCipher cipher) throws IOException {
+        return store(sink, content, filename, contentType, cipher);
+    }
+
+    /**
+     * Same as {@link #store(InputStream, String, String, ChunkCipher)} into another sink than the pipeline's own,
+     * e.g. the GridFS bucket of another database
+     */
+    Result store(Sink sink, InputStream content, String filename, String contentType, ChunkCipher cipher) throws IOException {
+        BsonObjectId fileId = new BsonObjectId(new ObjectId());
+        Written written = write(sink, fileId, 0, content, cipher, filename, true);
+        long storedLength = cipher != null ? written.length() + (long) written.chunks() * ChunkCipher.TAG_BYTES : written.length();
+        try {
+            // The legacy GridFS md5 field, so the hash does not have to be recomputed from the chunks
+            sink.insertFile(fileDocument(fileId, filename, contentType, storedLength).append("md5", new BsonString(written.md5())));
+        } catch (RuntimeException e) {
+            try {
+                sink.deleteChunks(fileId);
+            } catch (RuntimeException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return new Result(fileId.getValue(), written.length(), written.md5());
+    }
+
+    /**
+     * Write one part of a file, the chunks from {@code firstChunk} on, without its fs.files document.
+     * The chunks of a part that fails are left for the part's retry to replace.
+     */
+    Written storePart(Sink sink, ObjectId fileId, int firstChunk, InputStream content, ChunkCipher cipher) throws IOException {
+        return write(sink, new BsonObjectId(fileId), firstChunk, content, cipher, fileId.toHexString(), false);
+    }
+
+    /**
+     * Chunks written from a body: plaintext length and md5, and how many chunks
+     */
+    record Written(long length, int chunks, String md5) {
+    }
+
+    private Written write(Sink sink, BsonObjectId fileId, int firstChunk, InputStream content, ChunkCipher cipher,
+                          String name, boolean deleteOnFailure) throws IOException {
+        int plainChunkSize = cipher != null ? chunkSize - ChunkCipher.TAG_BYTES : chunkSize;
+        MessageDigest md5 = md5();
+        long length = 0;
+        int chunks = 0;
+        Batch batch = new Batch(firstChunk, batchChunks);
+        Writer writer = null;
+        try {
+            while (true) {
+                byte[] buffer = acquire();
+                // Blocks until the buffer is full, so a short read only happens at the end of the body
+                int read = content.readNBytes(buffer, 0, plainChunkSize);
+                if (read == 0) {
+                    release(buffer);
+                    break;
+                }
+                md5.update(buffer, 0, read);
+                length += read;
+                chunks++;
+                batch.add(buffer, read);
+                if (read < plainChunkSize) {
+                    break;
+                }
+                if (batch.isFull()) {
+                    if (writer == null) {
+                        writer = new Writer(sink, fileId, cipher);
+                    }
+                    writer.put(batch);
+                    batch = new Batch(firstChunk + chunks, batchChunks);
+                }
+            }
+
+            if (writer != null) {
+                if (!batch.isEmpty()) {
+                    writer.put(batch);
+                }
+                batch = END;
+                writer.finish();
+            } else if (!batch.isEmpty()) {
+                try {
+                    insert(sink, fileId, batch, cipher);
+                } finally {
+                    release(batch);
+                }
+            }
+
+            return new Written(length, chunks, HexFormat.of().formatHex(md5.digest()));
+        } catch (IOException | RuntimeException e) {
+            abort(sink, fileId, batch, writer, e, deleteOnFailure);
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted while storing " + name);
+            abort(sink, fileId, batch, writer, interrupted, deleteOnFailure);
+            throw interrupted;
+        }
+    }
+
+    private void abort(Sink sink, BsonObjectId fileId, Batch held, Writer writer, Exception failure, boolean deleteChunks) {
+        if (held != END) {
+            // Releasing twice is harmless, a released batch is empty
+            release(held);
+        }
+        if (writer != null) {
+            writer.cancel();
+        }
+        if (!deleteChunks) {
+            return;
+        }
+        try {
+            sink.deleteChunks(fileId);
+        } catch (RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * The fs.files document completing a file whose chunks were written part by part, md5 still unknown
+     */
+    BsonDocument partsFileDocument(ObjectId fileId, String filename, String contentType, long storedLength) {
+        return fileDocument(new BsonObjectId(fileId), filename, contentType, storedLength);
+    }
+
+    private void insert(Sink sink, BsonObjectId fileId, Batch batch, ChunkCipher cipher) {
+        List<BsonDocument> documents = new ArrayList<>(batch.count);
+        for (int i = 0; i < batch.count; i++) {
+            byte[] data = batch.buffers[i];
+            // Only the last chunk of a body can be short
+            int length = i == batch.count - 1 ? batch.lastLength : (cipher != null ? chunkSize - ChunkCipher.TAG_BYTES : chunkSize);
+            if (cipher != null) {
+                length = cipher.seal(data, length, batch.first + i);
+            }
+            if (length < chunkSize) {
+                data = Arrays.copyOf(data, length);
+            }
+            documents.add(new BsonDocument("_id", new BsonObjectId())
+                    .append("files_id", fileId)
+                    .append("n", new BsonInt32(batch.first + i))
+                    .append("data", new BsonBinary(data)));
+        }
+        sink.insertChunks(documents);
+    }
+
+    private BsonDocument fileDocument(BsonObjectId fileId, String filename, String contentType, long length) {
+        BsonDocument metadata = new BsonDocument();
+        if (contentType != null && !contentType.isBlank()) {
+            // Where GridFsResource looks for the content type
+            metadata.append("_contentType", new BsonString(contentType));
+        }
+        return new BsonDocument("_id", fileId)
+                .append("filename", new BsonString(filename))
+                .append("length", new BsonInt64(length))
+                .append("chunkSize", new BsonInt32(chunkSize))
+                .append("uploadDate", new BsonDateTime(System.currentTimeMillis()))
+                .append("metadata", metadata);
+    }
+
+    private byte[] acquire() {
+        byte[] buffer = pool.poll();
+        return buffer != null ? buffer : new byte[chunkSize];
+    }
+
+    private void release(Batch batch) {
+        for (int i = 0; i < batch.count; i++) {
+            release(batch.buffers[i]);
+        }
+        batch.count = 0;
+    }
+
+    private void release(byte[] buffer) {
+        // Buffers beyond the pool size are left to the garbage collector
+        pool.offer(buffer);
+    }
+
+    private static MessageDigest md5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 algorithm not available", e);
+        }
+    }
+
+    private static final class Batch {
+        final int first;
+        final byte[][] buffers;
+        int count;
+        int lastLength;
+
+        Batch(int first, int capacity) {
+            this.first = first;
+            this.buffers = new byte[capacity][];
+        }
+
+        void add(byte[] buffer, int length) {
+            buffers[count++] = buffer;
+            lastLength = length;
+        }
+
+        boolean isFull() {
+            return count == buffers.length;
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+    }
+
+    /**
+     * The write stage of one upload. Batches handed over with {@link #put} belong to the writer,
+     * which returns their buffers to the pool once inserted or, after a failure or cancel, drained.
+     */
+    private final class Writer {
+        private final Sink sink;
+        private final BsonObjectId fileId;
+        private final ChunkCipher cipher;
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueBatches);
+        private final Future<?> task;
+        private volatile boolean cancelled;
+
+        Writer(Sink sink, BsonObjectId fileId, ChunkCipher cipher) {
+            this.sink = sink;
+            this.fileId = fileId;
+            this.cipher = cipher;
+            this.task = writers.submit(this::run);
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    Batch batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (batch == null) {
+                        if (cancelled) {
+                            return;
+                        }
+                        continue;
+                    }
+                    if (batch == END) {
+                        return;
+                    }
+                    try {
+                        if (!cancelled) {
+                            insert(sink, fileId, batch, cipher);
+                        }
+                    } finally {
+                        release(batch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                drain();
+            }
+        }
+
+        /**
+         * Hand a batch to the writer, blocking while the queue is full. Throws if the writer failed,
+         * in which case the batch still belongs to the caller.
+         */
+        void put(Batch batch) throws IOException, InterruptedException {
+            while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (task.isDone()) {
+                    throw failure();
+                }
+            }
+        }
+
+        /**
+         * Wait until every batch handed over is stored
+         */
+        void finish() throws IOException, InterruptedException {
+            put(END);
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                throw failure();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            // Wait out an insert in progress, so the caller's cleanup does not race it
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            // Anything put after the writer stopped is still waiting in the queue
+            drain();
+        }
+
+        private void drain() {
+            Batch batch;
+            while ((batch = queue.poll()) != null) {
+                if (batch != END) {
+                    release(batch);
+                }
+            }
+        }
+
+        private IOException failure() throws InterruptedException {
+            try {
+                task.get();
+                return new IOException("GridFS writer stopped");
+            } catch (ExecutionException e) {
+                return new IOException("Failed to write chunks to GridFS", e.getCause());
+            }
+        }
+    }
+}
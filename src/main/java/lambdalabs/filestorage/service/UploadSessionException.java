@@ -0,0 +1,29 @@
+package lambdalabs.filestorage.service;
+
+/**
+ * A request about an upload in parts that cannot be served, see {@link Reason}
+ */
+public class UploadSessionException extends RuntimeException {
+
+    public enum Reason {
+        // No such upload of the user, or it was abandoned
+        NOT_FOUND,
+        // Part number out of range or body not of the part's length
+        INVALID_PART,
+        // Completed before every part was written
+        INCOMPLETE,
+        // The owner's files moved to another shard meanwhile, the upload has to start over
+        RESTART
+    }
+
+    private final Reason reason;
+
+    public UploadSessionException(Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
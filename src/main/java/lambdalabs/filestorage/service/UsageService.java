@@ -0,0 +1,252 @@
+package lambdalabs.filestorage.service;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.UserUsage;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.UserUsageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Per-owner usage counters (file count, bytes, bytes per tag) and quota enforcement.
+ * <p>
+ * Counters are changed with {@code $inc} together with every upload, delete and expiry, so reading
+ * usage or checking a quota is a single document lookup regardless of how many files an owner has.
+ * Uploads reserve their declared size before the body is read; the reservation is turned into real
+ * usage when the upload completes or released when it fails. {@link #repair()} rebuilds the usage
+ * from file_metadata should the counters ever drift (e.g. after a crash between a write and its counter
+ * update); it leaves reservations to the uploads holding them.
+ */
+@Service
+public class UsageService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UsageService.class);
+
+    @Autowired
+    private UserUsageRepository userUsageRepository;
+
+    @Autowired
+    private FileMetadataRepository fileMetadataRepository;
+
+    // Zero means no limit
+    @Value("${file-storage.quota.max-bytes-per-user:0}")
+    private DataSize maxBytesPerUser;
+
+    @Value("${file-storage.quota.max-files-per-user:0}")
+    private long maxFilesPerUser;
+
+    @Value("${file-storage.usage.repair-batch-size:1000}")
+    private int repairBatchSize;
+
+    /**
+     * Room held for an upload in progress; {@code held} is false when no quota is enforced and nothing was reserved
+     */
+    public record Reservation(String ownerId, long bytes, boolean held) {
+    }
+
+    public boolean isByteQuotaEnforced() {
+        return maxBytesPerUser.toBytes() > 0;
+    }
+
+    public long getMaxBytesPerUser() {
+        return maxBytesPerUser.toBytes();
+    }
+
+    public long getMaxFilesPerUser() {
+        return maxFilesPerUser;
+    }
+
+    /**
+     * Reserve room for a new file of the declared size before its body is read
+     *
+     * @throws QuotaExceededException when the file does not fit the owner's quota
+     */
+    public Reservation reserve(String ownerId, long declaredBytes) {
+        if (maxBytesPerUser.toBytes() <= 0 && maxFilesPerUser <= 0) {
+            return new Reservation(ownerId, 0, false);
+        }
+        long bytes = Math.max(0, declaredBytes);
+        if (!userUsageRepository.reserve(ownerId, bytes, maxBytesPerUser.toBytes(), maxFilesPerUser)) {
+            logger.debug("Quota exceeded: ownerId={}, declaredBytes={}", ownerId, declaredBytes);
+            throw new QuotaExceededException("The upload would exceed your storage quota");
+        }
+        return new Reservation(ownerId, bytes, true);
+    }
+
+    public void release(Reservation reservation) {
+        if (reservation.held()) {
+            userUsageRepository.increment(reservation.ownerId(), releasing(new Update(), reservation));
+        }
+    }
+
+    /**
+     * Count a stored file and drop its reservation, in one atomic update
+     */
+    public void recordUpload(FileMetadata metadata, Reservation reservation) {
+        Update update = new Delta().add(1, metadata.getSize(), metadata.getTags()).toUpdate();
+        if (reservation.held()) {
+            releasing(update, reservation);
+        }
+        userUsageRepository.increment(metadata.getOwnerId(), update);
+    }
+
+    public void recordRemoval(FileMetadata metadata) {
+        userUsageRepository.increment(metadata.getOwnerId(),
+                new Delta().add(-1, -metadata.getSize(), metadata.getTags()).toUpdate());
+    }
+
+    /**
+     * Take a batch of removed files off their owners' counters, one update per owner
+     */
+    public void recordRemovals(List<FileMetadata> removed) {
+        Map<String, Delta> byOwner = new LinkedHashMap<>();
+        for (FileMetadata metadata : removed) {
+            byOwner.computeIfAbsent(metadata.getOwnerId(), o -> new Delta())
+                    .add(-1, -metadata.getSize(), metadata.getTags());
+        }
+        userUsageRepository.incrementAll(byOwner.entrySet().stream()
+                .map(e -> new UserUsageRepository.UsageDelta(e.getKey(), e.getValue().toUpdate()))
+                .toList());
+    }
+
+    public void recordTagChange(String ownerId, long size, Set<String> oldTags, Set<String> newTags) {
+        Update update = new Update();
+        Set<String> before = oldTags != null ? oldTags : Set.of();
+        Set<String> after = newTags != null ? newTags : Set.of();
+        before.stream().filter(tag -> !after.contains(tag)).forEach(tag -> update.inc(tagField(tag), -size));
+        after.stream().filter(tag -> !before.contains(tag)).forEach(tag -> update.inc(tagField(tag), size));
+        if (!update.getUpdateObject().isEmpty()) {
+            userUsageRepository.increment(ownerId, update);
+        }
+    }
+
+    public Optional<UserUsage> getUsage(String ownerId) {
+        return userUsageRepository.findByOwnerId(ownerId);
+    }
+
+    /**
+     * Rebuild every owner's counters from file_metadata. This is a full collection scan meant for
+     * quiet hours or manual runs: changes made while it runs may be lost and are fixed by the next run.
+     */
+    @Scheduled(cron = "${file-storage.usage.repair-cron:-}")
+    public void repair() {
+        String rebuildId = UUID.randomUUID().toString();
+        long owners = 0;
+        try {
+            // Totals first (clearing tag usage), then bytes per tag on top of them
+            List<UserUsage> batch = new ArrayList<>(repairBatchSize);
+            try (Stream<FileMetadataRepository.OwnerTotals> totals = fileMetadataRepository.streamOwnerTotals()) {
+                for (FileMetadataRepository.OwnerTotals ownerTotals : (Iterable<FileMetadataRepository.OwnerTotals>) totals::iterator) {
+                    if (ownerTotals.id() == null) {
+                        continue;
+                    }
+                    UserUsage usage = new UserUsage();
+                    usage.setId(ownerTotals.id());
+                    usage.setFileCount(ownerTotals.fileCount());
+                    usage.setTotalBytes(ownerTotals.totalBytes());
+                    usage.setTagBytes(new HashMap<>());
+                    batch.add(usage);
+                    if (batch.size() == repairBatchSize) {
+                        userUsageRepository.replaceAll(batch, rebuildId);
+                        owners += batch.size();
+                        batch.clear();
+                    }
+                }
+            }
+            userUsageRepository.replaceAll(batch, rebuildId);
+            owners += batch.size();
+            long emptied = userUsageRepository.resetNotRebuilt(rebuildId);
+
+            List<UserUsageRepository.UsageDelta> tagBatch = new ArrayList<>(repairBatchSize);
+            String currentOwner = null;
+            Update current = null;
+            try (Stream<FileMetadataRepository.OwnerTagBytes> tagBytes = fileMetadataRepository.streamOwnerTagBytes()) {
+                for (FileMetadataRepository.OwnerTagBytes entry : (Iterable<FileMetadataRepository.OwnerTagBytes>) tagBytes::iterator) {
+                    if (entry.ownerId() == null || entry.tag() == null) {
+                        continue;
+                    }
+                    // Rows come ordered by owner, so all tags of one owner go into one update
+                    if (!entry.ownerId().equals(currentOwner)) {
+                        if (current != null) {
+                            tagBatch.add(new UserUsageRepository.UsageDelta(currentOwner, current));
+                        }
+                        if (tagBatch.size() == repairBatchSize) {
+                            userUsageRepository.incrementAll(tagBatch);
+                            tagBatch.clear();
+                        }
+                        currentOwner = entry.ownerId();
+                        current = new Update();
+                    }
+                    current.set(tagField(entry.tag()), entry.bytes());
+                }
+            }
+            if (current != null) {
+                tagBatch.add(new UserUsageRepository.UsageDelta(currentOwner, current));
+            }
+            userUsageRepository.incrementAll(tagBatch);
+
+            logger.info("Rebuilt usage counters: owners={}, emptied={}", owners, emptied);
+        } catch (Exception e) {
+            logger.error("Usage counter repair failed", e);
+        }
+    }
+
+    /**
+     * Counter changes summed up before being turned into one {@code $inc}, which holds a single value per field
+     */
+    private static final class Delta {
+        private long files;
+        private long bytes;
+        private final Map<String, Long> tagBytes = new HashMap<>();
+
+        Delta add(long files, long bytes, Set<String> tags) {
+            this.files += files;
+            this.bytes += bytes;
+            if (tags != null) {
+                tags.forEach(tag -> tagBytes.merge(tag, bytes, Long::sum));
+            }
+            return this;
+        }
+
+        Update toUpdate() {
+            Update update = new Update().inc("fileCount", files).inc("totalBytes", bytes);
+            tagBytes.forEach((tag, delta) -> update.inc(tagField(tag), delta));
+            return update;
+        }
+    }
+
+    private static Update releasing(Update update, Reservation reservation) {
+        return update.inc("reservedBytes", -reservation.bytes()).inc("reservedFiles", -1);
+    }
+
+    private static String tagField(String tag) {
+        return "tagBytes." + escapeTag(tag);
+    }
+
+    /**
+     * Tags become field names, which must not contain '.' or start with '$'
+     */
+    static String escapeTag(String tag) {
+        return tag.replace("%", "%25").replace(".", "%2E").replace("$", "%24");
+    }
+
+    public static String unescapeTag(String key) {
+        return key.replace("%2E", ".").replace("%24", "$").replace("%25", "%");
+    }
+}
@@ -12,14 +12,19 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.web.client.ResponseErrorHandler;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.DEFINED_PORT)
 @ActiveProfiles("test")
@@ -137,6 +142,236 @@ public class AcceptanceIntegrationTest {
 		}
 	}
 
+	@Test
+	void deleteFile_metadataGoneImmediately_sameContentCanBeReuploaded() {
+		final String user = "delete-user";
+		ResponseEntity<Map<String,Object>> first = upload(user, "to-delete.txt", "DELETE_ME", "text/plain", "PRIVATE");
+		Assertions.assertEquals(HttpStatus.OK, first.getStatusCode());
+		Assertions.assertNotNull(first.getBody());
+		String id = String.valueOf(first.getBody().get("id"));
+
+		assertDelete(user, id, HttpStatus.NO_CONTENT);
+		assertDelete(user, id, HttpStatus.NOT_FOUND);
+
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("User-Id", user);
+		RequestEntity<Void> getReq = new RequestEntity<>(headers, HttpMethod.GET, URI.create("http://localhost:8080/api/files/" + id));
+		Assertions.assertEquals(HttpStatus.NOT_FOUND, restTemplate.exchange(getReq, Void.class).getStatusCode());
+
+		// GridFS content may still be waiting for the reclaimer, but name and content are free again
+		ResponseEntity<Map<String,Object>> second = upload(user, "to-delete.txt", "DELETE_ME", "text/plain", "PRIVATE");
+		Assertions.assertEquals(HttpStatus.OK, second.getStatusCode());
+		Assertions.assertNotNull(second.getBody());
+		assertDelete(user, String.valueOf(second.getBody().get("id")), HttpStatus.NO_CONTENT);
+	}
+
+	@Test
+	void expiredFile_hiddenBeforeSweep() throws Exception {
+		final String user = "expiry-user";
+		ResponseEntity<Map<String,Object>> up = upload(user, "short-lived.txt", "SHORT_LIVED", "text/plain", "PRIVATE", "&ttl=PT2S");
+		Assertions.assertEquals(HttpStatus.OK, up.getStatusCode());
+		Assertions.assertNotNull(up.getBody());
+		Assertions.assertNotNull(up.getBody().get("expiresAt"));
+		String id = String.valueOf(up.getBody().get("id"));
+
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("User-Id", user);
+		RequestEntity<Void> getReq = new RequestEntity<>(headers, HttpMethod.GET, URI.create("http://localhost:8080/api/files/" + id));
+		Assertions.assertEquals(HttpStatus.OK, restTemplate.exchange(getReq, Void.class).getStatusCode());
+
+		Thread.sleep(2500);
+		Assertions.assertEquals(HttpStatus.NOT_FOUND, restTemplate.exchange(getReq, Void.class).getStatusCode());
+
+		// The expired file no longer blocks its filename
+		ResponseEntity<Map<String,Object>> again = upload(user, "short-lived.txt", "SHORT_LIVED", "text/plain", "PRIVATE");
+		Assertions.assertEquals(HttpStatus.OK, again.getStatusCode());
+		Assertions.assertNotNull(again.getBody());
+		assertDelete(user, String.valueOf(again.getBody().get("id")), HttpStatus.NO_CONTENT);
+	}
+
+	@Test
+	void download_conditionalAndRangeRequests() {
+		final String user = "cache-user";
+		ResponseEntity<Map<String,Object>> up = upload(user, "cacheable.txt", "0123456789", "text/plain", "PUBLIC");
+		Assertions.assertEquals(HttpStatus.OK, up.getStatusCode());
+		Assertions.assertNotNull(up.getBody());
+		String id = String.valueOf(up.getBody().get("id"));
+		try {
+			URI downloadUri = URI.create("http://localhost:8080/api/files/" + id + "/download");
+			HttpHeaders headers = new HttpHeaders();
+			headers.set("User-Id", user);
+			ResponseEntity<String> full = restTemplate.exchange(new RequestEntity<>(headers, HttpMethod.GET, downloadUri), String.class);
+			Assertions.assertEquals(HttpStatus.OK, full.getStatusCode());
+			Assertions.assertEquals("0123456789", full.getBody());
+			String eTag = full.getHeaders().getETag();
+			Assertions.assertEquals("\"" + up.getBody().get("md5") + "\"", eTag);
+			Assertions.assertTrue(full.getHeaders().getLastModified() > 0);
+			Assertions.assertNotNull(full.getHeaders().getCacheControl());
+			Assertions.assertTrue(full.getHeaders().getCacheControl().contains("public"));
+
+			HttpHeaders conditional = new HttpHeaders();
+			conditional.set("User-Id", "another-user");
+			conditional.setIfNoneMatch(eTag);
+			ResponseEntity<String> notModified = restTemplate.exchange(new RequestEntity<>(conditional, HttpMethod.GET, downloadUri), String.class);
+			Assertions.assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode());
+			Assertions.assertNull(notModified.getBody());
+
+			HttpHeaders ranged = new HttpHeaders();
+			ranged.set("User-Id", user);
+			ranged.set(HttpHeaders.RANGE, "bytes=2-5");
+			ranged.set(HttpHeaders.IF_RANGE, eTag);
+			ResponseEntity<String> partial = restTemplate.exchange(new RequestEntity<>(ranged, HttpMethod.GET, downloadUri), String.class);
+			Assertions.assertEquals(HttpStatus.PARTIAL_CONTENT, partial.getStatusCode());
+			Assertions.assertEquals("2345", partial.getBody());
+			Assertions.assertEquals("bytes 2-5/10", partial.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+
+			ranged.set(HttpHeaders.IF_RANGE, "\"stale\"");
+			ResponseEntity<String> stale = restTemplate.exchange(new RequestEntity<>(ranged, HttpMethod.GET, downloadUri), String.class);
+			Assertions.assertEquals(HttpStatus.OK, stale.getStatusCode());
+			Assertions.assertEquals("0123456789", stale.getBody());
+		} finally {
+			assertDelete(user, id, HttpStatus.NO_CONTENT);
+		}
+	}
+
+	@Test
+	void archive_streamsVisibleFilesAsZip() throws Exception {
+		final String user = "archive-user";
+		ResponseEntity<Map<String,Object>> a = upload(user, "arch-a.txt", "ARCHIVE_A", "text/plain", "PRIVATE");
+		ResponseEntity<Map<String,Object>> b = upload(user, "arch-b.txt", "ARCHIVE_B", "text/plain", "PRIVATE");
+		Assertions.assertNotNull(a.getBody());
+		Assertions.assertNotNull(b.getBody());
+		String idA = String.valueOf(a.getBody().get("id"));
+		String idB = String.valueOf(b.getBody().get("id"));
+		try {
+			HttpHeaders headers = new HttpHeaders();
+			headers.set("User-Id", user);
+			URI uri = URI.create("http://localhost:8080/api/files/archive?ids=" + idA + "," + idB);
+			ResponseEntity<byte[]> resp = restTemplate.exchange(new RequestEntity<>(headers, HttpMethod.GET, uri), byte[].class);
+			Assertions.assertEquals(HttpStatus.OK, resp.getStatusCode());
+			Assertions.assertNotNull(resp.getBody());
+
+			Map<String,String> entries = new HashMap<>();
+			try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(resp.getBody()))) {
+				ZipEntry entry;
+				while ((entry = zip.getNextEntry()) != null) {
+					entries.put(entry.getName(), new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+				}
+			}
+			Assertions.assertEquals(Map.of("arch-a.txt", "ARCHIVE_A", "arch-b.txt", "ARCHIVE_B"), entries);
+
+			// Another user cannot pull private files into an archive
+			HttpHeaders other = new HttpHeaders();
+			other.set("User-Id", "archive-other");
+			ResponseEntity<byte[]> denied = restTemplate.exchange(new RequestEntity<>(other, HttpMethod.GET, uri), byte[].class);
+			Assertions.assertEquals(HttpStatus.NOT_FOUND, denied.getStatusCode());
+		} finally {
+			assertDelete(user, idA, HttpStatus.NO_CONTENT);
+			assertDelete(user, idB, HttpStatus.NO_CONTENT);
+		}
+	}
+
+	@Test
+	void usage_countersFollowUploadsAndDeletes() {
+		final String user = "usage-user-" + System.nanoTime();
+		ResponseEntity<Map<String,Object>> a = upload(user, "usage-a.txt", "USAGE_A", "text/plain", "PRIVATE", "&tags=work&tags=v1.2");
+		ResponseEntity<Map<String,Object>> b = upload(user, "usage-b.txt", "USAGE_BB", "text/plain", "PRIVATE", "&tags=work");
+		Assertions.assertNotNull(a.getBody());
+		Assertions.assertNotNull(b.getBody());
+
+		Map<String,Object> usage = usage(user);
+		Assertions.assertEquals(2, ((Number) usage.get("fileCount")).intValue());
+		Assertions.assertEquals(15, ((Number) usage.get("totalBytes")).intValue());
+		Assertions.assertEquals(Map.of("work", 15, "v1.2", 7), usage.get("tagBytes"));
+
+		assertDelete(user, String.valueOf(a.getBody().get("id")), HttpStatus.NO_CONTENT);
+		usage = usage(user);
+		Assertions.assertEquals(1, ((Number) usage.get("fileCount")).intValue());
+		Assertions.assertEquals(8, ((Number) usage.get("totalBytes")).intValue());
+		Assertions.assertEquals(Map.of("work", 8), usage.get("tagBytes"));
+
+		assertDelete(user, String.valueOf(b.getBody().get("id")), HttpStatus.NO_CONTENT);
+	}
+
+	@Test
+	void tags_countsFollowUploadsAndDeletes() {
+		final String user = "tags-user-" + System.nanoTime();
+		final String tag = "facet-" + System.nanoTime();
+		ResponseEntity<Map<String,Object>> a = upload(user, "tags-a.txt", "TAGS_A", "text/plain", "PUBLIC", "&tags=" + tag + "&tags=shared");
+		ResponseEntity<Map<String,Object>> b = upload(user, "tags-b.txt", "TAGS_B", "text/plain", "PRIVATE", "&tags=" + tag);
+		Assertions.assertNotNull(a.getBody());
+		Assertions.assertNotNull(b.getBody());
+		try {
+			Map<String,Object> tags = tags(user);
+			Assertions.assertEquals(Map.of(tag, 2, "shared", 1), tags.get("owned"));
+			Assertions.assertEquals(1, ((Map<?,?>) tags.get("public")).get(tag));
+
+			assertDelete(user, String.valueOf(a.getBody().get("id")), HttpStatus.NO_CONTENT);
+			tags = tags(user);
+			Assertions.assertEquals(Map.of(tag, 1), tags.get("owned"));
+			Assertions.assertNull(((Map<?,?>) tags.get("public")).get(tag));
+		} finally {
+			assertDelete(user, String.valueOf(b.getBody().get("id")), HttpStatus.NO_CONTENT);
+		}
+	}
+
+	@Test
+	void folders_moveKeepsContentsAndTotals() {
+		final String user = "folder-user-" + System.nanoTime();
+		String docs = String.valueOf(folder(user, HttpMethod.POST, "", Map.of("name", "docs")).getBody().get("id"));
+		String reports = String.valueOf(folder(user, HttpMethod.POST, "", Map.of("name", "reports", "parentId", docs)).getBody().get("id"));
+		Assertions.assertEquals(HttpStatus.CONFLICT, folder(user, HttpMethod.POST, "", Map.of("name", "reports", "parentId", docs)).getStatusCode());
+
+		ResponseEntity<Map<String,Object>> a = upload(user, "folder-a.txt", "FOLDER_A", "text/plain", "PRIVATE", "&folderId=" + reports);
+		ResponseEntity<Map<String,Object>> b = upload(user, "folder-b.txt", "FOLDER_BB", "text/plain", "PRIVATE", "&folderId=" + reports);
+		Assertions.assertEquals(HttpStatus.OK, a.getStatusCode());
+		Assertions.assertEquals(HttpStatus.OK, b.getStatusCode());
+		try {
+			Map<String,Object> docsFolder = folder(user, HttpMethod.GET, "/" + docs, null).getBody();
+			Assertions.assertEquals(2, ((Number) docsFolder.get("fileCount")).intValue());
+			Assertions.assertEquals(17, ((Number) docsFolder.get("totalBytes")).intValue());
+
+			// Keyset pages of one file each
+			Map<String,Object> page = folder(user, HttpMethod.GET, "/" + reports + "/files?limit=1", null).getBody();
+			Assertions.assertEquals("folder-a.txt", ((Map<?,?>) ((List<?>) page.get("items")).get(0)).get("filename"));
+			page = folder(user, HttpMethod.GET, "/" + reports + "/files?limit=1&after=" + page.get("next"), null).getBody();
+			Assertions.assertEquals("folder-b.txt", ((Map<?,?>) ((List<?>) page.get("items")).get(0)).get("filename"));
+			Assertions.assertNull(page.get("next"));
+
+			// Moving reports to the top level takes its totals off docs, its files go along untouched
+			Assertions.assertEquals(HttpStatus.CONFLICT, folder(user, HttpMethod.PATCH, "/" + docs, Map.of("parentId", reports)).getStatusCode());
+			Map<String,Object> moved = folder(user, HttpMethod.PATCH, "/" + reports, Map.of("parentId", "root", "name", "archive")).getBody();
+			Assertions.assertEquals("archive", moved.get("name"));
+			Assertions.assertEquals(2, ((Number) moved.get("fileCount")).intValue());
+			Assertions.assertEquals(0, ((Number) folder(user, HttpMethod.GET, "/" + docs, null).getBody().get("fileCount")).intValue());
+			Assertions.assertEquals(2, ((List<?>) folder(user, HttpMethod.GET, "/" + reports + "/files", null).getBody().get("items")).size());
+			Assertions.assertEquals(HttpStatus.CONFLICT, folder(user, HttpMethod.DELETE, "/" + reports, null).getStatusCode());
+		} finally {
+			assertDelete(user, String.valueOf(a.getBody().get("id")), HttpStatus.NO_CONTENT);
+			assertDelete(user, String.valueOf(b.getBody().get("id")), HttpStatus.NO_CONTENT);
+		}
+		Assertions.assertEquals(HttpStatus.NO_CONTENT, folder(user, HttpMethod.DELETE, "/" + reports, null).getStatusCode());
+		Assertions.assertEquals(HttpStatus.NO_CONTENT, folder(user, HttpMethod.DELETE, "/" + docs, null).getStatusCode());
+	}
+
+	@Test
+	void search_matchesByPrefixTokenAndSubstring() {
+		final String user = "search-user";
+		ResponseEntity<Map<String,Object>> mine = upload(user, "Quarterly_Report-2024.pdf", "SEARCH_MINE", "application/pdf", "PRIVATE");
+		ResponseEntity<Map<String,Object>> hidden = upload("search-other", "quarterly-hidden.pdf", "SEARCH_HIDDEN", "application/pdf", "PRIVATE");
+		Assertions.assertNotNull(mine.getBody());
+		Assertions.assertNotNull(hidden.getBody());
+		try {
+			Assertions.assertEquals(List.of("Quarterly_Report-2024.pdf"), search(user, "quart", "PREFIX"));
+			Assertions.assertEquals(List.of("Quarterly_Report-2024.pdf"), search(user, "REPORT", "TOKEN"));
+			Assertions.assertEquals(List.of("Quarterly_Report-2024.pdf"), search(user, "rly_rep", "SUBSTRING"));
+			Assertions.assertEquals(List.of(), search(user, "hidden", "TOKEN"));
+		} finally {
+			assertDelete(user, String.valueOf(mine.getBody().get("id")), HttpStatus.NO_CONTENT);
+			assertDelete("search-other", String.valueOf(hidden.getBody().get("id")), HttpStatus.NO_CONTENT);
+		}
+	}
+
 	@Test
 	void listAllPublicFiles_showsPublicFromOthers() {
 		final String userA;
@@ -181,6 +416,10 @@ public class AcceptanceIntegrationTest {
 	}
 
 	private static ResponseEntity<Map<String,Object>> upload(String userId, String filename, String content, String contentType, String visibility) {
+		return upload(userId, filename, content, contentType, visibility, "");
+	}
+
+	private static ResponseEntity<Map<String,Object>> upload(String userId, String filename, String content, String contentType, String visibility, String extraQuery) {
 		InputStream dataStream = new StringStream(content);
 		InputStreamResource body = new InputStreamResource(dataStream) {
 			@Override
@@ -192,11 +431,49 @@ public class AcceptanceIntegrationTest {
 		HttpHeaders headers = new HttpHeaders();
 		headers.set("User-Id", userId);
 		headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-		URI uri = URI.create("http://localhost:8080/api/files/upload?filename=" + filename + "&contentType=" + contentType + "&visibility=" + visibility);
+		URI uri = URI.create("http://localhost:8080/api/files/upload?filename=" + filename + "&contentType=" + contentType + "&visibility=" + visibility + extraQuery);
 		RequestEntity<InputStreamResource> req = new RequestEntity<>(body, headers, HttpMethod.POST, uri);
 		return restTemplate.exchange(req, new ParameterizedTypeReference<>() {});
 	}
 
+	private static List<String> search(String userId, String q, String mode) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("User-Id", userId);
+		URI uri = URI.create("http://localhost:8080/api/files/search?q=" + q + "&mode=" + mode);
+		ResponseEntity<List<Map<String,Object>>> resp = restTemplate.exchange(new RequestEntity<>(headers, HttpMethod.GET, uri), new ParameterizedTypeReference<>() {});
+		Assertions.assertEquals(HttpStatus.OK, resp.getStatusCode());
+		Assertions.assertNotNull(resp.getBody());
+		return resp.getBody().stream().map(m -> String.valueOf(m.get("filename"))).toList();
+	}
+
+	private static Map<String,Object> usage(String userId) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("User-Id", userId);
+		RequestEntity<Void> req = new RequestEntity<>(headers, HttpMethod.GET, URI.create("http://localhost:8080/api/usage"));
+		ResponseEntity<Map<String,Object>> resp = restTemplate.exchange(req, new ParameterizedTypeReference<>() {});
+		Assertions.assertEquals(HttpStatus.OK, resp.getStatusCode());
+		Assertions.assertNotNull(resp.getBody());
+		return resp.getBody();
+	}
+
+	private static Map<String,Object> tags(String userId) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("User-Id", userId);
+		RequestEntity<Void> req = new RequestEntity<>(headers, HttpMethod.GET, URI.create("http://localhost:8080/api/tags?limit=1000"));
+		ResponseEntity<Map<String,Object>> resp = restTemplate.exchange(req, new ParameterizedTypeReference<>() {});
+		Assertions.assertEquals(HttpStatus.OK, resp.getStatusCode());
+		Assertions.assertNotNull(resp.getBody());
+		return resp.getBody();
+	}
+
+	private static ResponseEntity<Map<String,Object>> folder(String userId, HttpMethod method, String path, Map<String,String> body) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("User-Id", userId);
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		RequestEntity<Map<String,String>> req = new RequestEntity<>(body, headers, method, URI.create("http://localhost:8080/api/folders" + path));
+		return restTemplate.exchange(req, new ParameterizedTypeReference<>() {});
+	}
+
 	private static void assertDelete(String userId, String id, HttpStatus expected) {
 		HttpHeaders headers = new HttpHeaders();
 		headers.set("User-Id", userId);
@@ -236,7 +513,7 @@ public class AcceptanceIntegrationTest {
 		private int index = 0;
 
 		StringStream(String content) {
-			this.bytes = content.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+			this.bytes = content.getBytes(StandardCharsets.UTF_8);
 		}
 
 		@Override
@@ -0,0 +1,153 @@
+package lambdalabs.filestorage;
+
+import lambdalabs.filestorage.service.DownloadCoalescer;
+import lambdalabs.filestorage.service.GridFsService;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Mongo read load of a hot file as download concurrency rises, with and without coalescing.
+ * Reads are taken from the server's query + getmore opcounters, so run it against an otherwise idle mongod.
+ * Not part of the default build, run with -Dbenchmarks=true.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true", disabledReason = "Benchmark, run with -Dbenchmarks=true")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.DEFINED_PORT)
+@ActiveProfiles("test")
+public class DownloadCoalescingBenchmarkIntegrationTest {
+
+	private static final Logger logger = LoggerFactory.getLogger(DownloadCoalescingBenchmarkIntegrationTest.class);
+
+	private static final long FILE_SIZE = 32L * 1024 * 1024;
+	private static final int[] CONCURRENCY = {1, 8, 32, 128};
+	private static final String OWNER = "benchmark-owner";
+
+	@Autowired
+	private GridFsService gridFsService;
+
+	@Autowired
+	private DownloadCoalescer downloadCoalescer;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@BeforeAll
+	static void setup() {
+		Assumptions.assumeTrue(isMongoRunning(), "MongoDB must be running at mongodb://localhost:27017 for this integration test");
+	}
+
+	@Test
+	void mongoReadsStayFlatWithCoalescing() throws Exception {
+		ObjectId gridFsId = gridFsService.storeFileStreaming(OWNER, new PatternStream(FILE_SIZE), "hot-file.bin", "application/octet-stream");
+		try {
+			logger.info(String.format("%-12s %-10s %14s %14s %12s", "mode", "clients", "mongo reads", "reads/s", "MB/s"));
+			long coalescedAtMax = 0;
+			long coalescedAtOne = 0;
+			for (int clients : CONCURRENCY) {
+				Result direct = run(clients, () -> gridFsService.openStream(OWNER, gridFsId, 0, Long.MAX_VALUE));
+				Result coalesced = run(clients, () -> downloadCoalescer.open(OWNER, gridFsId));
+				print("direct", clients, direct);
+				print("coalesced", clients, coalesced);
+				if (clients == CONCURRENCY[0]) {
+					coalescedAtOne = coalesced.reads;
+				}
+				coalescedAtMax = coalesced.reads;
+			}
+			// Direct reads grow linearly with clients; shared flights keep them within a small multiple
+			Assertions.assertTrue(coalescedAtMax < coalescedAtOne * CONCURRENCY[CONCURRENCY.length - 1] / 4,
+					"Coalesced Mongo reads should not grow with the number of concurrent clients");
+		} finally {
+			gridFsService.deleteFile(OWNER, gridFsId);
+		}
+	}
+
+	private Result run(int clients, Callable<InputStream> opener) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<Long>> futures = new ArrayList<>();
+		for (int i = 0; i < clients; i++) {
+			futures.add(pool.submit(() -> {
+				start.await();
+				try (InputStream in = opener.call()) {
+					return in.transferTo(OutputStream.nullOutputStream());
+				}
+			}));
+		}
+
+		long readsBefore = mongoReads();
+		long startNanos = System.nanoTime();
+		start.countDown();
+		long bytes = 0;
+		for (Future<Long> future : futures) {
+			bytes += future.get(10, TimeUnit.MINUTES);
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+		long reads = mongoReads() - readsBefore;
+		pool.shutdownNow();
+
+		Assertions.assertEquals(FILE_SIZE * clients, bytes);
+		return new Result(reads, elapsedNanos, bytes);
+	}
+
+	private long mongoReads() {
+		Document opcounters = mongoTemplate.getDb().runCommand(new Document("serverStatus", 1)).get("opcounters", Document.class);
+		return ((Number) opcounters.get("query")).longValue() + ((Number) opcounters.get("getmore")).longValue();
+	}
+
+	private static void print(String mode, int clients, Result result) {
+		double seconds = result.elapsedNanos / 1e9;
+		logger.info(String.format("%-12s %-10d %14d %14.1f %12.1f", mode, clients, result.reads,
+				result.reads / seconds, result.bytes / seconds / (1024 * 1024)));
+	}
+
+	private record Result(long reads, long elapsedNanos, long bytes) {
+	}
+
+	private static boolean isMongoRunning() {
+		try (java.net.Socket ignored = new java.net.Socket("localhost", 27017)) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static class PatternStream extends InputStream {
+		private final long totalBytes;
+		private long produced;
+
+		PatternStream(long totalBytes) {
+			this.totalBytes = totalBytes;
+		}
+
+		@Override
+		public int read() {
+			if (produced >= totalBytes) return -1;
+			return (int) (produced++ & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (produced >= totalBytes) return -1;
+			int toWrite = (int) Math.min(len, totalBytes - produced);
+			for (int i = 0; i < toWrite; i++) {
+				b[off + i] = (byte) ((produced + i) & 0xFF);
+			}
+			produced += toWrite;
+			return toWrite;
+		}
+	}
+}
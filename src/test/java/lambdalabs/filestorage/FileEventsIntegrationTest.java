@@ -0,0 +1,195 @@
+package lambdalabs.filestorage;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.Document;
+import org.junit.jupiter.api.*;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Event feed over a real change stream; needs MongoDB running as a replica set at localhost:27017
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.DEFINED_PORT)
+@ActiveProfiles("test")
+public class FileEventsIntegrationTest {
+
+	private static final String BASE = "http://localhost:8080/api/files";
+	private static final Pattern ID = Pattern.compile("\"id\":\"([0-9a-f]{24})\"");
+
+	private final HttpClient client = HttpClient.newHttpClient();
+
+	@BeforeAll
+	static void setup() {
+		Assumptions.assumeTrue(isReplicaSet(), "MongoDB must be running as a replica set at mongodb://localhost:27017 for this integration test");
+	}
+
+	@Test
+	void events_followUploadAndDelete_andResumeFromLastEventId() throws Exception {
+		final String user = "events-user-" + System.nanoTime();
+		try (Feed feed = subscribe(user, null)) {
+			// Events of other users' private files are not sent
+			final String otherUser = "events-other-" + System.nanoTime();
+			String otherId = upload(otherUser, "events-other.txt", "PRIVATE");
+			String fileId = upload(user, "events-a.txt", "PRIVATE");
+
+			Event created = feed.next();
+			Assertions.assertEquals("created", created.name());
+			Assertions.assertTrue(created.data().contains(fileId));
+
+			delete(user, fileId);
+			Event deleted = feed.next();
+			Assertions.assertEquals("deleted", deleted.name());
+			Assertions.assertTrue(deleted.data().contains(fileId));
+
+			// Reconnecting after the created event replays the delete
+			try (Feed resumed = subscribe(user, created.id())) {
+				Event replayed = resumed.next();
+				Assertions.assertEquals("deleted", replayed.name());
+				Assertions.assertEquals(deleted.id(), replayed.id());
+			}
+			delete(otherUser, otherId);
+		}
+	}
+
+	@Test
+	void events_followEdits() throws Exception {
+		final String user = "events-edit-" + System.nanoTime();
+		try (Feed feed = subscribe(user, null)) {
+			String fileId = upload(user, "events-before.txt", "PRIVATE");
+			Assertions.assertEquals("created", feed.next().name());
+
+			rename(user, fileId, "events-after.txt");
+			Event updated = feed.next();
+			Assertions.assertEquals("updated", updated.name());
+			Assertions.assertTrue(updated.data().contains(fileId));
+			Assertions.assertTrue(updated.data().contains("events-after.txt"), updated.data());
+
+			delete(user, fileId);
+			Assertions.assertEquals("deleted", feed.next().name());
+		}
+	}
+
+	private record Event(String id, String name, String data) {
+	}
+
+	private final class Feed implements AutoCloseable {
+		private final InputStream body;
+		private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+
+		Feed(InputStream body) {
+			this.body = body;
+			Thread reader = new Thread(this::read, "events-test-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		Event next() throws InterruptedException {
+			Event event = events.poll(30, TimeUnit.SECONDS);
+			Assertions.assertNotNull(event, "No event within 30s");
+			return event;
+		}
+
+		private void read() {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+				String id = null;
+				String name = null;
+				List<String> data = new ArrayList<>();
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.isEmpty()) {
+						if (name != null) {
+							events.add(new Event(id, name, String.join("\n", data)));
+						}
+						id = null;
+						name = null;
+						data.clear();
+					} else if (line.startsWith("id:")) {
+						id = line.substring(3).trim();
+					} else if (line.startsWith("event:")) {
+						name = line.substring(6).trim();
+					} else if (line.startsWith("data:")) {
+						data.add(line.substring(5));
+					}
+				}
+			} catch (IOException ignored) {
+				// Closed by the test
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			body.close();
+		}
+	}
+
+	private Feed subscribe(String userId, String lastEventId) throws Exception {
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(BASE + "/events"))
+				.header("User-Id", userId)
+				.header("Accept", "text/event-stream");
+		if (lastEventId != null) {
+			request.header("Last-Event-ID", lastEventId);
+		}
+		HttpResponse<InputStream> response = client.send(request.GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+		Assertions.assertEquals(200, response.statusCode());
+		return new Feed(response.body());
+	}
+
+	private String upload(String userId, String filename, String visibility) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(BASE + "/upload?filename=" + filename + "&visibility=" + visibility))
+				.header("User-Id", userId)
+				.header("Content-Type", "application/octet-stream")
+				.POST(HttpRequest.BodyPublishers.ofString(filename + System.nanoTime()))
+				.build();
+		HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+		Assertions.assertEquals(200, response.statusCode(), response.body());
+		Matcher matcher = ID.matcher(response.body());
+		Assertions.assertTrue(matcher.find());
+		return matcher.group(1);
+	}
+
+	private void rename(String userId, String fileId, String filename) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(BASE + "/" + fileId))
+				.header("User-Id", userId)
+				.header("Content-Type", "application/json")
+				.method("PATCH", HttpRequest.BodyPublishers.ofString("{\"filename\":\"" + filename + "\"}"))
+				.build();
+		HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+		Assertions.assertEquals(200, response.statusCode(), response.body());
+	}
+
+	private void delete(String userId, String fileId) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(BASE + "/" + fileId)).header("User-Id", userId).DELETE().build();
+		Assertions.assertEquals(204, client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode());
+	}
+
+	private static boolean isReplicaSet() {
+		try (java.net.Socket ignored = new java.net.Socket("localhost", 27017)) {
+			// Reachable, now check it is a replica set member
+		} catch (IOException e) {
+			return false;
+		}
+		try (MongoClient mongo = MongoClients.create("mongodb://localhost:27017/?serverSelectionTimeoutMS=2000&directConnection=true")) {
+			return mongo.getDatabase("admin").runCommand(new Document("hello", 1)).containsKey("setName");
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
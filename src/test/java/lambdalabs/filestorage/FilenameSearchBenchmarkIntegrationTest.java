@@ -0,0 +1,112 @@
+package lambdalabs.filestorage;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.FilenameTerms;
+import lambdalabs.filestorage.model.SearchMode;
+import lambdalabs.filestorage.model.Visibility;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+/**
+ * Filename search latency over a generated dataset ({@link FilenameSearchDataset}).
+ * Size and the p99 bound can be raised with -Dsearch.benchmark.files=... and -Dsearch.benchmark.p99-ms=...
+ * Not part of the default build, run with -Dbenchmarks=true.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true", disabledReason = "Benchmark, run with -Dbenchmarks=true")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.DEFINED_PORT)
+@ActiveProfiles("test")
+public class FilenameSearchBenchmarkIntegrationTest {
+
+	private static final Logger logger = LoggerFactory.getLogger(FilenameSearchBenchmarkIntegrationTest.class);
+
+	private static final String COLLECTION = "file_metadata";
+	private static final long FILES = Long.getLong("search.benchmark.files", 200_000);
+	private static final long P99_MILLIS = Long.getLong("search.benchmark.p99-ms", 20);
+	private static final int QUERIES = 1000;
+
+	@Autowired
+	private FileMetadataRepository fileMetadataRepository;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@BeforeAll
+	static void setup() {
+		Assumptions.assumeTrue(isMongoRunning(), "MongoDB must be running at mongodb://localhost:27017 for this integration test");
+	}
+
+	@BeforeEach
+	void generate() {
+		if (FilenameSearchDataset.countGenerated(mongoTemplate, COLLECTION) < FILES) {
+			FilenameSearchDataset.removeGenerated(mongoTemplate, COLLECTION);
+			FilenameSearchDataset.generate(mongoTemplate, COLLECTION, FILES, 42);
+		}
+	}
+
+	@AfterEach
+	void cleanup() {
+		FilenameSearchDataset.removeGenerated(mongoTemplate, COLLECTION);
+	}
+
+	@Test
+	void searchLatencyStaysLow() {
+		logger.info(String.format("%-10s %10s %10s %10s %10s", "mode", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+		Random random = new Random(7);
+		for (SearchMode mode : SearchMode.values()) {
+			long[] nanos = new long[QUERIES];
+			for (int i = 0; i < QUERIES; i++) {
+				String userId = FilenameSearchDataset.ownerId(random.nextInt(100));
+				String word = FilenameSearchDataset.WORDS[random.nextInt(FilenameSearchDataset.WORDS.length)];
+				String query = switch (mode) {
+					case PREFIX -> word.substring(0, 2 + random.nextInt(word.length() - 1));
+					case TOKEN -> word;
+					case SUBSTRING -> word.substring(1, Math.min(word.length(), 5));
+				};
+
+				long start = System.nanoTime();
+				List<FileMetadata> results = fileMetadataRepository.searchByFilenameVisibleToUser(userId, mode, query, 20);
+				nanos[i] = System.nanoTime() - start;
+
+				Predicate<FileMetadata> matches = switch (mode) {
+					case PREFIX -> file -> FilenameTerms.normalize(file.getFilename()).startsWith(query);
+					case TOKEN -> file -> FilenameTerms.tokens(FilenameTerms.normalize(file.getFilename())).contains(query);
+					case SUBSTRING -> file -> FilenameTerms.normalize(file.getFilename()).contains(query);
+				};
+				for (FileMetadata file : results) {
+					Assertions.assertTrue(matches.test(file), mode + " '" + query + "' returned " + file.getFilename());
+					Assertions.assertTrue(file.getVisibility() == Visibility.PUBLIC || userId.equals(file.getOwnerId()));
+				}
+			}
+
+			Arrays.sort(nanos);
+			logger.info(String.format("%-10s %10.2f %10.2f %10.2f %10.2f", mode,
+					percentile(nanos, 50), percentile(nanos, 95), percentile(nanos, 99), nanos[QUERIES - 1] / 1e6));
+			Assertions.assertTrue(percentile(nanos, 99) < P99_MILLIS, mode + " p99 above " + P99_MILLIS + " ms");
+		}
+	}
+
+	private static double percentile(long[] sortedNanos, int percentile) {
+		return sortedNanos[Math.min(sortedNanos.length - 1, sortedNanos.length * percentile / 100)] / 1e6;
+	}
+
+	private static boolean isMongoRunning() {
+		try (java.net.Socket ignored = new java.net.Socket("localhost", 27017)) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
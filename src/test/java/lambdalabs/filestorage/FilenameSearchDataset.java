@@ -0,0 +1,112 @@
+package lambdalabs.filestorage;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.Visibility;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Synthetic file_metadata for filename search benchmarks: names built from common words, dates,
+ * counters and extensions, owners with a skewed number of files and about 10% PUBLIC files.
+ * <p>
+ * Used by {@link FilenameSearchBenchmarkIntegrationTest}; to load a large collection run it directly, e.g.
+ * {@code java -cp ... lambdalabs.filestorage.FilenameSearchDataset mongodb://localhost:27017/file_storage_bench 20000000}
+ * (the application creates the search indexes on startup against the same database).
+ */
+public class FilenameSearchDataset {
+
+	static final String OWNER_PREFIX = "search-bench-";
+	static final String[] WORDS = {
+			"report", "invoice", "photo", "scan", "contract", "draft", "final", "budget", "meeting", "notes",
+			"summary", "presentation", "backup", "export", "quarterly", "annual", "project", "design", "review", "plan",
+			"receipt", "statement", "holiday", "family", "screenshot", "recording", "archive", "proposal", "resume", "letter"};
+	static final String[] EXTENSIONS = {"pdf", "docx", "xlsx", "jpg", "png", "txt", "csv", "zip", "mp4", "pptx"};
+
+	private static final int BATCH_SIZE = 10_000;
+	private static final int OWNERS = 10_000;
+
+	/**
+	 * Insert {@code count} files into the collection, deterministic for a given seed
+	 */
+	public static void generate(MongoTemplate mongoTemplate, String collection, long count, long seed) {
+		Random random = new Random(seed);
+		byte[] md5 = new byte[16];
+		List<FileMetadata> batch = new ArrayList<>(BATCH_SIZE);
+		for (long i = 0; i < count; i++) {
+			FileMetadata file = new FileMetadata();
+			// Cubic skew: a few owners hold most of the files
+			file.setOwnerId(ownerId((int) (Math.pow(random.nextDouble(), 3) * OWNERS)));
+			// The sequence number keeps (filename, ownerId) unique
+			file.setFilename(filename(random, i));
+			file.setVisibility(random.nextInt(10) == 0 ? Visibility.PUBLIC : Visibility.PRIVATE);
+			file.setTags(Set.of(WORDS[random.nextInt(WORDS.length)]));
+			file.setGridFsId(new ObjectId());
+			file.setSize(random.nextInt(10_000_000));
+			random.nextBytes(md5);
+			file.setMd5(HexFormat.of().formatHex(md5));
+			file.setContentType("application/octet-stream");
+			file.setUploadedAt(Instant.now());
+			file.setUpdatedAt(file.getUploadedAt());
+			batch.add(file);
+			if (batch.size() == BATCH_SIZE) {
+				mongoTemplate.insert(batch, collection);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			mongoTemplate.insert(batch, collection);
+		}
+	}
+
+	public static long countGenerated(MongoTemplate mongoTemplate, String collection) {
+		return mongoTemplate.count(new Query(Criteria.where("ownerId").regex("^" + OWNER_PREFIX)), collection);
+	}
+
+	public static void removeGenerated(MongoTemplate mongoTemplate, String collection) {
+		mongoTemplate.remove(new Query(Criteria.where("ownerId").regex("^" + OWNER_PREFIX)), collection);
+	}
+
+	static String ownerId(int n) {
+		return OWNER_PREFIX + n;
+	}
+
+	private static String filename(Random random, long sequence) {
+		StringBuilder name = new StringBuilder();
+		int words = 1 + random.nextInt(3);
+		for (int w = 0; w < words; w++) {
+			if (w > 0) {
+				name.append(random.nextBoolean() ? '-' : '_');
+			}
+			String word = WORDS[random.nextInt(WORDS.length)];
+			name.append(random.nextInt(4) == 0 ? Character.toUpperCase(word.charAt(0)) + word.substring(1) : word);
+		}
+		if (random.nextBoolean()) {
+			name.append(' ').append(2015 + random.nextInt(11)).append('-').append(String.format("%02d", 1 + random.nextInt(12)));
+		}
+		name.append(" (").append(sequence).append(").").append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+		return name.toString();
+	}
+
+	public static void main(String[] args) {
+		String uri = args.length > 0 ? args[0] : "mongodb://localhost:27017/file_storage_bench";
+		long count = args.length > 1 ? Long.parseLong(args[1]) : 1_000_000;
+		String database = uri.substring(uri.lastIndexOf('/') + 1);
+		try (MongoClient client = MongoClients.create(uri)) {
+			MongoTemplate mongoTemplate = new MongoTemplate(client, database);
+			long started = System.nanoTime();
+			generate(mongoTemplate, "file_metadata", count, 42);
+			System.out.printf("Inserted %d files in %.1f s%n", count, (System.nanoTime() - started) / 1e9);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package lambdalabs.filestorage;
+
+import lambdalabs.filestorage.controller.FileController;
+import lambdalabs.filestorage.model.UploadSession;
+import lambdalabs.filestorage.model.UserUsage;
+import lambdalabs.filestorage.model.Visibility;
+import lambdalabs.filestorage.service.GridFsService;
+import lambdalabs.filestorage.service.PartUploads;
+import lambdalabs.filestorage.service.UploadSessionException;
+import lambdalabs.filestorage.service.UsageService;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+
+/**
+ * Uploads in parts against the mongod at localhost:27017
+ */
+@SpringBootTest(properties = {
+		"file-storage.encryption.master-key=AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8=",
+		"file-storage.quota.max-bytes-per-user=1GB"
+})
+@ActiveProfiles("test")
+public class PartUploadsIntegrationTest {
+
+	private static final int PLAIN_CHUNK = 261120 - 16;
+
+	@Autowired
+	private PartUploads partUploads;
+
+	@Autowired
+	private GridFsService gridFsService;
+
+	@Autowired
+	private UsageService usageService;
+
+	@Autowired
+	private FileController fileController;
+
+	@BeforeAll
+	static void setup() {
+		Assumptions.assumeTrue(isMongoRunning(), "MongoDB must be running at mongodb://localhost:27017 for this integration test");
+	}
+
+	@Test
+	void partsSentOutOfOrderAndRetried_makeUpTheFile() throws Exception {
+		for (boolean encrypt : new boolean[]{false, true}) {
+			String owner = "parts-" + System.nanoTime();
+			byte[] content = new byte[5 * PLAIN_CHUNK + 1234];
+			new Random(42).nextBytes(content);
+			UploadSession session = partUploads.create(owner, "parts.bin", "application/octet-stream", Visibility.PRIVATE,
+					null, null, null, encrypt, content.length, (long) 2 * PLAIN_CHUNK);
+			Assertions.assertEquals(3, session.getPartCount());
+
+			// A part cut short is rejected, its retry replaces it
+			Assertions.assertThrows(UploadSessionException.class,
+					() -> partUploads.storePart(owner, session.getId(), 2, new ByteArrayInputStream(new byte[10])));
+			for (int part : new int[]{2, 0, 1, 1}) {
+				storePart(owner, partUploads.get(owner, session.getId()), part, content);
+			}
+
+			GridFsService.StoredContent stored = partUploads.complete(partUploads.get(owner, session.getId()));
+
+			Assertions.assertEquals(content.length, stored.length());
+			Assertions.assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(content)), stored.md5());
+			// Encrypted parts were stored again under a key of the file's own
+			Assertions.assertEquals(encrypt, !stored.gridFsId().equals(session.getGridFsId()));
+			Assertions.assertEquals(encrypt, stored.encryption() != null);
+			try (InputStream read = gridFsService.openStream(owner, stored.gridFsId(), 0, Long.MAX_VALUE)) {
+				byte[] sealed = read.readAllBytes();
+				Assertions.assertEquals(encrypt, !Arrays.equals(content, sealed));
+			}
+			partUploads.abort(owner, session.getId());
+		}
+	}
+
+	@Test
+	void complete_beforeEveryPartIsStored_isRejected() throws Exception {
+		String owner = "parts-" + System.nanoTime();
+		byte[] content = new byte[3 * PLAIN_CHUNK];
+		UploadSession session = partUploads.create(owner, "incomplete.bin", "application/octet-stream", Visibility.PRIVATE,
+				null, null, null, false, content.length, (long) PLAIN_CHUNK);
+		storePart(owner, session, 0, content);
+
+		UploadSessionException e = Assertions.assertThrows(UploadSessionException.class,
+				() -> partUploads.complete(partUploads.get(owner, session.getId())));
+
+		Assertions.assertEquals(UploadSessionException.Reason.INCOMPLETE, e.getReason());
+		partUploads.abort(owner, session.getId());
+	}
+
+	@Test
+	void repair_whileAnUploadIsOpen_keepsItsReservationForCompletion() throws Exception {
+		String owner = "parts-" + System.nanoTime();
+		byte[] content = new byte[2 * PLAIN_CHUNK + 10];
+		new Random(7).nextBytes(content);
+		UploadSession session = partUploads.create(owner, "repair.bin", "application/octet-stream", Visibility.PRIVATE,
+				null, null, null, false, content.length, (long) PLAIN_CHUNK);
+
+		usageService.repair();
+
+		Assertions.assertEquals(content.length, usageService.getUsage(owner).orElseThrow().getReservedBytes());
+		for (int part = 0; part < session.getPartCount(); part++) {
+			storePart(owner, session, part, content);
+		}
+		Assertions.assertEquals(HttpStatus.CREATED, fileController.completeUpload(owner, session.getId()).getStatusCode());
+
+		UserUsage usage = usageService.getUsage(owner).orElseThrow();
+		Assertions.assertEquals(0, usage.getReservedBytes());
+		Assertions.assertEquals(0, usage.getReservedFiles());
+		Assertions.assertEquals(content.length, usage.getTotalBytes());
+		Assertions.assertEquals(1, usage.getFileCount());
+	}
+
+	private void storePart(String owner, UploadSession session, int part, byte[] content) throws IOException {
+		int offset = (int) (part * session.getPartSize());
+		partUploads.storePart(owner, session.getId(), part,
+				new ByteArrayInputStream(content, offset, (int) session.partLength(part)));
+	}
+
+	private static boolean isMongoRunning() {
+		try (java.net.Socket ignored = new java.net.Socket("localhost", 27017)) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package lambdalabs.filestorage;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import io.micrometer.core.instrument.MeterRegistry;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.Visibility;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.ReadConsistency;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Read-your-writes with metadata reads on secondaries; needs MongoDB running as a replica set at
+ * localhost:27017, ideally with secondaries (see README)
+ */
+@SpringBootTest(properties = "file-storage.secondary-reads.enabled=true")
+@ActiveProfiles("test")
+public class SecondaryReadsIntegrationTest {
+
+	@Autowired
+	private FileMetadataRepository fileMetadataRepository;
+
+	@Autowired
+	private ReadConsistency readConsistency;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@BeforeAll
+	static void setup() {
+		Assumptions.assumeTrue(isReplicaSet(), "MongoDB must be running as a replica set at mongodb://localhost:27017 for this integration test");
+	}
+
+	@Test
+	void writesReturnAToken_withWhichSecondaryReadsSeeThem() {
+		final String user = "secondary-reads-" + System.nanoTime();
+		AtomicReference<String> token = new AtomicReference<>();
+
+		readConsistency.begin(user, false, null, token::set);
+		FileMetadata saved;
+		try {
+			saved = fileMetadataRepository.save(metadata(user, "secondary-reads.txt"));
+		} finally {
+			readConsistency.end();
+		}
+		Assertions.assertNotNull(token.get(), "A write returns a consistency token");
+
+		double secondaryReads = meterRegistry.counter("filestorage.metadata.reads", "target", "secondary").count();
+		readConsistency.begin(user, true, token.get(), t -> { });
+		try {
+			Assertions.assertTrue(fileMetadataRepository.findByIdVisibleToUser(saved.getId(), user).isPresent());
+			Assertions.assertTrue(fileMetadataRepository.findByVisibilityVisibleToUser(Visibility.PRIVATE, user, 0, 10, "uploadedAt", true)
+					.stream().anyMatch(file -> file.getId().equals(saved.getId())));
+		} finally {
+			readConsistency.end();
+		}
+		Assertions.assertEquals(secondaryReads + 2, meterRegistry.counter("filestorage.metadata.reads", "target", "secondary").count());
+
+		// Without the token this node still remembers the write
+		readConsistency.begin(user, true, null, t -> { });
+		try {
+			Assertions.assertTrue(fileMetadataRepository.findByIdVisibleToUser(saved.getId(), user).isPresent());
+			Assertions.assertTrue(fileMetadataRepository.findAndRemoveByIdAndOwner(saved.getId(), user).isPresent());
+		} finally {
+			readConsistency.end();
+		}
+	}
+
+	private static FileMetadata metadata(String owner, String filename) {
+		FileMetadata metadata = new FileMetadata();
+		metadata.setFilename(filename);
+		metadata.setOwnerId(owner);
+		metadata.setVisibility(Visibility.PRIVATE);
+		metadata.setContentType("text/plain");
+		metadata.setSize(1);
+		metadata.setMd5(filename);
+		metadata.setGridFsId(new ObjectId());
+		metadata.setUploadedAt(Instant.now());
+		metadata.setUpdatedAt(metadata.getUploadedAt());
+		return metadata;
+	}
+
+	private static boolean isReplicaSet() {
+		try (java.net.Socket ignored = new java.net.Socket("localhost", 27017)) {
+			// Reachable, now check it is a replica set member
+		} catch (IOException e) {
+			return false;
+		}
+		try (MongoClient mongo = MongoClients.create("mongodb://localhost:27017/?serverSelectionTimeoutMS=2000&directConnection=true")) {
+			return mongo.getDatabase("admin").runCommand(new Document("hello", 1)).containsKey("setName");
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package lambdalabs.filestorage;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.OwnerPlacement;
+import lambdalabs.filestorage.model.Visibility;
+import lambdalabs.filestorage.repository.FileMetadataRepository;
+import lambdalabs.filestorage.repository.MongoShards;
+import lambdalabs.filestorage.service.GridFsService;
+import lambdalabs.filestorage.service.OwnerRebalancer;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Files sharded by owner over two databases of the same mongod at localhost:27017
+ */
+@SpringBootTest(properties = {
+		"file-storage.shards.databases=file_storage_test,file_storage_test_shard_b",
+		"file-storage.shards.placement-cache-ttl=100ms",
+		"file-storage.shards.rebalance.enabled=true",
+		"file-storage.shards.rebalance.interval=1d",
+		"file-storage.shards.rebalance.max-owners-per-run=100000"
+})
+@ActiveProfiles("test")
+public class ShardingIntegrationTest {
+
+	@Autowired
+	private MongoShards mongoShards;
+
+	@Autowired
+	private FileMetadataRepository fileMetadataRepository;
+
+	@Autowired
+	private GridFsService gridFsService;
+
+	@Autowired
+	private OwnerRebalancer ownerRebalancer;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@BeforeAll
+	static void setup() {
+		Assumptions.assumeTrue(isMongoRunning(), "MongoDB must be running at mongodb://localhost:27017 for this integration test");
+	}
+
+	@Test
+	void ownersAreRoutedToTheirShard_andPublicListingsMergeAllShards() throws Exception {
+		String ownerA = ownerOnRing("file_storage_test");
+		String ownerB = ownerOnRing("file_storage_test_shard_b");
+
+		FileMetadata fileA = upload(ownerA, "sharded-a.txt", "content of a");
+		FileMetadata fileB = upload(ownerB, "sharded-b.txt", "content of b");
+
+		Assertions.assertEquals("file_storage_test", mongoShards.forOwner(ownerA).name());
+		Assertions.assertEquals("file_storage_test_shard_b", mongoShards.forOwner(ownerB).name());
+		Assertions.assertTrue(mongoShards.named("file_storage_test_shard_b").template()
+				.exists(Query.query(Criteria.where("_id").is(new ObjectId(fileB.getId()))), "file_metadata"));
+
+		List<String> listed = fileMetadataRepository.findByVisibilityVisibleToUser(Visibility.PUBLIC, "someone-else", 0, 1000, "uploadedAt", true)
+				.stream().map(FileMetadata::getId).toList();
+		Assertions.assertTrue(listed.contains(fileA.getId()));
+		Assertions.assertTrue(listed.contains(fileB.getId()));
+		Assertions.assertTrue(listed.indexOf(fileB.getId()) < listed.indexOf(fileA.getId()), "Newest first across shards");
+
+		Assertions.assertEquals("content of b", read(fileB));
+	}
+
+	@Test
+	void rebalancer_movesAnOwnerToTheShardOfTheRing() throws Exception {
+		String owner = ownerOnRing("file_storage_test_shard_b");
+		// Placed on the first shard, as if they had uploaded before the second one was added
+		OwnerPlacement placement = new OwnerPlacement();
+		placement.setId(owner);
+		placement.setShard("file_storage_test");
+		mongoTemplate.save(placement);
+		FileMetadata file = upload(owner, "moved.txt", "content to move");
+		Assertions.assertEquals("file_storage_test", mongoShards.forOwner(owner).name());
+
+		ownerRebalancer.rebalance();
+		long deadline = System.currentTimeMillis() + 120_000;
+		while (!"file_storage_test_shard_b".equals(mongoShards.forOwner(owner).name()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+
+		Assertions.assertEquals("file_storage_test_shard_b", mongoShards.forOwner(owner).name());
+		Assertions.assertEquals(file.getId(), fileMetadataRepository.findByIdVisibleToUser(file.getId(), owner).orElseThrow().getId());
+		Assertions.assertEquals("content to move", read(file));
+	}
+
+	@Test
+	void reads_routeUnplacedOwnersWithoutPlacingThem() throws Exception {
+		String owner = ownerOnRing("file_storage_test_shard_b");
+
+		Assertions.assertEquals("file_storage_test_shard_b", mongoShards.forOwner(owner).name());
+		Assertions.assertTrue(fileMetadataRepository.findByIdVisibleToUser(new ObjectId().toHexString(), owner).isEmpty());
+		Assertions.assertNull(mongoTemplate.findById(owner, OwnerPlacement.class));
+
+		FileMetadata file = upload(owner, "placed.txt", "placed by the write");
+		Assertions.assertEquals("file_storage_test_shard_b", mongoTemplate.findById(owner, OwnerPlacement.class).getShard());
+		Assertions.assertEquals("placed by the write", read(file));
+	}
+
+	private FileMetadata upload(String owner, String filename, String content) throws IOException {
+		GridFsService.StoredContent stored = gridFsService.store(owner,
+				new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), filename, "text/plain", false);
+		FileMetadata metadata = new FileMetadata();
+		metadata.setFilename(filename);
+		metadata.setOwnerId(owner);
+		metadata.setVisibility(Visibility.PUBLIC);
+		metadata.setContentType("text/plain");
+		metadata.setSize(stored.length());
+		metadata.setMd5(stored.md5());
+		metadata.setGridFsId(stored.gridFsId());
+		metadata.setUploadedAt(Instant.now());
+		metadata.setUpdatedAt(metadata.getUploadedAt());
+		return fileMetadataRepository.save(metadata);
+	}
+
+	private String read(FileMetadata file) throws IOException {
+		try (InputStream content = gridFsService.openContent(file, 0, Long.MAX_VALUE)) {
+			return new String(content.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private String ownerOnRing(String shard) {
+		for (int i = 0; ; i++) {
+			String owner = "shard-owner-" + System.nanoTime() + "-" + i;
+			if (mongoShards.ringShard(owner).equals(shard)) {
+				return owner;
+			}
+		}
+	}
+
+	private static boolean isMongoRunning() {
+		try (java.net.Socket ignored = new java.net.Socket("localhost", 27017)) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
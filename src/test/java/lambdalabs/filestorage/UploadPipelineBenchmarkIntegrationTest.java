@@ -0,0 +1,141 @@
+package lambdalabs.filestorage;
+
+import lambdalabs.filestorage.service.GridFsService;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.gridfs.GridFsOperations;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-upload throughput into GridFS: GridFsOperations.store, which reads and writes one chunk at a time,
+ * against the upload pipeline used by GridFsService. The paced source delivers the body at a fixed rate
+ * in socket-sized reads, like a client on a fast link; the in-memory one shows the Mongo-bound ceiling.
+ * Not part of the default build, run with -Dbenchmarks=true.
+ */
+@EnabledIfSystemProperty(named = "benchmarks", matches = "true", disabledReason = "Benchmark, run with -Dbenchmarks=true")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.DEFINED_PORT)
+@ActiveProfiles("test")
+public class UploadPipelineBenchmarkIntegrationTest {
+
+	private static final Logger logger = LoggerFactory.getLogger(UploadPipelineBenchmarkIntegrationTest.class);
+
+	private static final long FILE_SIZE = 256L * 1024 * 1024;
+	private static final long PACED_BYTES_PER_SECOND = 200L * 1024 * 1024;
+	private static final int READ_SIZE = 64 * 1024;
+	private static final int ROUNDS = 3;
+	private static final String OWNER = "benchmark-owner";
+
+	@Autowired
+	private GridFsService gridFsService;
+
+	@Autowired
+	private GridFsOperations gridFsOperations;
+
+	@BeforeAll
+	static void setup() {
+		Assumptions.assumeTrue(isMongoRunning(), "MongoDB must be running at mongodb://localhost:27017 for this integration test");
+	}
+
+	@Test
+	void pipelinedUploadKeepsUpWithTheClient() throws Exception {
+		logger.info(String.format("%-10s %-12s %10s", "source", "mode", "MB/s"));
+		for (boolean paced : new boolean[]{false, true}) {
+			String source = paced ? "paced" : "memory";
+			double sequential = 0;
+			double pipelined = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				sequential = Math.max(sequential, upload(paced, false));
+				pipelined = Math.max(pipelined, upload(paced, true));
+			}
+			logger.info(String.format("%-10s %-12s %10.1f", source, "sequential", sequential));
+			logger.info(String.format("%-10s %-12s %10.1f", source, "pipelined", pipelined));
+		}
+	}
+
+	private double upload(boolean paced, boolean pipelined) throws Exception {
+		InputStream body = new PatternStream(FILE_SIZE, paced ? PACED_BYTES_PER_SECOND : 0);
+		long startNanos = System.nanoTime();
+		ObjectId gridFsId = pipelined
+				? gridFsService.storeFileStreaming(OWNER, body, "upload-benchmark.bin", "application/octet-stream")
+				: gridFsOperations.store(body, "upload-benchmark.bin", "application/octet-stream");
+		long elapsedNanos = System.nanoTime() - startNanos;
+		try {
+			Assertions.assertEquals(md5(new PatternStream(FILE_SIZE, 0)), storedMd5(gridFsId));
+		} finally {
+			gridFsService.deleteFile(OWNER, gridFsId);
+		}
+		return FILE_SIZE / (elapsedNanos / 1e9) / (1024 * 1024);
+	}
+
+	private String storedMd5(ObjectId gridFsId) throws Exception {
+		try (InputStream stored = gridFsService.openStream(OWNER, gridFsId, 0, Long.MAX_VALUE)) {
+			return md5(stored);
+		}
+	}
+
+	private static String md5(InputStream in) throws Exception {
+		DigestInputStream digest = new DigestInputStream(in, MessageDigest.getInstance("MD5"));
+		digest.transferTo(java.io.OutputStream.nullOutputStream());
+		return HexFormat.of().formatHex(digest.getMessageDigest().digest());
+	}
+
+	private static boolean isMongoRunning() {
+		try (java.net.Socket ignored = new java.net.Socket("localhost", 27017)) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Generated content, optionally paced to {@code bytesPerSecond} in reads of at most READ_SIZE bytes
+	 */
+	private static class PatternStream extends InputStream {
+		private final long totalBytes;
+		private final long bytesPerSecond;
+		private final long startNanos = System.nanoTime();
+		private long produced;
+
+		PatternStream(long totalBytes, long bytesPerSecond) {
+			this.totalBytes = totalBytes;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		@Override
+		public int read() {
+			if (produced >= totalBytes) return -1;
+			return (int) (produced++ & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (produced >= totalBytes) return -1;
+			int toWrite = (int) Math.min(len, totalBytes - produced);
+			if (bytesPerSecond > 0) {
+				toWrite = Math.min(toWrite, READ_SIZE);
+				long dueNanos = startNanos + (produced + toWrite) * 1_000_000_000L / bytesPerSecond;
+				long waitNanos = dueNanos - System.nanoTime();
+				if (waitNanos > 0) {
+					LockSupport.parkNanos(waitNanos);
+				}
+			}
+			for (int i = 0; i < toWrite; i++) {
+				b[off + i] = (byte) ((produced + i) & 0xFF);
+			}
+			produced += toWrite;
+			return toWrite;
+		}
+	}
+}
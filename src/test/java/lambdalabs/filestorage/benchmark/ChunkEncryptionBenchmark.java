@@ -0,0 +1,85 @@
+package lambdalabs.filestorage.benchmark;
+
+import lambdalabs.filestorage.service.ChunkCipher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.crypto.KeyGenerator;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption at rest overhead per GridFS chunk (255 KB stored), on the CPU side of a transfer.
+ * Ingest: the md5 the upload pipeline computes anyway, against md5 plus sealing the chunk.
+ * Download: copying a chunk out, against opening (decrypting and verifying) it.
+ * Throughput in MB/s is the stored chunk size divided by the time per operation.
+ * <p>
+ * Run with {@code mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt} and then
+ * {@code java -cp target/test-classes:target/classes:$(cat target/cp.txt) lambdalabs.filestorage.benchmark.ChunkEncryptionBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkEncryptionBenchmark {
+
+	private static final int CHUNK_SIZE = 261120;
+	private static final int PLAIN_CHUNK = CHUNK_SIZE - ChunkCipher.TAG_BYTES;
+
+	private final byte[] plain = new byte[PLAIN_CHUNK];
+	private final byte[] sealed = new byte[CHUNK_SIZE];
+	private final byte[] buffer = new byte[CHUNK_SIZE];
+	private MessageDigest md5;
+	private ChunkCipher cipher;
+	// GCM refuses to encrypt twice under the same key and nonce, so every sealed chunk gets the next index
+	private long nextIndex = 8;
+
+	@Setup
+	public void setup() throws Exception {
+		new Random(42).nextBytes(plain);
+		md5 = MessageDigest.getInstance("MD5");
+		KeyGenerator generator = KeyGenerator.getInstance("AES");
+		generator.init(256);
+		cipher = new ChunkCipher(generator.generateKey());
+		System.arraycopy(plain, 0, sealed, 0, PLAIN_CHUNK);
+		cipher.seal(sealed, PLAIN_CHUNK, 7);
+	}
+
+	@Benchmark
+	public byte[] ingestMd5() {
+		System.arraycopy(plain, 0, buffer, 0, PLAIN_CHUNK);
+		md5.update(buffer, 0, PLAIN_CHUNK);
+		return md5.digest();
+	}
+
+	@Benchmark
+	public byte[] ingestMd5AndSeal() {
+		System.arraycopy(plain, 0, buffer, 0, PLAIN_CHUNK);
+		md5.update(buffer, 0, PLAIN_CHUNK);
+		cipher.seal(buffer, PLAIN_CHUNK, nextIndex++);
+		return md5.digest();
+	}
+
+	@Benchmark
+	public byte[] downloadCopy() {
+		System.arraycopy(sealed, 0, buffer, 0, CHUNK_SIZE);
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] downloadOpen() throws IOException {
+		System.arraycopy(sealed, 0, buffer, 0, CHUNK_SIZE);
+		cipher.open(buffer, CHUNK_SIZE, 7);
+		return buffer;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(ChunkEncryptionBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,131 @@
+package lambdalabs.filestorage.benchmark;
+
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.FileMetadataCodec;
+import lambdalabs.filestorage.model.Visibility;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileMetadata mapping cost for one listing page (100 documents, as they arrive from the wire):
+ * Spring's MappingMongoConverter (BSON to Document, then reflective mapping) against FileMetadataCodec.
+ * <p>
+ * Run with {@code mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt} and then
+ * {@code java -cp target/test-classes:target/classes:$(cat target/cp.txt) lambdalabs.filestorage.benchmark.FileMetadataMappingBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileMetadataMappingBenchmark {
+
+	private static final int PAGE_SIZE = 100;
+
+	private final FileMetadataCodec codec = new FileMetadataCodec();
+	private final DocumentCodec documentCodec = new DocumentCodec();
+	private MappingMongoConverter converter;
+	private List<RawBsonDocument> page;
+	private List<FileMetadata> files;
+
+	@Setup
+	public void setup() {
+		MongoMappingContext context = new MongoMappingContext();
+		context.setSimpleTypeHolder(new MongoCustomConversions(List.of()).getSimpleTypeHolder());
+		context.afterPropertiesSet();
+		converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, context);
+		converter.afterPropertiesSet();
+
+		Random random = new Random(42);
+		page = new ArrayList<>(PAGE_SIZE);
+		files = new ArrayList<>(PAGE_SIZE);
+		for (int i = 0; i < PAGE_SIZE; i++) {
+			FileMetadata file = new FileMetadata();
+			file.setId(new ObjectId().toHexString());
+			file.setFilename("quarterly-report_" + random.nextInt(1_000_000) + " final (" + i + ").pdf");
+			file.setVisibility(random.nextBoolean() ? Visibility.PUBLIC : Visibility.PRIVATE);
+			file.setTags(Set.of("work", "finance", "q" + random.nextInt(4)));
+			file.setOwnerId("user-" + random.nextInt(1000));
+			file.setGridFsId(new ObjectId());
+			file.setSize(random.nextInt(100_000_000));
+			file.setMd5(Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+			file.setContentType("application/pdf");
+			file.setUploadedAt(Instant.now());
+			file.setUpdatedAt(Instant.now());
+			files.add(file);
+
+			Document document = new Document();
+			converter.write(file, document);
+			page.add(RawBsonDocument.parse(document.toJson()));
+		}
+	}
+
+	@Benchmark
+	public void readSpringMapping(Blackhole blackhole) {
+		for (RawBsonDocument raw : page) {
+			Document document = documentCodec.decode(reader(raw), DecoderContext.builder().build());
+			blackhole.consume(converter.read(FileMetadata.class, document));
+		}
+	}
+
+	@Benchmark
+	public void readCodec(Blackhole blackhole) {
+		for (RawBsonDocument raw : page) {
+			blackhole.consume(codec.decode(reader(raw), DecoderContext.builder().build()));
+		}
+	}
+
+	@Benchmark
+	public void writeSpringMapping(Blackhole blackhole) {
+		for (FileMetadata file : files) {
+			Document document = new Document();
+			converter.write(file, document);
+			BasicOutputBuffer buffer = new BasicOutputBuffer(512);
+			documentCodec.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+			blackhole.consume(buffer.getSize());
+		}
+	}
+
+	@Benchmark
+	public void writeCodec(Blackhole blackhole) {
+		for (FileMetadata file : files) {
+			BasicOutputBuffer buffer = new BasicOutputBuffer(512);
+			codec.encode(new BsonBinaryWriter(buffer), file, EncoderContext.builder().build());
+			blackhole.consume(buffer.getSize());
+		}
+	}
+
+	private static BsonBinaryReader reader(RawBsonDocument raw) {
+		ByteBuffer bytes = ByteBuffer.wrap(raw.getByteBuffer().array(), 0, raw.getByteBuffer().limit());
+		return new BsonBinaryReader(bytes);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(FileMetadataMappingBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,153 @@
+package lambdalabs.filestorage.model;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonInt32;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Set;
+
+public class FileMetadataCodecTest {
+
+	private final FileMetadataCodec codec = new FileMetadataCodec();
+	private final MappingMongoConverter converter = converter();
+
+	@Test
+	void encode_writesTheSameDocumentAsSpringMapping() {
+		FileMetadata metadata = sample();
+
+		Document mapped = new Document();
+		converter.write(metadata, mapped);
+
+		Assertions.assertEquals(mapped.toBsonDocument(), encode(metadata));
+	}
+
+	@Test
+	void decode_readsWhatSpringMappingWrote() {
+		FileMetadata metadata = sample();
+		Document mapped = new Document();
+		converter.write(metadata, mapped);
+
+		FileMetadata decoded = codec.decode(new BsonDocumentReader(mapped.toBsonDocument()), DecoderContext.builder().build());
+
+		assertSame(metadata, decoded);
+		Assertions.assertEquals(metadata.getFilenameTokens(), decoded.getFilenameTokens());
+		Assertions.assertEquals(metadata.getFilenameGrams(), decoded.getFilenameGrams());
+	}
+
+	@Test
+	void decode_partialAndLegacyDocuments() {
+		// A listing projection without search terms, an int32 size and fields the codec does not know
+		BsonDocument document = encode(sample());
+		document.remove("filenameTokens");
+		document.remove("filenameGrams");
+		document.put("size", new BsonInt32(42));
+		document.put("somethingNew", new BsonInt32(1));
+
+		FileMetadata decoded = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+
+		Assertions.assertEquals("Quarterly Report.pdf", decoded.getFilename());
+		Assertions.assertEquals("quarterly report.pdf", decoded.getFilenameLower());
+		Assertions.assertNull(decoded.getFilenameTokens());
+		Assertions.assertEquals(42, decoded.getSize());
+	}
+
+	@Test
+	void generateId_assignsAnObjectIdOnce() {
+		FileMetadata metadata = sample();
+		metadata.setId(null);
+		Assertions.assertFalse(codec.documentHasId(metadata));
+
+		codec.generateIdIfAbsentFromDocument(metadata);
+		String id = metadata.getId();
+		Assertions.assertTrue(ObjectId.isValid(id));
+		codec.generateIdIfAbsentFromDocument(metadata);
+		Assertions.assertEquals(id, metadata.getId());
+		Assertions.assertEquals(new ObjectId(id), codec.getDocumentId(metadata).asObjectId().getValue());
+	}
+
+	static FileMetadata sample() {
+		FileMetadata metadata = new FileMetadata();
+		metadata.setId(new ObjectId().toHexString());
+		metadata.setFilename("Quarterly Report.pdf");
+		metadata.setVisibility(Visibility.PUBLIC);
+		metadata.setTags(Set.of("Work", "finance"));
+		metadata.setOwnerId("owner-1");
+		metadata.setFolderId(new ObjectId().toHexString());
+		metadata.setGridFsId(new ObjectId());
+		metadata.setSize(123_456_789_012L);
+		metadata.setMd5("9e107d9d372bb6826bd81d3542a419d6");
+		metadata.setContentType("application/pdf");
+		FileEncryption encryption = new FileEncryption();
+		encryption.setAlgorithm("AES-256-GCM");
+		encryption.setKeyId("default");
+		encryption.setWrappedKey(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+		encryption.setChunkSize(261104);
+		encryption.setTagLength(128);
+		metadata.setEncryption(encryption);
+		// Dates are stored with millisecond precision
+		Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+		metadata.setExpiresAt(now.plus(1, ChronoUnit.DAYS));
+		metadata.setDownloadCount(12);
+		metadata.setLastAccessedAt(now.minus(1, ChronoUnit.HOURS));
+		metadata.setTier(StorageTier.COLD);
+		metadata.setColdSince(now.minus(2, ChronoUnit.HOURS));
+		metadata.setUploadedAt(now);
+		metadata.setUpdatedAt(now);
+		return metadata;
+	}
+
+	private BsonDocument encode(FileMetadata metadata) {
+		BsonDocument document = new BsonDocument();
+		codec.encode(new BsonDocumentWriter(document), metadata, EncoderContext.builder().build());
+		return document;
+	}
+
+	private static void assertSame(FileMetadata expected, FileMetadata actual) {
+		Assertions.assertEquals(expected.getId(), actual.getId());
+		Assertions.assertEquals(expected.getFilename(), actual.getFilename());
+		Assertions.assertEquals(expected.getFilenameLower(), actual.getFilenameLower());
+		Assertions.assertEquals(expected.getVisibility(), actual.getVisibility());
+		Assertions.assertEquals(expected.getTags(), actual.getTags());
+		Assertions.assertEquals(expected.getOwnerId(), actual.getOwnerId());
+		Assertions.assertEquals(expected.getFolderId(), actual.getFolderId());
+		Assertions.assertEquals(expected.getGridFsId(), actual.getGridFsId());
+		Assertions.assertEquals(expected.getSize(), actual.getSize());
+		Assertions.assertEquals(expected.getMd5(), actual.getMd5());
+		Assertions.assertEquals(expected.getContentType(), actual.getContentType());
+		Assertions.assertEquals(expected.getDownloadCount(), actual.getDownloadCount());
+		Assertions.assertEquals(expected.getLastAccessedAt(), actual.getLastAccessedAt());
+		Assertions.assertEquals(expected.getTier(), actual.getTier());
+		Assertions.assertEquals(expected.getColdSince(), actual.getColdSince());
+		Assertions.assertEquals(expected.getEncryption().getAlgorithm(), actual.getEncryption().getAlgorithm());
+		Assertions.assertEquals(expected.getEncryption().getKeyId(), actual.getEncryption().getKeyId());
+		Assertions.assertArrayEquals(expected.getEncryption().getWrappedKey(), actual.getEncryption().getWrappedKey());
+		Assertions.assertEquals(expected.getEncryption().getChunkSize(), actual.getEncryption().getChunkSize());
+		Assertions.assertEquals(expected.getEncryption().getTagLength(), actual.getEncryption().getTagLength());
+		Assertions.assertEquals(expected.getExpiresAt(), actual.getExpiresAt());
+		Assertions.assertEquals(expected.getUploadedAt(), actual.getUploadedAt());
+		Assertions.assertEquals(expected.getUpdatedAt(), actual.getUpdatedAt());
+	}
+
+	static MappingMongoConverter converter() {
+		MongoMappingContext context = new MongoMappingContext();
+		context.setSimpleTypeHolder(new MongoCustomConversions(List.of()).getSimpleTypeHolder());
+		context.afterPropertiesSet();
+		MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, context);
+		converter.afterPropertiesSet();
+		return converter;
+	}
+}
@@ -0,0 +1,57 @@
+package lambdalabs.filestorage.repository;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HashRingTest {
+
+	private static final int KEYS = 20_000;
+
+	@Test
+	void node_isTheSameForEveryRingOfTheSameNodes() {
+		HashRing ring = new HashRing(List.of("a", "b", "c"), 128);
+		HashRing reordered = new HashRing(List.of("c", "a", "b"), 128);
+
+		for (int i = 0; i < 1000; i++) {
+			Assertions.assertEquals(ring.node("owner-" + i), reordered.node("owner-" + i));
+		}
+	}
+
+	@Test
+	void node_spreadsKeysRoughlyEvenly() {
+		HashRing ring = new HashRing(List.of("a", "b", "c", "d"), 128);
+		Map<String, Integer> counts = new HashMap<>();
+
+		for (int i = 0; i < KEYS; i++) {
+			counts.merge(ring.node("owner-" + i), 1, Integer::sum);
+		}
+
+		Assertions.assertEquals(4, counts.size());
+		for (int count : counts.values()) {
+			Assertions.assertTrue(Math.abs(count - KEYS / 4) < KEYS / 4 * 0.25, "Unbalanced: " + counts);
+		}
+	}
+
+	@Test
+	void node_movesOnlyKeysTakenOverByAnAddedNode() {
+		HashRing before = new HashRing(List.of("a", "b", "c"), 128);
+		HashRing after = new HashRing(List.of("a", "b", "c", "d"), 128);
+
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			String from = before.node("owner-" + i);
+			String to = after.node("owner-" + i);
+			if (!from.equals(to)) {
+				Assertions.assertEquals("d", to);
+				moved++;
+			}
+		}
+
+		// About a quarter of the keys go to the new node, none move between the old ones
+		Assertions.assertTrue(Math.abs(moved - KEYS / 4) < KEYS / 4 * 0.25, "Moved: " + moved);
+	}
+}
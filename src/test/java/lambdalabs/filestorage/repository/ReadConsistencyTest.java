@@ -0,0 +1,33 @@
+package lambdalabs.filestorage.repository;
+
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ReadConsistencyTest {
+
+	@Test
+	void token_roundTripsTheOperationTime() {
+		BsonTimestamp operationTime = new BsonTimestamp(1_760_000_000, 42);
+
+		String token = ReadConsistency.formatToken(operationTime);
+
+		Assertions.assertEquals("1760000000.42", token);
+		Assertions.assertEquals(operationTime, ReadConsistency.parseToken(token));
+	}
+
+	@Test
+	void token_keepsSecondsBeyondTheSignedRange() {
+		BsonTimestamp operationTime = new BsonTimestamp((int) 3_000_000_000L, 1);
+
+		Assertions.assertEquals(operationTime, ReadConsistency.parseToken(ReadConsistency.formatToken(operationTime)));
+	}
+
+	@Test
+	void parseToken_ignoresMalformedTokens() {
+		Assertions.assertNull(ReadConsistency.parseToken(null));
+		Assertions.assertNull(ReadConsistency.parseToken("12345"));
+		Assertions.assertNull(ReadConsistency.parseToken("abc.1"));
+		Assertions.assertNull(ReadConsistency.parseToken("1.-1"));
+	}
+}
@@ -0,0 +1,81 @@
+package lambdalabs.filestorage.service;
+
+import lambdalabs.filestorage.repository.FileMetadataRepository.AccessDelta;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+public class AccessCountersTest {
+
+	@Test
+	void record_coalescesAccessesPerFile() {
+		AccessCounters counters = new AccessCounters(4);
+		Instant first = Instant.parse("2026-01-01T00:00:00Z");
+
+		Assertions.assertEquals(1, counters.record("a", "owner", true, first.plusSeconds(5)));
+		Assertions.assertEquals(0, counters.record("a", "owner", true, first));
+		Assertions.assertEquals(0, counters.record("a", "owner", false, first.plusSeconds(1)));
+		Assertions.assertEquals(2, counters.record("b", "owner", false, first));
+
+		Map<String, AccessDelta> drained = byId(counters.drain());
+		Assertions.assertEquals(new AccessDelta("a", "owner", 2, first.plusSeconds(5)), drained.get("a"));
+		Assertions.assertEquals(new AccessDelta("b", "owner", 0, first), drained.get("b"));
+		Assertions.assertEquals(0, counters.pending());
+		Assertions.assertTrue(counters.drain().isEmpty());
+	}
+
+	@Test
+	void restore_mergesWithAccessesRecordedSinceTheDrain() {
+		AccessCounters counters = new AccessCounters(4);
+		Instant at = Instant.parse("2026-01-01T00:00:00Z");
+		counters.record("a", "owner", true, at);
+		List<AccessDelta> failed = counters.drain();
+
+		counters.record("a", "owner", true, at.plusSeconds(1));
+		counters.restore(failed);
+
+		Assertions.assertEquals(List.of(new AccessDelta("a", "owner", 2, at.plusSeconds(1))), counters.drain());
+	}
+
+	@Test
+	void record_concurrentlyWithDrains_losesNothing() throws Exception {
+		AccessCounters counters = new AccessCounters(16);
+		int threads = 8;
+		int perThread = 20_000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> recorders = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				recorders.add(executor.submit(() -> {
+					for (int i = 0; i < perThread; i++) {
+						counters.record("file-" + (i % 100), "owner", true, Instant.now());
+					}
+				}));
+			}
+			long total = 0;
+			while (!recorders.stream().allMatch(Future::isDone)) {
+				total += counters.drain().stream().mapToLong(AccessDelta::downloads).sum();
+			}
+			for (Future<?> recorder : recorders) {
+				recorder.get();
+			}
+			total += counters.drain().stream().mapToLong(AccessDelta::downloads).sum();
+			Assertions.assertEquals((long) threads * perThread, total);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Map<String, AccessDelta> byId(List<AccessDelta> deltas) {
+		return deltas.stream().collect(Collectors.toMap(AccessDelta::id, Function.identity()));
+	}
+}
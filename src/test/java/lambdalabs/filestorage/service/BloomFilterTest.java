@@ -0,0 +1,40 @@
+package lambdalabs.filestorage.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class BloomFilterTest {
+
+	private static final int KEYS = 10_000;
+
+	@Test
+	void mightContain_neverMissesAnAddedKey() {
+		BloomFilter filter = new BloomFilter(KEYS, 0.01);
+		for (int i = 0; i < KEYS; i++) {
+			filter.add("revoked-" + i);
+		}
+
+		for (int i = 0; i < KEYS; i++) {
+			Assertions.assertTrue(filter.mightContain("revoked-" + i));
+		}
+	}
+
+	@Test
+	void mightContain_reportsOtherKeysAtAboutTheConfiguredRate() {
+		BloomFilter filter = new BloomFilter(KEYS, 0.01);
+		for (int i = 0; i < KEYS; i++) {
+			filter.add("revoked-" + i);
+		}
+
+		int falsePositives = 0;
+		for (int i = 0; i < 100_000; i++) {
+			if (filter.mightContain("valid-" + i)) {
+				falsePositives++;
+			}
+		}
+
+		Assertions.assertTrue(falsePositives < 2_000, "False positives: " + falsePositives);
+		// About 1.2 bytes per key at 1%
+		Assertions.assertTrue(filter.bitCount() < KEYS * 10L, "Bits: " + filter.bitCount());
+	}
+}
@@ -0,0 +1,83 @@
+package lambdalabs.filestorage.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChunkCipherTest {
+
+	private static final int PLAIN_CHUNK = 100;
+	private static final int SEALED_CHUNK = PLAIN_CHUNK + ChunkCipher.TAG_BYTES;
+
+	private final SecretKey key = new SecretKeySpec(new byte[32], "AES");
+
+	@Test
+	void decrypting_fromAChunkOnwards_readsOnlyThatChunkAndLater() throws Exception {
+		byte[] content = content(PLAIN_CHUNK * 5 + 42);
+		byte[] sealed = seal(content);
+		AtomicInteger released = new AtomicInteger();
+
+		// As GridFsService.openContent positions the stored stream: at the start of chunk 3
+		byte[] tail = Arrays.copyOfRange(sealed, 3 * SEALED_CHUNK, sealed.length);
+		try (InputStream plain = new DecryptingInputStream(new ByteArrayInputStream(tail), new ChunkCipher(key),
+				PLAIN_CHUNK, 3, content.length, new byte[SEALED_CHUNK], buffer -> released.incrementAndGet())) {
+			Assertions.assertArrayEquals(Arrays.copyOfRange(content, 3 * PLAIN_CHUNK, content.length), plain.readAllBytes());
+			Assertions.assertEquals(-1, plain.read());
+		}
+		Assertions.assertEquals(1, released.get());
+	}
+
+	@Test
+	void decrypting_rejectsTamperedReorderedAndTruncatedChunks() {
+		byte[] content = content(PLAIN_CHUNK * 3);
+		byte[] sealed = seal(content);
+
+		byte[] tampered = sealed.clone();
+		tampered[SEALED_CHUNK + 7] ^= 1;
+		Assertions.assertThrows(IOException.class, () -> readAll(tampered, content.length));
+
+		byte[] reordered = sealed.clone();
+		System.arraycopy(sealed, 0, reordered, SEALED_CHUNK, SEALED_CHUNK);
+		System.arraycopy(sealed, SEALED_CHUNK, reordered, 0, SEALED_CHUNK);
+		Assertions.assertThrows(IOException.class, () -> readAll(reordered, content.length));
+
+		byte[] truncated = Arrays.copyOf(sealed, sealed.length - SEALED_CHUNK);
+		Assertions.assertThrows(EOFException.class, () -> readAll(truncated, content.length));
+	}
+
+	private byte[] seal(byte[] content) {
+		ChunkCipher cipher = new ChunkCipher(key);
+		ByteArrayOutputStream sealed = new ByteArrayOutputStream();
+		byte[] buffer = new byte[SEALED_CHUNK];
+		for (int n = 0; n * PLAIN_CHUNK < content.length; n++) {
+			int length = Math.min(PLAIN_CHUNK, content.length - n * PLAIN_CHUNK);
+			System.arraycopy(content, n * PLAIN_CHUNK, buffer, 0, length);
+			sealed.write(buffer, 0, cipher.seal(buffer, length, n));
+		}
+		return sealed.toByteArray();
+	}
+
+	private byte[] readAll(byte[] sealed, long plainSize) throws IOException {
+		try (InputStream plain = new DecryptingInputStream(new ByteArrayInputStream(sealed), new ChunkCipher(key),
+				PLAIN_CHUNK, 0, plainSize, new byte[SEALED_CHUNK], buffer -> { })) {
+			return plain.readAllBytes();
+		}
+	}
+
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) (i * 31 + i / 7);
+		}
+		return content;
+	}
+}
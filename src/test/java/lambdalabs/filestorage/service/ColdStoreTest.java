@@ -0,0 +1,77 @@
+package lambdalabs.filestorage.service;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+public class ColdStoreTest {
+
+	@TempDir
+	Path root;
+
+	@Test
+	void write_storesContentThatOpensAtAnyOffset() throws Exception {
+		ColdStore store = new ColdStore(root);
+		ObjectId id = new ObjectId();
+		byte[] content = new byte[300_000];
+		new Random(42).nextBytes(content);
+		AtomicLong progress = new AtomicLong();
+
+		byte[] md5 = store.write(id, new ByteArrayInputStream(content), progress::addAndGet);
+
+		Assertions.assertArrayEquals(MessageDigest.getInstance("MD5").digest(content), md5);
+		Assertions.assertEquals(content.length, progress.get());
+		try (InputStream whole = store.open(id, 0, Long.MAX_VALUE)) {
+			Assertions.assertArrayEquals(content, whole.readAllBytes());
+		}
+		try (InputStream range = store.open(id, 100_000, 1000)) {
+			Assertions.assertArrayEquals(Arrays.copyOfRange(content, 100_000, 101_000), range.readAllBytes());
+		}
+		Assertions.assertEquals(1, countFiles());
+	}
+
+	@Test
+	void write_replacesAnExistingColdFile() throws Exception {
+		ColdStore store = new ColdStore(root);
+		ObjectId id = new ObjectId();
+
+		store.write(id, new ByteArrayInputStream(new byte[]{1, 2, 3}), bytes -> { });
+		store.write(id, new ByteArrayInputStream(new byte[]{4, 5}), bytes -> { });
+
+		try (InputStream content = store.open(id, 0, Long.MAX_VALUE)) {
+			Assertions.assertArrayEquals(new byte[]{4, 5}, content.readAllBytes());
+		}
+	}
+
+	@Test
+	void delete_removesTheColdFileAndLeftovers() throws Exception {
+		ColdStore store = new ColdStore(root);
+		ObjectId id = new ObjectId();
+		store.write(id, new ByteArrayInputStream(new byte[]{1}), bytes -> { });
+		String hex = id.toHexString();
+		Files.createFile(root.resolve(hex.substring(hex.length() - 2)).resolve(hex + ".gz.interrupted.tmp"));
+
+		Assertions.assertTrue(store.delete(id));
+
+		Assertions.assertNull(store.open(id, 0, Long.MAX_VALUE));
+		Assertions.assertFalse(store.delete(id));
+		Assertions.assertEquals(0, countFiles());
+	}
+
+	private long countFiles() throws Exception {
+		try (Stream<Path> files = Files.walk(root)) {
+			return files.filter(Files::isRegularFile).count();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package lambdalabs.filestorage.service;
+
+import com.mongodb.MongoGridFSException;
+import lambdalabs.filestorage.model.ScrubFinding.Problem;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ContentVerifierTest {
+
+	private static final byte[] CONTENT = "stored content".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	void verify_intactContent() throws Exception {
+		AtomicLong paced = new AtomicLong();
+
+		ContentVerifier.Result result = ContentVerifier.verify(new ByteArrayInputStream(CONTENT), md5(CONTENT),
+				CONTENT.length, paced::addAndGet);
+
+		Assertions.assertNull(result.problem());
+		Assertions.assertEquals(md5(CONTENT), result.md5());
+		Assertions.assertEquals(CONTENT.length, paced.get());
+	}
+
+	@Test
+	void verify_reportsWhatDoesNotMatch() throws Exception {
+		Assertions.assertEquals(Problem.MISSING_CONTENT,
+				ContentVerifier.verify(null, md5(CONTENT), CONTENT.length, bytes -> { }).problem());
+		Assertions.assertEquals(Problem.SIZE_MISMATCH,
+				ContentVerifier.verify(new ByteArrayInputStream(CONTENT), md5(CONTENT), CONTENT.length + 1, bytes -> { }).problem());
+
+		ContentVerifier.Result result = ContentVerifier.verify(new ByteArrayInputStream(CONTENT), md5(new byte[0]),
+				CONTENT.length, bytes -> { });
+		Assertions.assertEquals(Problem.MD5_MISMATCH, result.problem());
+		Assertions.assertEquals(md5(CONTENT), result.md5());
+	}
+
+	@Test
+	void verify_reportsContentThatFailsToRead() throws Exception {
+		ContentVerifier.Result missingChunk = ContentVerifier.verify(
+				failingAfter(CONTENT, new MongoGridFSException("Could not find file chunk")), md5(CONTENT), 100, bytes -> { });
+		Assertions.assertEquals(Problem.MISSING_CHUNKS, missingChunk.problem());
+		Assertions.assertEquals(CONTENT.length, missingChunk.length());
+
+		Assertions.assertEquals(Problem.UNREADABLE, ContentVerifier.verify(
+				failingAfter(CONTENT, new IOException("Stored chunk 0 failed authentication")), md5(CONTENT), 100, bytes -> { }).problem());
+	}
+
+	@Test
+	void verify_throwsFailuresOutsideTheContent() {
+		Assertions.assertThrows(IllegalStateException.class, () -> ContentVerifier.verify(
+				failingAfter(CONTENT, new IllegalStateException("state should be: open")), md5(CONTENT), 100, bytes -> { }));
+	}
+
+	private static InputStream failingAfter(byte[] content, Exception failure) {
+		return new SequenceInputStream(new ByteArrayInputStream(content), new InputStream() {
+			@Override
+			public int read() throws IOException {
+				if (failure instanceof IOException io) {
+					throw io;
+				}
+				throw (RuntimeException) failure;
+			}
+		});
+	}
+
+	private static String md5(byte[] content) throws Exception {
+		return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(content));
+	}
+}
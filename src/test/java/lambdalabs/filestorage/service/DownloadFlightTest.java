@@ -0,0 +1,144 @@
+package lambdalabs.filestorage.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DownloadFlightTest {
+
+	private static final int CHUNK_SIZE = 1024;
+
+	@Test
+	void concurrentReaders_shareOneUpstreamPass() throws Exception {
+		byte[] content = content(CHUNK_SIZE * 10 + 17);
+		CountingUpstream upstream = new CountingUpstream(content);
+		DownloadFlight flight = new DownloadFlight(upstream, 16, f -> {});
+
+		int readerCount = 32;
+		List<InputStream> readers = new ArrayList<>();
+		for (int i = 0; i < readerCount; i++) {
+			InputStream reader = flight.join();
+			Assertions.assertNotNull(reader);
+			readers.add(reader);
+		}
+		Thread.ofVirtual().start(flight::run);
+		Assertions.assertTrue(flight.awaitOpened());
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<byte[]>> results = new ArrayList<>();
+		for (InputStream reader : readers) {
+			results.add(pool.submit(() -> {
+				try (reader) {
+					return reader.readAllBytes();
+				}
+			}));
+		}
+		for (Future<byte[]> result : results) {
+			Assertions.assertArrayEquals(content, result.get(1, TimeUnit.MINUTES));
+		}
+		pool.shutdownNow();
+
+		Assertions.assertEquals(1, upstream.sharedOpens.get());
+		Assertions.assertEquals(0, upstream.privateOpens.get());
+	}
+
+	@Test
+	void slowReader_isDetachedAndStillReadsEverything() throws Exception {
+		byte[] content = content(CHUNK_SIZE * 40);
+		CountingUpstream upstream = new CountingUpstream(content);
+		DownloadFlight flight = new DownloadFlight(upstream, 4, f -> {});
+
+		InputStream fast = flight.join();
+		InputStream slow = flight.join();
+		Thread.ofVirtual().start(flight::run);
+		Assertions.assertTrue(flight.awaitOpened());
+
+		byte[] firstByte = new byte[1];
+		Assertions.assertEquals(1, slow.read(firstByte));
+		Assertions.assertArrayEquals(content, fast.readAllBytes());
+
+		byte[] rest = slow.readAllBytes();
+		Assertions.assertEquals(content[0], firstByte[0]);
+		Assertions.assertEquals(content.length - 1, rest.length);
+		for (int i = 0; i < rest.length; i++) {
+			Assertions.assertEquals(content[i + 1], rest[i]);
+		}
+		Assertions.assertEquals(1, upstream.privateOpens.get());
+		fast.close();
+		slow.close();
+	}
+
+	@Test
+	void lateJoiner_rejectedOnceFirstChunkIsGone() throws Exception {
+		byte[] content = content(CHUNK_SIZE * 20);
+		CountDownLatch closed = new CountDownLatch(1);
+		DownloadFlight flight = new DownloadFlight(new CountingUpstream(content), 4, f -> closed.countDown());
+
+		InputStream reader = flight.join();
+		Thread.ofVirtual().start(flight::run);
+		Assertions.assertTrue(flight.awaitOpened());
+		Assertions.assertNotNull(flight.join(), "First chunk still buffered, joining is allowed");
+
+		reader.readNBytes(CHUNK_SIZE * 10);
+		Assertions.assertNull(flight.join(), "First chunk was overwritten, a new flight is needed");
+		reader.close();
+	}
+
+	@Test
+	void missingFile_reportsNotFound() throws Exception {
+		CountDownLatch closed = new CountDownLatch(1);
+		DownloadFlight flight = new DownloadFlight(new CountingUpstream(null), 4, f -> closed.countDown());
+		InputStream reader = flight.join();
+		Thread.ofVirtual().start(flight::run);
+
+		Assertions.assertFalse(flight.awaitOpened());
+		Assertions.assertTrue(closed.await(10, TimeUnit.SECONDS));
+		reader.close();
+	}
+
+	private static byte[] content(int size) {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) (i * 31 + (i >> 8));
+		}
+		return bytes;
+	}
+
+	private static class CountingUpstream implements DownloadFlight.Upstream {
+		private final byte[] content;
+		final AtomicInteger sharedOpens = new AtomicInteger();
+		final AtomicInteger privateOpens = new AtomicInteger();
+
+		CountingUpstream(byte[] content) {
+			this.content = content;
+		}
+
+		@Override
+		public DownloadFlight.Source open() {
+			if (content == null) {
+				return null;
+			}
+			sharedOpens.incrementAndGet();
+			return new DownloadFlight.Source(new ByteArrayInputStream(content), content.length, CHUNK_SIZE);
+		}
+
+		@Override
+		public InputStream openAt(long offset) throws IOException {
+			privateOpens.incrementAndGet();
+			InputStream stream = new ByteArrayInputStream(content);
+			stream.skipNBytes(offset);
+			return stream;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package lambdalabs.filestorage.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class FileEventLogTest {
+
+	@Test
+	void since_returnsEventsAfterTheGivenId() {
+		FileEventLog log = new FileEventLog(10);
+		log.reset("0100");
+		log.append(entry("0101"));
+		log.append(entry("0102"));
+		log.append(entry("0103"));
+
+		Assertions.assertEquals(List.of("0102", "0103"), ids(log.since("0101")));
+		Assertions.assertEquals(List.of("0101", "0102", "0103"), ids(log.since("0100")));
+		// A newer id, e.g. from a node further ahead, has nothing to replay here
+		Assertions.assertEquals(List.of(), ids(log.since("0200")));
+		Assertions.assertEquals("0103", log.latestId());
+	}
+
+	@Test
+	void since_isNullOnceEventsAfterTheIdWereDropped() {
+		FileEventLog log = new FileEventLog(2);
+		log.reset("0100");
+		log.append(entry("0101"));
+		log.append(entry("0102"));
+		log.append(entry("0103"));
+
+		Assertions.assertNull(log.since("0100"));
+		Assertions.assertEquals(List.of("0102", "0103"), ids(log.since("0101")));
+	}
+
+	@Test
+	void since_isNullBeforeTheStreamStarted() {
+		FileEventLog log = new FileEventLog(10);
+		Assertions.assertNull(log.since("0100"));
+		Assertions.assertNull(log.latestId());
+	}
+
+	@Test
+	void visibleTo_ownerOrEveryoneForPublic() {
+		Assertions.assertTrue(new FileEventLog.Entry("1", "created", "{}", "alice", false).visibleTo("alice"));
+		Assertions.assertFalse(new FileEventLog.Entry("1", "created", "{}", "alice", false).visibleTo("bob"));
+		Assertions.assertTrue(new FileEventLog.Entry("1", "created", "{}", "alice", true).visibleTo("bob"));
+	}
+
+	private static FileEventLog.Entry entry(String id) {
+		return new FileEventLog.Entry(id, "created", "{}", "alice", false);
+	}
+
+	private static List<String> ids(List<FileEventLog.Entry> entries) {
+		return entries.stream().map(FileEventLog.Entry::id).toList();
+	}
+}
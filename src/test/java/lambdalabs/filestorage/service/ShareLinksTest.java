@@ -0,0 +1,91 @@
+package lambdalabs.filestorage.service;
+
+import lambdalabs.filestorage.model.FileEncryption;
+import lambdalabs.filestorage.model.FileMetadata;
+import lambdalabs.filestorage.model.ShareLink;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+
+public class ShareLinksTest {
+
+	private static final String OLD_SECRET = Base64.getEncoder().encodeToString(new byte[32]);
+
+	private static final String NEW_SECRET = Base64.getEncoder().encodeToString("a new share link signing secret!".getBytes());
+
+	@Test
+	void decode_returnsTheSignedLink() {
+		Map<String, SecretKey> keys = ShareLinks.parseKeys("new:" + NEW_SECRET);
+		ShareLink link = link(new byte[]{1, 2, 3});
+
+		ShareLink decoded = ShareLinks.decode(ShareLinks.encode(link, "new", keys.get("new")), keys);
+
+		Assertions.assertNotNull(decoded);
+		Assertions.assertEquals(link.gridFsId(), decoded.gridFsId());
+		Assertions.assertEquals("report (final).pdf", decoded.filename());
+		Assertions.assertArrayEquals(new byte[]{1, 2, 3}, decoded.encryption().wrappedKey());
+
+		FileMetadata file = decoded.toFileMetadata();
+		Assertions.assertEquals(new ObjectId(link.gridFsId()), file.getGridFsId());
+		Assertions.assertEquals(1234, file.getSize());
+		// Same validators as the regular download
+		Assertions.assertEquals("0cc175b9c0f1b6a831c399e269772661", file.getMd5());
+		Assertions.assertEquals(Instant.ofEpochMilli(1_759_990_000_123L), file.getUploadedAt());
+		Assertions.assertEquals(65536, file.getEncryption().getChunkSize());
+	}
+
+	@Test
+	void decode_acceptsLinksOfEveryConfiguredKey() {
+		Map<String, SecretKey> before = ShareLinks.parseKeys("old:" + OLD_SECRET);
+		Map<String, SecretKey> rotated = ShareLinks.parseKeys("new:" + NEW_SECRET + ", old:" + OLD_SECRET);
+		Map<String, SecretKey> retired = ShareLinks.parseKeys("new:" + NEW_SECRET);
+		String token = ShareLinks.encode(link(null), "old", before.get("old"));
+
+		Assertions.assertEquals("new", rotated.keySet().iterator().next());
+		Assertions.assertNotNull(ShareLinks.decode(token, rotated));
+		Assertions.assertNull(ShareLinks.decode(token, retired));
+	}
+
+	@Test
+	void decode_rejectsTamperedAndMalformedTokens() {
+		Map<String, SecretKey> keys = ShareLinks.parseKeys("new:" + NEW_SECRET);
+		String token = ShareLinks.encode(link(null), "new", keys.get("new"));
+		String[] parts = token.split("\\.");
+		ShareLink other = new ShareLink("id", "file", "someone-else", new ObjectId().toHexString(), 1, null, "x", null, null, null, 0, Long.MAX_VALUE);
+		String otherPayload = ShareLinks.encode(other, "new", keys.get("new")).split("\\.")[1];
+
+		Assertions.assertNull(ShareLinks.decode(parts[0] + "." + otherPayload + "." + parts[2], keys));
+		Assertions.assertNull(ShareLinks.decode("old." + parts[1] + "." + parts[2], keys));
+		Assertions.assertNull(ShareLinks.decode(parts[1] + "." + parts[2], keys));
+		Assertions.assertNull(ShareLinks.decode(parts[0] + "." + parts[1] + ".%%%", keys));
+		Assertions.assertNull(ShareLinks.decode("", keys));
+	}
+
+	@Test
+	void parseKeys_rejectsShortSecrets() {
+		Assertions.assertTrue(ShareLinks.parseKeys("").isEmpty());
+		Assertions.assertThrows(IllegalStateException.class,
+				() -> ShareLinks.parseKeys("short:" + Base64.getEncoder().encodeToString(new byte[16])));
+		Assertions.assertThrows(IllegalStateException.class, () -> ShareLinks.parseKeys("a.b:" + OLD_SECRET));
+	}
+
+	private static ShareLink link(byte[] wrappedKey) {
+		FileEncryption encryption = null;
+		if (wrappedKey != null) {
+			encryption = new FileEncryption();
+			encryption.setAlgorithm("AES/GCM/NoPadding");
+			encryption.setKeyId("default");
+			encryption.setWrappedKey(wrappedKey);
+			encryption.setChunkSize(65536);
+			encryption.setTagLength(128);
+		}
+		return new ShareLink("link-id", "file-id", "owner", new ObjectId().toHexString(), 1234, "application/pdf",
+				"report (final).pdf", "0cc175b9c0f1b6a831c399e269772661", 1_759_990_000_123L, ShareLink.Encryption.of(encryption),
+				1_760_000_000L, 1_760_086_400L);
+	}
+}
@@ -0,0 +1,78 @@
+package lambdalabs.filestorage.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class TransferLaneTest {
+
+	@Test
+	void userOverOwnLimit_rejectedWithoutWaiting() throws Exception {
+		TransferLane lane = new TransferLane(10, 1, 0, 10, Duration.ofSeconds(10));
+		Assertions.assertNull(lane.acquire("alice", 100));
+
+		long startNanos = System.nanoTime();
+		Assertions.assertEquals(TransferLane.Rejection.USER_LIMIT, lane.acquire("alice", 100));
+		Assertions.assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(1));
+		Assertions.assertNull(lane.acquire("bob", 100));
+	}
+
+	@Test
+	void keyWithOwnLimit_countedApartFromUsers() throws Exception {
+		TransferLane lane = new TransferLane(10, 1, 0, 10, Duration.ofSeconds(10));
+		Assertions.assertNull(lane.acquire("alice", 100));
+		Assertions.assertNull(lane.acquire("share-link l1 10.0.0.1", 3, 100));
+		Assertions.assertNull(lane.acquire("share-link l1 10.0.0.1", 3, 100));
+		Assertions.assertNull(lane.acquire("share-link l1 10.0.0.1", 3, 100));
+
+		Assertions.assertEquals(TransferLane.Rejection.USER_LIMIT, lane.acquire("share-link l1 10.0.0.1", 3, 100));
+		Assertions.assertNull(lane.acquire("share-link l1 10.0.0.2", 3, 100));
+		Assertions.assertEquals(TransferLane.Rejection.USER_LIMIT, lane.acquire("alice", 100));
+	}
+
+	@Test
+	void byteBudget_holdsBackLargeTransfersUntilReleased() throws Exception {
+		TransferLane lane = new TransferLane(10, 10, 1000, 10, Duration.ofSeconds(10));
+		Assertions.assertNull(lane.acquire("alice", 800));
+
+		CompletableFuture<TransferLane.Rejection> waiting = CompletableFuture.supplyAsync(() -> {
+			try {
+				return lane.acquire("bob", 500);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		while (lane.waiting() == 0) {
+			Thread.sleep(5);
+		}
+		Assertions.assertFalse(waiting.isDone());
+
+		lane.release("alice", 800);
+		Assertions.assertNull(waiting.get(10, TimeUnit.SECONDS));
+		Assertions.assertEquals(500, lane.bytesInFlight());
+	}
+
+	@Test
+	void transferLargerThanBudget_admittedOnlyWhenLaneIsEmpty() throws Exception {
+		TransferLane lane = new TransferLane(10, 10, 1000, 0, Duration.ZERO);
+		Assertions.assertNull(lane.acquire("alice", 5000));
+		Assertions.assertEquals(TransferLane.Rejection.QUEUE_FULL, lane.acquire("bob", 1));
+
+		lane.release("alice", 5000);
+		Assertions.assertNull(lane.acquire("bob", 1));
+		Assertions.assertEquals(TransferLane.Rejection.QUEUE_FULL, lane.acquire("alice", 5000));
+	}
+
+	@Test
+	void fullQueue_rejectedAndTimedOutWaitersLeave() throws Exception {
+		TransferLane lane = new TransferLane(1, 10, 0, 1, Duration.ofMillis(50));
+		Assertions.assertNull(lane.acquire("alice", 1));
+
+		Assertions.assertEquals(TransferLane.Rejection.TIMEOUT, lane.acquire("bob", 1));
+		Assertions.assertEquals(0, lane.waiting());
+		Assertions.assertEquals(1, lane.active());
+	}
+}
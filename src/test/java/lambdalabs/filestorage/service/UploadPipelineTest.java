@@ -0,0 +1,242 @@
+package lambdalabs.filestorage.service;
+
+import org.bson.BsonBinary;
+import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UploadPipelineTest {
+
+	private static final int CHUNK_SIZE = 1024;
+
+	private final ExecutorService writers = Executors.newVirtualThreadPerTaskExecutor();
+
+	@AfterEach
+	void shutdown() {
+		writers.shutdownNow();
+	}
+
+	@Test
+	void store_writesGridFsChunksAndFileDocument() throws Exception {
+		byte[] content = content(CHUNK_SIZE * 10 + 17);
+		RecordingSink sink = new RecordingSink();
+		UploadPipeline pipeline = new UploadPipeline(sink, writers, CHUNK_SIZE, 2, 1, 8);
+
+		UploadPipeline.Result result = pipeline.store(new ByteArrayInputStream(content), "a.bin", "application/pdf");
+
+		Assertions.assertEquals(content.length, result.length());
+		Assertions.assertEquals(md5(content), result.md5());
+		Assertions.assertEquals(11, sink.chunks.size());
+		ByteArrayOutputStream stored = new ByteArrayOutputStream();
+		sink.chunks.stream()
+				.sorted((a, b) -> Integer.compare(a.getInt32("n").getValue(), b.getInt32("n").getValue()))
+				.forEach(chunk -> {
+					Assertions.assertEquals(result.id(), chunk.getObjectId("files_id").getValue());
+					stored.writeBytes(chunk.getBinary("data").getData());
+				});
+		Assertions.assertArrayEquals(content, stored.toByteArray());
+
+		Assertions.assertEquals(1, sink.files.size());
+		BsonDocument file = sink.files.get(0);
+		Assertions.assertEquals(result.id(), file.getObjectId("_id").getValue());
+		Assertions.assertEquals("a.bin", file.getString("filename").getValue());
+		Assertions.assertEquals(content.length, file.getInt64("length").getValue());
+		Assertions.assertEquals(CHUNK_SIZE, file.getInt32("chunkSize").getValue());
+		Assertions.assertEquals("application/pdf", file.getDocument("metadata").getString("_contentType").getValue());
+		Assertions.assertEquals(result.md5(), file.getString("md5").getValue());
+		Assertions.assertEquals(0, sink.deletes.get());
+	}
+
+	@Test
+	void store_smallAndEmptyBodiesAreWrittenByTheCallingThread() throws Exception {
+		RecordingSink sink = new RecordingSink();
+		UploadPipeline pipeline = new UploadPipeline(sink, writers, CHUNK_SIZE, 4, 1, 8);
+
+		UploadPipeline.Result small = pipeline.store(new ByteArrayInputStream(content(CHUNK_SIZE * 2)), "small", null);
+		Assertions.assertEquals(CHUNK_SIZE * 2, small.length());
+		Assertions.assertEquals(List.of(Thread.currentThread().getName()), sink.chunkThreads);
+
+		UploadPipeline.Result empty = pipeline.store(InputStream.nullInputStream(), "empty", null);
+		Assertions.assertEquals(0, empty.length());
+		Assertions.assertEquals(md5(new byte[0]), empty.md5());
+		Assertions.assertEquals(2, sink.chunks.size());
+		Assertions.assertEquals(2, sink.files.size());
+		Assertions.assertTrue(sink.files.get(1).getDocument("metadata").isEmpty());
+	}
+
+	@Test
+	void slowWriter_holdsBackTheReader() throws Exception {
+		int batchChunks = 2;
+		int queueBatches = 1;
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingSink sink = new RecordingSink() {
+			@Override
+			public void insertChunks(List<BsonDocument> chunks) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+				super.insertChunks(chunks);
+			}
+		};
+		UploadPipeline pipeline = new UploadPipeline(sink, writers, CHUNK_SIZE, batchChunks, queueBatches, 8);
+		byte[] content = content(CHUNK_SIZE * 100);
+		AtomicLong read = new AtomicLong();
+		InputStream body = new FilterInputStream(new ByteArrayInputStream(content)) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					read.addAndGet(n);
+				}
+				return n;
+			}
+		};
+
+		ExecutorService uploader = Executors.newSingleThreadExecutor();
+		Future<UploadPipeline.Result> result = uploader.submit(() -> pipeline.store(body, "slow", null));
+		Thread.sleep(300);
+		// One batch being inserted, queueBatches waiting and one being filled
+		long bound = (long) (queueBatches + 2) * batchChunks * CHUNK_SIZE;
+		Assertions.assertTrue(read.get() <= bound, "Read " + read.get() + " bytes ahead of a stalled writer");
+
+		release.countDown();
+		Assertions.assertEquals(content.length, result.get(1, TimeUnit.MINUTES).length());
+		Assertions.assertEquals(100, sink.chunks.size());
+		uploader.shutdownNow();
+	}
+
+	@Test
+	void writerFailure_failsTheUploadAndRemovesChunks() {
+		AtomicInteger inserts = new AtomicInteger();
+		RecordingSink sink = new RecordingSink() {
+			@Override
+			public void insertChunks(List<BsonDocument> chunks) {
+				if (inserts.incrementAndGet() == 3) {
+					throw new IllegalStateException("insert failed");
+				}
+				super.insertChunks(chunks);
+			}
+		};
+		UploadPipeline pipeline = new UploadPipeline(sink, writers, CHUNK_SIZE, 2, 1, 8);
+
+		IOException failure = Assertions.assertThrows(IOException.class,
+				() -> pipeline.store(new ByteArrayInputStream(content(CHUNK_SIZE * 50)), "broken", null));
+		Assertions.assertInstanceOf(IllegalStateException.class, failure.getCause());
+		Assertions.assertEquals(1, sink.deletes.get());
+		Assertions.assertTrue(sink.files.isEmpty());
+	}
+
+	@Test
+	void readerFailure_failsTheUploadAndRemovesChunks() {
+		RecordingSink sink = new RecordingSink();
+		UploadPipeline pipeline = new UploadPipeline(sink, writers, CHUNK_SIZE, 2, 1, 8);
+		InputStream body = new FilterInputStream(new ByteArrayInputStream(content(CHUNK_SIZE * 50))) {
+			private int reads;
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (++reads == 20) {
+					throw new IOException("client went away");
+				}
+				return super.read(b, off, len);
+			}
+		};
+
+		IOException failure = Assertions.assertThrows(IOException.class, () -> pipeline.store(body, "cut", null));
+		Assertions.assertEquals("client went away", failure.getMessage());
+		Assertions.assertEquals(1, sink.deletes.get());
+		Assertions.assertTrue(sink.files.isEmpty());
+	}
+
+	@Test
+	void store_withCipher_sealsChunksWithinTheChunkSize() throws Exception {
+		byte[] content = content(CHUNK_SIZE * 9 + 5);
+		RecordingSink sink = new RecordingSink();
+		UploadPipeline pipeline = new UploadPipeline(sink, writers, CHUNK_SIZE, 2, 1, 8);
+		SecretKey key = new SecretKeySpec(new byte[32], "AES");
+
+		UploadPipeline.Result result = pipeline.store(new ByteArrayInputStream(content), "sealed.bin", null, new ChunkCipher(key));
+
+		int plainChunk = CHUNK_SIZE - ChunkCipher.TAG_BYTES;
+		int chunks = (content.length + plainChunk - 1) / plainChunk;
+		Assertions.assertEquals(content.length, result.length());
+		Assertions.assertEquals(md5(content), result.md5());
+		Assertions.assertEquals(chunks, sink.chunks.size());
+		Assertions.assertEquals(content.length + (long) chunks * ChunkCipher.TAG_BYTES, sink.files.get(0).getInt64("length").getValue());
+
+		ByteArrayOutputStream stored = new ByteArrayOutputStream();
+		sink.chunks.stream()
+				.sorted((a, b) -> Integer.compare(a.getInt32("n").getValue(), b.getInt32("n").getValue()))
+				.forEach(chunk -> {
+					Assertions.assertTrue(chunk.getBinary("data").getData().length <= CHUNK_SIZE);
+					stored.writeBytes(chunk.getBinary("data").getData());
+				});
+		try (InputStream plain = new DecryptingInputStream(new ByteArrayInputStream(stored.toByteArray()), new ChunkCipher(key),
+				plainChunk, 0, content.length, new byte[CHUNK_SIZE], buffer -> { })) {
+			Assertions.assertArrayEquals(content, plain.readAllBytes());
+		}
+	}
+
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) (i * 31 + i / 7);
+		}
+		return content;
+	}
+
+	private static String md5(byte[] content) throws Exception {
+		return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(content));
+	}
+
+	private static class RecordingSink implements UploadPipeline.Sink {
+		final List<BsonDocument> chunks = new CopyOnWriteArrayList<>();
+		final List<String> chunkThreads = new CopyOnWriteArrayList<>();
+		final List<BsonDocument> files = new CopyOnWriteArrayList<>();
+		final AtomicInteger deletes = new AtomicInteger();
+
+		@Override
+		public void insertChunks(List<BsonDocument> documents) {
+			chunkThreads.add(Thread.currentThread().getName());
+			// Buffers go back to the pool after the insert, as the driver has encoded them by then
+			for (BsonDocument document : documents) {
+				BsonDocument copy = document.clone();
+				copy.put("data", new BsonBinary(document.getBinary("data").getData().clone()));
+				chunks.add(copy);
+			}
+		}
+
+		@Override
+		public void insertFile(BsonDocument file) {
+			files.add(file);
+		}
+
+		@Override
+		public void deleteChunks(BsonObjectId fileId) {
+			deletes.incrementAndGet();
+		}
+	}
+}